@@ -66,6 +66,7 @@ import androidx.drawerlayout.widget.DrawerLayout;
 import androidx.viewpager.widget.ViewPager;
 
 import java.util.Arrays;
+import java.util.Set;
 
 /**
  * A terminal emulator activity.
@@ -208,7 +209,7 @@ public final class TermuxActivity extends AppCompatActivity implements ServiceCo
 
         // Load Termux app SharedProperties from disk
         mProperties = TermuxAppSharedProperties.getProperties();
-        reloadProperties();
+        reloadProperties(false);
 
         setActivityTheme();
 
@@ -404,7 +405,11 @@ public final class TermuxActivity extends AppCompatActivity implements ServiceCo
                         if (intent != null && intent.getExtras() != null) {
                             launchFailsafe = intent.getExtras().getBoolean(TERMUX_ACTIVITY.EXTRA_FAILSAFE_SESSION, false);
                         }
-                        mTermuxTerminalSessionActivityClient.addNewSession(launchFailsafe, null);
+                        // Restore the sessions lost when the app was killed, unless a failsafe session was requested
+                        if (!launchFailsafe && mTermuxService.restoreTermuxSessionsFromSnapshots() > 0)
+                            mTermuxTerminalSessionActivityClient.setCurrentSession(mTermuxTerminalSessionActivityClient.getCurrentStoredSessionOrLast());
+                        else
+                            mTermuxTerminalSessionActivityClient.addNewSession(launchFailsafe, null);
                     } catch (WindowManager.BadTokenException e) {
                         // Activity finished - ignore.
                     }
@@ -443,11 +448,18 @@ public final class TermuxActivity extends AppCompatActivity implements ServiceCo
 
 
 
-    private void reloadProperties() {
-        mProperties.loadTermuxPropertiesFromDisk();
+    /**
+     * Reload the properties from disk.
+     *
+     * @param force If {@code false}, then the file is only read if it changed since it was last
+     *              loaded. This should be {@code true} if the user requested the reload, like with
+     *              `termux-reload-settings`, so that every edit is picked up.
+     */
+    private void reloadProperties(boolean force) {
+        Set<String> changedKeys = mProperties.loadTermuxPropertiesFromDisk(force);
 
         if (mTermuxTerminalViewClient != null)
-            mTermuxTerminalViewClient.onReloadProperties();
+            mTermuxTerminalViewClient.onReloadProperties(changedKeys);
     }
 
 
@@ -968,7 +980,7 @@ public final class TermuxActivity extends AppCompatActivity implements ServiceCo
 
     private void reloadActivityStyling(boolean recreateActivity) {
         if (mProperties != null) {
-            reloadProperties();
+            reloadProperties(true);
 
             if (mExtraKeysView != null) {
                 mExtraKeysView.setButtonTextAllCaps(mProperties.shouldExtraKeysTextBeAllCaps());
@@ -26,9 +26,13 @@ import com.andronux.termux.shared.termux.plugins.TermuxPluginUtils;
 import com.andronux.termux.shared.data.IntentUtils;
 import com.andronux.termux.shared.net.uri.UriUtils;
 import com.andronux.termux.shared.errors.Errno;
+import com.andronux.termux.shared.errors.Error;
+import com.andronux.termux.shared.file.FileUtils;
 import com.andronux.termux.shared.shell.ShellUtils;
 import com.andronux.termux.shared.shell.command.runner.app.AppShell;
+import com.andronux.termux.shared.shell.command.runner.app.AppShellScheduler;
 import com.andronux.termux.shared.termux.settings.properties.TermuxAppSharedProperties;
+import com.andronux.termux.shared.termux.settings.properties.TermuxPropertyConstants;
 import com.andronux.termux.shared.termux.shell.command.environment.TermuxShellEnvironment;
 import com.andronux.termux.shared.termux.shell.TermuxShellUtils;
 import com.andronux.termux.shared.termux.TermuxConstants;
@@ -37,6 +41,7 @@ import com.andronux.termux.shared.termux.TermuxConstants.TERMUX_APP.TERMUX_SERVI
 import com.andronux.termux.shared.termux.settings.preferences.TermuxAppSharedPreferences;
 import com.andronux.termux.shared.termux.shell.TermuxShellManager;
 import com.andronux.termux.shared.termux.shell.command.runner.terminal.TermuxSession;
+import com.andronux.termux.shared.termux.shell.command.runner.terminal.TermuxSessionPool;
 import com.andronux.termux.shared.termux.terminal.TermuxTerminalSessionClientBase;
 import com.andronux.termux.shared.logger.Logger;
 import com.andronux.termux.shared.notification.NotificationUtils;
@@ -48,9 +53,14 @@ import com.andronux.termux.shared.shell.command.ExecutionCommand.ShellCreateMode
 import com.andronux.termux.terminal.TerminalEmulator;
 import com.andronux.termux.terminal.TerminalSession;
 import com.andronux.termux.terminal.TerminalSessionClient;
+import com.andronux.termux.terminal.TerminalSnapshot;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * A service holding a list of {@link TermuxSession} in {@link TermuxShellManager#mTermuxSessions} and background {@link AppShell}
@@ -93,11 +103,42 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
      */
     private TermuxAppSharedProperties mProperties;
 
+    /** The interval at which the memory used by the transcripts of the sessions is checked against the budget. */
+    private static final long TRANSCRIPT_MEMORY_CHECK_INTERVAL_MILLIS = 10_000;
+
+    /** The snapshot files are named `session-<creation_time>-<handle>.snapshot`. */
+    private static final String TERMINAL_SESSION_SNAPSHOT_FILE_PREFIX = "session-";
+    private static final String TERMINAL_SESSION_SNAPSHOT_FILE_EXTENSION = ".snapshot";
+
+    /** The sender key of background execution commands whose sender is not known. */
+    private static final String UNKNOWN_EXECUTION_COMMAND_SENDER = "unknown";
+
+    /** The {@link TerminalSession} last shown to the user, which is trimmed last if over the transcript memory budget. */
+    private TerminalSession mViewedTerminalSession;
+
+    /** The memory used by the transcripts of all sessions in bytes, as estimated by the last check. */
+    private long mTranscriptMemoryBytes;
+
+    private final Runnable mTranscriptMemoryCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            enforceTranscriptMemoryBudget(1);
+            if (!isTermuxSessionsEmpty())
+                mHandler.postDelayed(this, TRANSCRIPT_MEMORY_CHECK_INTERVAL_MILLIS);
+        }
+    };
+
     /**
      * Termux app shell manager
      */
     private TermuxShellManager mShellManager;
 
+    /**
+     * The login shells started in the background for new sessions, sized by
+     * {@link TermuxPropertyConstants#KEY_TERMINAL_SESSION_POOL_SIZE}.
+     */
+    private TermuxSessionPool mTermuxSessionPool;
+
     /** The wake lock and wifi lock are always acquired and released together. */
     private PowerManager.WakeLock mWakeLock;
     private WifiManager.WifiLock mWifiLock;
@@ -117,6 +158,8 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
 
         mShellManager = TermuxShellManager.getShellManager();
 
+        mTermuxSessionPool = new TermuxSessionPool(this, this);
+
         runStartForeground();
 
         SystemEventReceiver.registerPackageUpdateEvents(this);
@@ -132,7 +175,7 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
 
         String action = null;
         if (intent != null) {
-            Logger.logVerboseExtended(LOG_TAG, "Intent Received:\n" + IntentUtils.getIntentString(intent));
+            Logger.logVerboseExtended(LOG_TAG, () -> "Intent Received:\n" + IntentUtils.getIntentString(intent));
             action = intent.getAction();
         }
 
@@ -172,8 +215,17 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         TermuxShellUtils.clearTermuxTMPDIR(true);
 
         actionReleaseWakeLock(false);
-        if (!mWantsToStop)
+        if (!mWantsToStop) {
+            // The service is being destroyed without the user asking for it, so keep the snapshots of the
+            // sessions to restore them when they are recreated
+            detachTermuxSessionSnapshots();
             killAllTermuxExecutionCommands();
+        } else {
+            deleteTermuxSessionSnapshots();
+        }
+
+        mHandler.removeCallbacks(mTranscriptMemoryCheckRunnable);
+        mTermuxSessionPool.drain();
 
         TermuxShellManager.onAppExit(this);
 
@@ -182,6 +234,33 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         runStopForeground();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // The app process may be killed after this, so save the current state of the sessions
+        checkpointTermuxSessionSnapshots();
+
+        // Trim the transcripts of the sessions harder the less memory is left, and do not keep pooled
+        // shells around when memory is low
+        switch (level) {
+            case TRIM_MEMORY_RUNNING_CRITICAL:
+            case TRIM_MEMORY_COMPLETE:
+                mTermuxSessionPool.drain();
+                enforceTranscriptMemoryBudget(4);
+                break;
+            case TRIM_MEMORY_RUNNING_LOW:
+            case TRIM_MEMORY_BACKGROUND:
+            case TRIM_MEMORY_MODERATE:
+                mTermuxSessionPool.drain();
+                enforceTranscriptMemoryBudget(2);
+                break;
+            default:
+                enforceTranscriptMemoryBudget(1);
+                break;
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         Logger.logVerbose(LOG_TAG, "onBind");
@@ -267,6 +346,13 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
             ", TermuxTasks=" + mShellManager.mTermuxTasks.size() +
             ", PendingPluginExecutionCommands=" + mShellManager.mPendingPluginExecutionCommands.size());
 
+        // Queued commands are still in the pending plugin execution commands list and are processed below
+        mShellManager.mAppShellScheduler.cancelQueuedExecutionCommands();
+        Logger.logDebugExtended(LOG_TAG, mShellManager.mAppShellScheduler::getLogString);
+
+        // Pooled sessions have no execution command results to process
+        mTermuxSessionPool.drain();
+
         List<TermuxSession> termuxSessions = new ArrayList<>(mShellManager.mTermuxSessions);
         List<AppShell> termuxTasks = new ArrayList<>(mShellManager.mTermuxTasks);
         List<ExecutionCommand> pendingPluginExecutionCommands = new ArrayList<>(mShellManager.mPendingPluginExecutionCommands);
@@ -386,6 +472,9 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
             if (Runner.APP_SHELL.equalsRunner(executionCommand.runner))
                 executionCommand.stdin = IntentUtils.getStringExtraIfSet(intent, TERMUX_SERVICE.EXTRA_STDIN, null);
             executionCommand.backgroundCustomLogLevel = IntentUtils.getIntegerExtraIfSet(intent, TERMUX_SERVICE.EXTRA_BACKGROUND_CUSTOM_LOG_LEVEL, null);
+            executionCommand.outputCaptureMode = IntentUtils.getStringExtraIfSet(intent, TERMUX_SERVICE.EXTRA_OUTPUT_CAPTURE_MODE, null);
+            executionCommand.outputCaptureBufferSize = IntentUtils.getIntegerExtraIfSet(intent, TERMUX_SERVICE.EXTRA_OUTPUT_CAPTURE_BUFFER_SIZE, null);
+            executionCommand.priority = IntentUtils.getIntegerExtraIfSet(intent, TERMUX_SERVICE.EXTRA_PRIORITY, null);
         }
 
         executionCommand.workingDirectory = IntentUtils.getStringExtraIfSet(intent, TERMUX_SERVICE.EXTRA_WORKDIR, null);
@@ -438,19 +527,46 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         if (executionCommand.shellName == null && executionCommand.executable != null)
             executionCommand.shellName = ShellUtils.getExecutableBasename(executionCommand.executable);
 
-        AppShell newTermuxTask = null;
         ShellCreateMode shellCreateMode = processShellCreateMode(executionCommand);
         if (shellCreateMode == null) return;
         if (ShellCreateMode.NO_SHELL_WITH_NAME.equals(shellCreateMode)) {
-            newTermuxTask = getTermuxTaskForShellName(executionCommand.shellName);
-            if (newTermuxTask != null)
-                Logger.logVerbose(LOG_TAG, "Existing TermuxTask with \"" + executionCommand.shellName + "\" shell name found for shell create mode \"" + shellCreateMode.getMode() + "\"");
-            else
-                Logger.logVerbose(LOG_TAG, "No existing TermuxTask with \"" + executionCommand.shellName + "\" shell name found for shell create mode \"" + shellCreateMode.getMode() + "\"");
+            // Commands waiting in the scheduler will also create a TermuxTask with their shell name
+            if (getTermuxTaskForShellName(executionCommand.shellName) != null ||
+                mShellManager.mAppShellScheduler.getQueuedExecutionCommandForShellName(executionCommand.shellName) != null) {
+                Logger.logVerbose(LOG_TAG, "Existing or queued TermuxTask with \"" + executionCommand.shellName + "\" shell name found for shell create mode \"" + shellCreateMode.getMode() + "\"");
+                mShellManager.mPendingPluginExecutionCommands.remove(executionCommand);
+                return;
+            }
+            Logger.logVerbose(LOG_TAG, "No existing or queued TermuxTask with \"" + executionCommand.shellName + "\" shell name found for shell create mode \"" + shellCreateMode.getMode() + "\"");
         }
 
-        if (newTermuxTask == null)
-            newTermuxTask = createTermuxTask(executionCommand);
+        // Queue the command so that bursts of commands do not all run at once. It stays in the
+        // pending plugin execution commands list until it is started.
+        mShellManager.mAppShellScheduler.submit(executionCommand, getExecutionCommandSenderKey(executionCommand),
+            command -> {
+                // A TermuxTask with the same shell name may have been started while the command was queued
+                if (ShellCreateMode.NO_SHELL_WITH_NAME.equals(shellCreateMode) &&
+                    getTermuxTaskForShellName(command.shellName) != null) {
+                    Logger.logVerbose(LOG_TAG, "Not starting queued \"" + command.getCommandIdAndLabelLogString() + "\" command since a TermuxTask with \"" + command.shellName + "\" shell name was started while it was queued");
+                    mShellManager.mPendingPluginExecutionCommands.remove(command);
+                    return false;
+                }
+                return createTermuxTask(command) != null;
+            });
+    }
+
+    /**
+     * Get the key of the sender of an execution command for the per package limit of the
+     * {@link AppShellScheduler}. The sender of a service intent is not known, so the creator of the
+     * result pending intent is used if one was sent, and all other commands share the same limit.
+     */
+    @NonNull
+    private static String getExecutionCommandSenderKey(@NonNull ExecutionCommand executionCommand) {
+        PendingIntent resultPendingIntent = executionCommand.resultConfig.resultPendingIntent;
+        if (resultPendingIntent == null) return UNKNOWN_EXECUTION_COMMAND_SENDER;
+
+        String creatorPackage = resultPendingIntent.getCreatorPackage();
+        return creatorPackage != null ? creatorPackage : "uid:" + resultPendingIntent.getCreatorUid();
     }
 
     /** Create a TermuxTask. */
@@ -517,6 +633,8 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
                     TermuxPluginUtils.processPluginExecutionCommandResult(this, LOG_TAG, executionCommand);
 
                 mShellManager.mTermuxTasks.remove(termuxTask);
+                if (executionCommand != null)
+                    mShellManager.mAppShellScheduler.onExecutionCommandFinished(executionCommand);
             }
 
             updateNotification();
@@ -585,14 +703,24 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         executionCommand.setShellCommandShellEnvironment = true;
         executionCommand.terminalTranscriptRows = mProperties.getTerminalTranscriptRows();
 
+        // Saved in the snapshot before TermuxSession.execute() replaces them with the shell and its arguments
+        TerminalSnapshot.Command snapshotCommand = new TerminalSnapshot.Command(executionCommand.executable,
+            executionCommand.arguments, executionCommand.workingDirectory);
+
         if (Logger.getLogLevel() >= Logger.LOG_LEVEL_VERBOSE)
             Logger.logVerboseExtended(LOG_TAG, executionCommand.toString());
 
+        // Adopt a pooled login shell if possible. Sessions restored from the snapshot of a session
+        // lost when the app was killed are not pooled, since they need the handle of that session.
+        TermuxSession newTermuxSession = mTermuxSessionPool.acquire(executionCommand, getTermuxTerminalSessionClient(),
+            mProperties.getTerminalSessionPoolSize());
+
         // If the execution command was started for a plugin, only then will the stdout be set
         // Otherwise if command was manually started by the user like by adding a new terminal session,
         // then no need to set stdout
-        TermuxSession newTermuxSession = TermuxSession.execute(this, executionCommand, getTermuxTerminalSessionClient(),
-            this, new TermuxShellEnvironment(), null, executionCommand.isPluginExecutionCommand);
+        if (newTermuxSession == null)
+            newTermuxSession = TermuxSession.execute(this, executionCommand, getTermuxTerminalSessionClient(),
+                this, new TermuxShellEnvironment(), null, executionCommand.isPluginExecutionCommand);
         if (newTermuxSession == null) {
             Logger.logError(LOG_TAG, "Failed to execute new TermuxSession command for:\n" + executionCommand.getCommandIdAndLabelLogString());
             // If the execution command was started for a plugin, then process the error
@@ -606,6 +734,25 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         }
 
         mShellManager.mTermuxSessions.add(newTermuxSession);
+        if (mShellManager.mTermuxSessions.size() == 1) {
+            mHandler.removeCallbacks(mTranscriptMemoryCheckRunnable);
+            mHandler.postDelayed(mTranscriptMemoryCheckRunnable, TRANSCRIPT_MEMORY_CHECK_INTERVAL_MILLIS);
+        }
+
+        if (mProperties.shouldRecordTerminalSessions()) {
+            File recordingFile = new File(TermuxConstants.TERMUX_SESSION_RECORDINGS_DIR,
+                "session-" + executionCommand.id + "-" + System.currentTimeMillis() + ".cast");
+            Logger.logDebug(LOG_TAG, "Recording \"" + executionCommand.getCommandIdAndLabelLogString() + "\" TermuxSession to \"" + recordingFile + "\"");
+            newTermuxSession.getTerminalSession().startRecording(recordingFile,
+                mProperties.getTerminalSessionRecordingMaxSize() * 1024L * 1024L);
+        }
+
+        // Sessions started by plugins are not restored, since their commands would not be running anymore
+        if (mProperties.shouldSnapshotTerminalSessions() && !executionCommand.isPluginExecutionCommand) {
+            File snapshotFile = getTermuxSessionSnapshotFile(newTermuxSession.getTerminalSession().mHandle);
+            Logger.logDebug(LOG_TAG, "Saving snapshots of \"" + executionCommand.getCommandIdAndLabelLogString() + "\" TermuxSession to \"" + snapshotFile + "\"");
+            newTermuxSession.getTerminalSession().setSnapshotFile(snapshotFile, snapshotCommand);
+        }
 
         // Remove the execution command from the pending plugin execution commands list since it has
         // now been processed
@@ -625,6 +772,166 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         return newTermuxSession;
     }
 
+    /**
+     * Restore the TermuxSessions lost when the app was killed from their snapshots, in the order they
+     * were created. Each restored session gets the handle of the lost session, so that it keeps using
+     * the same snapshot file, and so that the stored current session is found again. It runs the
+     * executable, arguments and working directory saved in the snapshot, or the default shell if
+     * none were saved.
+     *
+     * @return Returns the number of TermuxSessions restored.
+     */
+    public synchronized int restoreTermuxSessionsFromSnapshots() {
+        if (!mProperties.shouldSnapshotTerminalSessions()) return 0;
+
+        File[] snapshotFiles = getTermuxSessionSnapshotFiles();
+        if (snapshotFiles == null) return 0;
+
+        // The file names start with the time the sessions were created
+        Arrays.sort(snapshotFiles);
+
+        int restored = 0;
+        for (File snapshotFile : snapshotFiles) {
+            String name = snapshotFile.getName();
+            int handleStart = name.indexOf('-', TERMINAL_SESSION_SNAPSHOT_FILE_PREFIX.length()) + 1;
+            int handleEnd = name.length() - TERMINAL_SESSION_SNAPSHOT_FILE_EXTENSION.length();
+            if (handleStart <= 0 || handleStart >= handleEnd) continue;
+            String handle = name.substring(handleStart, handleEnd);
+            if (getTerminalSessionForHandle(handle) != null) continue;
+
+            TerminalSnapshot.Command command = null;
+            try {
+                command = TerminalSnapshot.readCommand(snapshotFile);
+            } catch (IOException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to read command of snapshot \"" + snapshotFile + "\"", e);
+            }
+            if (command == null)
+                command = new TerminalSnapshot.Command(null, null, null);
+
+            ExecutionCommand executionCommand = new ExecutionCommand(TermuxShellManager.getNextShellId(),
+                command.executable, command.arguments, null,
+                command.workingDirectory != null ? command.workingDirectory : mProperties.getDefaultWorkingDirectory(),
+                Runner.TERMINAL_SESSION.getName(), false);
+            executionCommand.terminalSessionHandle = handle;
+            Logger.logDebug(LOG_TAG, "Restoring TermuxSession from snapshot \"" + snapshotFile + "\"");
+            if (createTermuxSession(executionCommand) != null) restored++;
+        }
+
+        return restored;
+    }
+
+    /**
+     * Get the snapshot file of the TermuxSession with the {@link TerminalSession#mHandle}, or a new
+     * file named with the current time and the handle if there is none. The snapshot of another
+     * session is never used, so that a new session does not show the screen of an unrelated one.
+     */
+    private static File getTermuxSessionSnapshotFile(@NonNull String handle) {
+        String suffix = "-" + handle + TERMINAL_SESSION_SNAPSHOT_FILE_EXTENSION;
+        File[] snapshotFiles = getTermuxSessionSnapshotFiles();
+        if (snapshotFiles != null) {
+            for (File snapshotFile : snapshotFiles)
+                if (snapshotFile.getName().endsWith(suffix)) return snapshotFile;
+        }
+
+        return new File(TermuxConstants.TERMUX_APP.TERMINAL_SESSION_SNAPSHOTS_DIR_PATH,
+            TERMINAL_SESSION_SNAPSHOT_FILE_PREFIX + System.currentTimeMillis() + suffix);
+    }
+
+    @Nullable
+    private static File[] getTermuxSessionSnapshotFiles() {
+        return new File(TermuxConstants.TERMUX_APP.TERMINAL_SESSION_SNAPSHOTS_DIR_PATH)
+            .listFiles((dir, name) -> name.startsWith(TERMINAL_SESSION_SNAPSHOT_FILE_PREFIX) &&
+                name.endsWith(TERMINAL_SESSION_SNAPSHOT_FILE_EXTENSION));
+    }
+
+    /** Save the changes to the snapshots of all TermuxSessions since their previous checkpoints. */
+    private synchronized void checkpointTermuxSessionSnapshots() {
+        for (TermuxSession termuxSession : mShellManager.mTermuxSessions)
+            termuxSession.getTerminalSession().checkpointSnapshot();
+    }
+
+    /** Save the final snapshots of all TermuxSessions and keep them when their processes are killed. */
+    private synchronized void detachTermuxSessionSnapshots() {
+        for (TermuxSession termuxSession : mShellManager.mTermuxSessions)
+            termuxSession.getTerminalSession().detachSnapshot();
+    }
+
+    /** Delete the snapshots of all TermuxSessions, like when the user exits the app. */
+    private void deleteTermuxSessionSnapshots() {
+        Error error = FileUtils.deleteDirectoryFile("terminal session snapshots directory",
+            TermuxConstants.TERMUX_APP.TERMINAL_SESSION_SNAPSHOTS_DIR_PATH, true);
+        if (error != null)
+            Logger.logErrorExtended(LOG_TAG, error.toString());
+    }
+
+    /**
+     * Should be called when a {@link TerminalSession} is shown to the user, so that the least recently
+     * viewed sessions are trimmed first when the transcripts exceed the memory budget. The session
+     * gets back the transcript rows it was created with, in case it was trimmed while in the background.
+     */
+    public synchronized void onTermuxSessionViewed(TerminalSession terminalSession) {
+        TermuxSession termuxSession = getTermuxSessionForTerminalSession(terminalSession);
+        if (termuxSession == null) return;
+
+        mViewedTerminalSession = terminalSession;
+        termuxSession.setViewed();
+
+        TerminalEmulator emulator = terminalSession.getEmulator();
+        if (emulator != null)
+            mTermuxSessionPool.setTerminalSize(emulator.mColumns, emulator.mRows);
+        Integer transcriptRows = termuxSession.getExecutionCommand().terminalTranscriptRows;
+        if (emulator != null && transcriptRows != null && emulator.getTranscriptRows() < transcriptRows)
+            emulator.setTranscriptRows(transcriptRows);
+
+        enforceTranscriptMemoryBudget(1);
+    }
+
+    /**
+     * Trim the transcripts of the least recently viewed sessions if they use more memory than the
+     * budget set by {@link TermuxPropertyConstants#KEY_TERMINAL_TRANSCRIPT_MEMORY_BUDGET}. This
+     * must be called on the main thread.
+     *
+     * @param budgetDivisor The divisor for the budget, to trim more when the system is low on memory.
+     */
+    private synchronized void enforceTranscriptMemoryBudget(int budgetDivisor) {
+        long transcriptMemoryBytes = mShellManager.enforceTranscriptMemoryBudget(getTranscriptMemoryBudget() / budgetDivisor,
+            mTermuxTerminalSessionActivityClient != null ? mViewedTerminalSession : null);
+
+        // Only update the notification if the shown usage changed
+        boolean changed = !formatMiB(transcriptMemoryBytes).equals(formatMiB(mTranscriptMemoryBytes));
+        mTranscriptMemoryBytes = transcriptMemoryBytes;
+        if (changed && !isTermuxSessionsEmpty())
+            updateNotification();
+    }
+
+    /** Get the transcript memory budget in bytes from the properties, or a quarter of the max heap size if not set. */
+    private long getTranscriptMemoryBudget() {
+        int budget = mProperties.getTerminalTranscriptMemoryBudget();
+        return budget > 0 ? budget * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /** Get the estimated memory used by the transcripts of the sessions, shown in the expanded notification. */
+    private String getTranscriptMemoryUsageText() {
+        StringBuilder usageText = new StringBuilder("Transcripts: " + formatMiB(mTranscriptMemoryBytes) +
+            " of " + formatMiB(getTranscriptMemoryBudget()) + " MiB");
+        for (int i = 0; i < mShellManager.mTermuxSessions.size(); i++) {
+            TerminalSession terminalSession = mShellManager.mTermuxSessions.get(i).getTerminalSession();
+            TerminalEmulator emulator = terminalSession.getEmulator();
+            if (emulator == null) continue;
+
+            usageText.append("\n[").append(i + 1).append("] ");
+            if (!DataUtils.isNullOrEmpty(terminalSession.mSessionName))
+                usageText.append(terminalSession.mSessionName).append(": ");
+            usageText.append(formatMiB(emulator.estimateMemoryBytes())).append(" MiB, ")
+                .append(emulator.getTranscriptRows()).append(" rows");
+        }
+        return usageText.toString();
+    }
+
+    private static String formatMiB(long bytes) {
+        return String.format(Locale.ROOT, "%.1f", bytes / (1024.0 * 1024.0));
+    }
+
     /** Remove a TermuxSession. */
     public synchronized int removeTermuxSession(TerminalSession sessionToRemove) {
         int index = getIndexOfSession(sessionToRemove);
@@ -808,7 +1115,7 @@ public final class TermuxService extends Service implements AppShell.AppShellCli
         // Build the notification
         Notification.Builder builder =  NotificationUtils.geNotificationBuilder(this,
             TermuxConstants.TERMUX_APP_NOTIFICATION_CHANNEL_ID, priority,
-            TermuxConstants.TERMUX_APP_NAME, notificationText, null,
+            TermuxConstants.TERMUX_APP_NAME, notificationText, sessionCount > 0 ? getTranscriptMemoryUsageText() : null,
             contentIntent, null, NotificationUtils.NOTIFICATION_MODE_SILENT);
         if (builder == null)  return null;
 
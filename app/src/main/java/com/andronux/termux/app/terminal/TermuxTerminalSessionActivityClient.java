@@ -299,6 +299,10 @@ public class TermuxTerminalSessionActivityClient extends TermuxTerminalSessionCl
         // be stale, like current session not selected or scrolled to.
         checkAndScrollToSession(session);
         updateBackgroundColor();
+
+        TermuxService service = mActivity.getTermuxService();
+        if (service != null)
+            service.onTermuxSessionViewed(session);
     }
 
     void notifyOfSessionChange() {
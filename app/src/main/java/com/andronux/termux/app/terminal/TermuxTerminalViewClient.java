@@ -46,7 +46,9 @@ import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import androidx.annotation.NonNull;
 import androidx.drawerlayout.widget.DrawerLayout;
 
 public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
@@ -82,7 +84,7 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
      * Should be called when mActivity.onCreate() is called
      */
     public void onCreate() {
-        onReloadProperties();
+        setSessionShortcuts();
 
         mActivity.getTerminalView().setTextSize(mActivity.getPreferences().getFontSize());
         mActivity.getTerminalView().setKeepScreenOn(mActivity.getPreferences().shouldKeepScreenOn());
@@ -131,9 +133,12 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
 
     /**
      * Should be called when mActivity.reloadProperties() is called
+     *
+     * @param changedKeys The keys of the properties whose value changed.
      */
-    public void onReloadProperties() {
-        setSessionShortcuts();
+    public void onReloadProperties(@NonNull Set<String> changedKeys) {
+        if (!Collections.disjoint(changedKeys, TermuxPropertyConstants.MAP_SESSION_SHORTCUTS.keySet()))
+            setSessionShortcuts();
     }
 
     /**
@@ -450,7 +455,8 @@ public class TermuxTerminalViewClient extends TermuxTerminalViewClientBase {
 
             if (resultingKeyCode != -1) {
                 TerminalEmulator term = session.getEmulator();
-                session.write(KeyHandler.getCode(resultingKeyCode, 0, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode()));
+                byte[] code = KeyHandler.getEncodedCode(resultingKeyCode, 0, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+                if (code != null) session.write(code, 0, code.length);
             } else if (resultingCodePoint != -1) {
                 session.writeCodePoint(altDown, resultingCodePoint);
             }
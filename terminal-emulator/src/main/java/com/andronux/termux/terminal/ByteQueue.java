@@ -1,6 +1,12 @@
 package com.andronux.termux.terminal;
 
-/** A circular byte buffer allowing one producer and one consumer thread. */
+/**
+ * A circular byte buffer allowing one producer and one consumer thread.
+ * <p>
+ * Besides copying through {@link #read(byte[], boolean)} and {@link #write(byte[], int, int)}, the producer can fill the
+ * backing array in place from {@link #getWriteOffset()} and commit it with {@link #commitWrite(int)}, and the consumer
+ * can use the stored bytes in place from {@link #getReadOffset()} and release them with {@link #commitRead(int)}.
+ */
 final class ByteQueue {
 
     private final byte[] mBuffer;
@@ -17,6 +23,73 @@ final class ByteQueue {
         notify();
     }
 
+    /** The number of bytes that can be written without blocking, if only one thread writes. */
+    public synchronized int getFreeSpace() {
+        return mBuffer.length - mStoredBytes;
+    }
+
+    /** The backing array of the queue, for reading and writing in place. */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /** The offset in {@link #getBuffer()} of the first free byte, to write to in place. */
+    synchronized int getWriteOffset() {
+        int tail = mHead + mStoredBytes;
+        return tail >= mBuffer.length ? tail - mBuffer.length : tail;
+    }
+
+    /**
+     * The number of free bytes from {@link #getWriteOffset()} up to the end of the free region or of the backing array.
+     * Only grows until {@link #commitWrite(int)} is called, if only one thread writes.
+     */
+    synchronized int getContiguousFreeSpace() {
+        int tail = mHead + mStoredBytes;
+        return tail >= mBuffer.length ? mHead - (tail - mBuffer.length) : mBuffer.length - tail;
+    }
+
+    /**
+     * Add bytes written in place from {@link #getWriteOffset()} to the queue.
+     *
+     * @param length The number of bytes written, at most {@link #getContiguousFreeSpace()}.
+     * @return Returns whether the bytes were added, false if the queue has been closed.
+     */
+    synchronized boolean commitWrite(int length) {
+        if (!mOpen) return false;
+        boolean wasEmpty = mStoredBytes == 0;
+        mStoredBytes += length;
+        if (wasEmpty) notify();
+        return true;
+    }
+
+    /** The offset in {@link #getBuffer()} of the first stored byte, to read from in place. */
+    synchronized int getReadOffset() {
+        return mHead;
+    }
+
+    /**
+     * The number of stored bytes from {@link #getReadOffset()} up to the end of the stored region or of the backing
+     * array, 0 if the queue has been closed. Only grows until {@link #commitRead(int)} is called, if only one thread
+     * reads.
+     */
+    synchronized int getContiguousStoredBytes() {
+        if (!mOpen) return 0;
+        return Math.min(mStoredBytes, mBuffer.length - mHead);
+    }
+
+    /**
+     * Remove bytes read in place from {@link #getReadOffset()} from the queue.
+     *
+     * @param length The number of bytes read, at most {@link #getContiguousStoredBytes()}.
+     */
+    synchronized void commitRead(int length) {
+        boolean wasFull = mStoredBytes == mBuffer.length;
+        mHead += length;
+        if (mHead >= mBuffer.length) mHead -= mBuffer.length;
+        mStoredBytes -= length;
+        if (wasFull) notify();
+    }
+
     public synchronized int read(byte[] buffer, boolean block) {
         while (mStoredBytes == 0 && mOpen) {
             if (block) {
@@ -51,6 +124,26 @@ final class ByteQueue {
         return totalRead;
     }
 
+    /**
+     * Write as much of the specified portion of the provided buffer to the queue as fits without blocking.
+     *
+     * @return Returns the number of bytes written, -1 if the queue has been closed.
+     */
+    public synchronized int writeNonBlocking(byte[] buffer, int offset, int length) {
+        if (!mOpen) return -1;
+        boolean wasEmpty = mStoredBytes == 0;
+        int written = 0;
+        int lengthToWrite = Math.min(length, mBuffer.length - mStoredBytes);
+        while (written < lengthToWrite) {
+            int bytesToCopy = Math.min(getContiguousFreeSpace(), lengthToWrite - written);
+            System.arraycopy(buffer, offset + written, mBuffer, getWriteOffset(), bytesToCopy);
+            mStoredBytes += bytesToCopy;
+            written += bytesToCopy;
+        }
+        if (wasEmpty && written > 0) notify();
+        return written;
+    }
+
     /**
      * Attempt to write the specified portion of the provided buffer to the queue.
      * <p/>
@@ -9,6 +9,12 @@ final class JNI {
         System.loadLibrary("termux");
     }
 
+    /** Event bits used by {@link #pollerAdd(int, int, int)}, {@link #pollerModify(int, int, int)} and {@link #pollerWait(int, int[], int)}. */
+    public static final int POLL_IN = 1;
+    public static final int POLL_OUT = 2;
+    /** Only reported by {@link #pollerWait(int, int[], int)}, for a hangup or error on the file descriptor. */
+    public static final int POLL_HANGUP = 4;
+
     /**
      * Create a subprocess. Differs from {@link ProcessBuilder} in that a pseudoterminal is used to communicate with the
      * subprocess.
@@ -38,4 +44,80 @@ final class JNI {
     /** Close a file descriptor through the close(2) system call. */
     public static native void close(int fileDescriptor);
 
+    /**
+     * Create an epoll instance together with an eventfd registered with it, for waking up a thread waiting in
+     * {@link #pollerWait(int, int[], int)} through {@link #pollerWakeup(int)}.
+     *
+     * @return an int[2] containing the epoll and the eventfd file descriptors.
+     */
+    public static native int[] createPoller();
+
+    /** Make a file descriptor non-blocking and register it with an epoll instance for the given POLL_* events. */
+    public static native void pollerAdd(int epollFileDescriptor, int fileDescriptor, int events);
+
+    /** Change the POLL_* events a file descriptor is registered with an epoll instance for. */
+    public static native void pollerModify(int epollFileDescriptor, int fileDescriptor, int events);
+
+    /** Remove a file descriptor from an epoll instance. */
+    public static native void pollerRemove(int epollFileDescriptor, int fileDescriptor);
+
+    /**
+     * Wait for events on the file descriptors registered with an epoll instance.
+     *
+     * @param events        An array to which the file descriptor and the ready POLL_* events are written as pairs.
+     * @param timeoutMillis The maximum time to wait, or -1 to wait indefinitely.
+     * @return the number of pairs written to events, which is 0 if the timeout expired or the wait was interrupted.
+     */
+    public static native int pollerWait(int epollFileDescriptor, int[] events, int timeoutMillis);
+
+    /** Wake up a thread waiting in {@link #pollerWait(int, int[], int)} through the eventfd of {@link #createPoller()}. */
+    public static native void pollerWakeup(int wakeupFileDescriptor);
+
+    /**
+     * Read from a non-blocking file descriptor.
+     *
+     * @return the number of bytes read, 0 if no bytes were available and -1 on end of file or error.
+     */
+    public static native int read(int fileDescriptor, byte[] buffer, int offset, int length);
+
+    /**
+     * Write to a non-blocking file descriptor.
+     *
+     * @return the number of bytes written, 0 if no bytes could be written without blocking and -1 on error.
+     */
+    public static native int write(int fileDescriptor, byte[] buffer, int offset, int length);
+
+    /**
+     * Open a pidfd for a process through pidfd_open(2), which can be polled for the exit of the process.
+     *
+     * @return the close-on-exec file descriptor, -1 if the process does not exist anymore and -2 if pidfds are not
+     * supported.
+     */
+    public static native int pidfdOpen(int processId);
+
+    /**
+     * Create the non-blocking pipe a byte is written to by the handler of {@link #installChildSignalHandler()} for
+     * every SIGCHLD. Only created once, later calls return the same file descriptor.
+     *
+     * @return the read end of the pipe.
+     */
+    public static native int createChildSignalPipe();
+
+    /**
+     * Install the SIGCHLD handler writing to the pipe of {@link #createChildSignalPipe()}, chaining to any previously
+     * installed handler, unless it is already installed.
+     *
+     * @return true if the handler was installed, false if it was already installed.
+     */
+    public static native boolean installChildSignalHandler();
+
+    /**
+     * Check without blocking if a child process has exited.
+     *
+     * @param reap If the process should be reaped, or only its status peeked at so that its owner can reap it.
+     * @return {@link ProcessReaper#STILL_RUNNING} if the process is still running, the exit status as returned by
+     * {@link #waitFor(int)} or {@link ProcessReaper#EXIT_STATUS_UNKNOWN} if the process has already been reaped.
+     */
+    public static native int checkChildExit(int processId, boolean reap);
+
 }
@@ -1,5 +1,7 @@
 package com.andronux.termux.terminal;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -61,6 +63,51 @@ public final class KeyHandler {
     public static final int KEYMOD_SHIFT = 0x20000000;
     public static final int KEYMOD_NUM_LOCK = 0x10000000;
 
+    /** The mask of the KEYMOD_* bits, which are the top four bits so that they can index {@link #ENCODED_CODES}. */
+    private static final int KEYMOD_MASK = KEYMOD_ALT | KEYMOD_CTRL | KEYMOD_SHIFT | KEYMOD_NUM_LOCK;
+    private static final int KEYMOD_SHIFT_BITS = 28;
+
+    /** The key codes {@link #getCode(int, int, boolean, boolean)} returns a code for. */
+    private static final int[] HANDLED_KEY_CODES = {KEYCODE_DPAD_CENTER, KEYCODE_DPAD_UP, KEYCODE_DPAD_DOWN,
+        KEYCODE_DPAD_RIGHT, KEYCODE_DPAD_LEFT, KEYCODE_MOVE_HOME, KEYCODE_MOVE_END, KEYCODE_F1, KEYCODE_F2, KEYCODE_F3,
+        KEYCODE_F4, KEYCODE_F5, KEYCODE_F6, KEYCODE_F7, KEYCODE_F8, KEYCODE_F9, KEYCODE_F10, KEYCODE_F11, KEYCODE_F12,
+        KEYCODE_SYSRQ, KEYCODE_BREAK, KEYCODE_ESCAPE, KEYCODE_BACK, KEYCODE_INSERT, KEYCODE_FORWARD_DEL, KEYCODE_PAGE_UP,
+        KEYCODE_PAGE_DOWN, KEYCODE_DEL, KEYCODE_NUM_LOCK, KEYCODE_SPACE, KEYCODE_TAB, KEYCODE_ENTER, KEYCODE_NUMPAD_ENTER,
+        KEYCODE_NUMPAD_MULTIPLY, KEYCODE_NUMPAD_ADD, KEYCODE_NUMPAD_COMMA, KEYCODE_NUMPAD_DOT, KEYCODE_NUMPAD_SUBTRACT,
+        KEYCODE_NUMPAD_DIVIDE, KEYCODE_NUMPAD_0, KEYCODE_NUMPAD_1, KEYCODE_NUMPAD_2, KEYCODE_NUMPAD_3, KEYCODE_NUMPAD_4,
+        KEYCODE_NUMPAD_5, KEYCODE_NUMPAD_6, KEYCODE_NUMPAD_7, KEYCODE_NUMPAD_8, KEYCODE_NUMPAD_9, KEYCODE_NUMPAD_EQUALS};
+
+    /** The index of each key code into {@link #ENCODED_CODES}, -1 for key codes that are not handled. */
+    private static final int[] KEY_CODE_INDEX;
+    /**
+     * The UTF-8 encoded codes of all handled keys, by key code index, KEYMOD_* bits, cursor keys application mode and
+     * keypad application mode, see {@link #getEncodedCodeIndex(int, int, boolean, boolean)}. Precomputed so that key
+     * presses do not allocate.
+     */
+    private static final byte[][] ENCODED_CODES;
+
+    static {
+        int maxKeyCode = 0;
+        for (int keyCode : HANDLED_KEY_CODES) maxKeyCode = Math.max(maxKeyCode, keyCode);
+        KEY_CODE_INDEX = new int[maxKeyCode + 1];
+        Arrays.fill(KEY_CODE_INDEX, -1);
+        for (int i = 0; i < HANDLED_KEY_CODES.length; i++) KEY_CODE_INDEX[HANDLED_KEY_CODES[i]] = i;
+
+        ENCODED_CODES = new byte[HANDLED_KEY_CODES.length << 6][];
+        for (int keyCode : HANDLED_KEY_CODES) {
+            for (int mods = 0; mods < 16; mods++) {
+                int keyMode = mods << KEYMOD_SHIFT_BITS;
+                for (int cursorApp = 0; cursorApp < 2; cursorApp++) {
+                    for (int keypadApp = 0; keypadApp < 2; keypadApp++) {
+                        String code = computeCode(keyCode, keyMode, cursorApp == 1, keypadApp == 1);
+                        if (code != null)
+                            ENCODED_CODES[getEncodedCodeIndex(keyCode, keyMode, cursorApp == 1, keypadApp == 1)] = code.getBytes(StandardCharsets.UTF_8);
+                    }
+                }
+            }
+        }
+    }
+
     private static final Map<String, Integer> TERMCAP_TO_KEYCODE = new HashMap<>();
 
     static {
@@ -153,7 +200,42 @@ public final class KeyHandler {
         return getCode(keyCode, keyMod, cursorKeysApplication, keypadApplication);
     }
 
+    /**
+     * Get the code to send for a key, as a String.
+     *
+     * @see #getEncodedCode(int, int, boolean, boolean)
+     */
     public static String getCode(int keyCode, int keyMode, boolean cursorApp, boolean keypadApplication) {
+        if ((keyMode & ~KEYMOD_MASK) != 0) return computeCode(keyCode, keyMode, cursorApp, keypadApplication);
+        byte[] code = getEncodedCode(keyCode, keyMode, cursorApp, keypadApplication);
+        return code == null ? null : new String(code, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the UTF-8 encoded code to send for a key without allocating, e.g. for repeated key presses.
+     *
+     * @param keyCode           The KEYCODE_* of the key.
+     * @param keyMode           The KEYMOD_* bits of the modifiers held down.
+     * @param cursorApp         If cursor keys application mode is enabled.
+     * @param keypadApplication If keypad application mode is enabled.
+     * @return Returns the encoded code, which is shared and must not be modified, or null if there is no code for the
+     * key.
+     */
+    public static byte[] getEncodedCode(int keyCode, int keyMode, boolean cursorApp, boolean keypadApplication) {
+        if (keyCode < 0 || keyCode >= KEY_CODE_INDEX.length || KEY_CODE_INDEX[keyCode] == -1) return null;
+        if ((keyMode & ~KEYMOD_MASK) != 0) {
+            String code = computeCode(keyCode, keyMode, cursorApp, keypadApplication);
+            return code == null ? null : code.getBytes(StandardCharsets.UTF_8);
+        }
+        return ENCODED_CODES[getEncodedCodeIndex(keyCode, keyMode, cursorApp, keypadApplication)];
+    }
+
+    private static int getEncodedCodeIndex(int keyCode, int keyMode, boolean cursorApp, boolean keypadApplication) {
+        return (KEY_CODE_INDEX[keyCode] << 6) | ((keyMode >>> KEYMOD_SHIFT_BITS) << 2) | (cursorApp ? 2 : 0) | (keypadApplication ? 1 : 0);
+    }
+
+    /** Compute the code to send for a key, which {@link #ENCODED_CODES} is precomputed from. */
+    static String computeCode(int keyCode, int keyMode, boolean cursorApp, boolean keypadApplication) {
         boolean numLockOn = (keyMode & KEYMOD_NUM_LOCK) != 0;
         keyMode &= ~KEYMOD_NUM_LOCK;
         switch (keyCode) {
@@ -0,0 +1,216 @@
+package com.andronux.termux.terminal;
+
+import android.os.Build;
+import android.util.SparseArray;
+
+/**
+ * Waits for the exit of child processes on the {@link TerminalSessionPoller} thread, instead of blocking a thread per
+ * process in waitpid(2) or {@link Process#waitFor()}.
+ * <p>
+ * Where pidfd_open(2) is available, a pidfd of each watched process is polled. Otherwise a SIGCHLD handler writes to a
+ * pipe which is polled, after which all watched processes are checked for having exited. Either way the number of
+ * threads stays the same no matter how many processes are watched.
+ * <p>
+ * The time from the poller thread being woken up by an exit until the callback has returned is recorded, see
+ * {@link #getExitCount()}, {@link #getAverageExitLatencyNanos()} and {@link #getMaxExitLatencyNanos()}.
+ */
+public final class ProcessReaper {
+
+    /** The exit status passed to {@link Callback#onProcessExited(int, int)} if it is not known. */
+    public static final int EXIT_STATUS_UNKNOWN = Integer.MIN_VALUE;
+
+    /** Returned by {@link JNI#checkChildExit(int, boolean)} if the process has not exited. */
+    static final int STILL_RUNNING = Integer.MAX_VALUE;
+
+    /**
+     * The implementations of {@link Process} that reset the SIGCHLD handler to the default when initialized, on Android
+     * and on other JVMs.
+     */
+    private static final String[] PROCESS_IMPLEMENTATION_CLASSES = {"java.lang.UNIXProcess", "java.lang.ProcessImpl"};
+
+    /** The first api level whose seccomp filter allows pidfd_open(2), which kills the app on older versions. */
+    private static final int PIDFD_MIN_API_LEVEL = 31;
+
+    public interface Callback {
+
+        /**
+         * Called on the {@link TerminalSessionPoller} thread when a watched process has exited. Must not block, since
+         * that would delay the I/O of all terminal sessions and the exit handling of all other processes.
+         *
+         * @param pid        The id of the process.
+         * @param exitStatus If >= 0, the exit status of the process. If < 0, the signal that killed the process
+         *                   negated. If {@link #EXIT_STATUS_UNKNOWN}, the process was not reaped by the reaper and has
+         *                   already been reaped by its owner.
+         */
+        void onProcessExited(int pid, int exitStatus);
+
+    }
+
+    private static ProcessReaper sInstance;
+
+    private final TerminalSessionPoller mPoller;
+
+    /** If pidfds are used, false once the SIGCHLD pipe is used instead. Only accessed on the poller thread. */
+    private boolean mUsePidfd;
+    /** The read end of the SIGCHLD pipe, -1 if it has not been installed. Only accessed on the poller thread. */
+    private int mChildSignalFileDescriptor = -1;
+    /** The watched processes by their pid. Only accessed on the poller thread. */
+    private final SparseArray<Watch> mWatches = new SparseArray<>();
+    private final byte[] mChildSignalBuffer = new byte[64];
+
+    /** Only written on the poller thread. */
+    private volatile long mExitCount;
+    private volatile long mTotalExitLatencyNanos;
+    private volatile long mMaxExitLatencyNanos;
+
+    public static synchronized ProcessReaper getInstance() {
+        if (sInstance == null) sInstance = new ProcessReaper();
+        return sInstance;
+    }
+
+    private ProcessReaper() {
+        mPoller = TerminalSessionPoller.getInstance();
+        mUsePidfd = Build.VERSION.SDK_INT >= PIDFD_MIN_API_LEVEL;
+    }
+
+    /**
+     * Watch a child process for its exit.
+     *
+     * @param pid      The id of the process, which must be a child of this process.
+     * @param reap     If the process should be reaped by the reaper. Must be false for processes started through
+     *                 {@link Runtime#exec(String[])} or {@link ProcessBuilder}, which are reaped by {@link Process}
+     *                 itself, so that {@link Process#waitFor()} returns the exit status once the callback is called.
+     * @param callback The callback to call once the process has exited.
+     */
+    public void watch(int pid, boolean reap, Callback callback) {
+        final Watch watch = new Watch(pid, reap, callback);
+        mPoller.execute(new Runnable() {
+            @Override
+            public void run() {
+                add(watch);
+            }
+        });
+    }
+
+    /** Get the number of exits that have been handled. */
+    public long getExitCount() {
+        return mExitCount;
+    }
+
+    /** Get the average time from the poller thread being woken up by an exit until the callback has returned. */
+    public long getAverageExitLatencyNanos() {
+        long count = mExitCount;
+        return count == 0 ? 0 : mTotalExitLatencyNanos / count;
+    }
+
+    /** Get the max time from the poller thread being woken up by an exit until the callback has returned. */
+    public long getMaxExitLatencyNanos() {
+        return mMaxExitLatencyNanos;
+    }
+
+    private void add(Watch watch) {
+        if (mUsePidfd) {
+            int pidFileDescriptor = JNI.pidfdOpen(watch.mPid);
+            if (pidFileDescriptor >= 0) {
+                watch.mPidFileDescriptor = pidFileDescriptor;
+                mWatches.put(watch.mPid, watch);
+                mPoller.addListener(pidFileDescriptor, watch);
+                return;
+            } else if (pidFileDescriptor == -1) {
+                // The process has already been reaped by its owner:
+                onExited(watch, EXIT_STATUS_UNKNOWN, System.nanoTime());
+                return;
+            }
+            mUsePidfd = false;
+        }
+
+        if (mChildSignalFileDescriptor == -1) {
+            initializeProcessImplementation();
+            mChildSignalFileDescriptor = JNI.createChildSignalPipe();
+            mPoller.addListener(mChildSignalFileDescriptor, new TerminalSessionPoller.Listener() {
+                @Override
+                public void onReady(long readyNanos) {
+                    onChildSignal(readyNanos);
+                }
+            });
+        }
+        mWatches.put(watch.mPid, watch);
+
+        // The handler is checked for every watched process in case it has still been reset, see
+        // initializeProcessImplementation(). Any process may have exited while no handler was installed, otherwise only
+        // the new one may have exited before being watched:
+        if (JNI.installChildSignalHandler())
+            onChildSignal(System.nanoTime());
+        else
+            check(watch, System.nanoTime());
+    }
+
+    /**
+     * The SIGCHLD handler is reset to the default by the initialization of the {@link Process} implementation, which
+     * happens when the first process is started through {@link Runtime#exec(String[])}. Initialize it before the
+     * handler is installed, so that it is not reset later on with no new process being watched to notice it.
+     */
+    private static void initializeProcessImplementation() {
+        for (String className : PROCESS_IMPLEMENTATION_CLASSES) {
+            try {
+                Class.forName(className, true, ProcessReaper.class.getClassLoader());
+            } catch (Throwable e) {
+                // Not the implementation of this runtime.
+            }
+        }
+    }
+
+    private void onChildSignal(long readyNanos) {
+        // Drain the pipe before checking, so that no exit is missed by a signal arriving during the checks:
+        while (JNI.read(mChildSignalFileDescriptor, mChildSignalBuffer, 0, mChildSignalBuffer.length) > 0) {
+            // Keep on reading until the pipe is empty.
+        }
+        // Backwards, since exited processes are removed while iterating:
+        for (int i = mWatches.size() - 1; i >= 0; i--)
+            check(mWatches.valueAt(i), readyNanos);
+    }
+
+    private void check(Watch watch, long readyNanos) {
+        int exitStatus = JNI.checkChildExit(watch.mPid, watch.mReap);
+        if (exitStatus != STILL_RUNNING) onExited(watch, exitStatus, readyNanos);
+    }
+
+    private void onExited(Watch watch, int exitStatus, long readyNanos) {
+        mWatches.remove(watch.mPid);
+        if (watch.mPidFileDescriptor >= 0) {
+            mPoller.removeListener(watch.mPidFileDescriptor);
+            JNI.close(watch.mPidFileDescriptor);
+            watch.mPidFileDescriptor = -1;
+        }
+
+        watch.mCallback.onProcessExited(watch.mPid, exitStatus);
+
+        long latencyNanos = System.nanoTime() - readyNanos;
+        mExitCount++;
+        mTotalExitLatencyNanos += latencyNanos;
+        if (latencyNanos > mMaxExitLatencyNanos) mMaxExitLatencyNanos = latencyNanos;
+    }
+
+    /** A watched process. */
+    private final class Watch implements TerminalSessionPoller.Listener {
+
+        private final int mPid;
+        private final boolean mReap;
+        private final Callback mCallback;
+        /** The pidfd of the process, -1 if the SIGCHLD pipe is used or the process has exited. */
+        private int mPidFileDescriptor = -1;
+
+        Watch(int pid, boolean reap, Callback callback) {
+            mPid = pid;
+            mReap = reap;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onReady(long readyNanos) {
+            check(this, readyNanos);
+        }
+
+    }
+
+}
@@ -16,9 +16,17 @@ public final class TerminalBuffer {
     /** The number of rows and columns visible on the screen. */
     int mScreenRows, mColumns;
     /** The number of rows kept in history. */
-    private int mActiveTranscriptRows = 0;
+    int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
-    private int mScreenFirstRow = 0;
+    int mScreenFirstRow = 0;
+    /** Incremented whenever the text or styles of the buffer change, see {@link #getModificationCount()}. */
+    long mModificationCount;
+    /** The number of lines scrolled into the transcript, so that {@link TerminalSnapshot} knows which rows were on the screen. */
+    long mScrolledLines;
+    /** Incremented whenever rows are moved other than by scrolling, like on resize, after which any row may have changed. */
+    long mLayoutCount;
+    /** The number of non-null rows in {@link #mLines}, kept up to date so that {@link #estimateMemoryBytes()} does not scan them. */
+    private int mAllocatedRows;
 
     /**
      * Create a transcript screen.
@@ -144,6 +152,14 @@ public final class TerminalBuffer {
         return text.substring(x1 + 1, x2);
     }
 
+    /**
+     * Get the number of changes made to the text or styles of the buffer. Views can compare it between updates to only
+     * redraw the cursor if it has not changed.
+     */
+    public long getModificationCount() {
+        return mModificationCount;
+    }
+
     public int getActiveTranscriptRows() {
         return mActiveTranscriptRows;
     }
@@ -181,6 +197,7 @@ public final class TerminalBuffer {
     }
 
     public void setLineWrap(int row) {
+        mModificationCount++;
         mLines[externalToInternalRow(row)].mLineWrap = true;
     }
 
@@ -189,6 +206,7 @@ public final class TerminalBuffer {
     }
 
     public void clearLineWrap(int row) {
+        mModificationCount++;
         mLines[externalToInternalRow(row)].mLineWrap = false;
     }
 
@@ -201,6 +219,8 @@ public final class TerminalBuffer {
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        mModificationCount++;
+        mLayoutCount++;
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
             // Fast resize where just the rows changed.
@@ -234,7 +254,8 @@ public final class TerminalBuffer {
             // Copy away old state and update new:
             TerminalRow[] oldLines = mLines;
             mLines = new TerminalRow[newTotalRows];
-            for (int i = 0; i < newTotalRows; i++)
+            // Only the screen rows are needed up front, transcript rows are allocated as lines are scrolled into them:
+            for (int i = 0; i < newRows; i++)
                 mLines[i] = new TerminalRow(newColumns, currentStyle);
 
             final int oldActiveTranscriptRows = mActiveTranscriptRows;
@@ -347,6 +368,7 @@ public final class TerminalBuffer {
 
             cursor[0] = newCursorColumn;
             cursor[1] = newCursorRow;
+            updateAllocatedRows();
         }
 
         // Handle cursor scrolling off screen:
@@ -356,22 +378,45 @@ public final class TerminalBuffer {
     /**
      * Block copy lines and associated metadata from one location to another in the circular buffer, taking wraparound
      * into account.
+     * <p>
+     * The {@code lines} lines directly below the block are moved to above it, so this is a rotation of row references
+     * and no row content is copied.
      *
      * @param srcInternal The first line to be copied.
      * @param len         The number of lines to be copied.
+     * @param lines       The number of lines to copy the block down by.
      */
-    private void blockCopyLinesDown(int srcInternal, int len) {
-        if (len == 0) return;
+    private void blockCopyLinesDown(int srcInternal, int len, int lines) {
+        if (len == 0 || lines == 0) return;
         int totalRows = mTotalRows;
 
-        int start = len - 1;
-        // Save away line to be overwritten:
-        TerminalRow lineToBeOverWritten = mLines[(srcInternal + start + 1) % totalRows];
-        // Do the copy from bottom to top.
-        for (int i = start; i >= 0; --i)
-            mLines[(srcInternal + i + 1) % totalRows] = mLines[(srcInternal + i) % totalRows];
-        // Put back overwritten line, now above the block:
-        mLines[(srcInternal) % totalRows] = lineToBeOverWritten;
+        if (lines == 1) {
+            int start = len - 1;
+            // Save away line to be overwritten:
+            TerminalRow lineToBeOverWritten = mLines[(srcInternal + start + 1) % totalRows];
+            // Do the copy from bottom to top.
+            for (int i = start; i >= 0; --i)
+                mLines[(srcInternal + i + 1) % totalRows] = mLines[(srcInternal + i) % totalRows];
+            // Put back overwritten line, now above the block:
+            mLines[(srcInternal) % totalRows] = lineToBeOverWritten;
+        } else {
+            // Rotate by reversing the whole range, and then the two parts of it separately:
+            reverseLines(srcInternal, len + lines);
+            reverseLines(srcInternal, lines);
+            reverseLines(srcInternal + lines, len);
+        }
+    }
+
+    /** Reverse the order of len lines starting at startInternal in the circular buffer. */
+    private void reverseLines(int startInternal, int len) {
+        int totalRows = mTotalRows;
+        for (int i = 0, j = len - 1; i < j; i++, j--) {
+            int first = (startInternal + i) % totalRows;
+            int last = (startInternal + j) % totalRows;
+            TerminalRow line = mLines[first];
+            mLines[first] = mLines[last];
+            mLines[last] = line;
+        }
     }
 
     /**
@@ -382,26 +427,95 @@ public final class TerminalBuffer {
      * @param style        the style for the newly exposed line.
      */
     public void scrollDownOneLine(int topMargin, int bottomMargin, long style) {
-        if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
-            throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
-
-        // Copy the fixed topMargin lines one line down so that they remain on screen in same position:
-        blockCopyLinesDown(mScreenFirstRow, topMargin);
-        // Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
-        // position:
-        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin);
-
-        // Update the screen location in the ring buffer:
-        mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
-        // Note that the history has grown if not already full:
-        if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
-
-        // Blank the newly revealed line above the bottom margin:
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        if (mLines[blankRow] == null) {
-            mLines[blankRow] = new TerminalRow(mColumns, style);
-        } else {
-            mLines[blankRow].clear(style);
+        scrollDownLines(topMargin, bottomMargin, 1, style);
+    }
+
+    /**
+     * Scroll the screen down a number of lines, which gives the same result as calling
+     * {@link #scrollDownOneLine(int, int, long)} that many times but only rotates the lines once.
+     *
+     * @param topMargin    First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param lines        The number of lines to scroll.
+     * @param style        the style for the newly exposed lines.
+     */
+    public void scrollDownLines(int topMargin, int bottomMargin, int lines, long style) {
+        mModificationCount++;
+        if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows || lines < 0)
+            throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", lines=" + lines + ", mScreenRows=" + mScreenRows);
+
+        final int maxTranscriptRows = mTotalRows - mScreenRows;
+        while (lines > 0) {
+            // Lines scrolled past the whole region are just blank lines going into the history, so scroll at most the
+            // region at a time:
+            final int linesToScroll = Math.min(lines, bottomMargin - topMargin);
+
+            // Copy the fixed topMargin lines down so that they remain on screen in same position:
+            blockCopyLinesDown(mScreenFirstRow, topMargin, linesToScroll);
+            // Copy the fixed mScreenRows-bottomMargin lines down so that they remain on screen in same position:
+            blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin, linesToScroll);
+
+            // Update the screen location in the ring buffer:
+            mScreenFirstRow = (mScreenFirstRow + linesToScroll) % mTotalRows;
+            mScrolledLines += linesToScroll;
+            // Note that the history has grown if not already full:
+            if (mActiveTranscriptRows < maxTranscriptRows)
+                mActiveTranscriptRows = Math.min(mActiveTranscriptRows + linesToScroll, maxTranscriptRows);
+
+            // Blank the newly revealed lines above the bottom margin:
+            blankLines(bottomMargin - linesToScroll, linesToScroll, style);
+            lines -= linesToScroll;
+        }
+    }
+
+    /**
+     * Insert blank lines at a row, moving the lines below it down. Lines moved past the bottom margin are discarded.
+     *
+     * @param row          The row to insert lines at.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param lines        The number of lines to insert.
+     * @param style        the style for the inserted lines.
+     */
+    public void insertLines(int row, int bottomMargin, int lines, long style) {
+        mModificationCount++;
+        if (row < 0 || row >= bottomMargin || bottomMargin > mScreenRows || lines < 0)
+            throw new IllegalArgumentException("row=" + row + ", bottomMargin=" + bottomMargin + ", lines=" + lines + ", mScreenRows=" + mScreenRows);
+
+        lines = Math.min(lines, bottomMargin - row);
+        blockCopyLinesDown(externalToInternalRow(row), bottomMargin - row - lines, lines);
+        blankLines(row, lines, style);
+    }
+
+    /**
+     * Delete lines at a row, moving the lines below it up. Blank lines are revealed above the bottom margin.
+     *
+     * @param row          The first row to delete.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param lines        The number of lines to delete.
+     * @param style        the style for the revealed lines.
+     */
+    public void deleteLines(int row, int bottomMargin, int lines, long style) {
+        mModificationCount++;
+        if (row < 0 || row >= bottomMargin || bottomMargin > mScreenRows || lines < 0)
+            throw new IllegalArgumentException("row=" + row + ", bottomMargin=" + bottomMargin + ", lines=" + lines + ", mScreenRows=" + mScreenRows);
+
+        lines = Math.min(lines, bottomMargin - row);
+        // Copying the lines below the deleted ones down by all of them moves the deleted lines to the bottom:
+        blockCopyLinesDown(externalToInternalRow(row), lines, bottomMargin - row - lines);
+        blankLines(bottomMargin - lines, lines, style);
+    }
+
+    /** Clear whole screen lines, allocating them if necessary. */
+    private void blankLines(int row, int lines, long style) {
+        for (int i = 0; i < lines; i++) {
+            int blankRow = externalToInternalRow(row + i);
+            if (mLines[blankRow] == null) {
+                mLines[blankRow] = new TerminalRow(mColumns, style);
+                mAllocatedRows++;
+            } else {
+                mLines[blankRow].clear(style);
+                mLines[blankRow].mLineWrap = false;
+            }
         }
     }
 
@@ -418,6 +532,7 @@ public final class TerminalBuffer {
      * @param dy destination Y coordinate
      */
     public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
+        mModificationCount++;
         if (w == 0) return;
         if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows || dx < 0 || dx + w > mColumns || dy < 0 || dy + h > mScreenRows)
             throw new IllegalArgumentException();
@@ -435,20 +550,32 @@ public final class TerminalBuffer {
      * of characters.
      */
     public void blockSet(int sx, int sy, int w, int h, int val, long style) {
+        mModificationCount++;
         if (sx < 0 || sx + w > mColumns || sy < 0 || sy + h > mScreenRows) {
             throw new IllegalArgumentException(
                 "Illegal arguments! blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
         }
+        if (val == ' ' && sx == 0 && w == mColumns) {
+            // Clearing whole lines:
+            for (int y = 0; y < h; y++)
+                allocateFullLineIfNecessary(externalToInternalRow(sy + y)).clear(style);
+            return;
+        }
         for (int y = 0; y < h; y++)
             for (int x = 0; x < w; x++)
                 setChar(sx + x, sy + y, val, style);
     }
 
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        if (mLines[row] == null) {
+            mLines[row] = new TerminalRow(mColumns, 0);
+            mAllocatedRows++;
+        }
+        return mLines[row];
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
+        mModificationCount++;
         if (row  < 0 || row >= mScreenRows || column < 0 || column >= mColumns)
             throw new IllegalArgumentException("TerminalBuffer.setChar(): row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
         row = externalToInternalRow(row);
@@ -462,6 +589,7 @@ public final class TerminalBuffer {
     /** Support for http://vt100.net/docs/vt510-rm/DECCARA and http://vt100.net/docs/vt510-rm/DECCARA */
     public void setOrClearEffect(int bits, boolean setOrClear, boolean reverse, boolean rectangular, int leftMargin, int rightMargin, int top, int left,
                                  int bottom, int right) {
+        mModificationCount++;
         for (int y = top; y < bottom; y++) {
             TerminalRow line = mLines[externalToInternalRow(y)];
             int startOfLine = (rectangular || y == top) ? left : leftMargin;
@@ -484,7 +612,51 @@ public final class TerminalBuffer {
         }
     }
 
+    /**
+     * Change the total number of rows of this buffer, keeping the screen and as many of the most recent transcript rows
+     * as fit. The rows themselves are moved over and not copied.
+     *
+     * @param newTotalRows The new total number of rows, which must not be less than the number of screen rows.
+     */
+    public void setTotalRows(int newTotalRows) {
+        mModificationCount++;
+        mLayoutCount++;
+        if (newTotalRows < mScreenRows)
+            throw new IllegalArgumentException("newTotalRows=" + newTotalRows + ", mScreenRows=" + mScreenRows);
+        if (newTotalRows == mTotalRows) return;
+
+        int transcriptRows = Math.min(mActiveTranscriptRows, newTotalRows - mScreenRows);
+        TerminalRow[] newLines = new TerminalRow[newTotalRows];
+        for (int i = 0; i < transcriptRows + mScreenRows; i++)
+            newLines[i] = mLines[externalToInternalRow(i - transcriptRows)];
+
+        mLines = newLines;
+        mTotalRows = newTotalRows;
+        mActiveTranscriptRows = transcriptRows;
+        mScreenFirstRow = transcriptRows;
+        updateAllocatedRows();
+    }
+
+    /**
+     * Estimate the number of bytes of heap used by the rows of this buffer. Rows which have not been written to yet are
+     * not allocated, so this is usually less than what {@link #mTotalRows} would suggest. This does not scan the rows,
+     * so the text of rows grown for combining characters is not accounted for.
+     */
+    public long estimateMemoryBytes() {
+        return (long) TerminalRow.REFERENCE_BYTES * mTotalRows + mAllocatedRows * TerminalRow.estimateMemoryBytes(mColumns);
+    }
+
+    /** Count the rows of {@link #mLines} again after they have been replaced other than by allocating single rows. */
+    void updateAllocatedRows() {
+        int allocatedRows = 0;
+        for (TerminalRow row : mLines)
+            if (row != null) allocatedRows++;
+        mAllocatedRows = allocatedRows;
+    }
+
     public void clearTranscript() {
+        mModificationCount++;
+        mLayoutCount++;
         if (mScreenFirstRow < mActiveTranscriptRows) {
             Arrays.fill(mLines, mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows, null);
             Arrays.fill(mLines, 0, mScreenFirstRow, null);
@@ -492,6 +664,7 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
+        updateAllocatedRows();
     }
 
 }
@@ -2,6 +2,9 @@ package com.andronux.termux.terminal;
 
 import android.util.Base64;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
@@ -141,7 +144,7 @@ public final class TerminalEmulator {
     public int mRows, mColumns;
 
     /** Size of a terminal cell in pixels. */
-    private int mCellWidthPixels, mCellHeightPixels;
+    int mCellWidthPixels, mCellHeightPixels;
 
     /** The number of terminal transcript rows that can be scrolled back to. */
     public static final int TERMINAL_TRANSCRIPT_ROWS_MIN = 100;
@@ -162,7 +165,7 @@ public final class TerminalEmulator {
 
 
     /** The normal screen buffer. Stores the characters that appear on the screen of the emulated terminal. */
-    private final TerminalBuffer mMainBuffer;
+    final TerminalBuffer mMainBuffer;
     /**
      * The alternate screen buffer, exactly as large as the display and contains no additional saved lines (so that when
      * the alternate screen buffer is active, you cannot scroll back to view saved lines).
@@ -269,6 +272,17 @@ public final class TerminalEmulator {
     private final byte[] mUtf8InputBuffer = new byte[4];
     private int mLastEmittedCodePoint = -1;
 
+    /**
+     * Incremented when the colors, the reverse video mode or the active buffer change, see
+     * {@link #getContentChangeCount()}.
+     */
+    private long mContentChangeCount;
+
+    /** The buffer mouse reports are encoded into, which fits the longest SGR report. */
+    private final byte[] mMouseReportBuffer = new byte[32];
+    /** The cell of the last mouse report, so that motion within the same cell is not reported again. */
+    private int mLastMouseReportColumn = -1, mLastMouseReportRow = -1;
+
     public final TerminalColors mColors = new TerminalColors();
 
     private static final String LOG_TAG = "TerminalEmulator";
@@ -286,6 +300,7 @@ public final class TerminalEmulator {
                 setDecsetinternalBit(DECSET_BIT_MOUSE_TRACKING_PRESS_RELEASE, false);
             }
         }
+        if (internalBit == DECSET_BIT_REVERSE_VIDEO && set != isDecsetInternalBitSet(internalBit)) mContentChangeCount++;
         if (set) {
             mCurrentDecSetFlags |= internalBit;
         } else {
@@ -352,6 +367,41 @@ public final class TerminalEmulator {
         return mScreen == mAltBuffer;
     }
 
+    /** Get the total number of rows of the main buffer, including the screen rows. */
+    public int getTranscriptRows() {
+        return mMainBuffer.mTotalRows;
+    }
+
+    /**
+     * Change the total number of rows of the main buffer, dropping the oldest transcript rows if it shrinks. Unlike
+     * the value passed to the constructor this is not reset to {@link #DEFAULT_TERMINAL_TRANSCRIPT_ROWS} if out of
+     * range, but it is never made less than {@link #TERMINAL_TRANSCRIPT_ROWS_MIN} or the number of screen rows.
+     */
+    public void setTranscriptRows(int transcriptRows) {
+        mMainBuffer.setTotalRows(Math.max(Math.max(transcriptRows, TERMINAL_TRANSCRIPT_ROWS_MIN), mRows));
+    }
+
+    /**
+     * Drop the oldest transcript rows of the main buffer to free about the given number of bytes, by lowering its total
+     * number of rows as with {@link #setTranscriptRows(int)}.
+     *
+     * @param bytes The number of bytes to free.
+     * @return Returns the number of bytes that were freed according to {@link #estimateMemoryBytes()}.
+     */
+    public long trimTranscript(long bytes) {
+        long bytesBefore = mMainBuffer.estimateMemoryBytes();
+        int usedRows = mMainBuffer.mActiveTranscriptRows + mMainBuffer.mScreenRows;
+        long bytesPerRow = Math.max(1, bytesBefore / usedRows);
+        long rowsToDrop = (bytes + bytesPerRow - 1) / bytesPerRow;
+        setTranscriptRows((int) Math.max(0, usedRows - rowsToDrop));
+        return bytesBefore - mMainBuffer.estimateMemoryBytes();
+    }
+
+    /** Estimate the number of bytes of heap used by the rows of the main and alternate buffers. */
+    public long estimateMemoryBytes() {
+        return mMainBuffer.estimateMemoryBytes() + mAltBuffer.estimateMemoryBytes();
+    }
+
     private int getTerminalTranscriptRows(Integer transcriptRows) {
         if (transcriptRows == null || transcriptRows < TERMINAL_TRANSCRIPT_ROWS_MIN || transcriptRows > TERMINAL_TRANSCRIPT_ROWS_MAX)
             return DEFAULT_TERMINAL_TRANSCRIPT_ROWS;
@@ -360,6 +410,9 @@ public final class TerminalEmulator {
     }
 
     /**
+     * Report a mouse event to the process. Motion is only reported if it is into another cell than the one of the last
+     * report, and reports are encoded without allocating.
+     *
      * @param mouseButton one of the MOUSE_* constants of this class.
      */
     public void sendMouseEvent(int mouseButton, int column, int row, boolean pressed) {
@@ -368,19 +421,63 @@ public final class TerminalEmulator {
         if (row < 1) row = 1;
         if (row > mRows) row = mRows;
 
-        if (mouseButton == MOUSE_LEFT_BUTTON_MOVED && !isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT)) {
-            // Do not send tracking.
-        } else if (isDecsetInternalBitSet(DECSET_BIT_MOUSE_PROTOCOL_SGR)) {
-            mSession.write(String.format("\033[<%d;%d;%d" + (pressed ? 'M' : 'm'), mouseButton, column, row));
+        if (mouseButton == MOUSE_LEFT_BUTTON_MOVED) {
+            // Do not send tracking, or motion within the cell of the last report:
+            if (!isDecsetInternalBitSet(DECSET_BIT_MOUSE_TRACKING_BUTTON_EVENT)) return;
+            if (column == mLastMouseReportColumn && row == mLastMouseReportRow) return;
+        }
+        mLastMouseReportColumn = column;
+        mLastMouseReportRow = row;
+
+        byte[] report = mMouseReportBuffer;
+        int length;
+        if (isDecsetInternalBitSet(DECSET_BIT_MOUSE_PROTOCOL_SGR)) {
+            // "\033[<button;column;row" followed by 'M' for press or 'm' for release.
+            report[0] = '\033';
+            report[1] = '[';
+            report[2] = '<';
+            length = appendDecimal(report, 3, mouseButton);
+            report[length++] = ';';
+            length = appendDecimal(report, length, column);
+            report[length++] = ';';
+            length = appendDecimal(report, length, row);
+            report[length++] = (byte) (pressed ? 'M' : 'm');
         } else {
             mouseButton = pressed ? mouseButton : 3; // 3 for release of all buttons.
             // Clip to screen, and clip to the limits of 8-bit data.
             boolean out_of_bounds = column > 255 - 32 || row > 255 - 32;
-            if (!out_of_bounds) {
-                byte[] data = {'\033', '[', 'M', (byte) (32 + mouseButton), (byte) (32 + column), (byte) (32 + row)};
-                mSession.write(data, 0, data.length);
-            }
+            if (out_of_bounds) return;
+            report[0] = '\033';
+            report[1] = '[';
+            report[2] = 'M';
+            report[3] = (byte) (32 + mouseButton);
+            report[4] = (byte) (32 + column);
+            report[5] = (byte) (32 + row);
+            length = 6;
         }
+        mSession.write(report, 0, length);
+    }
+
+    /** Append the decimal digits of a non-negative value to a buffer, returning the offset after them. */
+    private static int appendDecimal(byte[] buffer, int offset, int value) {
+        int end = offset;
+        int remaining = value;
+        do {
+            end++;
+            remaining /= 10;
+        } while (remaining != 0);
+
+        int position = end;
+        do {
+            buffer[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return end;
+    }
+
+    private void onColorsChanged() {
+        mContentChangeCount++;
+        mSession.onColorsChanged();
     }
 
     public void resize(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
@@ -451,6 +548,15 @@ public final class TerminalEmulator {
         return isDecsetInternalBitSet(DECSET_BIT_REVERSE_VIDEO);
     }
 
+    /**
+     * Get a count which changes whenever anything drawn other than the cursor changes: the text or styles of the
+     * buffers, the colors, the reverse video mode or the active buffer. If it is the same as at the last draw, an update
+     * has at most changed the cursor, so views only need to redraw the cells of the cursor.
+     */
+    public long getContentChangeCount() {
+        return mMainBuffer.getModificationCount() + mAltBuffer.getModificationCount() + mContentChangeCount;
+    }
+
 
 
     public boolean isCursorEnabled() {
@@ -498,7 +604,12 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
+        append(buffer, 0, length);
+    }
+
+    /** Accept bytes from the given offset of a buffer, e.g. the in place region of a {@link ByteQueue}. */
+    public void append(byte[] buffer, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++)
             processByte(buffer[i]);
     }
 
@@ -1256,6 +1367,7 @@ public final class TerminalEmulator {
                     boolean resized = !(newScreen.mColumns == mColumns && newScreen.mScreenRows == mRows);
                     if (setting) saveCursor();
                     mScreen = newScreen;
+                    mContentChangeCount++;
                     if (!setting) {
                         int col = mSavedStateMain.mSavedCursorCol;
                         int row = mSavedStateMain.mSavedCursorRow;
@@ -1462,8 +1574,7 @@ public final class TerminalEmulator {
                 // http://www.vt100.net/docs/vt100-ug/chapter3.html: "Move the active position to the same horizontal
                 // position on the preceding line. If the active position is at the top margin, a scroll down is performed".
                 if (mCursorRow <= mTopMargin) {
-                    mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, mBottomMargin - (mTopMargin + 1), mLeftMargin, mTopMargin + 1);
-                    blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin);
+                    scrollUpLines(1);
                 } else {
                     mCursorRow--;
                 }
@@ -1627,9 +1738,8 @@ public final class TerminalEmulator {
             {
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToInsert;
-                mScreen.blockCopy(0, mCursorRow, mColumns, linesToMove, 0, mCursorRow + linesToInsert);
-                blockClear(0, mCursorRow, mColumns, linesToInsert);
+                // Nothing to do if the cursor is below the scrolling region:
+                if (linesAfterCursor > 0) mScreen.insertLines(mCursorRow, mBottomMargin, linesToInsert, getStyle());
             }
             break;
             case 'M': // "${CSI}${N}M" - delete N lines (DL).
@@ -1637,9 +1747,8 @@ public final class TerminalEmulator {
                 mAboutToAutoWrap = false;
                 int linesAfterCursor = mBottomMargin - mCursorRow;
                 int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
-                int linesToMove = linesAfterCursor - linesToDelete;
-                mScreen.blockCopy(0, mCursorRow + linesToDelete, mColumns, linesToMove, 0, mCursorRow);
-                blockClear(0, mCursorRow + linesToMove, mColumns, linesToDelete);
+                // Nothing to do if the cursor is below the scrolling region:
+                if (linesAfterCursor > 0) mScreen.deleteLines(mCursorRow, mBottomMargin, linesToDelete, getStyle());
             }
             break;
             case 'P': // "${CSI}{N}P" - delete ${N} characters (DCH).
@@ -1658,9 +1767,7 @@ public final class TerminalEmulator {
             }
             break;
             case 'S': { // "${CSI}${N}S" - scroll up ${N} lines (default = 1) (SU).
-                final int linesToScroll = getArg0(1);
-                for (int i = 0; i < linesToScroll; i++)
-                    scrollDownOneLine();
+                scrollDownLines(getArg0(1));
                 break;
             }
             case 'T':
@@ -1669,11 +1776,7 @@ public final class TerminalEmulator {
                     // http://vt100.net/docs/vt510-rm/SD: "N is the number of lines to move the user window up in page
                     // memory. N new lines appear at the top of the display. N old lines disappear at the bottom of the
                     // display. You cannot pan past the top margin of the current page".
-                    final int linesToScrollArg = getArg0(1);
-                    final int linesBetweenTopAndBottomMargins = mBottomMargin - mTopMargin;
-                    final int linesToScroll = Math.min(linesBetweenTopAndBottomMargins, linesToScrollArg);
-                    mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesBetweenTopAndBottomMargins - linesToScroll, mLeftMargin, mTopMargin + linesToScroll);
-                    blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesToScroll);
+                    scrollUpLines(getArg0(1));
                 } else {
                     // "${CSI}${func};${startx};${starty};${firstrow};${lastrow}T" - initiate highlight mouse tracking.
                     unimplementedSequence(b);
@@ -2056,7 +2159,7 @@ public final class TerminalEmulator {
                                 return;
                             } else {
                                 mColors.tryParseColor(colorIndex, textParameter.substring(parsingPairStart, i));
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 colorIndex = -1;
                                 parsingPairStart = -1;
                             }
@@ -2092,7 +2195,7 @@ public final class TerminalEmulator {
                                     + String.format(Locale.US, "%04x", b) + bellOrStringTerminator);
                             } else {
                                 mColors.tryParseColor(specialIndex, colorSpec);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                             }
                             specialIndex++;
                             if (endOfInput || (specialIndex > TextStyle.COLOR_INDEX_CURSOR) || ++charIndex >= textParameter.length())
@@ -2120,7 +2223,7 @@ public final class TerminalEmulator {
                 // parameters are given, the entire table will be reset.
                 if (textParameter.isEmpty()) {
                     mColors.reset();
-                    mSession.onColorsChanged();
+                    onColorsChanged();
                 } else {
                     int lastIndex = 0;
                     for (int charIndex = 0; ; charIndex++) {
@@ -2129,7 +2232,7 @@ public final class TerminalEmulator {
                             try {
                                 int colorToReset = Integer.parseInt(textParameter.substring(lastIndex, charIndex));
                                 mColors.reset(colorToReset);
-                                mSession.onColorsChanged();
+                                onColorsChanged();
                                 if (endOfInput) break;
                                 charIndex++;
                                 lastIndex = charIndex;
@@ -2144,7 +2247,7 @@ public final class TerminalEmulator {
             case 111: // Reset background color.
             case 112: // Reset cursor color.
                 mColors.reset(TextStyle.COLOR_INDEX_FOREGROUND + (value - 110));
-                mSession.onColorsChanged();
+                onColorsChanged();
                 break;
             case 119: // Reset highlight color.
                 break;
@@ -2204,15 +2307,32 @@ public final class TerminalEmulator {
     }
 
     private void scrollDownOneLine() {
-        mScrollCounter++;
+        scrollDownLines(1);
+    }
+
+    /** Scroll the lines between the margins up, putting lines into the scroll history if there are no horizontal margins. */
+    private void scrollDownLines(int lines) {
+        mScrollCounter += lines;
         long currentStyle = getStyle();
         if (mLeftMargin != 0 || mRightMargin != mColumns) {
             // Horizontal margin: Do not put anything into scroll history, just non-margin part of screen up.
-            mScreen.blockCopy(mLeftMargin, mTopMargin + 1, mRightMargin - mLeftMargin, mBottomMargin - mTopMargin - 1, mLeftMargin, mTopMargin);
-            // .. and blank bottom row between margins:
-            mScreen.blockSet(mLeftMargin, mBottomMargin - 1, mRightMargin - mLeftMargin, 1, ' ', currentStyle);
+            final int linesToScroll = Math.min(lines, mBottomMargin - mTopMargin);
+            mScreen.blockCopy(mLeftMargin, mTopMargin + linesToScroll, mRightMargin - mLeftMargin, mBottomMargin - mTopMargin - linesToScroll, mLeftMargin, mTopMargin);
+            // .. and blank bottom rows between margins:
+            mScreen.blockSet(mLeftMargin, mBottomMargin - linesToScroll, mRightMargin - mLeftMargin, linesToScroll, ' ', currentStyle);
         } else {
-            mScreen.scrollDownOneLine(mTopMargin, mBottomMargin, currentStyle);
+            mScreen.scrollDownLines(mTopMargin, mBottomMargin, lines, currentStyle);
+        }
+    }
+
+    /** Scroll the lines between the margins down, revealing blank lines at the top margin. */
+    private void scrollUpLines(int lines) {
+        final int linesToScroll = Math.min(lines, mBottomMargin - mTopMargin);
+        if (mLeftMargin != 0 || mRightMargin != mColumns) {
+            mScreen.blockCopy(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, mBottomMargin - mTopMargin - linesToScroll, mLeftMargin, mTopMargin + linesToScroll);
+            blockClear(mLeftMargin, mTopMargin, mRightMargin - mLeftMargin, linesToScroll);
+        } else {
+            mScreen.insertLines(mTopMargin, mBottomMargin, linesToScroll, getStyle());
         }
     }
 
@@ -2564,7 +2684,7 @@ public final class TerminalEmulator {
         mUtf8Index = mUtf8ToFollow = 0;
 
         mColors.reset();
-        mSession.onColorsChanged();
+        onColorsChanged();
     }
 
     public String getSelectedText(int x1, int y1, int x2, int y2) {
@@ -2587,16 +2707,12 @@ public final class TerminalEmulator {
 
     /** If DECSET 2004 is set, prefix paste with "\033[200~" and suffix with "\033[201~". */
     public void paste(String text) {
-        // First: Always remove escape key and C1 control characters [0x80,0x9F]:
-        text = text.replaceAll("(\u001B|[\u0080-\u009F])", "");
-        // Second: Replace all newlines (\n) or CRLF (\r\n) with carriage returns (\r).
-        text = text.replaceAll("\r?\n", "\r");
+        mSession.paste(text, isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE));
+    }
 
-        // Then: Implement bracketed paste mode if enabled:
-        boolean bracketed = isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
-        if (bracketed) mSession.write("\033[200~");
-        mSession.write(text);
-        if (bracketed) mSession.write("\033[201~");
+    /** If bracketed paste mode (DECSET 2004) is enabled. */
+    public boolean isBracketedPasteMode() {
+        return isDecsetInternalBitSet(DECSET_BIT_BRACKETED_PASTE_MODE);
     }
 
     /** http://www.vt100.net/docs/vt510-rm/DECSC */
@@ -2608,6 +2724,111 @@ public final class TerminalEmulator {
         boolean mUseLineDrawingG0, mUseLineDrawingG1, mUseLineDrawingUsesG0 = true;
     }
 
+    /**
+     * Write the state of the emulator except for the contents of the screen buffers for a {@link TerminalSnapshot}.
+     * The state of a partially parsed escape sequence or UTF-8 character is not included.
+     */
+    void writeSnapshotState(DataOutputStream out) throws IOException {
+        out.writeInt(mCursorRow);
+        out.writeInt(mCursorCol);
+        out.writeInt(mCursorStyle);
+        out.writeInt(mCurrentDecSetFlags);
+        out.writeInt(mSavedDecSetFlags);
+        out.writeBoolean(isAlternateBufferActive());
+        out.writeBoolean(mInsertMode);
+        out.writeBoolean(mAboutToAutoWrap);
+        out.writeBoolean(mUseLineDrawingG0);
+        out.writeBoolean(mUseLineDrawingG1);
+        out.writeBoolean(mUseLineDrawingUsesG0);
+        out.writeInt(mTopMargin);
+        out.writeInt(mBottomMargin);
+        out.writeInt(mLeftMargin);
+        out.writeInt(mRightMargin);
+        out.writeInt(mForeColor);
+        out.writeInt(mBackColor);
+        out.writeInt(mUnderlineColor);
+        out.writeInt(mEffect);
+        out.writeInt(mTabStop.length);
+        for (boolean tabStop : mTabStop) out.writeBoolean(tabStop);
+        for (SavedScreenState state : new SavedScreenState[]{mSavedStateMain, mSavedStateAlt}) {
+            out.writeInt(state.mSavedCursorRow);
+            out.writeInt(state.mSavedCursorCol);
+            out.writeInt(state.mSavedEffect);
+            out.writeInt(state.mSavedForeColor);
+            out.writeInt(state.mSavedBackColor);
+            out.writeInt(state.mSavedDecFlags);
+            out.writeBoolean(state.mUseLineDrawingG0);
+            out.writeBoolean(state.mUseLineDrawingG1);
+            out.writeBoolean(state.mUseLineDrawingUsesG0);
+        }
+        out.writeInt(mColors.mCurrentColors.length);
+        for (int color : mColors.mCurrentColors) out.writeInt(color);
+        TerminalSnapshot.writeString(out, mTitle);
+        out.writeInt(mTitleStack.size());
+        for (String title : mTitleStack) TerminalSnapshot.writeString(out, title);
+    }
+
+    /**
+     * Read the state written by {@link #writeSnapshotState(DataOutputStream)}. The emulator must have the same size
+     * as when the state was written.
+     */
+    void readSnapshotState(ByteBuffer in) {
+        mCursorRow = in.getInt();
+        mCursorCol = in.getInt();
+        mCursorStyle = in.getInt();
+        mCurrentDecSetFlags = in.getInt();
+        mSavedDecSetFlags = in.getInt();
+        mScreen = in.get() != 0 ? mAltBuffer : mMainBuffer;
+        mInsertMode = in.get() != 0;
+        mAboutToAutoWrap = in.get() != 0;
+        mUseLineDrawingG0 = in.get() != 0;
+        mUseLineDrawingG1 = in.get() != 0;
+        mUseLineDrawingUsesG0 = in.get() != 0;
+        mTopMargin = in.getInt();
+        mBottomMargin = in.getInt();
+        mLeftMargin = in.getInt();
+        mRightMargin = in.getInt();
+        mForeColor = in.getInt();
+        mBackColor = in.getInt();
+        mUnderlineColor = in.getInt();
+        mEffect = in.getInt();
+        int tabStops = in.getInt();
+        for (int i = 0; i < tabStops; i++) {
+            boolean tabStop = in.get() != 0;
+            if (i < mTabStop.length) mTabStop[i] = tabStop;
+        }
+        for (SavedScreenState state : new SavedScreenState[]{mSavedStateMain, mSavedStateAlt}) {
+            state.mSavedCursorRow = in.getInt();
+            state.mSavedCursorCol = in.getInt();
+            state.mSavedEffect = in.getInt();
+            state.mSavedForeColor = in.getInt();
+            state.mSavedBackColor = in.getInt();
+            state.mSavedDecFlags = in.getInt();
+            state.mUseLineDrawingG0 = in.get() != 0;
+            state.mUseLineDrawingG1 = in.get() != 0;
+            state.mUseLineDrawingUsesG0 = in.get() != 0;
+        }
+        int colors = in.getInt();
+        for (int i = 0; i < colors; i++) {
+            int color = in.getInt();
+            if (i < mColors.mCurrentColors.length) mColors.mCurrentColors[i] = color;
+        }
+        mTitle = TerminalSnapshot.readString(in);
+        mTitleStack.clear();
+        for (int i = in.getInt(); i > 0; i--) mTitleStack.push(TerminalSnapshot.readString(in));
+
+        // Guard against a snapshot which does not match the current size:
+        mCursorRow = Math.max(0, Math.min(mCursorRow, mRows - 1));
+        mCursorCol = Math.max(0, Math.min(mCursorCol, mColumns - 1));
+        mTopMargin = Math.max(0, Math.min(mTopMargin, mRows - 2));
+        mBottomMargin = Math.max(mTopMargin + 2, Math.min(mBottomMargin, mRows));
+        mLeftMargin = Math.max(0, Math.min(mLeftMargin, mColumns - 2));
+        mRightMargin = Math.max(mLeftMargin + 2, Math.min(mRightMargin, mColumns));
+
+        onColorsChanged();
+        if (mTitle != null) mSession.titleChanged(null, mTitle);
+    }
+
     @Override
     public String toString() {
         return "TerminalEmulator[size=" + mScreen.mColumns + "x" + mScreen.mScreenRows + ", margins={" + mTopMargin + "," + mRightMargin + "," + mBottomMargin
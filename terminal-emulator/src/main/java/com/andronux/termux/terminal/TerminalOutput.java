@@ -15,6 +15,19 @@ public abstract class TerminalOutput {
     /** Write bytes to the terminal client. */
     public abstract void write(byte[] data, int offset, int count);
 
+    /**
+     * Paste text to the terminal client, with the escape key and C1 control characters removed and newlines replaced
+     * with carriage returns.
+     *
+     * @param text      The text to paste.
+     * @param bracketed If bracketed paste mode is enabled, in which case the text is surrounded by its markers.
+     */
+    public void paste(String text, boolean bracketed) {
+        if (bracketed) write(TerminalPaste.BRACKETED_PASTE_START);
+        write(TerminalPaste.sanitize(text));
+        if (bracketed) write(TerminalPaste.BRACKETED_PASTE_END);
+    }
+
     /** Notify the terminal client that the terminal title has changed. */
     public abstract void titleChanged(String oldTitle, String newTitle);
 
@@ -0,0 +1,183 @@
+package com.andronux.termux.terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A paste into a {@link TerminalSession} which is encoded in chunks on a worker thread and written to the process with
+ * back-pressure, so that pasting large texts neither blocks the main thread nor needs the whole text encoded at once.
+ * <p>
+ * Pastes into the same session are written in the order they were started, while input written through
+ * {@link TerminalSession#write(byte[], int, int)} meanwhile, like key presses, goes between their chunks. Started through
+ * {@link TerminalSession#paste(CharSequence, Callback)}.
+ */
+public final class TerminalPaste {
+
+    /** The number of chars encoded and written at once. */
+    static final int CHUNK_LENGTH = 8192;
+
+    static final String BRACKETED_PASTE_START = "\033[200~";
+    static final String BRACKETED_PASTE_END = "\033[201~";
+
+    /** The threads writing pastes, which are reused when idle. */
+    private static final ExecutorService PASTE_WRITER = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TermPasteWriter");
+        }
+    });
+
+    /** Callbacks for the progress of a paste, called on the main thread. */
+    public interface Callback {
+
+        /** Called after a chunk of the paste has been queued for the process. */
+        void onPasteProgress(TerminalPaste paste, int pastedLength, int totalLength);
+
+        /**
+         * Called once the paste has finished.
+         *
+         * @param cancelled If the paste was cancelled, or the session finished, before all of it was written.
+         */
+        void onPasteFinished(TerminalPaste paste, boolean cancelled);
+
+    }
+
+    private final TerminalSession mSession;
+    private final CharSequence mText;
+    private final boolean mBracketed;
+    private final Callback mCallback;
+    /** The paste started before this one in the same session, which has to be written first. */
+    private final TerminalPaste mPrevious;
+
+    private volatile boolean mCancelled;
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+
+    TerminalPaste(TerminalSession session, CharSequence text, boolean bracketed, Callback callback, TerminalPaste previous) {
+        mSession = session;
+        mText = text;
+        mBracketed = bracketed;
+        mCallback = callback;
+        mPrevious = previous;
+    }
+
+    void start() {
+        PASTE_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    /** Stop writing the paste. The bracketed paste end marker is still written if the start marker was. */
+    public void cancel() {
+        mCancelled = true;
+        mSession.wakeUpPasteWriters();
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean isFinished() {
+        return mFinished.getCount() == 0;
+    }
+
+    /** The length of the pasted text. */
+    public int getLength() {
+        return mText.length();
+    }
+
+    private void write() {
+        boolean written = awaitPrevious();
+        if (written && mBracketed) written = writeInput(BRACKETED_PASTE_START, false);
+
+        boolean startWritten = written;
+        Sanitizer sanitizer = new Sanitizer();
+        int length = mText.length();
+        int start = 0;
+        while (written && start < length) {
+            int end = Math.min(length, start + CHUNK_LENGTH);
+            // Do not split surrogate pairs between chunks:
+            if (end < length && Character.isHighSurrogate(mText.charAt(end - 1))) end--;
+            written = writeInput(sanitizer.sanitize(mText, start, end), false);
+            start = end;
+            if (written) postProgress(start);
+        }
+
+        if (startWritten && mBracketed) writeInput(BRACKETED_PASTE_END, true);
+
+        final boolean cancelled = !written;
+        mFinished.countDown();
+        if (mCallback != null) {
+            mSession.mMainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onPasteFinished(TerminalPaste.this, cancelled);
+                }
+            });
+        }
+    }
+
+    private boolean awaitPrevious() {
+        if (mPrevious == null) return true;
+        try {
+            mPrevious.mFinished.await();
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private boolean writeInput(String input, boolean ignoreCancel) {
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        return mSession.writePasteInput(bytes, 0, bytes.length, ignoreCancel ? null : this);
+    }
+
+    private void postProgress(final int pastedLength) {
+        if (mCallback == null) return;
+        mSession.mMainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onPasteProgress(TerminalPaste.this, pastedLength, mText.length());
+            }
+        });
+    }
+
+    /** Sanitize a whole text for pasting, see {@link Sanitizer}. */
+    static String sanitize(CharSequence text) {
+        return new Sanitizer().sanitize(text, 0, text.length());
+    }
+
+    /**
+     * Removes the escape key and C1 control characters [0x80,0x9F] from pasted text, and replaces newlines (\n) and
+     * CRLF (\r\n) with carriage returns (\r). Keeps the state needed to sanitize a text in consecutive chunks.
+     */
+    static final class Sanitizer {
+
+        /** If the last char kept from the previous chunk was a carriage return. */
+        private boolean mLastWasCarriageReturn;
+
+        String sanitize(CharSequence text, int start, int end) {
+            StringBuilder result = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c == '\u001B' || (c >= '\u0080' && c <= '\u009F')) continue;
+                if (c == '\n') {
+                    // A CRLF becomes the already appended carriage return:
+                    if (!mLastWasCarriageReturn) result.append('\r');
+                    mLastWasCarriageReturn = false;
+                    continue;
+                }
+                result.append(c);
+                mLastWasCarriageReturn = c == '\r';
+            }
+            return result.toString();
+        }
+
+    }
+
+}
@@ -37,6 +37,11 @@ public final class TerminalRow {
      */
     private static final int MAX_COMBINING_CHARACTERS_PER_COLUMN = 15;
 
+    /** The approximate size of an object reference, as used by {@link #estimateMemoryBytes(int)}. */
+    static final int REFERENCE_BYTES = 4;
+    /** The approximate size of the headers of this object and its two arrays, plus its other fields. */
+    private static final int OVERHEAD_BYTES = 3 * 16 + 2 * REFERENCE_BYTES + 8;
+
     /** The number of columns in this terminal row. */
     private final int mColumns;
     /** The text filling this terminal row. */
@@ -60,6 +65,12 @@ public final class TerminalRow {
 
     /** NOTE: The sourceX2 is exclusive. */
     public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
+        if (!mHasNonOneWidthOrSurrogateChars && !line.mHasNonOneWidthOrSurrogateChars) {
+            // Fast path when both rows have one java char per column:
+            System.arraycopy(line.mText, sourceX1, mText, destinationX, sourceX2 - sourceX1);
+            System.arraycopy(line.mStyle, sourceX1, mStyle, destinationX, sourceX2 - sourceX1);
+            return;
+        }
         mHasNonOneWidthOrSurrogateChars |= line.mHasNonOneWidthOrSurrogateChars;
         final int x1 = line.findStartOfColumn(sourceX1);
         final int x2 = line.findStartOfColumn(sourceX2);
@@ -88,6 +99,20 @@ public final class TerminalRow {
         return mSpaceUsed;
     }
 
+    /**
+     * Estimate the number of bytes of heap used by a newly allocated row, including the spare capacity of
+     * {@link #mText}.
+     */
+    public static long estimateMemoryBytes(int columns) {
+        return OVERHEAD_BYTES + 2L * (int) (SPARE_CAPACITY_FACTOR * columns) + 8L * columns;
+    }
+
+    /** Set the number of java chars used in {@link #mText} after it has been filled by a {@link TerminalSnapshot}. */
+    void setSpaceUsed(int spaceUsed, boolean hasNonOneWidthOrSurrogateChars) {
+        mSpaceUsed = (short) spaceUsed;
+        mHasNonOneWidthOrSurrogateChars = hasNonOneWidthOrSurrogateChars;
+    }
+
     /** Note that the column may end of second half of wide character. */
     public int findStartOfColumn(int column) {
         if (column == mColumns) return getSpaceUsed();
@@ -8,20 +8,22 @@ import android.system.Os;
 import android.system.OsConstants;
 
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A terminal session, consisting of a process coupled to a terminal interface.
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
- * {@link #updateSize(int, int, int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
+ * {@link #updateSize(int, int, int, int)} terminal emulation will begin and the subprocess I/O will be handled by the
+ * {@link TerminalSessionPoller} thread shared by all sessions, which also waits for the exit of the subprocess through
+ * the {@link ProcessReaper}.
  * All terminal emulation and callback methods will be performed on the main thread.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
@@ -33,20 +35,43 @@ public final class TerminalSession extends TerminalOutput {
     private static final int MSG_NEW_INPUT = 1;
     private static final int MSG_PROCESS_EXITED = 4;
 
-    public final String mHandle = UUID.randomUUID().toString();
+    public final String mHandle;
 
     TerminalEmulator mEmulator;
 
     /**
-     * A queue written to from a separate thread when the process outputs, and read by main thread to process by
-     * terminal emulator.
+     * A queue written to in place from the {@link TerminalSessionPoller} thread when the process outputs, and passed
+     * in place by the main thread to the terminal emulator. Holds two max sized reads, so that a read can be done
+     * while the main thread processes the previous one.
      */
-    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
+    final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(2 * TerminalSessionPoller.MAX_READ_SIZE);
     /**
-     * A queue written to from the main thread due to user interaction, and read by another thread which forwards by
-     * writing to the {@link #mTerminalFileDescriptor}.
+     * A queue written to from the main thread due to user interaction, and read by the {@link TerminalSessionPoller}
+     * thread which forwards by writing to the {@link #mTerminalFileDescriptor}.
      */
     final ByteQueue mTerminalToProcessIOQueue = new ByteQueue(4096);
+    /**
+     * Input written by the main thread that did not fit into {@link #mTerminalToProcessIOQueue}, which is moved into
+     * it by the {@link TerminalSessionPoller} thread as room is made, so that writes never block the main thread.
+     * Also the lock that writers of {@link TerminalPaste}s wait on for room in the queue.
+     */
+    private final ArrayDeque<byte[]> mOverflowInput = new ArrayDeque<>();
+    /** The number of bytes of the first array of {@link #mOverflowInput} that have already been moved. */
+    private int mOverflowInputOffset;
+    /** The last paste started through {@link #paste(CharSequence, TerminalPaste.Callback)}. */
+    private TerminalPaste mLastPaste;
+    /** The max length of a text pasted through {@link #paste(String, boolean)} to write directly instead of in chunks. */
+    private static final int DIRECT_PASTE_MAX_LENGTH = 4096;
+
+    /** The number of nested input batches open, see {@link #beginInputBatch()}. Only accessed on the main thread. */
+    private int mInputBatchDepth;
+    /** The input written while an input batch is open, reused between batches. Only accessed on the main thread. */
+    private byte[] mInputBatchBuffer = new byte[INPUT_BATCH_BUFFER_INITIAL_SIZE];
+    private int mInputBatchLength;
+    /** The initial size of {@link #mInputBatchBuffer}, to which it is shrunk again after a large batch. */
+    private static final int INPUT_BATCH_BUFFER_INITIAL_SIZE = 256;
+    private static final int INPUT_BATCH_BUFFER_MAX_KEPT_SIZE = 16 * 1024;
+
     /** Buffer to write translate code points into utf8 before writing to mTerminalToProcessIOQueue */
     private final byte[] mUtf8InputBuffer = new byte[5];
 
@@ -65,6 +90,9 @@ public final class TerminalSession extends TerminalOutput {
      */
     private int mTerminalFileDescriptor;
 
+    /** The registration of {@link #mTerminalFileDescriptor} with the poller doing the I/O of all sessions. */
+    private TerminalSessionPoller.Registration mPollerRegistration;
+
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
@@ -76,10 +104,46 @@ public final class TerminalSession extends TerminalOutput {
     private final String[] mEnv;
     private final Integer mTranscriptRows;
 
+    /** The recorder of the session output, if it is being recorded. Written on the main thread, read by the reader thread. */
+    private volatile TerminalSessionRecorder mRecorder;
+    /** The file and max size to start recording to once the emulator has been initialized. */
+    private File mPendingRecordingFile;
+    private long mPendingRecordingMaxFileSize;
+
+    /** The delay after output before a snapshot checkpoint is taken, to batch changes into fewer checkpoints. */
+    private static final int SNAPSHOT_CHECKPOINT_DELAY_MILLIS = 3000;
+    /** The single thread writing snapshot checkpoints of all sessions, which also keeps them in order per session. */
+    private static final ExecutorService SNAPSHOT_WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TermSessionSnapshotWriter");
+        }
+    });
+
+    /** The snapshot the state of the emulator is saved to, if enabled. Only accessed on the main thread. */
+    private TerminalSnapshot mSnapshot;
+    private boolean mSnapshotCheckpointScheduled;
+    private final Runnable mSnapshotCheckpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mSnapshotCheckpointScheduled = false;
+            checkpointSnapshot();
+        }
+    };
 
     private static final String LOG_TAG = "TerminalSession";
 
     public TerminalSession(String shellPath, String cwd, String[] args, String[] env, Integer transcriptRows, TerminalSessionClient client) {
+        this(shellPath, cwd, args, env, transcriptRows, client, null);
+    }
+
+    /**
+     * @param handle The {@link #mHandle} of the session, like that of a session whose snapshot is restored, or
+     *               {@code null} for a random one.
+     */
+    public TerminalSession(String shellPath, String cwd, String[] args, String[] env, Integer transcriptRows, TerminalSessionClient client,
+                           String handle) {
+        this.mHandle = (handle != null) ? handle : UUID.randomUUID().toString();
         this.mShellPath = shellPath;
         this.mCwd = cwd;
         this.mArgs = args;
@@ -106,7 +170,130 @@ public final class TerminalSession extends TerminalOutput {
         } else {
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns, cellWidthPixels, cellHeightPixels);
             mEmulator.resize(columns, rows, cellWidthPixels, cellHeightPixels);
+
+            TerminalSessionRecorder recorder = mRecorder;
+            if (recorder != null) recorder.recordResize(columns, rows);
+        }
+    }
+
+    /**
+     * Start recording the output of this session to a file in the asciicast v2 format. If the emulator
+     * has not been initialized yet, recording starts once its size is known. Any current recording is stopped.
+     *
+     * @param file        The file to record to, which will be truncated if it exists.
+     * @param maxFileSize The size in bytes after which the file is rotated, or 0 for no limit.
+     */
+    public void startRecording(File file, long maxFileSize) {
+        stopRecording();
+        if (mEmulator == null) {
+            mPendingRecordingFile = file;
+            mPendingRecordingMaxFileSize = maxFileSize;
+        } else if (isRunning()) {
+            mRecorder = new TerminalSessionRecorder(file, maxFileSize, mEmulator.mColumns, mEmulator.mRows, mClient);
+        }
+    }
+
+    /** Stop recording the output of this session, if it is being recorded. */
+    public void stopRecording() {
+        mPendingRecordingFile = null;
+        TerminalSessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            mRecorder = null;
+            recorder.stop();
+        }
+    }
+
+    /** Get the file the output of this session is being recorded to, or {@code null} if not recording. */
+    public File getRecordingFile() {
+        if (mPendingRecordingFile != null) return mPendingRecordingFile;
+        TerminalSessionRecorder recorder = mRecorder;
+        return (recorder == null || recorder.isStopped()) ? null : recorder.getFile();
+    }
+
+    /**
+     * Save the state of the emulator to a snapshot file while the session is running, so that its screen and
+     * transcript can be restored if the app process is killed. If the emulator has not been initialized yet,
+     * an existing snapshot in the file is restored into it once its size is known. The file is deleted when
+     * the process exits. Must be called on the main thread.
+     *
+     * @param file The file to save snapshots to, or {@code null} to stop saving snapshots.
+     */
+    public void setSnapshotFile(File file) {
+        setSnapshotFile(file, null);
+    }
+
+    /**
+     * Like {@link #setSnapshotFile(File)}, but also save the command the session was started with, which can be read
+     * with {@link TerminalSnapshot#readCommand(File)} to start the session again after the app process is killed.
+     *
+     * @param file The file to save snapshots to, or {@code null} to stop saving snapshots.
+     * @param command The {@link TerminalSnapshot.Command} the session was started with, or {@code null} if not known.
+     */
+    public void setSnapshotFile(File file, TerminalSnapshot.Command command) {
+        mMainThreadHandler.removeCallbacks(mSnapshotCheckpointRunnable);
+        mSnapshotCheckpointScheduled = false;
+        mSnapshot = (file == null) ? null : new TerminalSnapshot(file, command);
+        if (mSnapshot != null && mEmulator != null) scheduleSnapshotCheckpoint();
+    }
+
+    /** Get the file snapshots of this session are saved to, or {@code null} if not enabled. */
+    public File getSnapshotFile() {
+        return (mSnapshot == null) ? null : mSnapshot.getFile();
+    }
+
+    /**
+     * Take a snapshot checkpoint of the changes since the previous one now, instead of waiting for the scheduled
+     * one, like when the app may be killed soon. The checkpoint is written to the file in the background. Must be
+     * called on the main thread.
+     */
+    public void checkpointSnapshot() {
+        final TerminalSnapshot snapshot = mSnapshot;
+        if (snapshot == null || mEmulator == null) return;
+
+        final byte[] checkpoint = snapshot.encodeCheckpoint(mEmulator);
+        if (checkpoint == null) return;
+        SNAPSHOT_WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.writeCheckpoint(checkpoint);
+                } catch (IOException e) {
+                    Logger.logStackTraceWithMessage(mClient, LOG_TAG, "Failed to write snapshot \"" + snapshot.getFile() + "\"", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take a final snapshot checkpoint and stop saving snapshots, but keep the file so that the session can be
+     * restored from it later, like when the service is destroyed without the user asking for it.
+     */
+    public void detachSnapshot() {
+        checkpointSnapshot();
+        mMainThreadHandler.removeCallbacks(mSnapshotCheckpointRunnable);
+        mSnapshotCheckpointScheduled = false;
+        mSnapshot = null;
+    }
+
+    private void scheduleSnapshotCheckpoint() {
+        if (mSnapshot == null || mSnapshotCheckpointScheduled) return;
+        mSnapshotCheckpointScheduled = true;
+        mMainThreadHandler.postDelayed(mSnapshotCheckpointRunnable, SNAPSHOT_CHECKPOINT_DELAY_MILLIS);
+    }
+
+    private void restoreSnapshot() {
+        try {
+            if (!TerminalSnapshot.restore(mSnapshot.getFile(), mEmulator)) return;
+        } catch (IOException e) {
+            Logger.logStackTraceWithMessage(mClient, LOG_TAG, "Failed to restore snapshot \"" + mSnapshot.getFile() + "\"", e);
+            return;
         }
+        Logger.logInfo(mClient, LOG_TAG, "Restored snapshot \"" + mSnapshot.getFile() + "\"");
+
+        // The restored screen belongs to a process which no longer exists, so leave the alternate screen and the
+        // modes it may have set, and start the output of the new process on a new line below the restored content:
+        byte[] bytes = "\033[?1049l\033[!p\r\n".getBytes(StandardCharsets.UTF_8);
+        mEmulator.append(bytes, bytes.length);
     }
 
     /** The terminal title as set through escape sequences or null if none set. */
@@ -122,61 +309,185 @@ public final class TerminalSession extends TerminalOutput {
      */
     public void initializeEmulator(int columns, int rows, int cellWidthPixels, int cellHeightPixels) {
         mEmulator = new TerminalEmulator(this, columns, rows, cellWidthPixels, cellHeightPixels, mTranscriptRows, mClient);
+        if (mSnapshot != null) restoreSnapshot();
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mShellPath, mCwd, mArgs, mEnv, processId, rows, columns, cellWidthPixels, cellHeightPixels);
         mShellPid = processId[0];
         mClient.setTerminalShellPid(this, mShellPid);
 
-        final FileDescriptor terminalFileDescriptorWrapped = wrapFileDescriptor(mTerminalFileDescriptor, mClient);
+        if (mPendingRecordingFile != null) {
+            mRecorder = new TerminalSessionRecorder(mPendingRecordingFile, mPendingRecordingMaxFileSize, columns, rows, mClient);
+            mPendingRecordingFile = null;
+        }
+
+        mPollerRegistration = TerminalSessionPoller.getInstance().register(this, mTerminalFileDescriptor);
 
-        new Thread("TermSessionInputReader[pid=" + mShellPid + "]") {
+        ProcessReaper.getInstance().watch(mShellPid, true, new ProcessReaper.Callback() {
             @Override
-            public void run() {
-                try (InputStream termIn = new FileInputStream(terminalFileDescriptorWrapped)) {
-                    final byte[] buffer = new byte[4096];
-                    while (true) {
-                        int read = termIn.read(buffer);
-                        if (read == -1) return;
-                        if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
-                    }
-                } catch (Exception e) {
-                    // Ignore, just shutting down.
-                }
+            public void onProcessExited(int pid, int exitStatus) {
+                if (exitStatus == ProcessReaper.EXIT_STATUS_UNKNOWN) exitStatus = 0;
+                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, exitStatus));
             }
-        }.start();
+        });
+    }
 
-        new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                final byte[] buffer = new byte[4096];
-                try (FileOutputStream termOut = new FileOutputStream(terminalFileDescriptorWrapped)) {
-                    while (true) {
-                        int bytesToWrite = mTerminalToProcessIOQueue.read(buffer, true);
-                        if (bytesToWrite == -1) return;
-                        termOut.write(buffer, 0, bytesToWrite);
+    /**
+     * Called on the {@link TerminalSessionPoller} thread with output of the process, which has been read in place
+     * into {@link #mProcessToTerminalIOQueue} but not yet committed.
+     *
+     * @return Returns whether the output was queued, false if the session has been cleaned up.
+     */
+    boolean onProcessOutput(byte[] buffer, int offset, int length) {
+        TerminalSessionRecorder recorder = mRecorder;
+        if (recorder != null) recorder.recordOutput(buffer, offset, length);
+        if (!mProcessToTerminalIOQueue.commitWrite(length)) return false;
+        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+        return true;
+    }
+
+    /**
+     * Write data to the shell process. Never blocks, input that does not fit into {@link #mTerminalToProcessIOQueue}
+     * is kept in {@link #mOverflowInput} until there is room.
+     */
+    @Override
+    public void write(byte[] data, int offset, int count) {
+        if (mShellPid <= 0) return;
+
+        if (mInputBatchDepth > 0) {
+            if (mInputBatchLength + count > mInputBatchBuffer.length)
+                mInputBatchBuffer = Arrays.copyOf(mInputBatchBuffer, Math.max(2 * mInputBatchBuffer.length, mInputBatchLength + count));
+            System.arraycopy(data, offset, mInputBatchBuffer, mInputBatchLength, count);
+            mInputBatchLength += count;
+            return;
+        }
+
+        synchronized (mOverflowInput) {
+            // Input may only go directly into the queue if no earlier input is waiting for room:
+            if (mOverflowInput.isEmpty()) {
+                int written = mTerminalToProcessIOQueue.writeNonBlocking(data, offset, count);
+                if (written < 0) return;
+                offset += written;
+                count -= written;
+            }
+            if (count > 0) mOverflowInput.add(Arrays.copyOfRange(data, offset, offset + count));
+        }
+        mPollerRegistration.requestFlush();
+    }
+
+    /**
+     * Start batching the input written on the main thread, e.g. the encoded code points and key sequences of a text
+     * committed by an input method, until the matching {@link #endInputBatch()}. The batched input is then queued with
+     * a single write instead of with one per code point. Batches may be nested.
+     */
+    public void beginInputBatch() {
+        mInputBatchDepth++;
+    }
+
+    /** End a batch started by {@link #beginInputBatch()}, writing the batched input once the outermost batch ends. */
+    public void endInputBatch() {
+        if (mInputBatchDepth == 0 || --mInputBatchDepth > 0) return;
+
+        int length = mInputBatchLength;
+        mInputBatchLength = 0;
+        if (length > 0) write(mInputBatchBuffer, 0, length);
+        if (mInputBatchBuffer.length > INPUT_BATCH_BUFFER_MAX_KEPT_SIZE)
+            mInputBatchBuffer = new byte[INPUT_BATCH_BUFFER_INITIAL_SIZE];
+    }
+
+    /**
+     * Write input of a paste, waiting for room in {@link #mTerminalToProcessIOQueue}. Must not be called on the main
+     * thread.
+     *
+     * @param paste The paste to stop writing for once cancelled, or null to write regardless.
+     * @return Returns whether all of the input was queued, false if the paste was cancelled or the session finished.
+     */
+    boolean writePasteInput(byte[] data, int offset, int count, TerminalPaste paste) {
+        if (mPollerRegistration == null) return false;
+        while (count > 0) {
+            synchronized (mOverflowInput) {
+                while (true) {
+                    if (paste != null && paste.isCancelled()) return false;
+                    int written = mOverflowInput.isEmpty() ? mTerminalToProcessIOQueue.writeNonBlocking(data, offset, count) : 0;
+                    if (written < 0) return false;
+                    if (written > 0) {
+                        offset += written;
+                        count -= written;
+                        break;
+                    }
+                    try {
+                        mOverflowInput.wait();
+                    } catch (InterruptedException e) {
+                        return false;
                     }
-                } catch (IOException e) {
-                    // Ignore.
                 }
             }
-        }.start();
+            mPollerRegistration.requestFlush();
+        }
+        return true;
+    }
 
-        new Thread("TermSessionWaiter[pid=" + mShellPid + "]") {
-            @Override
-            public void run() {
-                int processExitCode = JNI.waitFor(mShellPid);
-                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+    /**
+     * Called on the {@link TerminalSessionPoller} thread after it has read from {@link #mTerminalToProcessIOQueue}, to
+     * move {@link #mOverflowInput} into the room made and wake up paste writers waiting for room.
+     *
+     * @return Returns whether any overflow input was moved into the queue.
+     */
+    boolean onInputConsumed() {
+        boolean moved = false;
+        synchronized (mOverflowInput) {
+            byte[] input;
+            while ((input = mOverflowInput.peek()) != null) {
+                int written = mTerminalToProcessIOQueue.writeNonBlocking(input, mOverflowInputOffset, input.length - mOverflowInputOffset);
+                if (written > 0) moved = true;
+                if (written < 0 || mOverflowInputOffset + written < input.length) {
+                    if (written > 0) mOverflowInputOffset += written;
+                    break;
+                }
+                mOverflowInput.poll();
+                mOverflowInputOffset = 0;
             }
-        }.start();
+            mOverflowInput.notifyAll();
+        }
+        return moved;
+    }
 
+    /** Wake up paste writers waiting for room in {@link #mTerminalToProcessIOQueue}, e.g. after a paste is cancelled. */
+    void wakeUpPasteWriters() {
+        synchronized (mOverflowInput) {
+            mOverflowInput.notifyAll();
+        }
     }
 
-    /** Write data to the shell process. */
+    /**
+     * Paste text, writing short texts directly and longer ones through a {@link TerminalPaste} so that the main thread
+     * does not have to encode or hold all of it at once.
+     */
     @Override
-    public void write(byte[] data, int offset, int count) {
-        if (mShellPid > 0) mTerminalToProcessIOQueue.write(data, offset, count);
+    public void paste(String text, boolean bracketed) {
+        if (text.length() <= DIRECT_PASTE_MAX_LENGTH && (mLastPaste == null || mLastPaste.isFinished()))
+            super.paste(text, bracketed);
+        else
+            startPaste(text, bracketed, null);
+    }
+
+    /**
+     * Paste text on a worker thread, in chunks written with back-pressure from the process. Pastes are written in the
+     * order they were started. Must be called on the main thread.
+     *
+     * @param text     The text to paste, which must not be modified until the paste has finished.
+     * @param callback The optional callback for the progress of the paste.
+     * @return Returns the paste, through which it can be cancelled.
+     */
+    public TerminalPaste paste(CharSequence text, TerminalPaste.Callback callback) {
+        return startPaste(text, mEmulator != null && mEmulator.isBracketedPasteMode(), callback);
+    }
+
+    private TerminalPaste startPaste(CharSequence text, boolean bracketed, TerminalPaste.Callback callback) {
+        TerminalPaste paste = new TerminalPaste(this, text, bracketed, callback, mLastPaste);
+        mLastPaste = paste;
+        paste.start();
+        return paste;
     }
 
     /** Write the Unicode code point to the terminal encoded in UTF-8. */
@@ -249,10 +560,30 @@ public final class TerminalSession extends TerminalOutput {
             mShellExitStatus = exitStatus;
         }
 
-        // Stop the reader and writer threads, and close the I/O streams
+        stopRecording();
+
+        // The session will not need to be restored once its process has exited:
+        mMainThreadHandler.removeCallbacks(mSnapshotCheckpointRunnable);
+        mSnapshotCheckpointScheduled = false;
+        final TerminalSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            mSnapshot = null;
+            SNAPSHOT_WRITER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot.delete();
+                }
+            });
+        }
+
+        // Stop polling the pseudoterminal and close it
         mTerminalToProcessIOQueue.close();
         mProcessToTerminalIOQueue.close();
-        JNI.close(mTerminalFileDescriptor);
+        mPollerRegistration.unregister();
+        synchronized (mOverflowInput) {
+            mOverflowInput.clear();
+            mOverflowInput.notifyAll();
+        }
     }
 
     @Override
@@ -314,36 +645,26 @@ public final class TerminalSession extends TerminalOutput {
         return null;
     }
 
-    private static FileDescriptor wrapFileDescriptor(int fileDescriptor, TerminalSessionClient client) {
-        FileDescriptor result = new FileDescriptor();
-        try {
-            Field descriptorField;
-            try {
-                descriptorField = FileDescriptor.class.getDeclaredField("descriptor");
-            } catch (NoSuchFieldException e) {
-                // For desktop java:
-                descriptorField = FileDescriptor.class.getDeclaredField("fd");
-            }
-            descriptorField.setAccessible(true);
-            descriptorField.set(result, fileDescriptor);
-        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException e) {
-            Logger.logStackTraceWithMessage(client, LOG_TAG, "Error accessing FileDescriptor#descriptor private field", e);
-            System.exit(1);
-        }
-        return result;
-    }
-
     @SuppressLint("HandlerLeak")
     class MainThreadHandler extends Handler {
 
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
-
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
+            // Process the stored bytes in place, in at most two runs if they wrap around the end of the queue. Output
+            // arriving meanwhile is left for the message sent with it, to not starve the main thread:
+            ByteQueue queue = mProcessToTerminalIOQueue;
+            boolean consumed = false;
+            for (int run = 0; run < 2; run++) {
+                int length = queue.getContiguousStoredBytes();
+                if (length == 0) break;
+                mEmulator.append(queue.getBuffer(), queue.getReadOffset(), length);
+                queue.commitRead(length);
+                mPollerRegistration.onOutputConsumed();
+                consumed = true;
+            }
+            if (consumed) {
                 notifyScreenUpdate();
+                scheduleSnapshotCheckpoint();
             }
 
             if (msg.what == MSG_PROCESS_EXITED) {
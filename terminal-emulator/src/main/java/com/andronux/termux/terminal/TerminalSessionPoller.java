@@ -0,0 +1,312 @@
+package com.andronux.termux.terminal;
+
+import android.util.SparseArray;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread doing the I/O of the pseudoterminals of all {@link TerminalSession}s, instead of a reader and a writer
+ * thread for each session. The master file descriptors are made non-blocking and registered with one epoll instance
+ * through {@link JNI}, so the number of threads stays the same no matter how many sessions are open.
+ * <p>
+ * The state of the registrations is only modified on the poller thread. Other threads queue commands and wake up the
+ * poller thread to run them.
+ * <p>
+ * Other file descriptors can be polled by the same thread through {@link #addListener(int, Listener)}, which is used by
+ * {@link ProcessReaper} to wait for the exit of child processes.
+ */
+final class TerminalSessionPoller {
+
+    /** The max number of events handled per wait. */
+    private static final int MAX_EVENTS = 64;
+
+    /** The size of the buffers the pseudoterminals are written from. */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * The min and max number of bytes read from a pseudoterminal at once. The read size of a session starts at the min,
+     * is doubled whenever a read fills it since output is sustained, and is halved whenever a read fills less than a
+     * quarter of it.
+     */
+    static final int MIN_READ_SIZE = 4096;
+    static final int MAX_READ_SIZE = 64 * 1024;
+
+    private static TerminalSessionPoller sInstance;
+
+    private final int mEpollFileDescriptor;
+    private final int mWakeupFileDescriptor;
+
+    /** The registrations by their file descriptor. Only accessed on the poller thread. */
+    private final SparseArray<Registration> mRegistrations = new SparseArray<>();
+    /** The listeners of other file descriptors by their file descriptor. Only accessed on the poller thread. */
+    private final SparseArray<Listener> mListeners = new SparseArray<>();
+    private final ConcurrentLinkedQueue<Runnable> mCommands = new ConcurrentLinkedQueue<>();
+
+    private final byte[] mWakeupBuffer = new byte[8];
+    private final int[] mEvents = new int[2 * MAX_EVENTS];
+
+    static synchronized TerminalSessionPoller getInstance() {
+        if (sInstance == null) sInstance = new TerminalSessionPoller();
+        return sInstance;
+    }
+
+    private TerminalSessionPoller() {
+        int[] fileDescriptors = JNI.createPoller();
+        mEpollFileDescriptor = fileDescriptors[0];
+        mWakeupFileDescriptor = fileDescriptors[1];
+
+        new Thread("TermSessionPoller") {
+            @Override
+            public void run() {
+                poll();
+            }
+        }.start();
+    }
+
+    /**
+     * Register the pseudoterminal of a session. Output of the process is read in place into
+     * {@link TerminalSession#mProcessToTerminalIOQueue} and input is read from
+     * {@link TerminalSession#mTerminalToProcessIOQueue} whenever {@link Registration#requestFlush()} is called.
+     *
+     * @param session        The session owning the pseudoterminal.
+     * @param fileDescriptor The master file descriptor of the pseudoterminal, which is closed by
+     *                       {@link Registration#unregister()}.
+     * @return the registration to notify the poller of changes to the queues of the session through.
+     */
+    Registration register(TerminalSession session, int fileDescriptor) {
+        final Registration registration = new Registration(session, fileDescriptor);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mRegistrations.put(registration.mFileDescriptor, registration);
+                registration.updateEvents();
+            }
+        });
+        return registration;
+    }
+
+    /**
+     * Poll a file descriptor for {@link JNI#POLL_IN}. Must be called on the poller thread, e.g. from a command passed
+     * to {@link #execute(Runnable)}.
+     */
+    void addListener(int fileDescriptor, Listener listener) {
+        JNI.pollerAdd(mEpollFileDescriptor, fileDescriptor, JNI.POLL_IN);
+        mListeners.put(fileDescriptor, listener);
+    }
+
+    /** Stop polling a file descriptor added by {@link #addListener(int, Listener)}. Must be called on the poller thread. */
+    void removeListener(int fileDescriptor) {
+        JNI.pollerRemove(mEpollFileDescriptor, fileDescriptor);
+        mListeners.remove(fileDescriptor);
+    }
+
+    /** Run a command on the poller thread. */
+    void execute(Runnable command) {
+        mCommands.add(command);
+        JNI.pollerWakeup(mWakeupFileDescriptor);
+    }
+
+    private void poll() {
+        while (true) {
+            int count = JNI.pollerWait(mEpollFileDescriptor, mEvents, -1);
+            long readyNanos = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                int fileDescriptor = mEvents[2 * i];
+                int events = mEvents[2 * i + 1];
+                if (fileDescriptor == mWakeupFileDescriptor) {
+                    JNI.read(mWakeupFileDescriptor, mWakeupBuffer, 0, mWakeupBuffer.length);
+                    continue;
+                }
+
+                Registration registration = mRegistrations.get(fileDescriptor);
+                if (registration == null) {
+                    Listener listener = mListeners.get(fileDescriptor);
+                    if (listener != null) listener.onReady(readyNanos);
+                    continue;
+                }
+                // A hangup is reported even if not asked for, so let the read or write see the error:
+                if ((events & (JNI.POLL_OUT | JNI.POLL_HANGUP)) != 0 && (registration.mEvents & JNI.POLL_OUT) != 0)
+                    registration.flush();
+                if ((events & (JNI.POLL_IN | JNI.POLL_HANGUP)) != 0 && (registration.mEvents & JNI.POLL_IN) != 0)
+                    registration.read();
+            }
+
+            // Commands are run after the events, so that a file descriptor closed by a command is not used by an
+            // event of the same wait:
+            Runnable command;
+            while ((command = mCommands.poll()) != null)
+                command.run();
+        }
+    }
+
+    /** A listener of a file descriptor added through {@link #addListener(int, Listener)}. */
+    interface Listener {
+
+        /**
+         * Called on the poller thread when the file descriptor is readable or has been hung up.
+         *
+         * @param readyNanos The {@link System#nanoTime()} at which the poller thread was woken up.
+         */
+        void onReady(long readyNanos);
+
+    }
+
+    /** The registration of the pseudoterminal of one session. */
+    final class Registration {
+
+        private final TerminalSession mSession;
+        private final int mFileDescriptor;
+
+        /** The POLL_* events the file descriptor is registered for, 0 if not registered with the epoll instance. */
+        private int mEvents;
+        /**
+         * Set by the poller thread when {@link TerminalSession#mProcessToTerminalIOQueue} is full, after which the
+         * pseudoterminal is not read until the main thread has made room in the queue.
+         */
+        private volatile boolean mReadPaused;
+        /** If the process side of the pseudoterminal has been closed. */
+        private boolean mReadClosed;
+        private boolean mUnregistered;
+        /** The max number of bytes to read at once, see {@link #MIN_READ_SIZE}. */
+        private int mReadSize = MIN_READ_SIZE;
+
+        /** If a flush has been requested but not started, to not queue a command for every write. */
+        private final AtomicBoolean mFlushRequested = new AtomicBoolean();
+        /** Input read from {@link TerminalSession#mTerminalToProcessIOQueue} but not yet written to the pseudoterminal. */
+        private final byte[] mWriteBuffer = new byte[BUFFER_SIZE];
+        private int mWriteOffset;
+        private int mWriteLength;
+
+        private final Runnable mFlushCommand = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        private final Runnable mResumeReadingCommand = new Runnable() {
+            @Override
+            public void run() {
+                if (mReadPaused) {
+                    mReadPaused = false;
+                    updateEvents();
+                }
+            }
+        };
+
+        Registration(TerminalSession session, int fileDescriptor) {
+            mSession = session;
+            mFileDescriptor = fileDescriptor;
+        }
+
+        /** Write the input in {@link TerminalSession#mTerminalToProcessIOQueue} to the pseudoterminal. */
+        void requestFlush() {
+            if (mFlushRequested.compareAndSet(false, true)) execute(mFlushCommand);
+        }
+
+        /** Called by the main thread after reading from {@link TerminalSession#mProcessToTerminalIOQueue}. */
+        void onOutputConsumed() {
+            if (mReadPaused) execute(mResumeReadingCommand);
+        }
+
+        /** Stop polling the pseudoterminal and close its file descriptor. */
+        void unregister() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    mUnregistered = true;
+                    updateEvents();
+                    mRegistrations.remove(mFileDescriptor);
+                    JNI.close(mFileDescriptor);
+                }
+            });
+        }
+
+        private void read() {
+            ByteQueue queue = mSession.mProcessToTerminalIOQueue;
+            int freeSpace = queue.getContiguousFreeSpace();
+            if (freeSpace == 0) {
+                // Check again after pausing, in case the main thread emptied the queue before seeing the pause:
+                mReadPaused = true;
+                freeSpace = queue.getContiguousFreeSpace();
+                if (freeSpace == 0) {
+                    updateEvents();
+                    return;
+                }
+                mReadPaused = false;
+            }
+
+            // Read straight into the queue, from which the main thread passes the bytes to the emulator in place:
+            int length = Math.min(freeSpace, mReadSize);
+            int offset = queue.getWriteOffset();
+            int read = JNI.read(mFileDescriptor, queue.getBuffer(), offset, length);
+            if (read == 0) return;
+            if (read < 0 || !mSession.onProcessOutput(queue.getBuffer(), offset, read)) {
+                // The process has exited or the session has been cleaned up:
+                mReadClosed = true;
+                updateEvents();
+                return;
+            }
+
+            if (read == mReadSize) {
+                mReadSize = Math.min(mReadSize * 2, MAX_READ_SIZE);
+            } else if (length == mReadSize && read < mReadSize / 4) {
+                // Only if not limited by the free space, which would make the read short regardless of the output:
+                mReadSize = Math.max(mReadSize / 2, MIN_READ_SIZE);
+            }
+        }
+
+        private void flush() {
+            mFlushRequested.set(false);
+            if (mUnregistered) return;
+
+            while (true) {
+                if (mWriteLength == 0) {
+                    int read = mSession.mTerminalToProcessIOQueue.read(mWriteBuffer, false);
+                    // Fill the room made with input that did not fit into the queue, and wake up paste writers:
+                    boolean moved = mSession.onInputConsumed();
+                    if (read == 0 && moved) continue;
+                    if (read <= 0) break;
+                    mWriteOffset = 0;
+                    mWriteLength = read;
+                }
+
+                int written = JNI.write(mFileDescriptor, mWriteBuffer, mWriteOffset, mWriteLength);
+                if (written == 0) {
+                    // Continue once the pseudoterminal can take more input, see updateEvents():
+                    break;
+                } else if (written < 0) {
+                    // The process side of the pseudoterminal has been closed, so drop the input:
+                    mWriteLength = 0;
+                } else {
+                    mWriteOffset += written;
+                    mWriteLength -= written;
+                }
+            }
+
+            updateEvents();
+        }
+
+        /** Update the events the file descriptor is registered for from the state of this registration. */
+        private void updateEvents() {
+            int events = 0;
+            if (!mUnregistered) {
+                if (!mReadPaused && !mReadClosed) events |= JNI.POLL_IN;
+                if (mWriteLength > 0) events |= JNI.POLL_OUT;
+            }
+            if (events == mEvents) return;
+
+            // A file descriptor registered for no events would still report hangups, so remove it instead:
+            if (mEvents == 0)
+                JNI.pollerAdd(mEpollFileDescriptor, mFileDescriptor, events);
+            else if (events == 0)
+                JNI.pollerRemove(mEpollFileDescriptor, mFileDescriptor);
+            else
+                JNI.pollerModify(mEpollFileDescriptor, mFileDescriptor, events);
+            mEvents = events;
+        }
+
+    }
+
+}
@@ -0,0 +1,286 @@
+package com.andronux.termux.terminal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the output of a {@link TerminalSession} to a file in the asciicast v2 format, see
+ * https://docs.asciinema.org/manual/asciicast/v2/.
+ * <p>
+ * Events are timestamped by the thread producing them and handed over through a bounded queue to a
+ * separate writer thread, which does all encoding and disk I/O. Producers never block: if the queue is
+ * full the event is dropped and a marker event noting the number of dropped bytes is recorded instead.
+ * <p>
+ * If the file grows beyond the maximum size, it is rotated by renaming it with a ".1" suffix and a new
+ * file is started with its own header.
+ */
+public final class TerminalSessionRecorder {
+
+    /** The max number of pending events before new ones are dropped. */
+    private static final int MAX_PENDING_EVENTS = 256;
+    /** The size of the buffer events are encoded into before being written to the file. */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final char EVENT_OUTPUT = 'o';
+    private static final char EVENT_RESIZE = 'r';
+    private static final char EVENT_MARKER = 'm';
+    private static final char EVENT_STOP = 0;
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final File mFile;
+    private final long mMaxFileSize;
+    private final TerminalSessionClient mClient;
+
+    private final ArrayBlockingQueue<Event> mEventQueue = new ArrayBlockingQueue<>(MAX_PENDING_EVENTS);
+
+    /** The {@link System#nanoTime()} that event times are relative to, reset when the file is rotated. */
+    private long mStartTimeNanos;
+    /** The number of bytes dropped since the last successfully queued event. Only accessed by the producer of output. */
+    private long mDroppedBytes;
+    private volatile boolean mStopped;
+
+    private static final String LOG_TAG = "TerminalSessionRecorder";
+
+    private static final class Event {
+        final char type;
+        final long timeNanos;
+        final byte[] data;
+        final int columns, rows;
+
+        Event(char type, long timeNanos, byte[] data, int columns, int rows) {
+            this.type = type;
+            this.timeNanos = timeNanos;
+            this.data = data;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Start recording to a file, which will be truncated if it exists.
+     *
+     * @param file        The file to record to.
+     * @param maxFileSize The size in bytes after which the file is rotated, or 0 for no limit.
+     * @param columns     The initial number of columns of the terminal.
+     * @param rows        The initial number of rows of the terminal.
+     * @param client      The {@link TerminalSessionClient} used for logging.
+     */
+    public TerminalSessionRecorder(File file, long maxFileSize, int columns, int rows, TerminalSessionClient client) {
+        mFile = file;
+        mMaxFileSize = maxFileSize;
+        mClient = client;
+        mStartTimeNanos = System.nanoTime();
+
+        new Thread("TermSessionRecorder[" + file.getName() + "]") {
+            @Override
+            public void run() {
+                writeEvents(columns, rows);
+            }
+        }.start();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+
+    /** Record output read from the process. May be called from any single thread and never blocks. */
+    public void recordOutput(byte[] data, int offset, int count) {
+        if (mStopped || count <= 0) return;
+        long now = System.nanoTime();
+        if (mDroppedBytes > 0) {
+            byte[] marker = ("dropped " + mDroppedBytes + " bytes").getBytes(StandardCharsets.UTF_8);
+            if (!mEventQueue.offer(new Event(EVENT_MARKER, now, marker, 0, 0))) {
+                mDroppedBytes += count;
+                return;
+            }
+            mDroppedBytes = 0;
+        }
+        if (!mEventQueue.offer(new Event(EVENT_OUTPUT, now, Arrays.copyOfRange(data, offset, offset + count), 0, 0)))
+            mDroppedBytes += count;
+    }
+
+    /** Record a resize of the terminal. Never blocks. */
+    public void recordResize(int columns, int rows) {
+        if (mStopped) return;
+        mEventQueue.offer(new Event(EVENT_RESIZE, System.nanoTime(), null, columns, rows));
+    }
+
+    /** Stop recording. Pending events are still written to the file by the writer thread. Never blocks. */
+    public void stop() {
+        if (mStopped) return;
+        mStopped = true;
+        // If the queue is full the writer thread notices mStopped after draining it.
+        mEventQueue.offer(new Event(EVENT_STOP, 0, null, 0, 0));
+    }
+
+    private void writeEvents(int columns, int rows) {
+        FileChannel channel = null;
+        try {
+            final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            final ByteBuffer decoderInput = ByteBuffer.allocate(8192);
+            // Decoding never produces more chars than bytes, so the output never overflows with room for a kept surrogate:
+            final CharBuffer decoderOutput = CharBuffer.allocate(decoderInput.capacity() + 2);
+            final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+            channel = openFile();
+            long fileSize = writeHeader(channel, writeBuffer, columns, rows);
+
+            while (true) {
+                Event event = mEventQueue.poll(1, TimeUnit.SECONDS);
+                if (event == null) {
+                    if (mStopped) break;
+                    continue;
+                }
+                if (event.type == EVENT_STOP) break;
+
+                if (event.type == EVENT_RESIZE) {
+                    columns = event.columns;
+                    rows = event.rows;
+                }
+
+                if (mMaxFileSize > 0 && fileSize + writeBuffer.position() > mMaxFileSize) {
+                    fileSize += flush(channel, writeBuffer);
+                    channel.close();
+                    File rotatedFile = new File(mFile.getPath() + ".1");
+                    if (!mFile.renameTo(rotatedFile))
+                        Logger.logWarn(mClient, LOG_TAG, "Failed to rotate recording file \"" + mFile + "\"");
+                    mStartTimeNanos = event.timeNanos;
+                    channel = openFile();
+                    fileSize = writeHeader(channel, writeBuffer, columns, rows);
+                }
+
+                fileSize += putAscii(channel, writeBuffer, getEventStart(event.timeNanos - mStartTimeNanos, event.type));
+                if (event.type == EVENT_RESIZE) {
+                    fileSize += putAscii(channel, writeBuffer, event.columns + "x" + event.rows);
+                } else if (event.type == EVENT_MARKER) {
+                    fileSize += putAscii(channel, writeBuffer, new String(event.data, StandardCharsets.US_ASCII));
+                } else {
+                    int offset = 0;
+                    while (offset < event.data.length) {
+                        int length = Math.min(decoderInput.remaining(), event.data.length - offset);
+                        decoderInput.put(event.data, offset, length);
+                        offset += length;
+                        decoderInput.flip();
+                        decoder.decode(decoderInput, decoderOutput, false);
+                        // Keep incomplete trailing UTF-8 sequences for the next event:
+                        decoderInput.compact();
+                        decoderOutput.flip();
+                        fileSize += putJsonChars(channel, writeBuffer, decoderOutput);
+                        decoderOutput.compact();
+                    }
+                }
+                fileSize += putAscii(channel, writeBuffer, "\"]\n");
+                // Only write to the file once there are no more events immediately available:
+                if (mEventQueue.isEmpty())
+                    fileSize += flush(channel, writeBuffer);
+            }
+
+            flush(channel, writeBuffer);
+        } catch (IOException | InterruptedException e) {
+            Logger.logStackTraceWithMessage(mClient, LOG_TAG, "Failed to record to \"" + mFile + "\"", e);
+        } finally {
+            mStopped = true;
+            mEventQueue.clear();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private FileChannel openFile() throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Failed to create directory \"" + parent + "\"");
+        return new FileOutputStream(mFile).getChannel();
+    }
+
+    private long writeHeader(FileChannel channel, ByteBuffer buffer, int columns, int rows) throws IOException {
+        putAscii(channel, buffer, "{\"version\": 2, \"width\": " + columns + ", \"height\": " + rows
+            + ", \"timestamp\": " + (System.currentTimeMillis() / 1000) + ", \"env\": {\"TERM\": \"xterm-256color\"}}\n");
+        return flush(channel, buffer);
+    }
+
+    private static String getEventStart(long timeNanos, char type) {
+        long micros = timeNanos / 1000;
+        StringBuilder builder = new StringBuilder(32).append('[').append(micros / 1000000).append('.');
+        String fraction = Long.toString(micros % 1000000);
+        for (int i = fraction.length(); i < 6; i++) builder.append('0');
+        return builder.append(fraction).append(", \"").append(type).append("\", \"").toString();
+    }
+
+    /** Put the chars as the contents of a JSON string, flushing the buffer when full. Returns the bytes flushed. */
+    private static long putJsonChars(FileChannel channel, ByteBuffer buffer, CharBuffer chars) throws IOException {
+        long flushed = 0;
+        while (chars.hasRemaining()) {
+            // Max bytes needed for one char is the 6 bytes of a \\u escape, or 4 bytes for a surrogate pair:
+            if (buffer.remaining() < 6) flushed += flush(channel, buffer);
+            char c = chars.get();
+            if (c == '"' || c == '\\') {
+                buffer.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20 || c == 0x7f) {
+                buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                    .put(HEX_DIGITS[(c >> 4) & 0xf]).put(HEX_DIGITS[c & 0xf]);
+            } else if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0b11000000 | (c >> 6))).put((byte) (0b10000000 | (c & 0b111111)));
+            } else if (Character.isHighSurrogate(c)) {
+                if (!chars.hasRemaining()) {
+                    // Keep for the next call:
+                    chars.position(chars.position() - 1);
+                    break;
+                }
+                int codePoint = Character.toCodePoint(c, chars.get());
+                buffer.put((byte) (0b11110000 | (codePoint >> 18)))
+                    .put((byte) (0b10000000 | ((codePoint >> 12) & 0b111111)))
+                    .put((byte) (0b10000000 | ((codePoint >> 6) & 0b111111)))
+                    .put((byte) (0b10000000 | (codePoint & 0b111111)));
+            } else {
+                buffer.put((byte) (0b11100000 | (c >> 12)))
+                    .put((byte) (0b10000000 | ((c >> 6) & 0b111111)))
+                    .put((byte) (0b10000000 | (c & 0b111111)));
+            }
+        }
+        return flushed;
+    }
+
+    /** Put an ASCII string, flushing the buffer first if it does not fit. Returns the bytes flushed. */
+    private static long putAscii(FileChannel channel, ByteBuffer buffer, String string) throws IOException {
+        long flushed = (buffer.remaining() < string.length()) ? flush(channel, buffer) : 0;
+        for (int i = 0; i < string.length(); i++)
+            buffer.put((byte) string.charAt(i));
+        return flushed;
+    }
+
+    /** Write the contents of the buffer to the channel and clear it. Returns the number of bytes written. */
+    private static long flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        long written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer);
+        buffer.clear();
+        return written;
+    }
+
+}
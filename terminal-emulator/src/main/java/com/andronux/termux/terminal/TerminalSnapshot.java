@@ -0,0 +1,504 @@
+package com.andronux.termux.terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the state of a {@link TerminalEmulator} to a file, so that the screen and transcript of a session can be
+ * restored after the app process has been killed.
+ * <p>
+ * The file starts with a header of a magic number, version and the {@link Command} of the session, followed by
+ * checkpoint records. Each record is framed by its length and CRC32, so that a record which was only partially written
+ * when the process was killed is ignored.
+ * A record holds the state of the emulator and the rows of the main and alternate buffers in blocks of
+ * {@link #BLOCK_ROWS} rows of the circular {@link TerminalBuffer}. A full record holds all blocks and replaces the
+ * file, while an incremental record is appended and only holds the blocks which have changed since the previous
+ * checkpoint. As the circular buffer is stored by internal row, scrolling only changes the blocks of the rows reused
+ * for the new lines. Since only the rows on the screen are written to, only the blocks of the rows which have been on
+ * the screen since the previous checkpoint are compared, unless the rows were moved otherwise like by a resize.
+ * <p>
+ * Restoring maps the file into memory with a single read and only decodes the latest version of each block.
+ */
+public final class TerminalSnapshot {
+
+    private static final int MAGIC = 0x54534e50; // "TSNP"
+    private static final int VERSION = 2;
+
+    private static final byte RECORD_FULL = 1;
+    private static final byte RECORD_INCREMENTAL = 2;
+
+    /** The number of rows of the circular buffer in a block, which is the unit of change tracking. */
+    static final int BLOCK_ROWS = 64;
+
+    /** A new full record is written once the appended incremental records are this many times its size. */
+    private static final int MAX_INCREMENTAL_FACTOR = 4;
+
+    private static final byte ROW_FLAG_LINE_WRAP = 1;
+    private static final byte ROW_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS = 2;
+
+    private final File mFile;
+    /** The header written at the start of the file, which includes the {@link Command}. */
+    private final byte[] mHeader;
+
+    /** The layout, block hashes and change counters of the main and alternate buffer as of the previous checkpoint. */
+    private final int[][] mLayouts = new int[2][];
+    private final long[][] mBlockHashes = new long[2][];
+    private final long[] mModificationCounts = new long[2];
+    private final long[] mScrolledLines = new long[2];
+    private final long[] mLayoutCounts = new long[2];
+    private byte[] mLastState;
+    private long mLastFullSize;
+    private long mIncrementalSize;
+
+    /** Set if a checkpoint failed to be written, after which the next one must be full. */
+    private volatile boolean mForceFull = true;
+    /** Set by the writer if a checkpoint failed to be written, to skip incremental checkpoints until a full one. */
+    private boolean mMissingCheckpoint;
+
+    /**
+     * The command a session was started with, which is saved in the snapshot so that the session can be restored by
+     * running the same command again. The values are those of the client starting the session, any of them may be
+     * {@code null} for its defaults.
+     */
+    public static final class Command {
+
+        public final String executable;
+        public final String[] arguments;
+        public final String workingDirectory;
+
+        public Command(String executable, String[] arguments, String workingDirectory) {
+            this.executable = executable;
+            this.arguments = arguments;
+            this.workingDirectory = workingDirectory;
+        }
+
+    }
+
+    public TerminalSnapshot(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param command The {@link Command} the session was started with, or {@code null} if not known.
+     */
+    public TerminalSnapshot(File file, Command command) {
+        mFile = file;
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(headerBytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(command != null);
+            if (command != null) {
+                writeString(out, command.executable);
+                out.writeInt(command.arguments == null ? -1 : command.arguments.length);
+                if (command.arguments != null)
+                    for (String argument : command.arguments) writeString(out, argument);
+                writeString(out, command.workingDirectory);
+            }
+            mHeader = headerBytes.toByteArray();
+        } catch (IOException e) {
+            // Not thrown by in-memory streams.
+            throw new RuntimeException(e);
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Encode the changes of the emulator since the previous checkpoint. Must be called on the thread modifying the
+     * emulator, while the returned checkpoint can be written by {@link #writeCheckpoint(byte[])} on another thread.
+     *
+     * @return The encoded checkpoint, or {@code null} if nothing has changed.
+     */
+    public byte[] encodeCheckpoint(TerminalEmulator emulator) {
+        try {
+            ByteArrayOutputStream stateBytes = new ByteArrayOutputStream(2048);
+            emulator.writeSnapshotState(new DataOutputStream(stateBytes));
+            byte[] state = stateBytes.toByteArray();
+
+            TerminalBuffer[] buffers = {emulator.mMainBuffer, emulator.mAltBuffer};
+            boolean full = mForceFull || mIncrementalSize > MAX_INCREMENTAL_FACTOR * mLastFullSize;
+            for (int i = 0; i < buffers.length && !full; i++)
+                full = mLayouts[i] == null || mLayouts[i][0] != buffers[i].mColumns || mLayouts[i][1] != buffers[i].mTotalRows
+                    || mLayouts[i][2] != buffers[i].mScreenRows;
+            if (full) mForceFull = false;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(full ? 64 * 1024 : 4096);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(full ? RECORD_FULL : RECORD_INCREMENTAL);
+            out.writeInt(state.length);
+            out.write(state);
+
+            boolean changed = full || !Arrays.equals(state, mLastState);
+            ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(4096);
+            DataOutputStream blockOut = new DataOutputStream(blockBytes);
+            ByteArrayOutputStream rowBytes = new ByteArrayOutputStream(4096);
+            DataOutputStream rowOut = new DataOutputStream(rowBytes);
+            for (int i = 0; i < buffers.length; i++) {
+                TerminalBuffer buffer = buffers[i];
+                int[] layout = {buffer.mColumns, buffer.mTotalRows, buffer.mScreenRows, buffer.mScreenFirstRow, buffer.mActiveTranscriptRows};
+                for (int value : layout) out.writeInt(value);
+                if (!Arrays.equals(layout, mLayouts[i])) changed = true;
+
+                int blocks = (buffer.mTotalRows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+                boolean[] dirtyBlocks = null;
+                if (!full && mBlockHashes[i] != null && buffer.mLayoutCount == mLayoutCounts[i]) {
+                    // Rows are only written to while on the screen, which only moves down the circular buffer by
+                    // scrolling, so only the rows from the previous screen to the end of the current one may differ:
+                    dirtyBlocks = new boolean[blocks];
+                    int dirtyRows = (buffer.mModificationCount == mModificationCounts[i]) ? 0 :
+                        (int) Math.min(buffer.mTotalRows, buffer.mScrolledLines - mScrolledLines[i] + buffer.mScreenRows);
+                    for (int row = 0; row < dirtyRows; ) {
+                        int internalRow = (mLayouts[i][3] + row) % buffer.mTotalRows;
+                        int block = internalRow / BLOCK_ROWS;
+                        dirtyBlocks[block] = true;
+                        row += Math.min((block + 1) * BLOCK_ROWS, buffer.mTotalRows) - internalRow;
+                    }
+                }
+                mLayouts[i] = layout;
+                mModificationCounts[i] = buffer.mModificationCount;
+                mScrolledLines[i] = buffer.mScrolledLines;
+                mLayoutCounts[i] = buffer.mLayoutCount;
+
+                if (full || mBlockHashes[i] == null) mBlockHashes[i] = new long[blocks];
+                long[] hashes = mBlockHashes[i];
+
+                int changedBlocks = 0;
+                blockBytes.reset();
+                for (int block = 0; block < blocks; block++) {
+                    if (dirtyBlocks != null && !dirtyBlocks[block]) continue;
+                    int firstRow = block * BLOCK_ROWS;
+                    int lastRow = Math.min(firstRow + BLOCK_ROWS, buffer.mTotalRows);
+                    long hash = 1;
+                    for (int row = firstRow; row < lastRow; row++)
+                        hash = 31 * hash + hashRow(buffer.mLines[row]);
+                    // A zero hash marks blocks not yet written, so never use it for a written block:
+                    if (hash == 0) hash = 1;
+                    if (!full && hash == hashes[block]) continue;
+                    hashes[block] = hash;
+                    changedBlocks++;
+
+                    rowBytes.reset();
+                    for (int row = firstRow; row < lastRow; row++)
+                        writeRow(rowOut, buffer.mLines[row]);
+                    blockOut.writeInt(block);
+                    blockOut.writeInt(rowBytes.size());
+                    rowBytes.writeTo(blockOut);
+                }
+                if (changedBlocks > 0) changed = true;
+                out.writeInt(changedBlocks);
+                blockBytes.writeTo(out);
+            }
+
+            mLastState = state;
+            if (!changed) return null;
+
+            byte[] checkpoint = bytes.toByteArray();
+            if (full) {
+                mLastFullSize = checkpoint.length;
+                mIncrementalSize = 0;
+            } else {
+                mIncrementalSize += checkpoint.length;
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            // Not thrown by in-memory streams.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write a checkpoint returned by {@link #encodeCheckpoint(TerminalEmulator)} to the file. Checkpoints must be written
+     * in the order they were encoded. If writing fails, the next checkpoint encoded will be a full one.
+     */
+    public synchronized void writeCheckpoint(byte[] checkpoint) throws IOException {
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(checkpoint, 0, checkpoint.length);
+            ByteBuffer frame = ByteBuffer.allocate(8).putInt(checkpoint.length).putInt((int) crc.getValue());
+
+            if (checkpoint[0] == RECORD_FULL) {
+                File parent = mFile.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+                    throw new IOException("Failed to create directory \"" + parent + "\"");
+                // Write to a temporary file first, to never replace a valid snapshot with a partially written one:
+                File tempFile = new File(mFile.getPath() + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                    out.write(mHeader);
+                    out.write(frame.array());
+                    out.write(checkpoint);
+                    out.getFD().sync();
+                }
+                if (!tempFile.renameTo(mFile))
+                    throw new IOException("Failed to rename \"" + tempFile + "\" to \"" + mFile + "\"");
+                mMissingCheckpoint = false;
+            } else {
+                // Incremental checkpoints encoded before a failure was noticed would miss the changes of the failed one:
+                if (mMissingCheckpoint) return;
+                if (!mFile.isFile())
+                    throw new IOException("Missing snapshot \"" + mFile + "\" to append to");
+                try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+                    out.write(frame.array());
+                    out.write(checkpoint);
+                }
+            }
+        } catch (IOException e) {
+            mMissingCheckpoint = true;
+            mForceFull = true;
+            throw e;
+        }
+    }
+
+    /** Delete the snapshot file. A later checkpoint will be a full one. */
+    public synchronized void delete() {
+        mMissingCheckpoint = true;
+        mForceFull = true;
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    /**
+     * Restore the state of an emulator from a snapshot file. The emulator is temporarily resized to the size of the
+     * snapshot and then resized back, reflowing the restored content.
+     *
+     * @return If a valid snapshot was restored, else the emulator is left unchanged.
+     */
+    public static boolean restore(File file, TerminalEmulator emulator) throws IOException {
+        if (!file.isFile()) return false;
+
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) return false;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return false;
+            readCommand(buffer);
+
+            // The layouts of the main and alternate buffers and the offsets of the latest version of each block:
+            int[][] layouts = null;
+            int[][] blockOffsets = new int[2][];
+            int stateOffset = -1;
+
+            CRC32 crc = new CRC32();
+            byte[] crcBuffer = new byte[8192];
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) break;
+
+                int start = buffer.position();
+                crc.reset();
+                for (int remaining = length; remaining > 0; ) {
+                    int chunk = Math.min(remaining, crcBuffer.length);
+                    buffer.get(crcBuffer, 0, chunk);
+                    crc.update(crcBuffer, 0, chunk);
+                    remaining -= chunk;
+                }
+                if ((int) crc.getValue() != expectedCrc) break;
+                buffer.position(start);
+
+                byte type = buffer.get();
+                if (type == RECORD_FULL) {
+                    layouts = new int[2][];
+                } else if (type != RECORD_INCREMENTAL || layouts == null) {
+                    break;
+                }
+                int stateLength = buffer.getInt();
+                stateOffset = buffer.position();
+                buffer.position(stateOffset + stateLength);
+
+                for (int i = 0; i < 2; i++) {
+                    int[] layout = new int[5];
+                    for (int j = 0; j < layout.length; j++) layout[j] = buffer.getInt();
+                    if (type == RECORD_FULL) {
+                        blockOffsets[i] = new int[(layout[1] + BLOCK_ROWS - 1) / BLOCK_ROWS];
+                        Arrays.fill(blockOffsets[i], -1);
+                    } else if (layout[0] != layouts[i][0] || layout[1] != layouts[i][1] || layout[2] != layouts[i][2]) {
+                        throw new IOException("Incremental checkpoint changes the buffer size");
+                    }
+                    layouts[i] = layout;
+                    for (int blocks = buffer.getInt(); blocks > 0; blocks--) {
+                        int block = buffer.getInt();
+                        int blockLength = buffer.getInt();
+                        blockOffsets[i][block] = buffer.position();
+                        buffer.position(buffer.position() + blockLength);
+                    }
+                }
+                buffer.position(start + length);
+            }
+            if (layouts == null) return false;
+
+            int columns = layouts[0][0], rows = layouts[0][2];
+            int originalColumns = emulator.mColumns, originalRows = emulator.mRows;
+            emulator.resize(columns, rows, emulator.mCellWidthPixels, emulator.mCellHeightPixels);
+            restoreBuffer(buffer, layouts[0], blockOffsets[0], emulator.mMainBuffer);
+            restoreBuffer(buffer, layouts[1], blockOffsets[1], emulator.mAltBuffer);
+            buffer.position(stateOffset);
+            emulator.readSnapshotState(buffer);
+            emulator.resize(originalColumns, originalRows, emulator.mCellWidthPixels, emulator.mCellHeightPixels);
+            return true;
+        } catch (RuntimeException e) {
+            // A corrupt snapshot, e.g. causing a BufferUnderflowException or IndexOutOfBoundsException.
+            throw new IOException("Invalid snapshot \"" + file + "\"", e);
+        }
+    }
+
+    /**
+     * Read the {@link Command} the session of a snapshot file was started with.
+     *
+     * @return The {@link Command}, or {@code null} if the file is not a valid snapshot or has no command.
+     */
+    public static Command readCommand(File file) throws IOException {
+        if (!file.isFile()) return null;
+
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) return null;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            return readCommand(buffer);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid snapshot \"" + file + "\"", e);
+        }
+    }
+
+    private static Command readCommand(ByteBuffer in) {
+        if (in.get() == 0) return null;
+        String executable = readString(in);
+        String[] arguments = null;
+        int argumentCount = in.getInt();
+        if (argumentCount >= 0) {
+            arguments = new String[argumentCount];
+            for (int i = 0; i < argumentCount; i++) arguments[i] = readString(in);
+        }
+        return new Command(executable, arguments, readString(in));
+    }
+
+    /** Restore the rows of a buffer, which must have the columns and screen rows of the layout. */
+    private static void restoreBuffer(ByteBuffer buffer, int[] layout, int[] blockOffsets, TerminalBuffer target) {
+        int columns = layout[0], totalRows = layout[1], screenRows = layout[2], screenFirstRow = layout[3];
+        // The target may have room for fewer transcript rows than the snapshot:
+        int transcriptRows = Math.min(layout[4], target.mTotalRows - target.mScreenRows);
+
+        Arrays.fill(target.mLines, null);
+        target.mModificationCount++;
+        target.mLayoutCount++;
+        target.mScreenFirstRow = 0;
+        target.mActiveTranscriptRows = transcriptRows;
+
+        for (int block = 0; block < blockOffsets.length; block++) {
+            if (blockOffsets[block] < 0) continue;
+            buffer.position(blockOffsets[block]);
+            int firstRow = block * BLOCK_ROWS;
+            int lastRow = Math.min(firstRow + BLOCK_ROWS, totalRows);
+            for (int row = firstRow; row < lastRow; row++) {
+                int externalRow = row - screenFirstRow;
+                if (externalRow < 0) externalRow += totalRows;
+                if (externalRow >= screenRows) externalRow -= totalRows;
+                boolean keep = externalRow >= -transcriptRows;
+                TerminalRow line = readRow(buffer, columns, keep);
+                if (keep) target.mLines[target.externalToInternalRow(externalRow)] = line;
+            }
+        }
+
+        target.updateAllocatedRows();
+        for (int row = -transcriptRows; row < screenRows; row++)
+            target.allocateFullLineIfNecessary(target.externalToInternalRow(row));
+    }
+
+    private static long hashRow(TerminalRow row) {
+        if (row == null) return 0;
+        long hash = row.getSpaceUsed() * 2 + (row.mLineWrap ? 1 : 0);
+        char[] text = row.mText;
+        for (int i = 0, spaceUsed = row.getSpaceUsed(); i < spaceUsed; i++)
+            hash = 31 * hash + text[i];
+        for (long style : row.mStyle)
+            hash = 31 * hash + style;
+        return hash;
+    }
+
+    private static void writeRow(DataOutputStream out, TerminalRow row) throws IOException {
+        if (row == null) {
+            out.writeShort(-1);
+            return;
+        }
+        int spaceUsed = row.getSpaceUsed();
+        out.writeShort(spaceUsed);
+        out.writeByte((row.mLineWrap ? ROW_FLAG_LINE_WRAP : 0)
+            | (row.mHasNonOneWidthOrSurrogateChars ? ROW_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS : 0));
+        for (int i = 0; i < spaceUsed; i++)
+            out.writeChar(row.mText[i]);
+
+        // Styles are run-length encoded, as most rows only have a few runs of the same style:
+        long[] styles = row.mStyle;
+        int runs = 0;
+        for (int i = 0; i < styles.length; i++)
+            if (i == 0 || styles[i] != styles[i - 1]) runs++;
+        out.writeShort(runs);
+        for (int i = 0; i < styles.length; ) {
+            int end = i + 1;
+            while (end < styles.length && styles[end] == styles[i]) end++;
+            out.writeShort(end - i);
+            out.writeLong(styles[i]);
+            i = end;
+        }
+    }
+
+    /** Read a row, or only skip past it if not keeping it. */
+    private static TerminalRow readRow(ByteBuffer in, int columns, boolean keep) {
+        int spaceUsed = in.getShort();
+        if (spaceUsed < 0) return null;
+        byte flags = in.get();
+        if (!keep) {
+            in.position(in.position() + 2 * spaceUsed);
+            for (int runs = in.getShort(); runs > 0; runs--)
+                in.position(in.position() + 10);
+            return null;
+        }
+
+        TerminalRow row = new TerminalRow(columns, TextStyle.NORMAL);
+        if (row.mText.length < spaceUsed) row.mText = new char[spaceUsed];
+        in.asCharBuffer().get(row.mText, 0, spaceUsed);
+        in.position(in.position() + 2 * spaceUsed);
+        row.setSpaceUsed(spaceUsed, (flags & ROW_FLAG_NON_ONE_WIDTH_OR_SURROGATE_CHARS) != 0);
+        row.mLineWrap = (flags & ROW_FLAG_LINE_WRAP) != 0;
+
+        int column = 0;
+        for (int runs = in.getShort(); runs > 0; runs--) {
+            int length = in.getShort();
+            long style = in.getLong();
+            Arrays.fill(row.mStyle, column, Math.min(column + length, columns), style);
+            column += length;
+        }
+        return row;
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(string.length());
+        out.writeChars(string);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * length);
+        return new String(chars);
+    }
+
+}
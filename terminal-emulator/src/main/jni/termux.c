@@ -1,16 +1,45 @@
-#include <dirent.h>
+#include <errno.h>
 #include <fcntl.h>
 #include <jni.h>
+#include <limits.h>
 #include <signal.h>
+#include <stdbool.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <sys/ioctl.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
 #include <sys/wait.h>
 #include <termios.h>
 #include <unistd.h>
 
+#ifdef __ANDROID__
+# include <sys/system_properties.h>
+#endif
+
 #define TERMUX_UNUSED(x) x __attribute__((__unused__))
+
+// Keep in sync with the POLL_* constants in JNI.java:
+#define TERMUX_POLL_IN 1
+#define TERMUX_POLL_OUT 2
+#define TERMUX_POLL_HANGUP 4
+
+// Keep in sync with ProcessReaper.STILL_RUNNING and ProcessReaper.EXIT_STATUS_UNKNOWN:
+#define TERMUX_EXIT_STILL_RUNNING 0x7fffffff
+#define TERMUX_EXIT_STATUS_UNKNOWN (-0x7fffffff - 1)
+
+// Older headers lack it, but the number is the same on all architectures:
+#ifndef __NR_pidfd_open
+# define __NR_pidfd_open 434
+#endif
+#ifndef __NR_close_range
+# define __NR_close_range 436
+#endif
+
 #ifdef __APPLE__
 # define LACKS_PTSNAME_R
 #endif
@@ -22,6 +51,167 @@ static int throw_runtime_exception(JNIEnv* env, char const* message)
     return -1;
 }
 
+/* Whether the close_range() syscall may be used, since the seccomp filter of older android versions kills processes using it. */
+static bool close_range_allowed(void)
+{
+#ifdef __ANDROID__
+    static int allowed = -1;
+    if (allowed == -1) {
+        char sdk[PROP_VALUE_MAX] = "";
+        __system_property_get("ro.build.version.sdk", sdk);
+        allowed = atoi(sdk) >= 34;
+    }
+    return allowed;
+#else
+    return true;
+#endif
+}
+
+/*
+ * Get the path of an executable, searched for in the PATH of envp if it does not contain a '/',
+ * like execvp() would after making envp the environment. The returned string must be freed.
+ */
+static char* resolve_executable(char const* cmd, char* const* envp)
+{
+    if (*cmd == '\0' || strchr(cmd, '/') != NULL) return strdup(cmd);
+
+    char const* path = "/system/bin";
+    if (envp) for (char* const* e = envp; *e; ++e) {
+        if (strncmp(*e, "PATH=", 5) == 0) {
+            path = *e + 5;
+            break;
+        }
+    }
+
+    size_t cmd_length = strlen(cmd);
+    for (char const* dir = path;; ) {
+        char const* dir_end = strchr(dir, ':');
+        if (dir_end == NULL) dir_end = dir + strlen(dir);
+        size_t dir_length = (size_t) (dir_end - dir);
+        char* candidate = malloc(dir_length + cmd_length + 3);
+        if (candidate == NULL) break;
+        if (dir_length == 0) {
+            strcpy(candidate, ".");
+            dir_length = 1;
+        } else {
+            memcpy(candidate, dir, dir_length);
+        }
+        candidate[dir_length] = '/';
+        memcpy(candidate + dir_length + 1, cmd, cmd_length + 1);
+        if (access(candidate, X_OK) == 0) return candidate;
+        free(candidate);
+
+        if (*dir_end == '\0') break;
+        dir = dir_end + 1;
+    }
+
+    return strdup(cmd);
+}
+
+struct linux_dirent64 {
+    uint64_t d_ino;
+    int64_t d_off;
+    unsigned short d_reclen;
+    unsigned char d_type;
+    char d_name[];
+};
+
+/*
+ * Close all fds > 2. Called in the vfork() child, so nothing is allocated: the /proc/self/fd entries
+ * are read with the getdents64() syscall into a buffer on the stack instead of with opendir(). If
+ * /proc/self/fd can not be opened, like when /proc is not mounted or the fd limit is reached, all fds
+ * below the soft RLIMIT_NOFILE limit are closed instead.
+ */
+static void close_fds_from_3(bool use_close_range)
+{
+    if (use_close_range && syscall(__NR_close_range, 3, ~0U, 0) == 0) return;
+
+    int dir_fd = open("/proc/self/fd", O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (dir_fd < 0) {
+        struct rlimit limit;
+        int max_fd = (getrlimit(RLIMIT_NOFILE, &limit) == 0 && limit.rlim_cur != RLIM_INFINITY) ? (int) limit.rlim_cur : 1024;
+        for (int fd = 3; fd < max_fd; fd++) close(fd);
+        return;
+    }
+
+    char buffer[1024] __attribute__((aligned(8)));
+    long bytes_read;
+    while ((bytes_read = syscall(SYS_getdents64, dir_fd, buffer, sizeof(buffer))) > 0) {
+        for (long offset = 0; offset < bytes_read; ) {
+            struct linux_dirent64* entry = (struct linux_dirent64*) (buffer + offset);
+            offset += entry->d_reclen;
+
+            char const* c = entry->d_name;
+            if (*c < '0' || *c > '9') continue;
+            int fd = 0;
+            for (; *c >= '0' && *c <= '9'; c++) fd = fd * 10 + (*c - '0');
+            if (fd > 2 && fd != dir_fd) close(fd);
+        }
+    }
+    close(dir_fd);
+}
+
+/* Write "message: strerror(errnum)" to stderr without allocating, for the vfork() child. */
+static void write_error(char const* message, int errnum)
+{
+    char const* error = strerror(errnum);
+    write(2, message, strlen(message));
+    write(2, ": ", 2);
+    write(2, error, strlen(error));
+    write(2, "\n", 1);
+}
+
+/* The arguments of the vfork() child, prepared by the parent so that the child does not allocate. */
+struct subprocess_args {
+    char const* devname;
+    char const* path;
+    char* const* argv;
+    char* const* envp;
+    char const* cwd;
+    bool use_close_range;
+    char const* chdir_error;
+    char const* exec_error;
+};
+
+/*
+ * Run in the vfork() child, which shares the memory of the parent until it calls execve() or _exit(),
+ * so this must never return and must only make async-signal-safe calls.
+ */
+__attribute__((noreturn)) static void run_subprocess(struct subprocess_args const* args)
+{
+    // The signal handlers of the parent would run on its memory, so reset them before unblocking
+    // the signals blocked by the parent for the vfork() and any the Android java process may have blocked:
+    for (int sig = 1; sig < _NSIG; sig++) {
+        struct sigaction action;
+        if (sigaction(sig, NULL, &action) == 0 && action.sa_handler != SIG_DFL && action.sa_handler != SIG_IGN) {
+            memset(&action, 0, sizeof(action));
+            action.sa_handler = SIG_DFL;
+            sigaction(sig, &action, NULL);
+        }
+    }
+    sigset_t signals_to_unblock;
+    sigfillset(&signals_to_unblock);
+    sigprocmask(SIG_UNBLOCK, &signals_to_unblock, 0);
+
+    setsid();
+
+    int pts = open(args->devname, O_RDWR);
+    if (pts < 0) _exit(-1);
+
+    dup2(pts, 0);
+    dup2(pts, 1);
+    dup2(pts, 2);
+
+    close_fds_from_3(args->use_close_range);
+
+    if (chdir(args->cwd) != 0) write_error(args->chdir_error, errno);
+
+    execve(args->path, args->argv, args->envp);
+    // Show terminal output about failing exec() call:
+    write_error(args->exec_error, errno);
+    _exit(1);
+}
+
 static int create_subprocess(JNIEnv* env,
         char const* cmd,
         char const* cwd,
@@ -62,55 +252,39 @@ static int create_subprocess(JNIEnv* env,
     struct winsize sz = { .ws_row = (unsigned short) rows, .ws_col = (unsigned short) columns, .ws_xpixel = (unsigned short) (columns * cell_width), .ws_ypixel = (unsigned short) (rows * cell_height)};
     ioctl(ptm, TIOCSWINSZ, &sz);
 
-    pid_t pid = fork();
+    // Prepare everything the child needs, since it must not allocate after the vfork().
+    char* empty_envp[] = { NULL };
+    char* path = resolve_executable(cmd, envp);
+    char chdir_error[PATH_MAX + 16];
+    char exec_error[PATH_MAX + 16];
+    snprintf(chdir_error, sizeof(chdir_error), "chdir(\"%s\")", cwd);
+    snprintf(exec_error, sizeof(exec_error), "exec(\"%s\")", cmd);
+    struct subprocess_args args = {
+        .devname = devname,
+        .path = path ? path : cmd,
+        .argv = argv,
+        .envp = envp ? envp : empty_envp,
+        .cwd = cwd,
+        .use_close_range = close_range_allowed(),
+        .chdir_error = chdir_error,
+        .exec_error = exec_error
+    };
+
+    // Block all signals so that no signal handler of this process runs in the child before it has reset them.
+    // Unlike fork(), vfork() does not copy the memory of the java process, so its cost does not grow with the heap.
+    sigset_t all_signals, old_signals;
+    sigfillset(&all_signals);
+    pthread_sigmask(SIG_SETMASK, &all_signals, &old_signals);
+    pid_t pid = vfork();
+    if (pid == 0) run_subprocess(&args);
+    pthread_sigmask(SIG_SETMASK, &old_signals, NULL);
+    free(path);
+
     if (pid < 0) {
         return throw_runtime_exception(env, "Fork failed");
-    } else if (pid > 0) {
+    } else {
         *pProcessId = (int) pid;
         return ptm;
-    } else {
-        // Clear signals which the Android java process may have blocked:
-        sigset_t signals_to_unblock;
-        sigfillset(&signals_to_unblock);
-        sigprocmask(SIG_UNBLOCK, &signals_to_unblock, 0);
-
-        close(ptm);
-        setsid();
-
-        int pts = open(devname, O_RDWR);
-        if (pts < 0) exit(-1);
-
-        dup2(pts, 0);
-        dup2(pts, 1);
-        dup2(pts, 2);
-
-        DIR* self_dir = opendir("/proc/self/fd");
-        if (self_dir != NULL) {
-            int self_dir_fd = dirfd(self_dir);
-            struct dirent* entry;
-            while ((entry = readdir(self_dir)) != NULL) {
-                int fd = atoi(entry->d_name);
-                if (fd > 2 && fd != self_dir_fd) close(fd);
-            }
-            closedir(self_dir);
-        }
-
-        clearenv();
-        if (envp) for (; *envp; ++envp) putenv(*envp);
-
-        if (chdir(cwd) != 0) {
-            char* error_message;
-            // No need to free asprintf()-allocated memory since doing execvp() or exit() below.
-            if (asprintf(&error_message, "chdir(\"%s\")", cwd) == -1) error_message = "chdir()";
-            perror(error_message);
-            fflush(stderr);
-        }
-        execvp(cmd, argv);
-        // Show terminal output about failing exec() call:
-        char* error_message;
-        if (asprintf(&error_message, "exec(\"%s\")", cmd) == -1) error_message = "exec()";
-        perror(error_message);
-        _exit(1);
     }
 }
 
@@ -162,7 +336,7 @@ JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_createSubprocess(
     char const* cmd_utf8 = (*env)->GetStringUTFChars(env, cmd, NULL);
     int ptm = create_subprocess(env, cmd_utf8, cmd_cwd, argv, envp, &procId, rows, columns, cell_width, cell_height);
     (*env)->ReleaseStringUTFChars(env, cmd, cmd_utf8);
-    (*env)->ReleaseStringUTFChars(env, cmd, cmd_cwd);
+    (*env)->ReleaseStringUTFChars(env, cwd, cmd_cwd);
 
     if (argv) {
         for (char** tmp = argv; *tmp; ++tmp) free(*tmp);
@@ -198,10 +372,8 @@ JNIEXPORT void JNICALL Java_com_andronux_termux_terminal_JNI_setPtyUTF8Mode(JNIE
     }
 }
 
-JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_waitFor(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid)
+static jint exit_status_from_wait_status(int status)
 {
-    int status;
-    waitpid(pid, &status, 0);
     if (WIFEXITED(status)) {
         return WEXITSTATUS(status);
     } else if (WIFSIGNALED(status)) {
@@ -212,7 +384,210 @@ JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_waitFor(JNIEnv* TER
     }
 }
 
+JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_waitFor(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid)
+{
+    int status;
+    waitpid(pid, &status, 0);
+    return exit_status_from_wait_status(status);
+}
+
 JNIEXPORT void JNICALL Java_com_andronux_termux_terminal_JNI_close(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint fileDescriptor)
 {
     close(fileDescriptor);
 }
+
+static uint32_t to_epoll_events(jint events)
+{
+    return ((events & TERMUX_POLL_IN) ? EPOLLIN : 0) | ((events & TERMUX_POLL_OUT) ? EPOLLOUT : 0);
+}
+
+JNIEXPORT jintArray JNICALL Java_com_andronux_termux_terminal_JNI_createPoller(JNIEnv* env, jclass TERMUX_UNUSED(clazz))
+{
+    int epoll_fd = epoll_create1(EPOLL_CLOEXEC);
+    if (epoll_fd < 0) {
+        throw_runtime_exception(env, "epoll_create1() failed");
+        return NULL;
+    }
+
+    int wakeup_fd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    struct epoll_event event = { .events = EPOLLIN, .data.fd = wakeup_fd };
+    if (wakeup_fd < 0 || epoll_ctl(epoll_fd, EPOLL_CTL_ADD, wakeup_fd, &event) != 0) {
+        if (wakeup_fd >= 0) close(wakeup_fd);
+        close(epoll_fd);
+        throw_runtime_exception(env, "Cannot create poller wakeup eventfd");
+        return NULL;
+    }
+
+    jintArray result = (*env)->NewIntArray(env, 2);
+    if (!result) return NULL;
+    jint fds[2] = { epoll_fd, wakeup_fd };
+    (*env)->SetIntArrayRegion(env, result, 0, 2, fds);
+    return result;
+}
+
+JNIEXPORT void JNICALL Java_com_andronux_termux_terminal_JNI_pollerAdd(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint epoll_fd, jint fd, jint events)
+{
+    int flags = fcntl(fd, F_GETFL);
+    if (flags < 0 || fcntl(fd, F_SETFL, flags | O_NONBLOCK) < 0) {
+        throw_runtime_exception(env, "Cannot make file descriptor non-blocking");
+        return;
+    }
+    struct epoll_event event = { .events = to_epoll_events(events), .data.fd = fd };
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, fd, &event) != 0) throw_runtime_exception(env, "epoll_ctl(EPOLL_CTL_ADD) failed");
+}
+
+JNIEXPORT void JNICALL Java_com_andronux_termux_terminal_JNI_pollerModify(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint epoll_fd, jint fd, jint events)
+{
+    struct epoll_event event = { .events = to_epoll_events(events), .data.fd = fd };
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_MOD, fd, &event) != 0) throw_runtime_exception(env, "epoll_ctl(EPOLL_CTL_MOD) failed");
+}
+
+JNIEXPORT void JNICALL Java_com_andronux_termux_terminal_JNI_pollerRemove(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint epoll_fd, jint fd)
+{
+    // Kernels before 2.6.9 require a non-null event even though it is ignored:
+    struct epoll_event event = { 0 };
+    epoll_ctl(epoll_fd, EPOLL_CTL_DEL, fd, &event);
+}
+
+JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_pollerWait(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint epoll_fd, jintArray events_array, jint timeout_millis)
+{
+    struct epoll_event events[64];
+    int max_events = (*env)->GetArrayLength(env, events_array) / 2;
+    if (max_events > 64) max_events = 64;
+
+    int count = epoll_wait(epoll_fd, events, max_events, timeout_millis);
+    if (count < 0) {
+        if (errno == EINTR) return 0;
+        return throw_runtime_exception(env, "epoll_wait() failed");
+    }
+
+    jint result[2 * 64];
+    for (int i = 0; i < count; i++) {
+        uint32_t ready = events[i].events;
+        result[2 * i] = events[i].data.fd;
+        result[2 * i + 1] = ((ready & EPOLLIN) ? TERMUX_POLL_IN : 0) | ((ready & EPOLLOUT) ? TERMUX_POLL_OUT : 0)
+            | ((ready & (EPOLLHUP | EPOLLERR)) ? TERMUX_POLL_HANGUP : 0);
+    }
+    (*env)->SetIntArrayRegion(env, events_array, 0, 2 * count, result);
+    return count;
+}
+
+JNIEXPORT void JNICALL Java_com_andronux_termux_terminal_JNI_pollerWakeup(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint wakeup_fd)
+{
+    // Fails with EAGAIN only if the counter is about to overflow, in which case a wakeup is already pending:
+    eventfd_write(wakeup_fd, 1);
+}
+
+JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_read(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jbyteArray buffer, jint offset, jint length)
+{
+    jbyte* bytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, buffer, NULL);
+    if (!bytes) return throw_runtime_exception(env, "JNI call GetPrimitiveArrayCritical(buffer, &isCopy) failed");
+
+    ssize_t result;
+    do {
+        result = read(fd, bytes + offset, (size_t) length);
+    } while (result < 0 && errno == EINTR);
+    int read_errno = errno;
+    (*env)->ReleasePrimitiveArrayCritical(env, buffer, bytes, 0);
+
+    if (result > 0) return (jint) result;
+    if (result < 0 && (read_errno == EAGAIN || read_errno == EWOULDBLOCK)) return 0;
+    // End of file, or EIO from a pty master once all slave file descriptors have been closed:
+    return -1;
+}
+
+JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_write(JNIEnv* env, jclass TERMUX_UNUSED(clazz), jint fd, jbyteArray buffer, jint offset, jint length)
+{
+    jbyte* bytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, buffer, NULL);
+    if (!bytes) return throw_runtime_exception(env, "JNI call GetPrimitiveArrayCritical(buffer, &isCopy) failed");
+
+    ssize_t result;
+    do {
+        result = write(fd, bytes + offset, (size_t) length);
+    } while (result < 0 && errno == EINTR);
+    int write_errno = errno;
+    (*env)->ReleasePrimitiveArrayCritical(env, buffer, bytes, JNI_ABORT);
+
+    if (result >= 0) return (jint) result;
+    if (write_errno == EAGAIN || write_errno == EWOULDBLOCK) return 0;
+    return -1;
+}
+
+JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_pidfdOpen(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid)
+{
+    // Always close-on-exec, and readable once the process has exited:
+    long fd = syscall(__NR_pidfd_open, (pid_t) pid, 0);
+    if (fd >= 0) return (jint) fd;
+    return (errno == ESRCH) ? -1 : -2;
+}
+
+static int child_signal_pipe[2] = { -1, -1 };
+static struct sigaction previous_child_signal_action;
+
+static void handle_child_signal(int signal, siginfo_t* info, void* context)
+{
+    int saved_errno = errno;
+    char byte = 0;
+    if (write(child_signal_pipe[1], &byte, 1) < 0) {
+        // The pipe is full, so the reaper has not yet been woken up by an earlier signal.
+    }
+    errno = saved_errno;
+
+    // Chain to the previous handler, so that other users of SIGCHLD in the process keep working:
+    if (previous_child_signal_action.sa_flags & SA_SIGINFO) {
+        if (previous_child_signal_action.sa_sigaction) previous_child_signal_action.sa_sigaction(signal, info, context);
+    } else if (previous_child_signal_action.sa_handler != SIG_DFL && previous_child_signal_action.sa_handler != SIG_IGN) {
+        previous_child_signal_action.sa_handler(signal);
+    }
+}
+
+JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_createChildSignalPipe(JNIEnv* env, jclass TERMUX_UNUSED(clazz))
+{
+    if (child_signal_pipe[0] >= 0) return child_signal_pipe[0];
+    if (pipe2(child_signal_pipe, O_CLOEXEC | O_NONBLOCK) != 0) return throw_runtime_exception(env, "pipe2() failed");
+    return child_signal_pipe[0];
+}
+
+JNIEXPORT jboolean JNICALL Java_com_andronux_termux_terminal_JNI_installChildSignalHandler(JNIEnv* env, jclass TERMUX_UNUSED(clazz))
+{
+    struct sigaction current;
+    if (sigaction(SIGCHLD, NULL, &current) == 0 && (current.sa_flags & SA_SIGINFO) && current.sa_sigaction == handle_child_signal)
+        return JNI_FALSE;
+
+    struct sigaction action;
+    memset(&action, 0, sizeof(action));
+    action.sa_sigaction = handle_child_signal;
+    action.sa_flags = SA_SIGINFO | SA_RESTART | SA_NOCLDSTOP;
+    sigemptyset(&action.sa_mask);
+    if (sigaction(SIGCHLD, &action, &previous_child_signal_action) != 0) {
+        throw_runtime_exception(env, "sigaction(SIGCHLD) failed");
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+JNIEXPORT jint JNICALL Java_com_andronux_termux_terminal_JNI_checkChildExit(JNIEnv* TERMUX_UNUSED(env), jclass TERMUX_UNUSED(clazz), jint pid, jboolean reap)
+{
+    if (reap) {
+        int status;
+        pid_t result;
+        do {
+            result = waitpid(pid, &status, WNOHANG);
+        } while (result < 0 && errno == EINTR);
+        if (result == 0) return TERMUX_EXIT_STILL_RUNNING;
+        if (result < 0) return TERMUX_EXIT_STATUS_UNKNOWN;
+        return exit_status_from_wait_status(status);
+    }
+
+    // Only peek at the status, leaving the process to be reaped by its owner:
+    siginfo_t info;
+    memset(&info, 0, sizeof(info));
+    int result;
+    do {
+        result = waitid(P_PID, (id_t) pid, &info, WEXITED | WNOHANG | WNOWAIT);
+    } while (result < 0 && errno == EINTR);
+    // ECHILD if it has already been reaped by its owner:
+    if (result < 0) return TERMUX_EXIT_STATUS_UNKNOWN;
+    if (info.si_pid == 0) return TERMUX_EXIT_STILL_RUNNING;
+    return (info.si_code == CLD_EXITED) ? info.si_status : -info.si_status;
+}
@@ -2,6 +2,8 @@ package com.andronux.termux.terminal;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+
 public class ByteQueueTest extends TestCase {
 
 	private static void assertArrayEquals(byte[] expected, byte[] actual) {
@@ -51,4 +53,64 @@ public class ByteQueueTest extends TestCase {
 		assertEquals(0, q.read(new byte[128], false));
 	}
 
+	public void testFreeSpace() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		assertEquals(10, q.getFreeSpace());
+		q.write(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6);
+		assertEquals(4, q.getFreeSpace());
+		q.write(new byte[]{7, 8, 9, 10}, 0, 4);
+		assertEquals(0, q.getFreeSpace());
+		assertEquals(3, q.read(new byte[3], false));
+		assertEquals(3, q.getFreeSpace());
+	}
+
+	public void testInPlaceRegions() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		assertEquals(0, q.getWriteOffset());
+		assertEquals(10, q.getContiguousFreeSpace());
+		assertEquals(0, q.getContiguousStoredBytes());
+		System.arraycopy(new byte[]{1, 2, 3, 4, 5, 6, 7}, 0, q.getBuffer(), q.getWriteOffset(), 7);
+		assertTrue(q.commitWrite(7));
+		assertEquals(7, q.getContiguousStoredBytes());
+		q.commitRead(5);
+		assertEquals(5, q.getReadOffset());
+
+		// The free region wraps around, so only the part up to the end of the buffer is contiguous:
+		assertEquals(7, q.getWriteOffset());
+		assertEquals(3, q.getContiguousFreeSpace());
+		System.arraycopy(new byte[]{8, 9, 10}, 0, q.getBuffer(), q.getWriteOffset(), 3);
+		assertTrue(q.commitWrite(3));
+		assertEquals(0, q.getWriteOffset());
+		assertEquals(5, q.getContiguousFreeSpace());
+		q.getBuffer()[0] = 11;
+		assertTrue(q.commitWrite(1));
+
+		assertEquals(5, q.getContiguousStoredBytes());
+		assertArrayEquals(new byte[]{6, 7, 8, 9, 10}, Arrays.copyOfRange(q.getBuffer(), 5, 10));
+		q.commitRead(5);
+		assertEquals(0, q.getReadOffset());
+		assertEquals(1, q.getContiguousStoredBytes());
+		byte[] arr = new byte[1];
+		assertEquals(1, q.read(arr, false));
+		assertEquals(11, arr[0]);
+
+		q.close();
+		assertFalse(q.commitWrite(1));
+		assertEquals(0, q.getContiguousStoredBytes());
+	}
+
+	public void testWriteNonBlocking() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		assertEquals(6, q.writeNonBlocking(new byte[]{1, 2, 3, 4, 5, 6}, 0, 6));
+		assertEquals(4, q.read(new byte[4], false));
+		// Wraps around the end of the buffer, and only writes what fits:
+		assertEquals(8, q.writeNonBlocking(new byte[]{7, 8, 9, 10, 11, 12, 13, 14, 15}, 0, 9));
+		assertEquals(0, q.writeNonBlocking(new byte[]{16}, 0, 1));
+		byte[] arr = new byte[10];
+		assertEquals(10, q.read(arr, false));
+		assertArrayEquals(new byte[]{5, 6, 7, 8, 9, 10, 11, 12, 13, 14}, arr);
+		q.close();
+		assertEquals(-1, q.writeNonBlocking(new byte[]{1}, 0, 1));
+	}
+
 }
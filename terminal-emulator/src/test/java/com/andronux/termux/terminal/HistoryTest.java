@@ -30,4 +30,60 @@ public class HistoryTest extends TerminalTestCase {
 		enterString("LMN").assertLinesAre("111", "IJK", "LMN", "444").assertHistoryStartsWith("FGH", "CDE");
 	}
 
+	public void testSetTranscriptRows() {
+		mTerminal = new TerminalEmulator(mOutput, 3, 3, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, 1000, null);
+		for (int i = 0; i < 500; i++) enterString("\r\n" + i);
+		assertEquals(498, mTerminal.getScreen().getActiveTranscriptRows());
+		assertLinesAre("497", "498", "499");
+
+		mTerminal.setTranscriptRows(150);
+		assertEquals(150, mTerminal.getTranscriptRows());
+		assertEquals(147, mTerminal.getScreen().getActiveTranscriptRows());
+		assertLinesAre("497", "498", "499");
+		assertHistoryStartsWith("496", "495");
+		assertLineIs(-147, "350");
+		assertInvariants();
+
+		// Values below the minimum are raised to it:
+		mTerminal.setTranscriptRows(1);
+		assertEquals(TerminalEmulator.TERMINAL_TRANSCRIPT_ROWS_MIN, mTerminal.getTranscriptRows());
+
+		mTerminal.setTranscriptRows(1000);
+		assertEquals(97, mTerminal.getScreen().getActiveTranscriptRows());
+		enterString("\r\nabc");
+		assertLinesAre("498", "499", "abc");
+		assertHistoryStartsWith("497", "496");
+		assertEquals(98, mTerminal.getScreen().getActiveTranscriptRows());
+		assertInvariants();
+	}
+
+	public void testEstimateMemoryBytes() {
+		mTerminal = new TerminalEmulator(mOutput, 80, 24, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, 10000, null);
+		long initial = mTerminal.estimateMemoryBytes();
+		for (int i = 0; i < 1000; i++) enterString("line " + i + "\r\n");
+		long written = mTerminal.estimateMemoryBytes();
+		// Each row holds at least two bytes per char and eight bytes per style:
+		assertTrue(initial + " " + written, written - initial > 1000 * 80 * 10);
+
+		// Rows of the transcript which have not been written to are not allocated when the columns change:
+		resize(60, 24);
+		assertTrue(written + " " + mTerminal.estimateMemoryBytes(), mTerminal.estimateMemoryBytes() < written);
+		assertEquals("line 999", mTerminal.getScreen().getSelectedText(0, 22, 59, 22).trim());
+		assertCursorAt(23, 0);
+
+		long beforeTrim = mTerminal.estimateMemoryBytes();
+		long freed = mTerminal.trimTranscript(beforeTrim / 2);
+		assertTrue(beforeTrim + " " + freed, freed >= beforeTrim / 2 && freed < beforeTrim * 3 / 5);
+		assertEquals(beforeTrim - freed, mTerminal.estimateMemoryBytes());
+		assertEquals(mTerminal.getTranscriptRows() - 24, mTerminal.getScreen().getActiveTranscriptRows());
+
+		mTerminal.setTranscriptRows(100);
+		long beforeClear = mTerminal.estimateMemoryBytes();
+		assertTrue(beforeClear < written / 5);
+
+		// The cached row count follows rows being dropped other than by trimming:
+		mTerminal.getScreen().clearTranscript();
+		assertTrue(beforeClear + " " + mTerminal.estimateMemoryBytes(), mTerminal.estimateMemoryBytes() < beforeClear);
+	}
+
 }
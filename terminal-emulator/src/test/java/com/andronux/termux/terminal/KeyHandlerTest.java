@@ -4,6 +4,8 @@ import android.view.KeyEvent;
 
 import junit.framework.TestCase;
 
+import java.nio.charset.StandardCharsets;
+
 public class KeyHandlerTest extends TestCase {
 
 	private static String stringToHex(String s) {
@@ -200,4 +202,27 @@ public class KeyHandlerTest extends TestCase {
         assertKeysEquals("\033[3~", KeyHandler.getCode(KeyEvent.KEYCODE_NUMPAD_DOT, 0, false, false));
 	}
 
+	public void testEncodedCodesMatchComputedCodes() {
+		int[] modifiers = {KeyHandler.KEYMOD_ALT, KeyHandler.KEYMOD_CTRL, KeyHandler.KEYMOD_SHIFT, KeyHandler.KEYMOD_NUM_LOCK};
+		for (int keyCode = 0; keyCode < 300; keyCode++) {
+			for (int mods = 0; mods < 16; mods++) {
+				int keyMode = 0;
+				for (int i = 0; i < modifiers.length; i++)
+					if ((mods & (1 << i)) != 0) keyMode |= modifiers[i];
+				for (int modes = 0; modes < 4; modes++) {
+					boolean cursorApp = (modes & 1) != 0;
+					boolean keypadApp = (modes & 2) != 0;
+					String expected = KeyHandler.computeCode(keyCode, keyMode, cursorApp, keypadApp);
+					byte[] encoded = KeyHandler.getEncodedCode(keyCode, keyMode, cursorApp, keypadApp);
+					assertEquals(expected, encoded == null ? null : new String(encoded, StandardCharsets.UTF_8));
+					assertEquals(expected, KeyHandler.getCode(keyCode, keyMode, cursorApp, keypadApp));
+				}
+			}
+		}
+
+		// The same shared array is returned for repeated key presses:
+		assertSame(KeyHandler.getEncodedCode(KeyEvent.KEYCODE_DPAD_UP, 0, true, false),
+			KeyHandler.getEncodedCode(KeyEvent.KEYCODE_DPAD_UP, 0, true, false));
+	}
+
 }
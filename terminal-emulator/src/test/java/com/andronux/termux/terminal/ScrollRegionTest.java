@@ -164,4 +164,43 @@ public class ScrollRegionTest extends TerminalTestCase {
 		}
 	}
 
+	public void testScrollUpMultipleLines() {
+		// Scroll Up (SU), ${CSI}${N}S, should put lines into history the same as scrolling one line at a time:
+		withTerminalSized(2, 4).enterString("1\r\n2\r\n3\r\n4").enterString("\033[2S").assertLinesAre("3 ", "4 ", "  ", "  ");
+		assertHistoryStartsWith("2 ", "1 ");
+		withTerminalSized(2, 4).enterString("1\r\n2\r\n3\r\n4").enterString("\033[6S").assertLinesAre("  ", "  ", "  ", "  ");
+		assertHistoryStartsWith("  ", "  ", "4 ", "3 ", "2 ", "1 ");
+		assertEquals(6, mTerminal.getScrollCounter());
+		assertInvariants();
+	}
+
+	public void testScrollUpMultipleLinesWithScrollRegion() {
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5").enterString("\033[2;4r\033[2S").assertLinesAre("1 ", "4 ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5").enterString("\033[2;4r\033[9S").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		assertInvariants();
+		// The same in the alternate buffer, which has no history:
+		withTerminalSized(2, 5).enterString("\033[?1049h1\r\n2\r\n3\r\n4\r\n5").enterString("\033[2;4r\033[2S").assertLinesAre("1 ", "4 ", "  ", "  ", "5 ");
+		assertInvariants();
+	}
+
+	public void testScrollUpMultipleLinesWithLeftMargin() {
+		withTerminalSized(3, 4).enterString("ABCDEFGHIJKL\033[?69h\033[2s\033[2S").assertLinesAre("AHI", "DKL", "G  ", "J  ");
+		withTerminalSized(3, 4).enterString("ABCDEFGHIJKL\033[?69h\033[2s\033[9S").assertLinesAre("A  ", "D  ", "G  ", "J  ");
+	}
+
+	public void testScrollDownMultipleLines() {
+		withTerminalSized(2, 4).enterString("1\r\n2\r\n3\r\n4").enterString("\033[3T").assertLinesAre("  ", "  ", "  ", "1 ");
+		withTerminalSized(2, 4).enterString("1\r\n2\r\n3\r\n4").enterString("\033[9T").assertLinesAre("  ", "  ", "  ", "  ");
+		assertInvariants();
+	}
+
+	public void testInsertAndDeleteLinesWithScrollRegion() {
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5").enterString("\033[1;4r\033[2;1H\033[2L").assertLinesAre("1 ", "  ", "  ", "2 ", "5 ");
+		enterString("\033[3M").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5").enterString("\033[1;4r\033[2;1H\033[M").assertLinesAre("1 ", "3 ", "4 ", "  ", "5 ");
+		assertInvariants();
+		// Outside of the scroll region nothing should happen:
+		enterString("\033[5;1H\033[L\033[M").assertLinesAre("1 ", "3 ", "4 ", "  ", "5 ");
+	}
+
 }
@@ -0,0 +1,30 @@
+package com.andronux.termux.terminal;
+
+import junit.framework.TestCase;
+
+public class TerminalPasteTest extends TestCase {
+
+	/** The sanitization done before pastes were written in chunks. */
+	private static String sanitizeWithRegex(String text) {
+		return text.replaceAll("(\u001B|[\u0080-\u009F])", "").replaceAll("\r?\n", "\r");
+	}
+
+	public void testSanitize() {
+		String[] texts = {"", "hi", "a\nb", "a\r\nb", "a\r\rb\n\n", "\r\u001B\nx", "\u0085\u009Fé\u0080\r", "\n\r\n\r"};
+		for (String text : texts)
+			assertEquals(sanitizeWithRegex(text), TerminalPaste.sanitize(text));
+	}
+
+	public void testSanitizeInChunks() {
+		String text = "line\r\nsecond\r\u001B\n\u0090third\n\r\n\rlast";
+		String expected = sanitizeWithRegex(text);
+		for (int chunkLength = 1; chunkLength <= text.length(); chunkLength++) {
+			TerminalPaste.Sanitizer sanitizer = new TerminalPaste.Sanitizer();
+			StringBuilder result = new StringBuilder();
+			for (int start = 0; start < text.length(); start += chunkLength)
+				result.append(sanitizer.sanitize(text, start, Math.min(text.length(), start + chunkLength)));
+			assertEquals("Chunk length " + chunkLength, expected, result.toString());
+		}
+	}
+
+}
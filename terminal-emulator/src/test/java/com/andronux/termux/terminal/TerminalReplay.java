@@ -0,0 +1,410 @@
+package com.andronux.termux.terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays captured pty output through a {@link TerminalEmulator} without a view, for measuring throughput and for
+ * comparing the final state against golden dumps.
+ * <p>
+ * Recordings can be asciicast v2 files, as written by {@link TerminalSessionRecorder}, or raw byte logs of pty output.
+ * <p>
+ * Can also be run from the command line with a list of files to print throughput and frame counts of each.
+ */
+public final class TerminalReplay {
+
+	/** The transcript rows of the emulators used for replaying, which decides how much the golden dumps contain. */
+	public static final int TRANSCRIPT_ROWS = 500;
+	/** The frame interval for {@link #replayWithTiming(long)} matching a 60 Hz display. */
+	public static final long FRAME_INTERVAL_NANOS_60HZ = 1_000_000_000L / 60;
+
+	/** A chunk of output, or a resize if {@link #data} is null. */
+	public static final class Event {
+		public final long timeNanos;
+		public final byte[] data;
+		public final int columns, rows;
+
+		Event(long timeNanos, byte[] data, int columns, int rows) {
+			this.timeNanos = timeNanos;
+			this.data = data;
+			this.columns = columns;
+			this.rows = rows;
+		}
+	}
+
+	/** The result of {@link #replayAtMaxSpeed(int, int)}, for the fastest of the measured iterations. */
+	public static final class ThroughputResult {
+		public final long bytes;
+		public final long escapeSequences;
+		public final long nanos;
+		/** The bytes allocated on the replaying thread, or -1 if not supported by the JVM. */
+		public final long allocatedBytes;
+
+		ThroughputResult(long bytes, long escapeSequences, long nanos, long allocatedBytes) {
+			this.bytes = bytes;
+			this.escapeSequences = escapeSequences;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public double getMegabytesPerSecond() {
+			return bytes / (nanos / 1e9) / (1024 * 1024);
+		}
+
+		public double getEscapeSequencesPerSecond() {
+			return escapeSequences / (nanos / 1e9);
+		}
+
+		/** The allocation rate in MB/s, or -1 if not supported by the JVM. */
+		public double getAllocatedMegabytesPerSecond() {
+			return allocatedBytes < 0 ? -1 : allocatedBytes / (nanos / 1e9) / (1024 * 1024);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%.2f MB/s, %.0f escape sequences/s, %.2f MB/s allocated",
+				getMegabytesPerSecond(), getEscapeSequencesPerSecond(), getAllocatedMegabytesPerSecond());
+		}
+	}
+
+	/** The result of {@link #replayWithTiming(long)}. */
+	public static final class TimingResult {
+		/** The number of frames that would have been drawn, i.e. frame intervals in which output arrived. */
+		public final int frames;
+		/** The number of output events, which is the number of frames drawn without any coalescing. */
+		public final int events;
+		/** The duration of the recording. */
+		public final long durationNanos;
+
+		TimingResult(int frames, int events, long durationNanos) {
+			this.frames = frames;
+			this.events = events;
+			this.durationNanos = durationNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%d frames for %d events in %.2f s", frames, events, durationNanos / 1e9);
+		}
+	}
+
+	private static final class DiscardingTerminalOutput extends TerminalOutput {
+		@Override
+		public void write(byte[] data, int offset, int count) {
+		}
+
+		@Override
+		public void titleChanged(String oldTitle, String newTitle) {
+		}
+
+		@Override
+		public void onCopyTextToClipboard(String text) {
+		}
+
+		@Override
+		public void onPasteTextFromClipboard() {
+		}
+
+		@Override
+		public void onBell() {
+		}
+
+		@Override
+		public void onColorsChanged() {
+		}
+	}
+
+	private final int mColumns, mRows;
+	private final List<Event> mEvents;
+	private final long mBytes;
+	private final long mEscapeSequences;
+
+	private TerminalReplay(int columns, int rows, List<Event> events) {
+		mColumns = columns;
+		mRows = rows;
+		mEvents = Collections.unmodifiableList(events);
+		long bytes = 0, escapeSequences = 0;
+		for (Event event : events) {
+			if (event.data == null) continue;
+			bytes += event.data.length;
+			for (byte b : event.data)
+				if (b == 27) escapeSequences++;
+		}
+		mBytes = bytes;
+		mEscapeSequences = escapeSequences;
+	}
+
+	/** Load a recording from the test resources, as asciicast if the name ends with ".cast" and as raw bytes otherwise. */
+	public static TerminalReplay fromResource(String name, int columns, int rows) throws IOException {
+		try (InputStream in = TerminalReplay.class.getResourceAsStream(name)) {
+			if (in == null) throw new IOException("Missing resource \"" + name + "\"");
+			return name.endsWith(".cast") ? fromAsciicast(readFully(in)) : fromRawBytes(readFully(in), columns, rows);
+		}
+	}
+
+	/** Read a raw byte log of pty output, which has no timing information and is replayed as a single event. */
+	public static TerminalReplay fromRawBytes(byte[] data, int columns, int rows) {
+		List<Event> events = new ArrayList<>();
+		events.add(new Event(0, data, 0, 0));
+		return new TerminalReplay(columns, rows, events);
+	}
+
+	/** Read an asciicast v2 recording, see https://docs.asciinema.org/manual/asciicast/v2/. Input events are ignored. */
+	public static TerminalReplay fromAsciicast(byte[] file) {
+		String[] lines = new String(file, StandardCharsets.UTF_8).split("\n");
+		JsonReader header = new JsonReader(lines[0]);
+		int columns = 0, rows = 0;
+		header.expect('{');
+		while (!header.tryConsume('}')) {
+			header.tryConsume(',');
+			String key = header.readString();
+			header.expect(':');
+			if (key.equals("width")) columns = (int) header.readNumber();
+			else if (key.equals("height")) rows = (int) header.readNumber();
+			else header.skipValue();
+		}
+		if (columns <= 0 || rows <= 0) throw new IllegalArgumentException("Missing terminal size in header: " + lines[0]);
+
+		List<Event> events = new ArrayList<>();
+		for (int i = 1; i < lines.length; i++) {
+			if (lines[i].trim().isEmpty()) continue;
+			JsonReader reader = new JsonReader(lines[i]);
+			reader.expect('[');
+			long timeNanos = Math.round(reader.readNumber() * 1e9);
+			reader.expect(',');
+			String type = reader.readString();
+			reader.expect(',');
+			String data = reader.readString();
+			reader.expect(']');
+			if (type.equals("o")) {
+				events.add(new Event(timeNanos, data.getBytes(StandardCharsets.UTF_8), 0, 0));
+			} else if (type.equals("r")) {
+				String[] size = data.split("x");
+				events.add(new Event(timeNanos, null, Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+			}
+		}
+		return new TerminalReplay(columns, rows, events);
+	}
+
+	public List<Event> getEvents() {
+		return mEvents;
+	}
+
+	public long getBytes() {
+		return mBytes;
+	}
+
+	public long getEscapeSequences() {
+		return mEscapeSequences;
+	}
+
+	/** Create a new emulator with the initial size of the recording. */
+	public TerminalEmulator newEmulator() {
+		return new TerminalEmulator(new DiscardingTerminalOutput(), mColumns, mRows,
+			TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS, TRANSCRIPT_ROWS, null);
+	}
+
+	/** Replay all events into a new emulator and return it. */
+	public TerminalEmulator replay() {
+		TerminalEmulator emulator = newEmulator();
+		for (Event event : mEvents)
+			apply(emulator, event);
+		return emulator;
+	}
+
+	/**
+	 * Replay all events as fast as possible, ignoring the timing of the recording.
+	 *
+	 * @param warmupIterations The number of unmeasured iterations to run first, to let the JIT compile the emulator.
+	 * @param iterations       The number of measured iterations, of which the fastest is returned.
+	 * @return The result of the fastest iteration, or {@code null} if only warming up with no measured iterations.
+	 */
+	public ThroughputResult replayAtMaxSpeed(int warmupIterations, int iterations) {
+		for (int i = 0; i < warmupIterations; i++)
+			replay();
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocationBean = (threadBean instanceof com.sun.management.ThreadMXBean
+			&& ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported())
+			? (com.sun.management.ThreadMXBean) threadBean : null;
+		long threadId = Thread.currentThread().getId();
+
+		ThroughputResult best = null;
+		for (int i = 0; i < iterations; i++) {
+			long allocatedBefore = allocationBean == null ? -1 : allocationBean.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			replay();
+			long nanos = Math.max(1, System.nanoTime() - start);
+			long allocated = allocationBean == null ? -1 : allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+			if (best == null || nanos < best.nanos)
+				best = new ThroughputResult(mBytes, mEscapeSequences, nanos, allocated);
+		}
+		return best;
+	}
+
+	/**
+	 * Replay all events following the timing of the recording on a virtual clock, counting the frames a view
+	 * invalidating on each change would draw when output is coalesced per frame. No time is actually spent waiting.
+	 */
+	public TimingResult replayWithTiming(long frameIntervalNanos) {
+		TerminalEmulator emulator = newEmulator();
+		int frames = 0, events = 0;
+		long lastFrame = -1;
+		long lastTime = 0;
+		for (Event event : mEvents) {
+			apply(emulator, event);
+			long frame = event.timeNanos / frameIntervalNanos;
+			if (frame != lastFrame) {
+				frames++;
+				lastFrame = frame;
+			}
+			if (event.data != null) events++;
+			lastTime = event.timeNanos;
+		}
+		return new TimingResult(frames, events, lastTime);
+	}
+
+	private static void apply(TerminalEmulator emulator, Event event) {
+		if (event.data == null) {
+			emulator.resize(event.columns, event.rows, TerminalTestCase.INITIAL_CELL_WIDTH_PIXELS, TerminalTestCase.INITIAL_CELL_HEIGHT_PIXELS);
+		} else {
+			emulator.append(event.data, event.data.length);
+		}
+	}
+
+	/**
+	 * Dump the state of the emulator for golden comparison: a header with the size, cursor, active buffer and a hash
+	 * of all cell styles, followed by the transcript and screen rows with trailing spaces removed.
+	 */
+	public static String dumpScreen(TerminalEmulator emulator) {
+		TerminalBuffer screen = emulator.getScreen();
+		int transcriptRows = screen.getActiveTranscriptRows();
+		long styleHash = 1;
+		StringBuilder rows = new StringBuilder();
+		for (int row = -transcriptRows; row < emulator.mRows; row++) {
+			if (row == 0) rows.append("--- screen ---\n");
+			TerminalRow line = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+			for (long style : line.mStyle)
+				styleHash = 31 * styleHash + style;
+			int end = line.getSpaceUsed();
+			while (end > 0 && line.mText[end - 1] == ' ') end--;
+			rows.append(line.mText, 0, end).append(line.mLineWrap ? "\\\n" : "\n");
+		}
+		return String.format(Locale.ROOT, "columns=%d rows=%d cursor=%d,%d alternate=%b styles=%016x\n",
+			emulator.mColumns, emulator.mRows, emulator.getCursorRow(), emulator.getCursorCol(),
+			emulator.isAlternateBufferActive(), styleHash) + rows;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	/** Minimal reader for the JSON subset used by asciicast files. */
+	private static final class JsonReader {
+		private final String mJson;
+		private int mPos;
+
+		JsonReader(String json) {
+			mJson = json;
+		}
+
+		private void skipWhitespace() {
+			while (mPos < mJson.length() && Character.isWhitespace(mJson.charAt(mPos))) mPos++;
+		}
+
+		boolean tryConsume(char c) {
+			skipWhitespace();
+			if (mPos < mJson.length() && mJson.charAt(mPos) == c) {
+				mPos++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect(char c) {
+			if (!tryConsume(c)) throw new IllegalArgumentException("Expected '" + c + "' at " + mPos + ": " + mJson);
+		}
+
+		double readNumber() {
+			skipWhitespace();
+			int start = mPos;
+			while (mPos < mJson.length() && "+-0123456789.eE".indexOf(mJson.charAt(mPos)) != -1) mPos++;
+			return Double.parseDouble(mJson.substring(start, mPos));
+		}
+
+		String readString() {
+			expect('"');
+			StringBuilder builder = new StringBuilder();
+			while (true) {
+				char c = mJson.charAt(mPos++);
+				if (c == '"') return builder.toString();
+				if (c != '\\') {
+					builder.append(c);
+					continue;
+				}
+				char escaped = mJson.charAt(mPos++);
+				switch (escaped) {
+					case 'b': builder.append('\b'); break;
+					case 'f': builder.append('\f'); break;
+					case 'n': builder.append('\n'); break;
+					case 'r': builder.append('\r'); break;
+					case 't': builder.append('\t'); break;
+					case 'u':
+						builder.append((char) Integer.parseInt(mJson.substring(mPos, mPos + 4), 16));
+						mPos += 4;
+						break;
+					default: builder.append(escaped); break;
+				}
+			}
+		}
+
+		void skipValue() {
+			skipWhitespace();
+			char c = mJson.charAt(mPos);
+			if (c == '"') {
+				readString();
+			} else if (c == '{' || c == '[') {
+				char close = c == '{' ? '}' : ']';
+				mPos++;
+				while (!tryConsume(close)) {
+					tryConsume(',');
+					if (c == '{') {
+						readString();
+						expect(':');
+					}
+					skipValue();
+				}
+			} else {
+				while (mPos < mJson.length() && ",}]".indexOf(mJson.charAt(mPos)) == -1) mPos++;
+			}
+		}
+	}
+
+	/** Print throughput and frame counts of the given recording files. */
+	public static void main(String[] args) throws IOException {
+		for (String path : args) {
+			byte[] data;
+			try (InputStream in = new FileInputStream(new File(path))) {
+				data = readFully(in);
+			}
+			TerminalReplay replay = path.endsWith(".cast") ? fromAsciicast(data) : fromRawBytes(data, 80, 24);
+			System.out.println(path + ": " + replay.replayAtMaxSpeed(5, 10) + ", " + replay.replayWithTiming(FRAME_INTERVAL_NANOS_60HZ));
+		}
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.andronux.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replays the recordings in the "replay" test resources, comparing the final state against the golden dumps next to
+ * them. The recordings are synthetic: they were generated with the escape sequences and frame timing of a vim session,
+ * htop, compiler warnings and git log --graph paged through less, with random identifiers as text. See
+ * {@link TerminalReplayThroughputTest} for the throughput check of the same recordings.
+ */
+public class TerminalReplayTest extends TestCase {
+
+	static final String[] CORPUS = {"vim", "htop", "compiler", "git-log-graph"};
+
+	public void testParseAsciicast() {
+		byte[] file = ("{\"version\": 2, \"width\": 5, \"height\": 2, \"env\": {\"TERM\": \"xterm-256color\", \"SHELL\": \"/bin/sh\"}}\n"
+			+ "[0.5, \"o\", \"a\\u001b[1m\\\"\\\\\\r\\nå\"]\n"
+			+ "[0.75, \"i\", \"ignored\"]\n"
+			+ "[1.25, \"r\", \"3x2\"]\n").getBytes(StandardCharsets.UTF_8);
+		TerminalReplay replay = TerminalReplay.fromAsciicast(file);
+		assertEquals(2, replay.getEvents().size());
+		assertEquals(500_000_000L, replay.getEvents().get(0).timeNanos);
+		assertEquals("a\033[1m\"\\\r\nå", new String(replay.getEvents().get(0).data, StandardCharsets.UTF_8));
+		assertNull(replay.getEvents().get(1).data);
+		assertEquals(3, replay.getEvents().get(1).columns);
+		assertEquals(2, replay.getEvents().get(1).rows);
+		assertEquals(1, replay.getEscapeSequences());
+
+		TerminalEmulator emulator = replay.replay();
+		assertEquals(3, emulator.mColumns);
+		assertEquals(2, emulator.mRows);
+		assertEquals("columns=3 rows=2 cursor=1,1 alternate=false styles=", TerminalReplay.dumpScreen(emulator).substring(0, 51));
+	}
+
+	public void testRawBytes() {
+		TerminalReplay replay = TerminalReplay.fromRawBytes("hello\r\n\033[31mworld".getBytes(StandardCharsets.UTF_8), 10, 3);
+		assertEquals(1, replay.getEscapeSequences());
+		String dump = TerminalReplay.dumpScreen(replay.replay());
+		assertTrue(dump, dump.startsWith("columns=10 rows=3 cursor=1,5 alternate=false styles="));
+		assertTrue(dump, dump.endsWith("\n--- screen ---\nhello\nworld\n\n"));
+	}
+
+	public void testFrameCounts() throws IOException {
+		// Output arriving within the same frame interval is coalesced into one frame:
+		int[] expectedFrames = {197, 26, 148, 68};
+		for (int i = 0; i < CORPUS.length; i++) {
+			TerminalReplay.TimingResult result = load(CORPUS[i]).replayWithTiming(TerminalReplay.FRAME_INTERVAL_NANOS_60HZ);
+			assertEquals(CORPUS[i], expectedFrames[i], result.frames);
+		}
+	}
+
+	public void testFinalScreenMatchesGolden() throws IOException {
+		for (String name : CORPUS) {
+			String expected = readResource("replay/" + name + ".txt");
+			assertEquals(name, expected, TerminalReplay.dumpScreen(load(name).replay()));
+		}
+	}
+
+	static TerminalReplay load(String name) throws IOException {
+		return TerminalReplay.fromResource("replay/" + name + ".cast", 0, 0);
+	}
+
+	private static String readResource(String name) throws IOException {
+		try (InputStream in = TerminalReplayTest.class.getResourceAsStream(name)) {
+			assertNotNull("Missing resource " + name, in);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.andronux.termux.terminal;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Fails if the throughput of replaying the {@link TerminalReplayTest} recordings regresses beyond a tolerance of the
+ * baselines in "replay/baseline.properties". Wall clock measurements are not reliable on shared machines, so this is
+ * skipped unless the "terminal.replay.throughput" system property is "true", which the "replayThroughputTest" Gradle
+ * task sets.
+ */
+public class TerminalReplayThroughputTest {
+
+	private static final String THROUGHPUT_PROPERTY = "terminal.replay.throughput";
+	private static final String TOLERANCE_PROPERTY = "terminal.replay.tolerance";
+	private static final double DEFAULT_TOLERANCE = 0.5;
+
+	@Test
+	public void testThroughputDoesNotRegress() throws IOException {
+		Assume.assumeTrue("Throughput check not enabled with -D" + THROUGHPUT_PROPERTY + "=true",
+			Boolean.getBoolean(THROUGHPUT_PROPERTY));
+
+		Properties baseline = new Properties();
+		try (InputStream in = TerminalReplayThroughputTest.class.getResourceAsStream("replay/baseline.properties")) {
+			Assert.assertNotNull("Missing resource replay/baseline.properties", in);
+			baseline.load(in);
+		}
+		double tolerance = Double.parseDouble(System.getProperty(TOLERANCE_PROPERTY, Double.toString(DEFAULT_TOLERANCE)));
+
+		String[] corpus = TerminalReplayTest.CORPUS;
+		TerminalReplay[] replays = new TerminalReplay[corpus.length];
+		for (int i = 0; i < corpus.length; i++) replays[i] = TerminalReplayTest.load(corpus[i]);
+		// Warm up with all recordings first, so that the JIT has settled before measuring any of them:
+		for (TerminalReplay replay : replays) replay.replayAtMaxSpeed(20, 0);
+
+		for (int i = 0; i < corpus.length; i++) {
+			String name = corpus[i];
+			TerminalReplay.ThroughputResult result = replays[i].replayAtMaxSpeed(5, 30);
+			double minimum = Double.parseDouble(baseline.getProperty(name + ".cast")) * (1 - tolerance);
+			Assert.assertTrue("Replaying " + name + " regressed to " + result + ", expected at least " + minimum + " MB/s",
+				result.getMegabytesPerSecond() >= minimum);
+		}
+	}
+
+}
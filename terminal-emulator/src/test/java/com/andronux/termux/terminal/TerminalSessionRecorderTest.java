@@ -0,0 +1,68 @@
+package com.andronux.termux.terminal;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TerminalSessionRecorderTest extends TestCase {
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("recording", ".cast");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		new File(mFile.getPath() + ".1").delete();
+		super.tearDown();
+	}
+
+	public void testRecordsOutputAndResize() throws Exception {
+		TerminalSessionRecorder recorder = new TerminalSessionRecorder(mFile, 0, 80, 24, null);
+		byte[] output = "a\"\\\r\nå€".getBytes(StandardCharsets.UTF_8);
+		// Split in the middle of the three byte euro sign:
+		recorder.recordOutput(output, 0, output.length - 1);
+		recorder.recordOutput(output, output.length - 1, 1);
+		recorder.recordResize(100, 30);
+		recorder.stop();
+
+		String[] lines = awaitLines(4);
+		assertTrue(lines[0], lines[0].startsWith("{\"version\": 2, \"width\": 80, \"height\": 24, "));
+		assertTrue(lines[1], lines[1].matches("\\[\\d+\\.\\d{6}, \"o\", \"a\\\\\"\\\\\\\\\\\\u000d\\\\u000aå\"\\]"));
+		assertTrue(lines[2], lines[2].matches("\\[\\d+\\.\\d{6}, \"o\", \"€\"\\]"));
+		assertTrue(lines[3], lines[3].matches("\\[\\d+\\.\\d{6}, \"r\", \"100x30\"\\]"));
+	}
+
+	public void testRotatesFile() throws Exception {
+		TerminalSessionRecorder recorder = new TerminalSessionRecorder(mFile, 100, 80, 24, null);
+		byte[] output = "0123456789012345678901234567890123456789".getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < 4; i++) {
+			recorder.recordOutput(output, 0, output.length);
+			// Give the writer thread time to write the event, so that the size is known when the next one arrives:
+			Thread.sleep(50);
+		}
+		recorder.stop();
+
+		String[] lines = awaitLines(2);
+		assertTrue(lines[0], lines[0].startsWith("{\"version\": 2, \"width\": 80, \"height\": 24, "));
+		assertTrue(new File(mFile.getPath() + ".1").length() > 100);
+	}
+
+	private String[] awaitLines(int count) throws IOException, InterruptedException {
+		String[] lines = new String[0];
+		for (int i = 0; i < 100 && lines.length < count; i++) {
+			Thread.sleep(20);
+			lines = new String(Files.readAllBytes(mFile.toPath()), StandardCharsets.UTF_8).split("\n");
+		}
+		assertEquals(count, lines.length);
+		return lines;
+	}
+
+}
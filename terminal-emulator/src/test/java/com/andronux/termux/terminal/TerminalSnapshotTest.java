@@ -0,0 +1,201 @@
+package com.andronux.termux.terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class TerminalSnapshotTest extends TerminalTestCase {
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("terminal", ".snapshot");
+		mFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	private TerminalEmulator newEmulator(int columns, int rows) {
+		return new TerminalEmulator(mOutput, columns, rows, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS, 1000, null);
+	}
+
+	private void checkpoint(TerminalSnapshot snapshot) throws IOException {
+		byte[] checkpoint = snapshot.encodeCheckpoint(mTerminal);
+		assertNotNull(checkpoint);
+		snapshot.writeCheckpoint(checkpoint);
+	}
+
+	private TerminalEmulator restore(int columns, int rows) throws IOException {
+		TerminalEmulator restored = newEmulator(columns, rows);
+		assertTrue(TerminalSnapshot.restore(mFile, restored));
+		return restored;
+	}
+
+	public void testRestoreFullAndIncrementalCheckpoints() throws IOException {
+		mTerminal = newEmulator(10, 4);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mFile);
+		for (int i = 0; i < 200; i++) enterString("line " + i + "\r\n");
+		checkpoint(snapshot);
+		assertNull(snapshot.encodeCheckpoint(mTerminal));
+
+		enterString("\033]0;title\007\033[31;44mred\033[m\r\nå日本\033[2;3r\033[?2004h\033]4;1;#ffffff\007");
+		checkpoint(snapshot);
+		enterString("\033[?1049h\033[Halt");
+		checkpoint(snapshot);
+
+		TerminalEmulator restored = restore(10, 4);
+		assertEquals(TerminalReplay.dumpScreen(mTerminal), TerminalReplay.dumpScreen(restored));
+		assertEquals("title", restored.getTitle());
+		assertTrue(restored.isAlternateBufferActive());
+		mOutput.getOutputAndClear();
+		restored.paste("x");
+		assertEquals("\033[200~x\033[201~", mOutput.getOutputAndClear());
+		assertEquals(0xffffffff, restored.mColors.mCurrentColors[1]);
+
+		restored.append("\033[?1049l".getBytes(), 8);
+		enterString("\033[?1049l");
+		assertEquals(TerminalReplay.dumpScreen(mTerminal), TerminalReplay.dumpScreen(restored));
+	}
+
+	public void testIncrementalCheckpointOnlyContainsChangedBlocks() {
+		mTerminal = newEmulator(80, 24);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mFile);
+		for (int i = 0; i < 500; i++) enterString("line " + i + "\r\n");
+		byte[] full = snapshot.encodeCheckpoint(mTerminal);
+
+		enterString("one more line\r\n");
+		byte[] incremental = snapshot.encodeCheckpoint(mTerminal);
+		// The scrolled in row and the cursor row are in at most two blocks:
+		assertTrue(full.length + " vs " + incremental.length, incremental.length * 5 < full.length);
+	}
+
+	public void testIncrementalCheckpointsAfterScrollingAndResizing() throws IOException {
+		mTerminal = newEmulator(10, 4);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mFile);
+		enterString("first");
+		checkpoint(snapshot);
+
+		// Scroll past several blocks and around the circular buffer between checkpoints:
+		for (int i = 0; i < 2500; i++) {
+			enterString("line " + i + "\r\n");
+			if (i % 100 == 99) {
+				checkpoint(snapshot);
+				assertEquals(mTerminal.getScreen().getTranscriptText(), restore(10, 4).getScreen().getTranscriptText());
+			}
+		}
+
+		mTerminal.getScreen().clearTranscript();
+		enterString("after clear");
+		assertRestoredAfterIncrementalCheckpoint(snapshot);
+
+		// Resizing and resizing back moves the screen rows to the start of the buffer without changing the layout:
+		mTerminal.resize(7, 4, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		mTerminal.resize(10, 4, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		assertRestoredAfterIncrementalCheckpoint(snapshot);
+	}
+
+	private void assertRestoredAfterIncrementalCheckpoint(TerminalSnapshot snapshot) throws IOException {
+		byte[] checkpoint = snapshot.encodeCheckpoint(mTerminal);
+		assertNotNull(checkpoint);
+		assertTrue(mFile.length() + " vs " + checkpoint.length, checkpoint.length < mFile.length() / 2);
+		snapshot.writeCheckpoint(checkpoint);
+		TerminalEmulator restored = restore(10, 4);
+		assertEquals(TerminalReplay.dumpScreen(mTerminal), TerminalReplay.dumpScreen(restored));
+		assertEquals(mTerminal.getScreen().getTranscriptText(), restored.getScreen().getTranscriptText());
+	}
+
+	public void testCommandIsSaved() throws IOException {
+		mTerminal = newEmulator(10, 4);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mFile, new TerminalSnapshot.Command("/bin/sh",
+			new String[]{"-c", "echo å"}, "/tmp"));
+		enterString("first");
+		checkpoint(snapshot);
+		enterString("\r\nsecond");
+		checkpoint(snapshot);
+
+		TerminalSnapshot.Command command = TerminalSnapshot.readCommand(mFile);
+		assertNotNull(command);
+		assertEquals("/bin/sh", command.executable);
+		assertEquals(2, command.arguments.length);
+		assertEquals("-c", command.arguments[0]);
+		assertEquals("echo å", command.arguments[1]);
+		assertEquals("/tmp", command.workingDirectory);
+		assertEquals(TerminalReplay.dumpScreen(mTerminal), TerminalReplay.dumpScreen(restore(10, 4)));
+
+		snapshot = new TerminalSnapshot(mFile, new TerminalSnapshot.Command(null, null, null));
+		checkpoint(snapshot);
+		command = TerminalSnapshot.readCommand(mFile);
+		assertNull(command.executable);
+		assertNull(command.arguments);
+		assertNull(command.workingDirectory);
+
+		snapshot = new TerminalSnapshot(mFile);
+		checkpoint(snapshot);
+		assertNull(TerminalSnapshot.readCommand(mFile));
+		assertEquals(TerminalReplay.dumpScreen(mTerminal), TerminalReplay.dumpScreen(restore(10, 4)));
+	}
+
+	public void testRestoreIgnoresPartiallyWrittenCheckpoint() throws IOException {
+		mTerminal = newEmulator(10, 4);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mFile);
+		enterString("first");
+		checkpoint(snapshot);
+		String expected = TerminalReplay.dumpScreen(mTerminal);
+		enterString("\r\nsecond");
+		checkpoint(snapshot);
+
+		try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		assertEquals(expected, TerminalReplay.dumpScreen(restore(10, 4)));
+	}
+
+	public void testRestoreWithDifferentSize() throws IOException {
+		mTerminal = newEmulator(10, 4);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mFile);
+		for (int i = 0; i < 6; i++) enterString("line " + i + "\r\n");
+		enterString("abcdefghijklm");
+		checkpoint(snapshot);
+
+		TerminalEmulator restored = restore(20, 3);
+		assertEquals(20, restored.mColumns);
+		assertEquals(3, restored.mRows);
+		// The restored content is reflowed as if the original emulator had been resized:
+		mTerminal.resize(20, 3, INITIAL_CELL_WIDTH_PIXELS, INITIAL_CELL_HEIGHT_PIXELS);
+		assertEquals(TerminalReplay.dumpScreen(mTerminal), TerminalReplay.dumpScreen(restored));
+		assertTrue(restored.getScreen().getTranscriptText().contains("line 0\nline 1"));
+		assertTrue(restored.getScreen().getTranscriptText().endsWith("abcdefghijklm"));
+	}
+
+	public void testRestoreMissingOrInvalidFile() throws IOException {
+		TerminalEmulator emulator = newEmulator(10, 4);
+		assertFalse(TerminalSnapshot.restore(mFile, emulator));
+		assertNull(TerminalSnapshot.readCommand(mFile));
+
+		try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+			file.write("not a snapshot file".getBytes());
+		}
+		assertFalse(TerminalSnapshot.restore(mFile, emulator));
+		assertNull(TerminalSnapshot.readCommand(mFile));
+	}
+
+	public void testFullCheckpointAfterDelete() throws IOException {
+		mTerminal = newEmulator(10, 4);
+		TerminalSnapshot snapshot = new TerminalSnapshot(mFile);
+		enterString("first");
+		checkpoint(snapshot);
+		snapshot.delete();
+		assertFalse(mFile.exists());
+
+		enterString("\r\nsecond");
+		checkpoint(snapshot);
+		assertEquals(TerminalReplay.dumpScreen(mTerminal), TerminalReplay.dumpScreen(restore(10, 4)));
+	}
+
+}
@@ -65,6 +65,61 @@ public class TerminalTest extends TerminalTestCase {
 		assertEquals("\033[<0;10;10m", mOutput.getOutputAndClear());
 	}
 
+	public void testMouseMotion() throws Exception {
+		withTerminalSized(300, 300);
+		enterString("\033[?1000h\033[?1006h");
+		// Motion is not reported without button event tracking.
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 5, 5, true);
+		assertEquals("", mOutput.getOutputAndClear());
+
+		enterString("\033[?1002h");
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 5, 5, true);
+		assertEquals("\033[<0;5;5M", mOutput.getOutputAndClear());
+		// Motion within the cell of the last report is not reported.
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 5, 5, true);
+		assertEquals("", mOutput.getOutputAndClear());
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 6, 5, true);
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 6, 5, true);
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 123, 290, true);
+		assertEquals("\033[<32;6;5M\033[<32;123;290M", mOutput.getOutputAndClear());
+		// Presses and releases are always reported.
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 123, 290, false);
+		assertEquals("\033[<0;123;290m", mOutput.getOutputAndClear());
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_WHEELUP_BUTTON, 10, 10, true);
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_WHEELUP_BUTTON, 10, 10, true);
+		assertEquals("\033[<64;10;10M\033[<64;10;10M", mOutput.getOutputAndClear());
+
+		// The legacy encoding, which cannot report cells beyond 223.
+		enterString("\033[?1006l");
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 1, 2, true);
+		assertEquals("\033[M !\"", mOutput.getOutputAndClear());
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, 3, 2, true);
+		assertEquals("\033[M@#\"", mOutput.getOutputAndClear());
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 3, 2, false);
+		assertEquals("\033[M##\"", mOutput.getOutputAndClear());
+		mTerminal.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON, 224, 2, true);
+		assertEquals("", mOutput.getOutputAndClear());
+	}
+
+	public void testContentChangeCount() throws Exception {
+		withTerminalSized(5, 5);
+		long count = mTerminal.getContentChangeCount();
+		// Moving the cursor, blinking it and changing its style does not change the content.
+		enterString("\033[3;3H\033[2 q\033[?25l\033[?25h");
+		mTerminal.setCursorBlinkState(false);
+		assertEquals(count, mTerminal.getContentChangeCount());
+
+		for (String change : new String[]{"a", "\033[2J", "\033[K", "\033[L", "\033[M", "\n\n\n\n", "\033[?5h", "\033[?5l",
+			"\033]4;1;#ff0000\007", "\033]104\007", "\033[?1049h", "\033[?1049l"}) {
+			enterString(change);
+			long newCount = mTerminal.getContentChangeCount();
+			assertTrue(change, newCount != count);
+			count = newCount;
+		}
+		enterString("\033[?5l");
+		assertEquals(count, mTerminal.getContentChangeCount());
+	}
+
 	public void testNormalization() throws UnsupportedEncodingException {
 		// int lowerCaseN = 0x006E;
 		// int combiningTilde = 0x0303;
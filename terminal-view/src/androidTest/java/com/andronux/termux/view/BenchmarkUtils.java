@@ -0,0 +1,67 @@
+package com.andronux.termux.view;
+
+/**
+ * Utils for benchmarks that are run as instrumented tests on a device.
+ *
+ * An operation is first run a number of times to warm up the JIT and caches, and then timed over
+ * a number of measured runs. Every run should check the result of the operation, so that a
+ * benchmark also fails if the operation is broken, and not only logs a time for it.
+ */
+public final class BenchmarkUtils {
+
+    /** The default number of runs before the measured runs. */
+    public static final int DEFAULT_WARMUP_RUNS = 20;
+
+    /** The default number of measured runs. */
+    public static final int DEFAULT_MEASURED_RUNS = 200;
+
+    /** An operation to benchmark. */
+    public interface Operation {
+
+        /**
+         * Run the operation once and check its result.
+         *
+         * @param run The index of the run, counted from 0 for both the warmup and measured runs.
+         */
+        void run(int run) throws Exception;
+
+    }
+
+    private BenchmarkUtils() {}
+
+    /**
+     * Wrapper for {@link #measureNanos(int, int, Operation)} for {@link #DEFAULT_WARMUP_RUNS} and
+     * {@link #DEFAULT_MEASURED_RUNS}.
+     */
+    public static long measureNanos(Operation operation) throws Exception {
+        return measureNanos(DEFAULT_WARMUP_RUNS, DEFAULT_MEASURED_RUNS, operation);
+    }
+
+    /**
+     * Run an operation {@code warmupRuns} times and then get the average time of running it
+     * {@code measuredRuns} times.
+     *
+     * @param warmupRuns The number of runs before the measured runs.
+     * @param measuredRuns The number of measured runs. This must be greater than 0.
+     * @param operation The {@link Operation} to run.
+     * @return Returns the average nanoseconds per measured run.
+     */
+    public static long measureNanos(int warmupRuns, int measuredRuns, Operation operation) throws Exception {
+        if (measuredRuns <= 0)
+            throw new IllegalArgumentException("Measured runs must be greater than 0: " + measuredRuns);
+
+        for (int i = 0; i < warmupRuns; i++)
+            operation.run(i);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < measuredRuns; i++)
+            operation.run(i);
+        return (System.nanoTime() - start) / measuredRuns;
+    }
+
+    /** Get a log string for a time in nanoseconds per {@code unit}, like "12 us per frame". */
+    public static String getMicrosPerUnitString(long nanos, String unit) {
+        return nanos / 1000 + " us per " + unit;
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.andronux.termux.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.andronux.termux.terminal.TerminalEmulator;
+import com.andronux.termux.terminal.TerminalOutput;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the cost of rendering frames of a colorful screen, like that of a TUI, and counts the draw calls made for
+ * them, which must be the same for every frame.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TerminalRendererBenchmark {
+
+    private static final String LOG_TAG = "TerminalRendererBenchmark";
+
+    private static final int COLUMNS = 120;
+    private static final int ROWS = 50;
+
+    @Test
+    public void benchmarkColorfulScreen() throws Exception {
+        final TerminalEmulator emulator = createEmulator(false);
+        final TerminalRenderer renderer = new TerminalRenderer(24, Typeface.MONOSPACE);
+        final CountingCanvas canvas = createCanvas(renderer);
+
+        renderer.render(emulator, canvas, 0, -1, -1, -1, -1);
+        final int rects = canvas.mRects;
+        final int textRuns = canvas.mTextRuns;
+        // The colors and effects change every 3 columns, and almost every change needs a new text run:
+        assertTrue(textRuns >= ROWS * COLUMNS / 6);
+
+        long frameNanos = BenchmarkUtils.measureNanos(new BenchmarkUtils.Operation() {
+            @Override
+            public void run(int run) {
+                canvas.reset();
+                renderer.render(emulator, canvas, 0, -1, -1, -1, -1);
+                assertEquals(rects, canvas.mRects);
+                assertEquals(textRuns, canvas.mTextRuns);
+            }
+        });
+
+        Log.i(LOG_TAG, "Colorful screen: " + BenchmarkUtils.getMicrosPerUnitString(frameNanos, "frame") + ", " +
+            rects + " rects and " + textRuns + " text runs per frame");
+    }
+
+    @Test
+    public void backgroundsOfPanelsAreMerged() {
+        TerminalEmulator emulator = createEmulator(true);
+        TerminalRenderer renderer = new TerminalRenderer(24, Typeface.MONOSPACE);
+        CountingCanvas canvas = createCanvas(renderer);
+
+        renderer.render(emulator, canvas, 0, -1, -1, -1, -1);
+        // One rectangle for each panel, spanning all rows:
+        assertEquals(2, canvas.mRects);
+    }
+
+    /**
+     * Create an emulator showing either runs of random colors and effects, or two panels with different background
+     * colors side by side.
+     */
+    private static TerminalEmulator createEmulator(boolean panels) {
+        TerminalEmulator emulator = new TerminalEmulator(new NullTerminalOutput(), COLUMNS, ROWS, 12, 24, 100, null);
+        Random random = new Random(1);
+        StringBuilder output = new StringBuilder();
+        for (int row = 0; row < ROWS; row++) {
+            output.append("\033[").append(row + 1).append(";1H");
+            for (int column = 0; column < COLUMNS; column++) {
+                if (panels) {
+                    if (column == 0 || column == COLUMNS / 2)
+                        output.append("\033[48;5;").append(column == 0 ? 4 : 237).append('m');
+                } else if (column % 3 == 0) {
+                    output.append("\033[0;38;5;").append(random.nextInt(256)).append(";48;5;").append(random.nextInt(8))
+                        .append(random.nextBoolean() ? ";1" : "").append(random.nextInt(4) == 0 ? ";4" : "").append('m');
+                }
+                output.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        output.append("\033[0m\033[1;1H");
+        // Hide the cursor, which would split the backgrounds of the panels:
+        if (panels) output.append("\033[?25l");
+        byte[] bytes = output.toString().getBytes(StandardCharsets.UTF_8);
+        emulator.append(bytes, bytes.length);
+        return emulator;
+    }
+
+    private static CountingCanvas createCanvas(TerminalRenderer renderer) {
+        int width = (int) Math.ceil(COLUMNS * renderer.getFontWidth());
+        int height = renderer.mFontLineSpacingAndAscent + (ROWS + 1) * renderer.getFontLineSpacing();
+        return new CountingCanvas(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+    }
+
+    /** A canvas counting the rectangles and text runs drawn into it. */
+    private static final class CountingCanvas extends Canvas {
+
+        int mRects;
+        int mTextRuns;
+
+        CountingCanvas(Bitmap bitmap) {
+            super(bitmap);
+        }
+
+        void reset() {
+            mRects = 0;
+            mTextRuns = 0;
+        }
+
+        @Override
+        public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+            mRects++;
+            super.drawRect(left, top, right, bottom, paint);
+        }
+
+        @Override
+        public void drawRect(RectF rect, Paint paint) {
+            mRects++;
+            super.drawRect(rect, paint);
+        }
+
+        @Override
+        public void drawTextRun(char[] text, int index, int count, int contextIndex, int contextCount, float x, float y,
+                                boolean isRtl, Paint paint) {
+            mTextRuns++;
+            super.drawTextRun(text, index, count, contextIndex, contextCount, x, y, isRtl, paint);
+        }
+
+    }
+
+    private static final class NullTerminalOutput extends TerminalOutput {
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+        }
+
+        @Override
+        public void titleChanged(String oldTitle, String newTitle) {
+        }
+
+        @Override
+        public void onCopyTextToClipboard(String text) {
+        }
+
+        @Override
+        public void onPasteTextFromClipboard() {
+        }
+
+        @Override
+        public void onBell() {
+        }
+
+        @Override
+        public void onColorsChanged() {
+        }
+
+    }
+
+}
@@ -3,6 +3,8 @@ package com.andronux.termux.view;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.Typeface;
 
 import com.andronux.termux.terminal.TerminalBuffer;
@@ -11,6 +13,8 @@ import com.andronux.termux.terminal.TerminalRow;
 import com.andronux.termux.terminal.TextStyle;
 import com.andronux.termux.terminal.WcWidth;
 
+import java.util.ArrayList;
+
 /**
  * Renderer of a {@link TerminalEmulator} into a {@link Canvas}.
  * <p/>
@@ -18,9 +22,20 @@ import com.andronux.termux.terminal.WcWidth;
  */
 public final class TerminalRenderer {
 
+    /** The effects the text paints are configured for, see {@link #getTextPaint(int)}. */
+    private static final int PAINT_BOLD = 1;
+    private static final int PAINT_UNDERLINE = 1 << 1;
+    private static final int PAINT_ITALIC = 1 << 2;
+    private static final int PAINT_STRIKE_THROUGH = 1 << 3;
+
     final int mTextSize;
     final Typeface mTypeface;
+    /** The paint text is measured with, from which the text paints are created. */
     private final Paint mTextPaint = new Paint();
+    /** The text paints by their PAINT_* effects, created when first used. */
+    private final Paint[] mTextPaints = new Paint[16];
+    /** The paint of the backgrounds and the cursor, of which only the color changes. */
+    private final Paint mBackgroundPaint = new Paint();
 
     /** The width of a single mono spaced character obtained by {@link Paint#measureText(String)} on a single 'X'. */
     final float mFontWidth;
@@ -32,6 +47,22 @@ public final class TerminalRenderer {
     final int mFontLineSpacingAndAscent;
 
     private final float[] asciiMeasures = new float[127];
+    private final Rect mClipBounds = new Rect();
+
+    /**
+     * The backgrounds, text runs and cursor of the frame being rendered, which are collected before drawing them in
+     * batches by {@link #drawFrame(Canvas)}. The objects are reused between frames.
+     */
+    private final ArrayList<Background> mBackgrounds = new ArrayList<>();
+    private int mBackgroundCount;
+    /** The backgrounds of the current and the previous row, into which those of the current row may be merged. */
+    private Background[] mCurrentRowBackgrounds = new Background[0], mPreviousRowBackgrounds = new Background[0];
+    private int mCurrentRowBackgroundCount, mPreviousRowBackgroundCount;
+    private final ArrayList<TextRun> mTextRuns = new ArrayList<>();
+    private int mTextRunCount;
+    /** The color of the cursor of the frame, 0 if it is not drawn. */
+    private int mCursorColor;
+    private final RectF mCursorRect = new RectF();
 
     public TerminalRenderer(int textSize, Typeface typeface) {
         mTextSize = textSize;
@@ -56,21 +87,62 @@ public final class TerminalRenderer {
     /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
     public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
                              int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        render(mEmulator, canvas, topRow, selectionY1, selectionY2, selectionX1, selectionX2, true);
+    }
+
+    /**
+     * Render the terminal like {@link #render(TerminalEmulator, Canvas, int, int, int, int, int)}, optionally without
+     * the cursor so that it can be drawn on top by {@link #renderCursor(TerminalEmulator, Canvas, int, int, int, int, int)}.
+     * Rows outside the clip bounds of the canvas are skipped.
+     */
+    public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
+                             int selectionY1, int selectionY2, int selectionX1, int selectionX2, boolean drawCursor) {
+        if (mEmulator.isReverseVideo())
+            canvas.drawColor(mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
+
+        int startRow = topRow, endRow = topRow + mEmulator.mRows;
+        if (canvas.getClipBounds(mClipBounds)) {
+            // With a row of margin, since glyphs may reach into the rows next to theirs:
+            startRow = Math.max(startRow, topRow + (mClipBounds.top - mFontLineSpacingAndAscent) / mFontLineSpacing - 1);
+            endRow = Math.min(endRow, topRow + (mClipBounds.bottom - mFontLineSpacingAndAscent) / mFontLineSpacing + 2);
+        }
+        renderRows(mEmulator, canvas, topRow, startRow, endRow, selectionY1, selectionY2, selectionX1, selectionX2,
+            drawCursor, false);
+    }
+
+    /**
+     * Render only the cells of the cursor, with their background, on top of the terminal rendered without the cursor by
+     * {@link #render(TerminalEmulator, Canvas, int, int, int, int, int, boolean)}. Nothing is drawn if the cursor is not
+     * visible, in which case the cells are already as rendered without the cursor.
+     */
+    public final void renderCursor(TerminalEmulator mEmulator, Canvas canvas, int topRow,
+                                   int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
+        final int cursorRow = mEmulator.getCursorRow();
+        if (!mEmulator.shouldCursorBeVisible() || cursorRow < topRow || cursorRow >= topRow + mEmulator.mRows) return;
+        renderRows(mEmulator, canvas, topRow, cursorRow, cursorRow + 1, selectionY1, selectionY2, selectionX1, selectionX2,
+            true, true);
+    }
+
+    /**
+     * Render the rows from startRow to endRow.
+     *
+     * @param cursorOnly If only the runs inside the cursor should be drawn, with their background even if the default.
+     */
+    private void renderRows(TerminalEmulator mEmulator, Canvas canvas, int topRow, int startRow, int endRow,
+                            int selectionY1, int selectionY2, int selectionX1, int selectionX2,
+                            boolean drawCursor, boolean cursorOnly) {
         final boolean reverseVideo = mEmulator.isReverseVideo();
-        final int endRow = topRow + mEmulator.mRows;
         final int columns = mEmulator.mColumns;
         final int cursorCol = mEmulator.getCursorCol();
         final int cursorRow = mEmulator.getCursorRow();
-        final boolean cursorVisible = mEmulator.shouldCursorBeVisible();
+        final boolean cursorVisible = drawCursor && mEmulator.shouldCursorBeVisible();
         final TerminalBuffer screen = mEmulator.getScreen();
         final int[] palette = mEmulator.mColors.mCurrentColors;
         final int cursorShape = mEmulator.getCursorStyle();
 
-        if (reverseVideo)
-            canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
-
-        float heightOffset = mFontLineSpacingAndAscent;
-        for (int row = topRow; row < endRow; row++) {
+        beginFrame(columns);
+        float heightOffset = mFontLineSpacingAndAscent + (startRow - topRow) * mFontLineSpacing;
+        for (int row = startRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
 
             final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
@@ -112,7 +184,7 @@ public final class TerminalRenderer {
                 final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
 
                 if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
-                    if (column == 0) {
+                    if (column == 0 || (cursorOnly && !lastRunInsideCursor)) {
                         // Skip first column as there is nothing to draw, just record the current style.
                     } else {
                         final int columnWidthSinceLastRun = column - lastRunStartColumn;
@@ -122,9 +194,10 @@ public final class TerminalRenderer {
                         if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
                             invertCursorTextColor = true;
                         }
-                        drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
+                        addRun(line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun,
                             lastRunStartIndex, charsSinceLastRun, measuredWidthForRun,
-                            cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+                            cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection,
+                            cursorOnly);
                     }
                     measuredWidthForRun = 0.f;
                     lastRunStyle = style;
@@ -144,21 +217,32 @@ public final class TerminalRenderer {
                 }
             }
 
-            final int columnWidthSinceLastRun = columns - lastRunStartColumn;
-            final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
-            boolean invertCursorTextColor = false;
-            if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
-                invertCursorTextColor = true;
+            if (!cursorOnly || lastRunInsideCursor) {
+                final int columnWidthSinceLastRun = columns - lastRunStartColumn;
+                final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
+                int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                boolean invertCursorTextColor = false;
+                if (lastRunInsideCursor && cursorShape == TerminalEmulator.TERMINAL_CURSOR_STYLE_BLOCK) {
+                    invertCursorTextColor = true;
+                }
+                addRun(line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
+                    measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection,
+                    cursorOnly);
             }
-            drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
-                measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
+            endRow();
         }
+
+        drawFrame(canvas);
     }
 
-    private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
-                             int startCharIndex, int runWidthChars, float mes, int cursor, int cursorStyle,
-                             long textStyle, boolean reverseVideo) {
+    /**
+     * Add a run of a row to the frame, see {@link #drawFrame(Canvas)}.
+     *
+     * @param y The bottom of the row.
+     */
+    private void addRun(char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
+                        int startCharIndex, int runWidthChars, float mes, int cursor, int cursorStyle,
+                        long textStyle, boolean reverseVideo, boolean opaque) {
         int foreColor = TextStyle.decodeForeColor(textStyle);
         final int effect = TextStyle.decodeEffect(textStyle);
         int backColor = TextStyle.decodeBackColor(textStyle);
@@ -186,31 +270,22 @@ public final class TerminalRenderer {
             backColor = tmp;
         }
 
-        float left = startColumn * mFontWidth;
-        float right = left + runWidthColumns * mFontWidth;
-
-        mes = mes / mFontWidth;
-        boolean savedMatrix = false;
-        if (Math.abs(mes - runWidthColumns) > 0.01) {
-            canvas.save();
-            canvas.scale(runWidthColumns / mes, 1.f);
-            left *= mes / runWidthColumns;
-            right *= mes / runWidthColumns;
-            savedMatrix = true;
+        final int bottom = (int) y;
+        final int top = bottom - mFontLineSpacingAndAscent + mFontAscent;
+        if (opaque || backColor != palette[TextStyle.COLOR_INDEX_BACKGROUND]) {
+            // Only draw non-default background, unless drawing over what was rendered before.
+            addBackground(startColumn, startColumn + runWidthColumns, top, bottom, backColor);
         }
 
-        if (backColor != palette[TextStyle.COLOR_INDEX_BACKGROUND]) {
-            // Only draw non-default background.
-            mTextPaint.setColor(backColor);
-            canvas.drawRect(left, y - mFontLineSpacingAndAscent + mFontAscent, right, y, mTextPaint);
-        }
+        float left = startColumn * mFontWidth;
+        float right = left + runWidthColumns * mFontWidth;
 
         if (cursor != 0) {
-            mTextPaint.setColor(cursor);
             float cursorHeight = mFontLineSpacingAndAscent - mFontAscent;
             if (cursorStyle == TerminalEmulator.TERMINAL_CURSOR_STYLE_UNDERLINE) cursorHeight /= 4.;
             else if (cursorStyle == TerminalEmulator.TERMINAL_CURSOR_STYLE_BAR) right -= ((right - left) * 3) / 4.;
-            canvas.drawRect(left, y - cursorHeight, right, y, mTextPaint);
+            mCursorColor = cursor;
+            mCursorRect.set(left, y - cursorHeight, right, y);
         }
 
         if ((effect & TextStyle.CHARACTER_ATTRIBUTE_INVISIBLE) == 0) {
@@ -226,17 +301,135 @@ public final class TerminalRenderer {
                 foreColor = 0xFF000000 + (red << 16) + (green << 8) + blue;
             }
 
-            mTextPaint.setFakeBoldText(bold);
-            mTextPaint.setUnderlineText(underline);
-            mTextPaint.setTextSkewX(italic ? -0.35f : 0.f);
-            mTextPaint.setStrikeThruText(strikeThrough);
-            mTextPaint.setColor(foreColor);
+            int paintEffects = (bold ? PAINT_BOLD : 0) | (underline ? PAINT_UNDERLINE : 0) |
+                (italic ? PAINT_ITALIC : 0) | (strikeThrough ? PAINT_STRIKE_THROUGH : 0);
+            // Scale the text horizontally if its measured width is not the width of its columns:
+            mes = mes / mFontWidth;
+            float scaleX = Math.abs(mes - runWidthColumns) > 0.01 ? runWidthColumns / mes : 1.f;
+            addTextRun(text, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, foreColor, paintEffects, scaleX);
+        }
+    }
 
+    /** Start collecting the runs of a frame with the given number of columns. */
+    private void beginFrame(int columns) {
+        mBackgroundCount = 0;
+        mPreviousRowBackgroundCount = 0;
+        mCurrentRowBackgroundCount = 0;
+        mTextRunCount = 0;
+        mCursorColor = 0;
+        if (mCurrentRowBackgrounds.length < columns) {
+            mCurrentRowBackgrounds = new Background[columns];
+            mPreviousRowBackgrounds = new Background[columns];
+        }
+    }
+
+    /** Add a background, merging it into the one before it in the same row if they are adjacent with the same color. */
+    private void addBackground(int startColumn, int endColumn, int top, int bottom, int color) {
+        if (mCurrentRowBackgroundCount > 0) {
+            Background last = mCurrentRowBackgrounds[mCurrentRowBackgroundCount - 1];
+            if (last.mEndColumn == startColumn && last.mColor == color) {
+                last.mEndColumn = endColumn;
+                return;
+            }
+        }
+
+        if (mBackgroundCount == mBackgrounds.size()) mBackgrounds.add(new Background());
+        Background background = mBackgrounds.get(mBackgroundCount++);
+        background.mStartColumn = startColumn;
+        background.mEndColumn = endColumn;
+        background.mTop = top;
+        background.mBottom = bottom;
+        background.mColor = color;
+        background.mMerged = false;
+        mCurrentRowBackgrounds[mCurrentRowBackgroundCount++] = background;
+    }
+
+    /**
+     * End the current row, merging its backgrounds into those of the row above which span the same columns with the
+     * same color, so that e.g. a colored panel of a TUI is drawn as a single rectangle.
+     */
+    private void endRow() {
+        int previous = 0;
+        for (int i = 0; i < mCurrentRowBackgroundCount; i++) {
+            Background current = mCurrentRowBackgrounds[i];
+            // Both rows are ordered by column:
+            while (previous < mPreviousRowBackgroundCount && mPreviousRowBackgrounds[previous].mStartColumn < current.mStartColumn)
+                previous++;
+            if (previous == mPreviousRowBackgroundCount) break;
+
+            Background above = mPreviousRowBackgrounds[previous];
+            if (above.mStartColumn == current.mStartColumn && above.mEndColumn == current.mEndColumn &&
+                above.mColor == current.mColor && above.mBottom == current.mTop) {
+                above.mBottom = current.mBottom;
+                current.mMerged = true;
+                mCurrentRowBackgrounds[i] = above;
+            }
+        }
+
+        Background[] rowBackgrounds = mPreviousRowBackgrounds;
+        mPreviousRowBackgrounds = mCurrentRowBackgrounds;
+        mCurrentRowBackgrounds = rowBackgrounds;
+        mPreviousRowBackgroundCount = mCurrentRowBackgroundCount;
+        mCurrentRowBackgroundCount = 0;
+    }
+
+    private void addTextRun(char[] text, int start, int length, float x, float y, int color, int paintEffects, float scaleX) {
+        if (mTextRunCount == mTextRuns.size()) mTextRuns.add(new TextRun());
+        TextRun run = mTextRuns.get(mTextRunCount++);
+        run.mText = text;
+        run.mStart = start;
+        run.mLength = length;
+        run.mX = x;
+        run.mY = y;
+        run.mColor = color;
+        run.mPaintEffects = paintEffects;
+        run.mScaleX = scaleX;
+    }
+
+    /**
+     * Draw the runs collected for the frame: first all backgrounds, then the cursor and then all text. The backgrounds
+     * share one paint, and the text is drawn with paints already configured for its effects, so that only the colors
+     * have to be set for each run.
+     */
+    private void drawFrame(Canvas canvas) {
+        for (int i = 0; i < mBackgroundCount; i++) {
+            Background background = mBackgrounds.get(i);
+            if (background.mMerged) continue;
+            mBackgroundPaint.setColor(background.mColor);
+            canvas.drawRect(background.mStartColumn * mFontWidth, background.mTop, background.mEndColumn * mFontWidth,
+                background.mBottom, mBackgroundPaint);
+        }
+
+        if (mCursorColor != 0) {
+            mBackgroundPaint.setColor(mCursorColor);
+            canvas.drawRect(mCursorRect, mBackgroundPaint);
+        }
+
+        for (int i = 0; i < mTextRunCount; i++) {
+            TextRun run = mTextRuns.get(i);
+            Paint paint = getTextPaint(run.mPaintEffects);
+            paint.setColor(run.mColor);
+            if (run.mScaleX != 1.f) paint.setTextScaleX(run.mScaleX);
             // The text alignment is the default Paint.Align.LEFT.
-            canvas.drawTextRun(text, startCharIndex, runWidthChars, startCharIndex, runWidthChars, left, y - mFontLineSpacingAndAscent, false, mTextPaint);
+            canvas.drawTextRun(run.mText, run.mStart, run.mLength, run.mStart, run.mLength, run.mX, run.mY, false, paint);
+            if (run.mScaleX != 1.f) paint.setTextScaleX(1.f);
+            // Do not keep rows that may be dropped from the buffer alive until the next frame:
+            run.mText = null;
         }
+    }
 
-        if (savedMatrix) canvas.restore();
+    /** Get the text paint configured for a combination of the PAINT_* effects. */
+    private Paint getTextPaint(int paintEffects) {
+        Paint paint = mTextPaints[paintEffects];
+        if (paint == null) {
+            paint = new Paint(mTextPaint);
+            paint.setFakeBoldText((paintEffects & PAINT_BOLD) != 0);
+            paint.setUnderlineText((paintEffects & PAINT_UNDERLINE) != 0);
+            paint.setTextSkewX((paintEffects & PAINT_ITALIC) != 0 ? -0.35f : 0.f);
+            paint.setStrikeThruText((paintEffects & PAINT_STRIKE_THROUGH) != 0);
+            mTextPaints[paintEffects] = paint;
+        }
+        return paint;
     }
 
     public float getFontWidth() {
@@ -246,4 +439,23 @@ public final class TerminalRenderer {
     public int getFontLineSpacing() {
         return mFontLineSpacing;
     }
+
+    /** A background rectangle of a frame, spanning columns and, once merged with the rows below, rows. */
+    private static final class Background {
+        int mStartColumn, mEndColumn;
+        int mTop, mBottom;
+        int mColor;
+        /** If merged into the background of the row above, so that it is not drawn itself. */
+        boolean mMerged;
+    }
+
+    /** A run of text of a frame. */
+    private static final class TextRun {
+        char[] mText;
+        int mStart, mLength;
+        float mX, mY;
+        int mColor;
+        int mPaintEffects;
+        float mScaleX;
+    }
 }
@@ -7,6 +7,8 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
 import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Handler;
@@ -16,6 +18,7 @@ import android.text.Editable;
 import android.text.InputType;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.util.SparseArray;
 import android.view.ActionMode;
 import android.view.HapticFeedbackConstants;
 import android.view.InputDevice;
@@ -42,6 +45,8 @@ import com.andronux.termux.terminal.TerminalEmulator;
 import com.andronux.termux.terminal.TerminalSession;
 import com.andronux.termux.view.textselection.TextSelectionCursorController;
 
+import java.util.Arrays;
+
 /** View displaying and interacting with a {@link TerminalSession}. */
 public final class TerminalView extends View {
 
@@ -73,10 +78,46 @@ public final class TerminalView extends View {
     float mScaleFactor = 1.f;
     final GestureAndScaleRecognizer mGestureRecognizer;
 
+    /**
+     * The renderers created for the current typeface by their text size, so that zooming back and forth does not measure
+     * the glyphs again for every step.
+     */
+    private final SparseArray<TerminalRenderer> mRenderers = new SparseArray<>();
+    /** If a pinch zoom is in progress, during which changes of the text size are only previewed. */
+    private boolean mScaleInProgress;
+    /** The text size to apply when the pinch zoom ends, which is previewed by scaling the current rendering. 0 if none. */
+    private int mPendingTextSize;
+
+    /**
+     * The terminal content drawn without the cursor, which is reused while only the cursor changes so that it is not
+     * rendered again for every blink or cursor movement. Only used where the canvas is hardware accelerated.
+     */
+    private RenderNode mContentRenderNode;
+    /** If {@link #invalidate()} was called after the content was last drawn, so that everything has to be redrawn. */
+    private boolean mContentInvalidated = true;
+    /** The state the content was last drawn with, see {@link #isContentDrawn()}. */
+    private TerminalEmulator mDrawnEmulator;
+    private TerminalRenderer mDrawnRenderer;
+    private long mDrawnContentChangeCount;
+    private int mDrawnTopRow;
+    private final int[] mDrawnSelectors = new int[]{-1,-1,-1,-1};
+
     /** Keep track of where mouse touch event started which we report as mouse scroll. */
     private int mMouseScrollStartX = -1, mMouseScrollStartY = -1;
     /** Keep track of the time when a touch event leading to sending mouse scroll events started. */
     private long mMouseStartDownTime = -1;
+    /**
+     * The cell of the latest mouse motion, which is reported at most once per frame by {@link #mMouseMotionReporter}
+     * instead of for every {@link MotionEvent}.
+     */
+    private int mPendingMouseMotionX, mPendingMouseMotionY;
+    private boolean mMouseMotionPending;
+    private final Runnable mMouseMotionReporter = new Runnable() {
+        @Override
+        public void run() {
+            flushMouseMotion();
+        }
+    };
 
     final Scroller mScroller;
 
@@ -188,11 +229,19 @@ public final class TerminalView extends View {
             @Override
             public boolean onScale(float focusX, float focusY, float scale) {
                 if (mEmulator == null || isSelectingText()) return true;
+                mScaleInProgress = true;
                 mScaleFactor *= scale;
                 mScaleFactor = mClient.onScale(mScaleFactor);
                 return true;
             }
 
+            @Override
+            public void onScaleEnd() {
+                // Apply the text size previewed during the gesture with a single reflow and resize of the terminal:
+                mScaleInProgress = false;
+                if (mPendingTextSize != 0) setTextSize(mPendingTextSize);
+            }
+
             @Override
             public boolean onFling(final MotionEvent e2, float velocityX, float velocityY) {
                 if (mEmulator == null) return true;
@@ -294,6 +343,9 @@ public final class TerminalView extends View {
         mTermSession = session;
         mEmulator = null;
         mCombiningAccent = 0;
+        // Motion over the previous session is not reported to the new one:
+        mMouseMotionPending = false;
+        removeCallbacks(mMouseMotionReporter);
 
         updateSize();
 
@@ -378,6 +430,17 @@ public final class TerminalView extends View {
 
             void sendTextToTerminal(CharSequence text) {
                 stopTextSelectionMode();
+                // Queue the input of all of the text with a single write instead of one per code point:
+                TerminalSession session = mTermSession;
+                if (session != null) session.beginInputBatch();
+                try {
+                    sendCodePointsToTerminal(text);
+                } finally {
+                    if (session != null) session.endInputBatch();
+                }
+            }
+
+            void sendCodePointsToTerminal(CharSequence text) {
                 final int textLengthInChars = text.length();
                 for (int i = 0; i < textLengthInChars; i++) {
                     char firstChar = text.charAt(i);
@@ -494,7 +557,11 @@ public final class TerminalView extends View {
 
         mEmulator.clearScrollCounter();
 
-        invalidate();
+        // If only the cursor has changed, do not redraw the rest of the screen:
+        if (!isSelectingText() && isContentDrawn())
+            invalidateCursor();
+        else
+            invalidate();
         if (mAccessibilityEnabled) setContentDescription(getText());
     }
 
@@ -507,21 +574,42 @@ public final class TerminalView extends View {
     }
 
     /**
-     * Sets the text size, which in turn sets the number of rows and columns.
+     * Sets the text size, which in turn sets the number of rows and columns. During a pinch zoom the new size is only
+     * previewed by scaling the current rendering, and applied when the gesture ends.
      *
      * @param textSize the new font size, in density-independent pixels.
      */
     public void setTextSize(int textSize) {
-        mRenderer = new TerminalRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
+        if (mScaleInProgress && mRenderer != null) {
+            mPendingTextSize = textSize == mRenderer.mTextSize ? 0 : textSize;
+            // The content itself has not changed, so do not render it again:
+            super.invalidate();
+            return;
+        }
+
+        mPendingTextSize = 0;
+        mRenderer = getRenderer(textSize, mRenderer == null ? Typeface.MONOSPACE : mRenderer.mTypeface);
         updateSize();
+        invalidate();
     }
 
     public void setTypeface(Typeface newTypeface) {
-        mRenderer = new TerminalRenderer(mRenderer.mTextSize, newTypeface);
+        mRenderer = getRenderer(mRenderer.mTextSize, newTypeface);
         updateSize();
         invalidate();
     }
 
+    /** Get the renderer for a text size and typeface, creating it if it has not been cached. */
+    private TerminalRenderer getRenderer(int textSize, Typeface typeface) {
+        if (mRenderer != null && mRenderer.mTypeface != typeface) mRenderers.clear();
+        TerminalRenderer renderer = mRenderers.get(textSize);
+        if (renderer == null) {
+            renderer = new TerminalRenderer(textSize, typeface);
+            mRenderers.put(textSize, renderer);
+        }
+        return renderer;
+    }
+
     @Override
     public boolean onCheckIsTextEditor() {
         return true;
@@ -552,11 +640,24 @@ public final class TerminalView extends View {
         return new int[] { column, row };
     }
 
-    /** Send a single mouse event code to the terminal. */
+    /**
+     * Send a single mouse event code to the terminal. Motion is coalesced and sent on the next frame, while presses,
+     * releases and wheel events are sent right away after any motion before them.
+     */
     void sendMouseEventCode(MotionEvent e, int button, boolean pressed) {
-        int[] columnAndRow = getColumnAndRow(e, false);
-        int x = columnAndRow[0] + 1;
-        int y = columnAndRow[1] + 1;
+        int x = (int) (e.getX() / mRenderer.mFontWidth) + 1;
+        int y = (int) ((e.getY() - mRenderer.mFontLineSpacingAndAscent) / mRenderer.mFontLineSpacing) + 1;
+        if (button == TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED) {
+            mPendingMouseMotionX = x;
+            mPendingMouseMotionY = y;
+            if (!mMouseMotionPending) {
+                mMouseMotionPending = true;
+                postOnAnimation(mMouseMotionReporter);
+            }
+            return;
+        }
+
+        flushMouseMotion();
         if (pressed && (button == TerminalEmulator.MOUSE_WHEELDOWN_BUTTON || button == TerminalEmulator.MOUSE_WHEELUP_BUTTON)) {
             if (mMouseStartDownTime == e.getDownTime()) {
                 x = mMouseScrollStartX;
@@ -570,6 +671,15 @@ public final class TerminalView extends View {
         mEmulator.sendMouseEvent(button, x, y, pressed);
     }
 
+    /** Send the pending mouse motion, if any, to the terminal. */
+    void flushMouseMotion() {
+        if (!mMouseMotionPending) return;
+        mMouseMotionPending = false;
+        removeCallbacks(mMouseMotionReporter);
+        if (mEmulator != null)
+            mEmulator.sendMouseEvent(TerminalEmulator.MOUSE_LEFT_BUTTON_MOVED, mPendingMouseMotionX, mPendingMouseMotionY, true);
+    }
+
     /** Perform a scroll, either from dragging the screen or by scrolling a mouse wheel. */
     void doScroll(MotionEvent event, int rowsDown) {
         boolean up = rowsDown < 0;
@@ -916,9 +1026,9 @@ public final class TerminalView extends View {
             return true;
 
         TerminalEmulator term = mTermSession.getEmulator();
-        String code = KeyHandler.getCode(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
+        byte[] code = KeyHandler.getEncodedCode(keyCode, keyMod, term.isCursorKeysApplicationMode(), term.isKeypadApplicationMode());
         if (code == null) return false;
-        mTermSession.write(code);
+        mTermSession.write(code, 0, code.length);
         return true;
     }
 
@@ -1014,13 +1124,81 @@ public final class TerminalView extends View {
                 mTextSelectionCursorController.getSelectors(sel);
             }
 
-            mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            // Preview the text size of a pinch zoom in progress:
+            boolean previewScaled = mPendingTextSize != 0;
+            if (previewScaled) {
+                float previewScale = (float) mPendingTextSize / mRenderer.mTextSize;
+                canvas.save();
+                canvas.scale(previewScale, previewScale);
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated()) {
+                drawContentRenderNode(canvas, sel);
+                mRenderer.renderCursor(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            } else {
+                // Without a recorded content to reuse, the content is rendered again with the cursor:
+                boolean contentInvalidated = mContentInvalidated;
+                mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+                if (contentInvalidated) onContentDrawn(sel);
+            }
+            if (previewScaled) canvas.restore();
 
             // render the text selection handles
             renderTextSelection();
         }
     }
 
+    /** Draw the content without the cursor, only rendering it again if it has changed since it was last drawn. */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void drawContentRenderNode(Canvas canvas, int[] sel) {
+        if (mContentRenderNode == null) mContentRenderNode = new RenderNode("TerminalContent");
+        if (!isContentDrawn() || !Arrays.equals(sel, mDrawnSelectors) ||
+            mContentRenderNode.getWidth() != getWidth() || mContentRenderNode.getHeight() != getHeight()) {
+            mContentRenderNode.setPosition(0, 0, getWidth(), getHeight());
+            RecordingCanvas contentCanvas = mContentRenderNode.beginRecording();
+            try {
+                mRenderer.render(mEmulator, contentCanvas, mTopRow, sel[0], sel[1], sel[2], sel[3], false);
+            } finally {
+                mContentRenderNode.endRecording();
+            }
+            onContentDrawn(sel);
+        }
+        canvas.drawRenderNode(mContentRenderNode);
+    }
+
+    private void onContentDrawn(int[] sel) {
+        mContentInvalidated = false;
+        mDrawnEmulator = mEmulator;
+        mDrawnRenderer = mRenderer;
+        mDrawnContentChangeCount = mEmulator.getContentChangeCount();
+        mDrawnTopRow = mTopRow;
+        System.arraycopy(sel, 0, mDrawnSelectors, 0, mDrawnSelectors.length);
+    }
+
+    /** Check if the content, apart from the text selection and the cursor, is the same as when it was last drawn. */
+    private boolean isContentDrawn() {
+        return !mContentInvalidated && mEmulator == mDrawnEmulator && mRenderer == mDrawnRenderer &&
+            mTopRow == mDrawnTopRow && mEmulator.getContentChangeCount() == mDrawnContentChangeCount;
+    }
+
+    /** Redraw everything, and not only the cursor as after {@link #invalidateCursor()}. */
+    @Override
+    public void invalidate() {
+        mContentInvalidated = true;
+        super.invalidate();
+    }
+
+    /**
+     * Redraw the view without invalidating the content, so that with a hardware accelerated canvas
+     * on API 29+ only the cursor is drawn again on top of the recorded content. This invalidates the
+     * whole view, since the dirty rect of the deprecated {@link View#invalidate(int, int, int, int)}
+     * is ignored on hardware accelerated canvases since API 21.
+     */
+    void invalidateCursor() {
+        if (mEmulator == null) return;
+        super.invalidate();
+    }
+
     public TerminalSession getCurrentSession() {
         return mTermSession;
     }
@@ -1322,14 +1500,14 @@ public final class TerminalView extends View {
         public void run() {
             try {
                 if (mEmulator != null) {
-                    // Toggle the blink state and then invalidate() the view so
+                    // Toggle the blink state and then invalidate the cursor so
                     // that onDraw() is called, which then calls TerminalRenderer.render()
                     // which checks with TerminalEmulator.shouldCursorBeVisible() to decide whether
                     // to draw the cursor or not
                     mCursorVisible = !mCursorVisible;
                     //mClient.logVerbose(LOG_TAG, "Toggling cursor blink state to " + mCursorVisible);
                     mEmulator.setCursorBlinkState(mCursorVisible);
-                    invalidate();
+                    invalidateCursor();
                 }
             } finally {
                 // Recall the Runnable after mBlinkRate milliseconds to toggle the blink state
@@ -1441,6 +1619,8 @@ public final class TerminalView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        flushMouseMotion();
+
         if (mTextSelectionCursorController != null) {
             // Might solve the following exception
             // android.view.WindowLeaked: Activity com.andronux.termux.app.TermuxActivity has leaked window android.widget.PopupWindow
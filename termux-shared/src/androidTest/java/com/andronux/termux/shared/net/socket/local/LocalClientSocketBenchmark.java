@@ -0,0 +1,149 @@
+package com.andronux.termux.shared.net.socket.local;
+
+import android.content.Context;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.andronux.termux.shared.BenchmarkUtils;
+import com.andronux.termux.shared.errors.Error;
+import com.andronux.termux.shared.logger.Logger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Measures the round-trip latency of am commands sent to a {@link LocalSocketManager} server, with
+ * the bulk reads and writes of {@link LocalClientSocket#readDataOnInputStream(StringBuilder, boolean)}
+ * and {@link LocalClientSocket#sendDataToOutputStream(String, boolean)} and with a byte at a time
+ * through {@link LocalClientSocket#getInputStream()} and {@link LocalClientSocket#getOutputStream()},
+ * like they used to, which makes a JNI call and syscall for every byte. Every result is checked, the
+ * times are only logged since they depend on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LocalClientSocketBenchmark {
+
+    private static final String LOG_TAG = "LocalClientSocketBenchmark";
+
+    /** An am command like one sent by termux-am, with a result of similar size as a typical one. */
+    private static final String AM_COMMAND = "start --user 0 -n com.example.app/.MainActivity -a android.intent.action.VIEW " +
+        "-d 'https://example.com/some/path?query=value' --es extra_key 'extra value é中' --ez flag true";
+
+    @Test
+    public void benchmarkRoundTrip() throws Exception {
+        long bulkNanos = benchmark(true);
+        Logger.logInfo(LOG_TAG, "Bulk reads and writes: " + BenchmarkUtils.getMicrosPerUnitString(bulkNanos, "am command"));
+
+        long byteAtATimeNanos = benchmark(false);
+        Logger.logInfo(LOG_TAG, "Byte at a time reads and writes: " + BenchmarkUtils.getMicrosPerUnitString(byteAtATimeNanos, "am command"));
+    }
+
+    /** Start a server echoing am commands back in the am result format and get the average round-trip time. */
+    private static long benchmark(boolean bulk) throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        String name = LOG_TAG + (bulk ? "-bulk" : "-byte") + "-" + System.nanoTime();
+        LocalSocketRunConfig runConfig = new LocalSocketRunConfig(LOG_TAG, "\0" + name, new EchoClient(bulk));
+        LocalSocketManager localSocketManager = new LocalSocketManager(context, runConfig);
+        Error error = localSocketManager.start();
+        assertNull(error != null ? error.toString() : null, error);
+
+        try {
+            String expected = "0\0" + AM_COMMAND + "\0";
+            return BenchmarkUtils.measureNanos(run -> assertEquals(expected, sendAmCommand(name, AM_COMMAND)));
+        } finally {
+            localSocketManager.stop();
+        }
+    }
+
+    /** Send an am command like termux-am-socket does and get the result. */
+    private static String sendAmCommand(@NonNull String name, @NonNull String amCommand) throws IOException {
+        try (LocalSocket socket = new LocalSocket()) {
+            socket.connect(new LocalSocketAddress(name, LocalSocketAddress.Namespace.ABSTRACT));
+            socket.getOutputStream().write(amCommand.getBytes(StandardCharsets.UTF_8));
+            socket.shutdownOutput();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            InputStream inputStream = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) > 0)
+                result.write(buffer, 0, bytesRead);
+            return new String(result.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /** A client that sends the am command received back as its stdout. */
+    private static class EchoClient extends LocalSocketManagerClientBase {
+
+        private final boolean mBulk;
+
+        EchoClient(boolean bulk) {
+            mBulk = bulk;
+        }
+
+        @Override
+        public void onClientAccepted(@NonNull LocalSocketManager localSocketManager,
+                                     @NonNull LocalClientSocket clientSocket) {
+            try {
+                String amCommand = mBulk ? readBulk(clientSocket) : readByteAtATime(clientSocket);
+                String result = "0\0" + amCommand + "\0";
+                if (mBulk)
+                    sendBulk(clientSocket, result);
+                else
+                    sendByteAtATime(clientSocket, result);
+            } catch (IOException e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to echo am command", e);
+            } finally {
+                clientSocket.closeClientSocket(true);
+            }
+        }
+
+        private static String readBulk(@NonNull LocalClientSocket clientSocket) throws IOException {
+            StringBuilder data = new StringBuilder();
+            Error error = clientSocket.readDataOnInputStream(data, true);
+            if (error != null)
+                throw new IOException(error.toString());
+            return data.toString();
+        }
+
+        private static void sendBulk(@NonNull LocalClientSocket clientSocket, @NonNull String data) throws IOException {
+            Error error = clientSocket.sendDataToOutputStream(data, true);
+            if (error != null)
+                throw new IOException(error.toString());
+        }
+
+        private static String readByteAtATime(@NonNull LocalClientSocket clientSocket) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            InputStream inputStream = clientSocket.getInputStream();
+            int b;
+            while ((b = inputStream.read()) > 0)
+                data.write(b);
+            return new String(data.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private static void sendByteAtATime(@NonNull LocalClientSocket clientSocket, @NonNull String data) throws IOException {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            for (byte b : data.getBytes(StandardCharsets.UTF_8))
+                outputStream.write(b);
+        }
+
+        @Override
+        protected String getLogTag() {
+            return LOG_TAG;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.andronux.termux.shared.shell;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.andronux.termux.shared.BenchmarkUtils;
+import com.andronux.termux.shared.logger.Logger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency of starting and waiting for a short lived process with
+ * {@link ProcessSpawner#exec(String[], String[], File)} and with {@link Runtime#exec(String[], String[], File)},
+ * like {@link com.andronux.termux.shared.shell.command.runner.app.AppShell} used to. The process
+ * exits with a non-zero exit code that is checked for every spawn, so that a spawn that failed
+ * or was never waited for is not counted as a fast one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProcessSpawnerBenchmark {
+
+    private static final String LOG_TAG = "ProcessSpawnerBenchmark";
+
+    private static final String[] COMMAND = {"/system/bin/sh", "-c", "exit 7"};
+    private static final int COMMAND_EXIT_CODE = 7;
+    private static final String[] ENVIRONMENT = {"PATH=/system/bin"};
+    private static final File WORKING_DIRECTORY = new File("/");
+
+    @Test
+    public void benchmarkProcessSpawner() throws Exception {
+        assertTrue("The \"" + ProcessSpawner.PROCESS_SPAWNER_LIBRARY + "\" library failed to load", ProcessSpawner.isAvailable());
+        long nanos = benchmark(true);
+        Logger.logInfo(LOG_TAG, "ProcessSpawner.exec(): " + BenchmarkUtils.getMicrosPerUnitString(nanos, "spawn"));
+    }
+
+    @Test
+    public void benchmarkRuntimeExec() throws Exception {
+        long nanos = benchmark(false);
+        Logger.logInfo(LOG_TAG, "Runtime.exec(): " + BenchmarkUtils.getMicrosPerUnitString(nanos, "spawn"));
+    }
+
+    @Test
+    public void testSpawnedProcessStreams() throws Exception {
+        assertTrue(ProcessSpawner.isAvailable());
+        Process process = ProcessSpawner.exec(new String[]{"sh", "-c", "cat; echo error >&2; exit 3"},
+            ENVIRONMENT, WORKING_DIRECTORY);
+        assertTrue(process instanceof ProcessSpawner.SpawnedProcess);
+
+        process.getOutputStream().write("input é中\n".getBytes(StandardCharsets.UTF_8));
+        process.getOutputStream().close();
+        assertEquals("input é中\n", readFully(process.getInputStream()));
+        assertEquals("error\n", readFully(process.getErrorStream()));
+        assertEquals(3, process.waitFor());
+        assertEquals(3, process.exitValue());
+        process.destroy();
+    }
+
+    /** Start and wait for {@link #COMMAND} repeatedly and get the average time per spawn. */
+    private static long benchmark(boolean processSpawner) throws Exception {
+        return BenchmarkUtils.measureNanos(run -> assertEquals(COMMAND_EXIT_CODE, spawnAndWait(processSpawner)));
+    }
+
+    private static int spawnAndWait(boolean processSpawner) throws IOException, InterruptedException {
+        Process process = processSpawner ? ProcessSpawner.exec(COMMAND, ENVIRONMENT, WORKING_DIRECTORY) :
+            Runtime.getRuntime().exec(COMMAND, ENVIRONMENT, WORKING_DIRECTORY);
+        try {
+            return process.waitFor();
+        } finally {
+            process.destroy();
+        }
+    }
+
+    @NonNull
+    private static String readFully(@NonNull InputStream inputStream) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) > 0)
+            data.write(buffer, 0, bytesRead);
+        return new String(data.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
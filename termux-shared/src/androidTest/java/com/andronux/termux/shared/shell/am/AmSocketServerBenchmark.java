@@ -0,0 +1,194 @@
+package com.andronux.termux.shared.shell.am;
+
+import android.content.Context;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.andronux.termux.shared.BenchmarkUtils;
+import com.andronux.termux.shared.logger.Logger;
+import com.andronux.termux.shared.net.socket.local.LocalSocketManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures the latency of am commands sent to an {@link AmSocketServer} with a connection per
+ * command and with batches of commands pipelined on one connection with the framed protocol.
+ * The result of every command is checked to have succeeded without any stderr.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AmSocketServerBenchmark {
+
+    private static final String LOG_TAG = "AmSocketServerBenchmark";
+
+    /** The number of commands pipelined on one framed protocol connection. */
+    private static final int FRAMED_COMMANDS = 200;
+
+    /** An am command that does not start anything. */
+    private static final String AM_COMMAND = "broadcast -a com.andronux.termux.shared.test.NO_OP";
+
+    @Test
+    public void benchmarkConnectionPerCommand() throws Exception {
+        String name = LOG_TAG + "-oneshot-" + System.nanoTime();
+        LocalSocketManager localSocketManager = startServer(name, null);
+        try {
+            long nanos = BenchmarkUtils.measureNanos(run -> assertAmResult(sendAmCommand(name, AM_COMMAND)));
+            Logger.logInfo(LOG_TAG, "Connection per command: " + BenchmarkUtils.getMicrosPerUnitString(nanos, "am command"));
+        } finally {
+            localSocketManager.stop();
+        }
+    }
+
+    @Test
+    public void benchmarkFramedProtocol() throws Exception {
+        String name = LOG_TAG + "-framed-" + System.nanoTime();
+        LocalSocketManager localSocketManager = startServer(name, null);
+        try {
+            long nanos = BenchmarkUtils.measureNanos(2, 10, run -> sendPipelinedAmCommands(name)) / FRAMED_COMMANDS;
+            Logger.logInfo(LOG_TAG, "Framed protocol: " + BenchmarkUtils.getMicrosPerUnitString(nanos, "am command"));
+        } finally {
+            localSocketManager.stop();
+        }
+    }
+
+    @Test
+    public void testIdleFramedClientDoesNotHoldWorker() throws Exception {
+        String name = LOG_TAG + "-idle-" + System.nanoTime();
+        LocalSocketManager localSocketManager = startServer(name, 1);
+        try (LocalSocket socket = connect(name)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            startFramedProtocol(outputStream, inputStream);
+            sendFramedAmCommand(outputStream, 0);
+            assertFramedAmResult(inputStream, 0);
+
+            // The only worker must be free for other clients while the framed client is idle
+            assertAmResult(sendAmCommand(name, AM_COMMAND));
+
+            sendFramedAmCommand(outputStream, 1);
+            assertFramedAmResult(inputStream, 1);
+            socket.shutdownOutput();
+            assertEquals(-1, inputStream.read());
+        } finally {
+            localSocketManager.stop();
+        }
+    }
+
+    private static LocalSocketManager startServer(@NonNull String name, Integer maxWorkerThreads) {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        AmSocketServerRunConfig runConfig = new AmSocketServerRunConfig(LOG_TAG, "\0" + name,
+            new AmSocketServer.AmSocketServerClient() {
+                @Override
+                protected String getLogTag() {
+                    return LOG_TAG;
+                }
+            });
+        runConfig.setMaxWorkerThreads(maxWorkerThreads);
+        LocalSocketManager localSocketManager = AmSocketServer.start(context, runConfig);
+        assertNotNull(localSocketManager);
+        return localSocketManager;
+    }
+
+    private static LocalSocket connect(@NonNull String name) throws IOException {
+        LocalSocket socket = new LocalSocket();
+        socket.connect(new LocalSocketAddress(name, LocalSocketAddress.Namespace.ABSTRACT));
+        return socket;
+    }
+
+    /** Send an am command with the default protocol like termux-am-socket does and get the result. */
+    private static String sendAmCommand(@NonNull String name, @NonNull String amCommand) throws IOException {
+        try (LocalSocket socket = connect(name)) {
+            socket.getOutputStream().write(amCommand.getBytes(StandardCharsets.UTF_8));
+            socket.shutdownOutput();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            InputStream inputStream = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) > 0)
+                result.write(buffer, 0, bytesRead);
+            return new String(result.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /** Assert that a result in the `exit_code\0stdout\0stderr` format succeeded without any stderr. */
+    private static void assertAmResult(@NonNull String result) {
+        String[] parts = result.split("\0", -1);
+        assertEquals(result, 3, parts.length);
+        assertEquals(result, "0", parts[0]);
+        assertEquals(result, "", parts[2]);
+    }
+
+    /**
+     * Send {@link #FRAMED_COMMANDS} am commands on one connection with the framed protocol before
+     * reading any result, and check the results.
+     */
+    private static void sendPipelinedAmCommands(@NonNull String name) throws Exception {
+        try (LocalSocket socket = connect(name)) {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            startFramedProtocol(outputStream, inputStream);
+
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < FRAMED_COMMANDS; i++)
+                        sendFramedAmCommand(outputStream, i);
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Failed to send am commands", e);
+                }
+            });
+            sender.start();
+
+            for (int i = 0; i < FRAMED_COMMANDS; i++)
+                assertFramedAmResult(inputStream, i);
+            assertEquals(-1, inputStream.read());
+            sender.join();
+        }
+    }
+
+    private static void startFramedProtocol(@NonNull DataOutputStream outputStream,
+                                            @NonNull DataInputStream inputStream) throws IOException {
+        byte[] handshake = (AmSocketServer.FRAMED_PROTOCOL_HANDSHAKE + "\0").getBytes(StandardCharsets.UTF_8);
+        outputStream.write(handshake);
+        byte[] reply = new byte[handshake.length];
+        inputStream.readFully(reply);
+        assertArrayEquals(handshake, reply);
+    }
+
+    private static void sendFramedAmCommand(@NonNull DataOutputStream outputStream, int requestId) throws IOException {
+        byte[] amCommand = AM_COMMAND.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(4 + amCommand.length);
+        outputStream.writeInt(requestId);
+        outputStream.write(amCommand);
+    }
+
+    /** Read a result frame and assert that it is for {@code requestId} and succeeded without any stderr. */
+    private static void assertFramedAmResult(@NonNull DataInputStream inputStream, int requestId) throws IOException {
+        int frameLength = inputStream.readInt();
+        assertEquals(requestId, inputStream.readInt());
+        int exitCode = inputStream.readInt();
+        int stdoutLength = inputStream.readInt();
+        byte[] output = new byte[frameLength - 12];
+        inputStream.readFully(output);
+        String stderr = new String(output, stdoutLength, output.length - stdoutLength, StandardCharsets.UTF_8);
+        assertEquals(stderr, 0, exitCode);
+        assertEquals("", stderr);
+    }
+
+}
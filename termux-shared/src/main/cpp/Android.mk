@@ -4,3 +4,9 @@ LOCAL_LDLIBS := -llog
 LOCAL_MODULE := local-socket
 LOCAL_SRC_FILES := local-socket.cpp
 include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+LOCAL_LDLIBS := -llog
+LOCAL_MODULE := process-spawner
+LOCAL_SRC_FILES := process-spawner.cpp
+include $(BUILD_SHARED_LIBRARY)
@@ -1,3 +1,4 @@
+#include <algorithm>
 #include <cstdio>
 #include <ctime>
 #include <cerrno>
@@ -8,6 +9,9 @@
 
 #include <android/log.h>
 
+#include <fcntl.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
 #include <sys/ioctl.h>
 #include <sys/socket.h>
 #include <sys/types.h>
@@ -16,6 +20,9 @@
 #define LOG_TAG "local-socket"
 #define JNI_EXCEPTION "jni-exception"
 
+// The max bytes read from or sent to a socket per syscall, through a buffer on the stack
+#define SOCKET_IO_BUFFER_SIZE 8192
+
 using namespace std;
 
 
@@ -339,7 +346,7 @@ Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_acceptNative
     }
 
     // Accept client socket
-    int clientFd = accept(fd, nullptr, nullptr);
+    int clientFd = accept4(fd, nullptr, nullptr, SOCK_CLOEXEC);
     if (clientFd == -1) {
         return getJniResult(env, logTitle, -1, errno, "acceptNative(): Failed to accept client on fd " + to_string(fd));
     }
@@ -353,29 +360,35 @@ JNIEXPORT jobject JNICALL
 Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_readNative(JNIEnv *env, jclass clazz,
                                                                       jstring logTitle,
                                                                       jint fd, jbyteArray dataArray,
+                                                                      jint offset, jint length,
                                                                       jlong deadline) {
     if (fd < 0) {
         return getJniResult(env, logTitle, -1, "readNative(): Invalid fd \"" + to_string(fd) + "\" passed");
     }
 
-    jbyte* data = env->GetByteArrayElements(dataArray, nullptr);
-    if (checkJniException(env)) return NULL;
-    if (data == nullptr) {
+    if (dataArray == nullptr) {
         return getJniResult(env, logTitle, -1, "readNative(): data passed is null");
     }
 
-    struct timespec time = {};
-    jbyte* current = data;
-    int bytes = env->GetArrayLength(dataArray);
+    int arrayLength = env->GetArrayLength(dataArray);
     if (checkJniException(env)) return NULL;
-    int bytesRead = 0;
-    while (bytesRead < bytes) {
+    if (offset < 0 || length < 0 || offset > arrayLength - length) {
+        return getJniResult(env, logTitle, -1, "readNative(): Invalid offset \"" + to_string(offset) +
+                                               "\" and length \"" + to_string(length) + "\" passed for data of length " + to_string(arrayLength));
+    }
+
+    // Read into a stack buffer and only copy the bytes actually read into the java array, instead
+    // of copying or pinning the whole array for every call. Like read(), return as soon as some
+    // bytes have been read instead of waiting for length bytes, so that the caller can process
+    // whatever the peer has sent so far.
+    jbyte buffer[SOCKET_IO_BUFFER_SIZE];
+    struct timespec time = {};
+    int bytesRead;
+    while (true) {
         if (deadline > 0) {
             if (clock_gettime(CLOCK_REALTIME, &time) != -1) {
                 // If current time is greater than the time defined in deadline
                 if (timespec_to_milliseconds(&time) > deadline) {
-                    env->ReleaseByteArrayElements(dataArray, data, 0);
-                    if (checkJniException(env)) return NULL;
                     return getJniResult(env, logTitle, -1,
                                         "readNative(): Deadline \"" + to_string(deadline) + "\" timeout");
                 }
@@ -386,25 +399,20 @@ Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_readNative(J
             }
         }
 
-        // Read data from socket
-        int ret = read(fd, current, bytes);
-        if (ret == -1) {
+        // Read data from socket, 0 means EOF since peer closed writing end
+        bytesRead = read(fd, buffer, min(length, SOCKET_IO_BUFFER_SIZE));
+        if (bytesRead == -1) {
+            if (errno == EINTR) continue;
             int errnoBackup = errno;
-            env->ReleaseByteArrayElements(dataArray, data, 0);
-            if (checkJniException(env)) return NULL;
             return getJniResult(env, logTitle, -1, errnoBackup, "readNative(): Failed to read on fd "  + to_string(fd));
         }
-        // EOF, peer closed writing end
-        if (ret == 0) {
-            break;
-        }
-
-        bytesRead += ret;
-        current += ret;
+        break;
     }
 
-    env->ReleaseByteArrayElements(dataArray, data, 0);
-    if (checkJniException(env)) return NULL;
+    if (bytesRead > 0) {
+        env->SetByteArrayRegion(dataArray, offset, bytesRead, buffer);
+        if (checkJniException(env)) return NULL;
+    }
 
     // Return success and bytes read in JniResult.intData field
     return getJniResult(env, logTitle, bytesRead);
@@ -416,54 +424,62 @@ JNIEXPORT jobject JNICALL
 Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_sendNative(JNIEnv *env, jclass clazz,
                                                                       jstring logTitle,
                                                                       jint fd, jbyteArray dataArray,
+                                                                      jint offset, jint length,
                                                                       jlong deadline) {
     if (fd < 0) {
         return getJniResult(env, logTitle, -1, "sendNative(): Invalid fd \"" + to_string(fd) + "\" passed");
     }
 
-    jbyte* data = env->GetByteArrayElements(dataArray, nullptr);
-    if (checkJniException(env)) return NULL;
-    if (data == nullptr) {
+    if (dataArray == nullptr) {
         return getJniResult(env, logTitle, -1, "sendNative(): data passed is null");
     }
 
-    struct timespec time = {};
-    jbyte* current = data;
-    int bytes = env->GetArrayLength(dataArray);
+    int arrayLength = env->GetArrayLength(dataArray);
     if (checkJniException(env)) return NULL;
-    while (bytes > 0) {
-        if (deadline > 0) {
-            if (clock_gettime(CLOCK_REALTIME, &time) != -1) {
-                // If current time is greater than the time defined in deadline
-                if (timespec_to_milliseconds(&time) > deadline) {
-                    env->ReleaseByteArrayElements(dataArray, data, JNI_ABORT);
-                    if (checkJniException(env)) return NULL;
-                    return getJniResult(env, logTitle, -1,
-                                        "sendNative(): Deadline \"" + to_string(deadline) + "\" timeout");
+    if (offset < 0 || length < 0 || offset > arrayLength - length) {
+        return getJniResult(env, logTitle, -1, "sendNative(): Invalid offset \"" + to_string(offset) +
+                                               "\" and length \"" + to_string(length) + "\" passed for data of length " + to_string(arrayLength));
+    }
+
+    jbyte buffer[SOCKET_IO_BUFFER_SIZE];
+    struct timespec time = {};
+    int bytesSent = 0;
+    while (bytesSent < length) {
+        // Copy the next chunk of the java array into the stack buffer
+        int chunk = min(length - bytesSent, SOCKET_IO_BUFFER_SIZE);
+        env->GetByteArrayRegion(dataArray, offset + bytesSent, chunk, buffer);
+        if (checkJniException(env)) return NULL;
+
+        int chunkSent = 0;
+        while (chunkSent < chunk) {
+            if (deadline > 0) {
+                if (clock_gettime(CLOCK_REALTIME, &time) != -1) {
+                    // If current time is greater than the time defined in deadline
+                    if (timespec_to_milliseconds(&time) > deadline) {
+                        return getJniResult(env, logTitle, -1,
+                                            "sendNative(): Deadline \"" + to_string(deadline) + "\" timeout");
+                    }
+                } else {
+                    log_warn(get_title_and_message(env, logTitle,
+                                                   "sendNative(): Deadline \"" + to_string(deadline) +
+                                                   "\" timeout will not work since failed to get current time"));
                 }
-            } else {
-                log_warn(get_title_and_message(env, logTitle,
-                                               "sendNative(): Deadline \"" + to_string(deadline) +
-                                               "\" timeout will not work since failed to get current time"));
             }
-        }
 
-        // Send data to socket
-        int ret = send(fd, current, bytes, MSG_NOSIGNAL);
-        if (ret == -1) {
-            int errnoBackup = errno;
-            env->ReleaseByteArrayElements(dataArray, data, JNI_ABORT);
-            if (checkJniException(env)) return NULL;
-            return getJniResult(env, logTitle, -1, errnoBackup, "sendNative(): Failed to send on fd " + to_string(fd));
+            // Send data to socket
+            int ret = send(fd, buffer + chunkSent, chunk - chunkSent, MSG_NOSIGNAL);
+            if (ret == -1) {
+                if (errno == EINTR) continue;
+                int errnoBackup = errno;
+                return getJniResult(env, logTitle, -1, errnoBackup, "sendNative(): Failed to send on fd " + to_string(fd));
+            }
+
+            chunkSent += ret;
         }
 
-        bytes -= ret;
-        current += ret;
+        bytesSent += chunk;
     }
 
-    env->ReleaseByteArrayElements(dataArray, data, JNI_ABORT);
-    if (checkJniException(env)) return NULL;
-
     // Return success
     return getJniResult(env, logTitle);
 }
@@ -486,6 +502,147 @@ Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_availableNat
     return getJniResult(env, logTitle, available);
 }
 
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_createPollerNative(JNIEnv *env, jclass clazz,
+                                                                              jstring logTitle,
+                                                                              jint serverFd, jintArray fdsArray) {
+    if (serverFd < 0) {
+        return getJniResult(env, logTitle, -1, "createPollerNative(): Invalid server fd \"" + to_string(serverFd) + "\" passed");
+    }
+
+    // Make the server socket non-blocking so that accept() fails with EAGAIN instead of blocking
+    // once all pending clients have been accepted
+    int flags = fcntl(serverFd, F_GETFL);
+    if (flags == -1 || fcntl(serverFd, F_SETFL, flags | O_NONBLOCK) == -1) {
+        return getJniResult(env, logTitle, -1, errno, "createPollerNative(): Failed to make server fd " + to_string(serverFd) + " non-blocking");
+    }
+
+    int epollFd = epoll_create1(EPOLL_CLOEXEC);
+    if (epollFd == -1) {
+        return getJniResult(env, logTitle, -1, errno, "createPollerNative(): Failed to create epoll instance");
+    }
+
+    // The eventfd is written to wake up the poller when the server is stopped
+    int wakeupFd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    if (wakeupFd == -1) {
+        int errnoBackup = errno;
+        close(epollFd);
+        return getJniResult(env, logTitle, -1, errnoBackup, "createPollerNative(): Failed to create eventfd");
+    }
+
+    struct epoll_event event = {};
+    event.events = EPOLLIN;
+    event.data.fd = serverFd;
+    if (epoll_ctl(epollFd, EPOLL_CTL_ADD, serverFd, &event) == -1) {
+        int errnoBackup = errno;
+        close(wakeupFd);
+        close(epollFd);
+        return getJniResult(env, logTitle, -1, errnoBackup, "createPollerNative(): Failed to add server fd " + to_string(serverFd) + " to epoll instance");
+    }
+    event.data.fd = wakeupFd;
+    if (epoll_ctl(epollFd, EPOLL_CTL_ADD, wakeupFd, &event) == -1) {
+        int errnoBackup = errno;
+        close(wakeupFd);
+        close(epollFd);
+        return getJniResult(env, logTitle, -1, errnoBackup, "createPollerNative(): Failed to add eventfd to epoll instance");
+    }
+
+    jint fds[2] = {epollFd, wakeupFd};
+    env->SetIntArrayRegion(fdsArray, 0, 2, fds);
+    if (checkJniException(env)) {
+        close(wakeupFd);
+        close(epollFd);
+        return NULL;
+    }
+
+    // Return success and epoll fd in JniResult.intData field
+    return getJniResult(env, logTitle, epollFd);
+}
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_pollerAddClientNative(JNIEnv *env, jclass clazz,
+                                                                                 jstring logTitle,
+                                                                                 jint epollFd, jint clientFd) {
+    // Only report the client once, when it has sent data or closed its writing end
+    struct epoll_event event = {};
+    event.events = EPOLLIN | EPOLLRDHUP | EPOLLONESHOT;
+    event.data.fd = clientFd;
+    if (epoll_ctl(epollFd, EPOLL_CTL_ADD, clientFd, &event) == -1) {
+        return getJniResult(env, logTitle, -1, errno, "pollerAddClientNative(): Failed to add client fd " + to_string(clientFd) + " to epoll instance");
+    }
+
+    // Return success
+    return getJniResult(env, logTitle);
+}
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_pollerRemoveClientNative(JNIEnv *env, jclass clazz,
+                                                                                    jstring logTitle,
+                                                                                    jint epollFd, jint clientFd) {
+    if (epoll_ctl(epollFd, EPOLL_CTL_DEL, clientFd, nullptr) == -1) {
+        return getJniResult(env, logTitle, -1, errno, "pollerRemoveClientNative(): Failed to remove client fd " + to_string(clientFd) + " from epoll instance");
+    }
+
+    // Return success
+    return getJniResult(env, logTitle);
+}
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_pollerWaitNative(JNIEnv *env, jclass clazz,
+                                                                            jstring logTitle,
+                                                                            jint epollFd, jint wakeupFd,
+                                                                            jintArray readyFdsArray,
+                                                                            jint timeout) {
+    int maxEvents = env->GetArrayLength(readyFdsArray);
+    if (checkJniException(env)) return NULL;
+    if (maxEvents < 1 || maxEvents > 64) {
+        return getJniResult(env, logTitle, -1, "pollerWaitNative(): Ready fds array length \"" + to_string(maxEvents) + "\" is not between 1-64");
+    }
+
+    struct epoll_event events[64];
+    int count = epoll_wait(epollFd, events, maxEvents, timeout);
+    if (count == -1) {
+        if (errno == EINTR) return getJniResult(env, logTitle, 0);
+        return getJniResult(env, logTitle, -1, errno, "pollerWaitNative(): Failed to wait on epoll instance");
+    }
+
+    // Drain the eventfd instead of reporting it, a wakeup only needs the wait to return
+    jint readyFds[64];
+    int readyCount = 0;
+    for (int i = 0; i < count; i++) {
+        if (events[i].data.fd == wakeupFd) {
+            uint64_t value;
+            while (read(wakeupFd, &value, sizeof(value)) > 0);
+        } else {
+            readyFds[readyCount++] = events[i].data.fd;
+        }
+    }
+
+    env->SetIntArrayRegion(readyFdsArray, 0, readyCount, readyFds);
+    if (checkJniException(env)) return NULL;
+
+    // Return success and number of ready fds in JniResult.intData field
+    return getJniResult(env, logTitle, readyCount);
+}
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_andronux_termux_shared_net_socket_local_LocalSocketManager_pollerWakeupNative(JNIEnv *env, jclass clazz,
+                                                                              jstring logTitle,
+                                                                              jint wakeupFd) {
+    uint64_t value = 1;
+    if (write(wakeupFd, &value, sizeof(value)) == -1 && errno != EAGAIN) {
+        return getJniResult(env, logTitle, -1, errno, "pollerWakeupNative(): Failed to write to eventfd " + to_string(wakeupFd));
+    }
+
+    // Return success
+    return getJniResult(env, logTitle);
+}
+
 /* Sets socket option timeout in milliseconds. */
 int set_socket_timeout(int fd, int option, int timeout) {
     struct timeval tv = milliseconds_to_timeval(timeout);
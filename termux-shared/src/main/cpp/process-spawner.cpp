@@ -0,0 +1,374 @@
+#include <cerrno>
+#include <csignal>
+#include <cstdlib>
+#include <cstring>
+#include <jni.h>
+#include <string>
+#include <vector>
+#include <unistd.h>
+
+#include <android/log.h>
+
+#include <fcntl.h>
+#include <pthread.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#include <sys/types.h>
+#include <sys/wait.h>
+
+#define LOG_TAG "process-spawner"
+
+// Older headers lack it, but the number is the same on all architectures
+#ifndef __NR_close_range
+# define __NR_close_range 436
+#endif
+
+using namespace std;
+
+
+/* Send an ERROR log message to android logcat. */
+void log_error(string message) {
+    __android_log_write(ANDROID_LOG_ERROR, LOG_TAG, message.c_str());
+}
+
+/* Convert a jstring to a std:string, encoded with standard UTF-8 instead of modified UTF-8. */
+string jstring_to_stdstr(JNIEnv *env, jstring jString) {
+    jclass stringClass = env->FindClass("java/lang/String");
+    jmethodID getBytes = env->GetMethodID(stringClass, "getBytes", "()[B");
+    jbyteArray jStringBytesArray = (jbyteArray) env->CallObjectMethod(jString, getBytes);
+    jsize length = env->GetArrayLength(jStringBytesArray);
+    jbyte* jStringBytes = env->GetByteArrayElements(jStringBytesArray, nullptr);
+    std::string stdString((char *)jStringBytes, length);
+    env->ReleaseByteArrayElements(jStringBytesArray, jStringBytes, JNI_ABORT);
+    env->DeleteLocalRef(jStringBytesArray);
+    env->DeleteLocalRef(stringClass);
+    return stdString;
+}
+
+/* Convert a jobjectArray of jstring to a std::vector of std:string. */
+bool jstring_array_to_stdstr_vector(JNIEnv *env, jobjectArray jArray, vector<string> &vector) {
+    jsize length = jArray ? env->GetArrayLength(jArray) : 0;
+    for (jsize i = 0; i < length; i++) {
+        jstring jString = (jstring) env->GetObjectArrayElement(jArray, i);
+        if (env->ExceptionCheck()) return false;
+        vector.push_back(jString ? jstring_to_stdstr(env, jString) : "");
+        env->DeleteLocalRef(jString);
+    }
+    return true;
+}
+
+/* Get a NULL terminated array of pointers to the strings of a std::vector, like for argv and envp. */
+vector<char *> get_string_pointers(vector<string> &strings) {
+    vector<char *> pointers;
+    for (string &str : strings)
+        pointers.push_back(&str[0]);
+    pointers.push_back(nullptr);
+    return pointers;
+}
+
+/* Get "title: message" formatted string. */
+string get_title_and_message(JNIEnv *env, jstring title, string message) {
+    if (title)
+        message = jstring_to_stdstr(env, title) + ": " + message;
+    return message;
+}
+
+
+// Note: Exceptions thrown from JNI must be caught with Throwable class instead of Exception,
+// otherwise exception will be sent to UncaughtExceptionHandler of the thread.
+bool checkJniException(JNIEnv *env) {
+    if (env->ExceptionCheck()) {
+        jthrowable throwable = env->ExceptionOccurred();
+        if (throwable != NULL) {
+            env->ExceptionClear();
+            env->Throw(throwable);
+            return true;
+        }
+    }
+
+    return false;
+}
+
+/* Get "com/termux/shared/jni/models/JniResult" object that can be returned as result for a JNI call. */
+jobject getJniResult(JNIEnv *env, jstring title, const int retvalParam, const int errnoParam,
+                     string errmsgParam, const int intDataParam) {
+    jclass clazz = env->FindClass("com/andronux/termux/shared/jni/models/JniResult");
+    if (checkJniException(env)) return NULL;
+    if (!clazz) {
+        log_error(get_title_and_message(env, title, "Failed to find JniResult class to create object for errmsg \"" + errmsgParam + "\""));
+        return NULL;
+    }
+
+    jmethodID constructor = env->GetMethodID(clazz, "<init>", "(IILjava/lang/String;I)V");
+    if (checkJniException(env)) return NULL;
+    if (!constructor) {
+        log_error(get_title_and_message(env, title, "Failed to get constructor for JniResult class to create object for errmsg \"" + errmsgParam + "\""));
+        return NULL;
+    }
+
+    if (!errmsgParam.empty())
+        errmsgParam = get_title_and_message(env, title, string(errmsgParam));
+
+    jobject obj = env->NewObject(clazz, constructor, retvalParam, errnoParam, env->NewStringUTF(errmsgParam.c_str()), intDataParam);
+    if (checkJniException(env)) return NULL;
+    return obj;
+}
+
+jobject getJniResult(JNIEnv *env, jstring title, const int retvalParam, string errmsgPrefixParam) {
+    return getJniResult(env, title, retvalParam, 0, errmsgPrefixParam, 0);
+}
+
+jobject getJniResult(JNIEnv *env, jstring title, const int retvalParam, const int errnoParam, string errmsgPrefixParam) {
+    return getJniResult(env, title, retvalParam, errnoParam, errmsgPrefixParam + ": " + string(strerror(errnoParam)), 0);
+}
+
+jobject getJniResult(JNIEnv *env, jstring title, const int intDataParam) {
+    return getJniResult(env, title, 0, 0, "", intDataParam);
+}
+
+
+
+/*
+ * Get the path of an executable, searched for in the `PATH` of envp if it does not contain a `/`,
+ * like execvp() would if envp was the environment of the current process.
+ */
+string resolve_executable(const string &executable, const vector<string> &envp) {
+    if (executable.empty() || executable.find('/') != string::npos)
+        return executable;
+
+    string path = "/system/bin";
+    for (const string &variable : envp) {
+        if (variable.compare(0, 5, "PATH=") == 0) {
+            path = variable.substr(5);
+            break;
+        }
+    }
+
+    size_t start = 0;
+    while (start <= path.size()) {
+        size_t end = path.find(':', start);
+        if (end == string::npos) end = path.size();
+        string directory = path.substr(start, end - start);
+        string candidate = (directory.empty() ? "." : directory) + "/" + executable;
+        if (access(candidate.c_str(), X_OK) == 0)
+            return candidate;
+        start = end + 1;
+    }
+
+    return executable;
+}
+
+struct linux_dirent64 {
+    uint64_t d_ino;
+    int64_t d_off;
+    unsigned short d_reclen;
+    unsigned char d_type;
+    char d_name[];
+};
+
+/*
+ * Close all fds >= 3. This is called in the vfork() child, so only async-signal-safe calls are
+ * made and nothing is allocated. The close_range() syscall is only available since Linux 5.9 and
+ * is only used if use_close_range is set, since the seccomp filter of older android versions does
+ * not allow it. Otherwise the /proc/self/fd entries are read with the getdents64() syscall into a
+ * buffer on the stack, and if that is not possible either, all possible fds are closed.
+ */
+void close_fds_from_3(bool use_close_range) {
+    if (use_close_range && syscall(__NR_close_range, 3, ~0U, 0) == 0)
+        return;
+
+    int dir_fd = open("/proc/self/fd", O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (dir_fd >= 0) {
+        alignas(linux_dirent64) char buffer[1024];
+        long bytes_read;
+        while ((bytes_read = syscall(SYS_getdents64, dir_fd, buffer, sizeof(buffer))) > 0) {
+            for (long offset = 0; offset < bytes_read;) {
+                struct linux_dirent64 *entry = (struct linux_dirent64 *) (buffer + offset);
+                offset += entry->d_reclen;
+
+                int fd = 0;
+                const char *c = entry->d_name;
+                if (*c < '0' || *c > '9') continue; // "." and ".."
+                for (; *c >= '0' && *c <= '9'; c++)
+                    fd = fd * 10 + (*c - '0');
+                if (fd > 2 && fd != dir_fd) close(fd);
+            }
+        }
+        close(dir_fd);
+        return;
+    }
+
+    struct rlimit limit = {};
+    int max_fd = getrlimit(RLIMIT_NOFILE, &limit) == 0 && limit.rlim_cur != RLIM_INFINITY ? (int) limit.rlim_cur : 1024;
+    for (int fd = 3; fd < max_fd; fd++)
+        close(fd);
+}
+
+/* Make fd the target_fd of the child, clearing FD_CLOEXEC if it already is. */
+int move_fd(int fd, int target_fd) {
+    if (fd == target_fd)
+        return fcntl(fd, F_SETFD, 0);
+    return dup2(fd, target_fd);
+}
+
+// The steps of the child that may fail, reported to the parent in spawn_args.failed_step
+#define SPAWN_STEP_DUP2 1
+#define SPAWN_STEP_CHDIR 2
+#define SPAWN_STEP_EXEC 3
+
+/* The arguments of the vfork() child, whose failure fields are written by the child and read by the parent. */
+struct spawn_args {
+    const char *path;
+    char *const *argv;
+    char *const *envp;
+    const char *cwd;
+    int fds[3];
+    bool use_close_range;
+    volatile int failed_step;
+    volatile int failed_errno;
+};
+
+/*
+ * Run in the vfork() child, which shares the memory and stack of the parent until it calls
+ * execve() or _exit(), so this must never return and only async-signal-safe calls are made.
+ */
+[[noreturn]] void spawn_child(struct spawn_args *args) {
+    // The signal handlers of the parent would run on its memory, so reset them to the default
+    // before unblocking the signals blocked by the parent for the vfork()
+    for (int sig = 1; sig < _NSIG; sig++) {
+        struct sigaction action = {};
+        if (sigaction(sig, nullptr, &action) == 0 && action.sa_handler != SIG_DFL && action.sa_handler != SIG_IGN) {
+            action = {};
+            action.sa_handler = SIG_DFL;
+            sigaction(sig, &action, nullptr);
+        }
+    }
+    sigset_t signals_to_unblock;
+    sigemptyset(&signals_to_unblock);
+    sigprocmask(SIG_SETMASK, &signals_to_unblock, nullptr);
+
+    for (int i = 0; i < 3; i++) {
+        if (move_fd(args->fds[i], i) == -1) {
+            args->failed_errno = errno;
+            args->failed_step = SPAWN_STEP_DUP2;
+            _exit(127);
+        }
+    }
+
+    close_fds_from_3(args->use_close_range);
+
+    if (args->cwd && chdir(args->cwd) != 0) {
+        args->failed_errno = errno;
+        args->failed_step = SPAWN_STEP_CHDIR;
+        _exit(127);
+    }
+
+    execve(args->path, args->argv, args->envp);
+    args->failed_errno = errno;
+    args->failed_step = SPAWN_STEP_EXEC;
+    _exit(127);
+}
+
+void close_pipes(int pipes[3][2]) {
+    for (int i = 0; i < 3; i++) {
+        for (int j = 0; j < 2; j++) {
+            if (pipes[i][j] != -1) close(pipes[i][j]);
+        }
+    }
+}
+
+
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_andronux_termux_shared_shell_ProcessSpawner_spawnNative(JNIEnv *env, jclass clazz,
+                                                                 jstring logTitle, jstring executable,
+                                                                 jobjectArray args, jobjectArray envVars,
+                                                                 jstring cwd, jboolean useCloseRange,
+                                                                 jintArray fdsArray) {
+    if (!executable) {
+        return getJniResult(env, logTitle, -1, "spawnNative(): Executable is null");
+    }
+
+    // Build argv and envp before the vfork(), since the child must not allocate
+    string executableString = jstring_to_stdstr(env, executable);
+    vector<string> argvStrings;
+    vector<string> envpStrings;
+    if (!jstring_array_to_stdstr_vector(env, args, argvStrings) ||
+        !jstring_array_to_stdstr_vector(env, envVars, envpStrings))
+        return NULL;
+    if (argvStrings.empty())
+        argvStrings.push_back(executableString);
+    string cwdString = cwd ? jstring_to_stdstr(env, cwd) : "";
+
+    string path = resolve_executable(executableString, envpStrings);
+    vector<char *> argv = get_string_pointers(argvStrings);
+    vector<char *> envp = get_string_pointers(envpStrings);
+
+    // The pipes for stdin, stdout and stderr, whose parent ends are returned
+    int pipes[3][2] = {{-1, -1}, {-1, -1}, {-1, -1}};
+    for (int i = 0; i < 3; i++) {
+        if (pipe2(pipes[i], O_CLOEXEC) == -1) {
+            int errnoBackup = errno;
+            close_pipes(pipes);
+            return getJniResult(env, logTitle, -1, errnoBackup, "spawnNative(): Failed to create pipes");
+        }
+    }
+
+    struct spawn_args spawnArgs = {};
+    spawnArgs.path = path.c_str();
+    spawnArgs.argv = argv.data();
+    spawnArgs.envp = envp.data();
+    spawnArgs.cwd = cwdString.empty() ? nullptr : cwdString.c_str();
+    spawnArgs.fds[0] = pipes[0][0];
+    spawnArgs.fds[1] = pipes[1][1];
+    spawnArgs.fds[2] = pipes[2][1];
+    spawnArgs.use_close_range = useCloseRange;
+
+    // Block all signals so that no signal handler of this process runs in the child before it has
+    // reset them, since it shares the memory of this process
+    sigset_t allSignals, oldSignals;
+    sigfillset(&allSignals);
+    pthread_sigmask(SIG_SETMASK, &allSignals, &oldSignals);
+
+    // The parent is suspended until the child has called execve() or _exit(), and the memory of the
+    // parent is not copied like for fork(), so the time taken does not grow with the heap size
+    pid_t pid = vfork();
+    if (pid == 0)
+        spawn_child(&spawnArgs);
+
+    int errnoBackup = errno;
+    pthread_sigmask(SIG_SETMASK, &oldSignals, nullptr);
+
+    if (pid == -1) {
+        close_pipes(pipes);
+        return getJniResult(env, logTitle, -1, errnoBackup, "spawnNative(): vfork() failed");
+    }
+
+    if (spawnArgs.failed_step != 0) {
+        waitpid(pid, nullptr, 0);
+        close_pipes(pipes);
+        string step = spawnArgs.failed_step == SPAWN_STEP_EXEC ? "execve(\"" + path + "\")" :
+            spawnArgs.failed_step == SPAWN_STEP_CHDIR ? "chdir(\"" + cwdString + "\")" : "dup2()";
+        return getJniResult(env, logTitle, -1, spawnArgs.failed_errno, "spawnNative(): " + step + " failed in child");
+    }
+
+    // Close the child ends
+    close(pipes[0][0]);
+    close(pipes[1][1]);
+    close(pipes[2][1]);
+
+    jint fds[3] = {pipes[0][1], pipes[1][0], pipes[2][0]};
+    env->SetIntArrayRegion(fdsArray, 0, 3, fds);
+    if (checkJniException(env)) {
+        close(fds[0]);
+        close(fds[1]);
+        close(fds[2]);
+        kill(pid, SIGKILL);
+        waitpid(pid, nullptr, 0);
+        return NULL;
+    }
+
+    // Return success and pid in JniResult.intData field
+    return getJniResult(env, logTitle, pid);
+}
@@ -35,6 +35,8 @@ public class CrashHandler implements Thread.UncaughtExceptionHandler {
     public void uncaughtException(@NonNull Thread thread, @NonNull Throwable throwable) {
         Logger.logInfo(LOG_TAG, "uncaughtException() for " + thread +  ": " + throwable.getMessage());
         logCrash(thread, throwable);
+        // The app may be killed before the log writer thread writes the pending messages
+        Logger.flush();
 
         // Don't stop the app if not on the main thread
         if (mIsDefaultHandler)
@@ -0,0 +1,348 @@
+package com.andronux.termux.shared.logger;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the entries logged with {@link Logger} to logcat, and to a rotating log file if one is set,
+ * from a single background thread, so that callers only have to add the entry to a ring buffer.
+ *
+ * The entries are written in the order they were logged. If the ring buffer is full, callers wait
+ * for the oldest entries to be written, like they would have waited for logcat themselves, so that
+ * entries are never dropped.
+ */
+final class LogWriter {
+
+    /** The number of entries the ring buffer can hold. */
+    static final int RING_BUFFER_CAPACITY = 1024;
+
+    /** The ring buffer of entries waiting to be written. */
+    private static final int[] sPriorities = new int[RING_BUFFER_CAPACITY];
+    private static final String[] sTags = new String[RING_BUFFER_CAPACITY];
+    private static final String[] sMessages = new String[RING_BUFFER_CAPACITY];
+    private static final boolean[] sExtended = new boolean[RING_BUFFER_CAPACITY];
+    private static final long[] sTimes = new long[RING_BUFFER_CAPACITY];
+    private static final int[] sThreadIds = new int[RING_BUFFER_CAPACITY];
+
+    /** The lock for the ring buffer and file sink config, waited on by the writer thread when empty and by callers when full. */
+    private static final Object sLock = new Object();
+
+    /** The index of the oldest entry in the ring buffer and the number of entries in it. */
+    private static int sHead;
+    private static int sSize;
+    /** The number of entries ever added and written, to know when a {@link #flush(long)} is done. */
+    private static long sAddedCount;
+    private static long sWrittenCount;
+
+    private static Thread sWriterThread;
+
+    /** The file sink config set by {@link #setLogFile(File, long, int)}, and whether it changed since the writer thread last read it. */
+    private static File sLogFile;
+    private static long sMaxLogFileSize;
+    private static int sMaxBackupLogFiles;
+    private static boolean sLogFileChanged;
+
+    /** Whether entries have been written to the log file since it was last flushed. */
+    private static boolean sLogFileDirty;
+
+    /** The file sink state, only used by the writer thread. */
+    private static File sOpenLogFile;
+    private static long sOpenMaxLogFileSize;
+    private static int sOpenMaxBackupLogFiles;
+    private static Writer sLogFileWriter;
+    private static long sLogFileSize;
+    private static final SimpleDateFormat sLogFileDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+    private static final char[] PRIORITY_CHARS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    private static final String LOG_TAG = "LogWriter";
+
+    private LogWriter() {}
+
+    /**
+     * Add an entry to be written.
+     *
+     * @param priority The {@link Log} priority.
+     * @param tag The full log tag.
+     * @param message The message.
+     * @param extended Whether the message should be split into multiple logcat entries if too large
+     *                 with {@link Logger#getExtendedMessageEntries(String, String)}.
+     */
+    static void write(int priority, @NonNull String tag, @NonNull String message, boolean extended) {
+        // The writer thread must not wait for itself, like if logging while writing the log file
+        if (Thread.currentThread() == sWriterThread) {
+            writeToLogcat(priority, tag, message, extended);
+            return;
+        }
+
+        boolean interrupted = false;
+        synchronized (sLock) {
+            startWriterThreadIfNeeded();
+
+            while (sSize == RING_BUFFER_CAPACITY) {
+                try {
+                    sLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            int index = (sHead + sSize) % RING_BUFFER_CAPACITY;
+            sPriorities[index] = priority;
+            sTags[index] = tag;
+            sMessages[index] = message;
+            sExtended[index] = extended;
+            sTimes[index] = System.currentTimeMillis();
+            sThreadIds[index] = Process.myTid();
+            sSize++;
+            sAddedCount++;
+
+            // The writer thread only waits when the ring buffer is empty
+            if (sSize == 1)
+                sLock.notifyAll();
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Wait until the entries added before this call have been written and the log file flushed.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     * @return Returns {@code true} if the entries were written before the timeout.
+     */
+    static boolean flush(long timeoutMillis) {
+        if (Thread.currentThread() == sWriterThread) return true;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (sLock) {
+            long target = sAddedCount;
+            while (sWrittenCount < target || sLogFileDirty) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                try {
+                    sLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Set the log file for the writer thread to open before writing the next entry. Check {@link Logger#setLogFile(File, long, int)}. */
+    static void setLogFile(@Nullable File logFile, long maxLogFileSize, int maxBackupLogFiles) {
+        synchronized (sLock) {
+            sLogFile = logFile;
+            sMaxLogFileSize = maxLogFileSize;
+            sMaxBackupLogFiles = Math.max(maxBackupLogFiles, 0);
+            sLogFileChanged = true;
+            startWriterThreadIfNeeded();
+            sLock.notifyAll();
+        }
+    }
+
+    private static void startWriterThreadIfNeeded() {
+        if (sWriterThread != null) return;
+        sWriterThread = new Thread(LogWriter::runWriterThread, "Logger");
+        sWriterThread.setDaemon(true);
+        sWriterThread.start();
+    }
+
+    private static void runWriterThread() {
+        int priority = 0;
+        String tag = null;
+        String message = null;
+        boolean extended = false;
+        long time = 0;
+        int threadId = 0;
+
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            boolean hasEntry;
+            boolean logFileChanged;
+            File logFile;
+            long maxLogFileSize;
+            int maxBackupLogFiles;
+
+            synchronized (sLock) {
+                while (sSize == 0 && !sLogFileChanged && !sLogFileDirty) {
+                    // Everything has been written, notify flush() callers
+                    sLock.notifyAll();
+                    try {
+                        sLock.wait();
+                    } catch (InterruptedException ignored) {}
+                }
+
+                logFileChanged = sLogFileChanged;
+                sLogFileChanged = false;
+                logFile = sLogFile;
+                maxLogFileSize = sMaxLogFileSize;
+                maxBackupLogFiles = sMaxBackupLogFiles;
+
+                hasEntry = sSize > 0;
+                if (hasEntry) {
+                    priority = sPriorities[sHead];
+                    tag = sTags[sHead];
+                    message = sMessages[sHead];
+                    extended = sExtended[sHead];
+                    time = sTimes[sHead];
+                    threadId = sThreadIds[sHead];
+                    sTags[sHead] = null;
+                    sMessages[sHead] = null;
+                    sHead = (sHead + 1) % RING_BUFFER_CAPACITY;
+                    // Callers only wait when the ring buffer is full
+                    if (sSize-- == RING_BUFFER_CAPACITY)
+                        sLock.notifyAll();
+                }
+            }
+
+            if (logFileChanged)
+                openLogFile(logFile, maxLogFileSize, maxBackupLogFiles);
+
+            if (!hasEntry) {
+                // Flush the log file only once there is nothing more to write
+                flushLogFile();
+                synchronized (sLock) {
+                    sLogFileDirty = false;
+                }
+                continue;
+            }
+
+            writeToLogcat(priority, tag, message, extended);
+            boolean wroteToLogFile = writeToLogFile(priority, tag, message, time, threadId);
+
+            synchronized (sLock) {
+                sWrittenCount++;
+                if (wroteToLogFile)
+                    sLogFileDirty = true;
+            }
+        }
+    }
+
+    private static void writeToLogcat(int priority, @NonNull String tag, @NonNull String message, boolean extended) {
+        try {
+            if (extended) {
+                List<String> entries = Logger.getExtendedMessageEntries(tag, message);
+                for (String entry : entries)
+                    Log.println(priority, tag, entry);
+            } else {
+                Log.println(priority, tag, message);
+            }
+        } catch (Throwable t) {
+            // Like if the tag is too long on old android versions
+            Log.e(LOG_TAG, "Failed to write log entry for tag \"" + tag + "\"", t);
+        }
+    }
+
+
+
+    /** Open the log file, closing the previous one. */
+    private static void openLogFile(@Nullable File logFile, long maxLogFileSize, int maxBackupLogFiles) {
+        closeLogFile();
+        if (logFile == null) return;
+
+        sOpenLogFile = logFile;
+        sOpenMaxLogFileSize = maxLogFileSize;
+        sOpenMaxBackupLogFiles = maxBackupLogFiles;
+
+        try {
+            File parent = logFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Failed to create directory \"" + parent + "\"");
+            sLogFileSize = logFile.length();
+            if (maxLogFileSize > 0 && sLogFileSize >= maxLogFileSize)
+                rotateLogFile(logFile, maxBackupLogFiles);
+            sLogFileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to open log file \"" + logFile + "\"", e);
+            sOpenLogFile = null;
+        }
+    }
+
+    /** Write an entry to the log file if one is open and get whether it was written. */
+    private static boolean writeToLogFile(int priority, @NonNull String tag, @NonNull String message, long time, int threadId) {
+        Writer writer = sLogFileWriter;
+        if (writer == null) return false;
+
+        // The format of "logcat -v threadtime"
+        String entry = sLogFileDateFormat.format(new Date(time)) + " " + Process.myPid() + " " + threadId + " " +
+            PRIORITY_CHARS[priority >= 0 && priority < PRIORITY_CHARS.length ? priority : 0] + " " + tag + ": " + message + "\n";
+
+        try {
+            writer.write(entry);
+            // Count chars instead of encoded bytes, which is close enough for deciding when to rotate
+            sLogFileSize += entry.length();
+
+            if (sOpenMaxLogFileSize > 0 && sLogFileSize >= sOpenMaxLogFileSize) {
+                writer.close();
+                sLogFileWriter = null;
+                rotateLogFile(sOpenLogFile, sOpenMaxBackupLogFiles);
+                sLogFileWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sOpenLogFile, true), StandardCharsets.UTF_8));
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write to log file \"" + sOpenLogFile + "\", stop writing to it", e);
+            closeLogFile();
+            return false;
+        }
+    }
+
+    /** Rename the log file to "<file>.1" after renaming the older ones up to "<file>.<maxBackupLogFiles>". */
+    private static void rotateLogFile(@NonNull File logFile, int maxBackupLogFiles) throws IOException {
+        String path = logFile.getAbsolutePath();
+        if (maxBackupLogFiles > 0) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(path + "." + maxBackupLogFiles).delete();
+            for (int i = maxBackupLogFiles - 1; i >= 1; i--) {
+                File backupLogFile = new File(path + "." + i);
+                if (backupLogFile.exists() && !backupLogFile.renameTo(new File(path + "." + (i + 1))))
+                    throw new IOException("Failed to rename \"" + backupLogFile + "\"");
+            }
+            if (!logFile.renameTo(new File(path + ".1")))
+                throw new IOException("Failed to rename \"" + logFile + "\"");
+        } else if (logFile.exists() && !logFile.delete()) {
+            throw new IOException("Failed to delete \"" + logFile + "\"");
+        }
+        sLogFileSize = 0;
+    }
+
+    private static void flushLogFile() {
+        if (sLogFileWriter == null) return;
+        try {
+            sLogFileWriter.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to flush log file \"" + sOpenLogFile + "\", stop writing to it", e);
+            closeLogFile();
+        }
+    }
+
+    private static void closeLogFile() {
+        if (sLogFileWriter != null) {
+            try {
+                sLogFileWriter.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to close log file \"" + sOpenLogFile + "\"", e);
+            }
+        }
+        sLogFileWriter = null;
+        sOpenLogFile = null;
+    }
+
+}
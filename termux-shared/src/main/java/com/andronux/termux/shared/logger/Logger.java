@@ -7,16 +7,19 @@ import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.andronux.termux.shared.R;
 import com.andronux.termux.shared.data.DataUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 public class Logger {
 
@@ -51,55 +54,146 @@ public class Logger {
      */
     public static final int LOGGER_ENTRY_MAX_SAFE_PAYLOAD = 4000; // 4000 bytes
 
+    /** The maximum time {@link #flush()} waits for pending log entries to be written. */
+    public static final long FLUSH_TIMEOUT_MILLIS = 2000;
+
+    /** Supplies a log message, so that it is only built if its log level is enabled. */
+    public interface MessageSupplier {
+        String get();
+    }
+
 
 
+    /**
+     * Log a message if its priority is enabled for the {@link #CURRENT_LOG_LEVEL}. The message is
+     * written asynchronously by the {@link LogWriter} thread in the order it was logged.
+     */
     public static void logMessage(int logPriority, String tag, String message) {
-        if (logPriority == Log.ERROR && CURRENT_LOG_LEVEL >= LOG_LEVEL_NORMAL)
-            Log.e(getFullTag(tag), message);
-        else if (logPriority == Log.WARN && CURRENT_LOG_LEVEL >= LOG_LEVEL_NORMAL)
-            Log.w(getFullTag(tag), message);
-        else if (logPriority == Log.INFO && CURRENT_LOG_LEVEL >= LOG_LEVEL_NORMAL)
-            Log.i(getFullTag(tag), message);
-        else if (logPriority == Log.DEBUG && CURRENT_LOG_LEVEL >= LOG_LEVEL_DEBUG)
-            Log.d(getFullTag(tag), message);
-        else if (logPriority == Log.VERBOSE && CURRENT_LOG_LEVEL >= LOG_LEVEL_VERBOSE)
-            Log.v(getFullTag(tag), message);
+        if (message == null || !isLoggable(logPriority)) return;
+        LogWriter.write(logPriority, getFullTag(tag), message, false);
     }
 
+    /**
+     * Log a message like {@link #logMessage(int, String, String)}, but split into multiple entries
+     * with {@link #getExtendedMessageEntries(String, String)} if it is larger than what logcat
+     * allows for an entry.
+     */
     public static void logExtendedMessage(int logLevel, String tag, String message) {
-        if (message == null) return;
-
-        int cutOffIndex;
-        int nextNewlineIndex;
-        String prefix = "";
+        if (message == null || !isLoggable(logLevel)) return;
+        LogWriter.write(logLevel, getFullTag(tag), message, true);
+    }
 
+    /**
+     * Split a message into logcat entries that fit in {@link #LOGGER_ENTRY_MAX_PAYLOAD} with the
+     * log tag, at the last newline in each entry if there is one. Each entry is prefixed with
+     * "(n/count)\n" if there is more than one. Each character is only scanned a constant number of
+     * times, so that multi MB messages take linear time.
+     *
+     * @param fullTag The full log tag.
+     * @param message The message.
+     * @return Returns the list of entries.
+     */
+    @NonNull
+    static List<String> getExtendedMessageEntries(@NonNull String fullTag, @NonNull String message) {
         // -8 for prefix "(xx/xx)" (max 99 sections), - log tag length, -4 for log tag prefix "D/" and suffix ": "
-        int maxEntrySize = LOGGER_ENTRY_MAX_PAYLOAD - 8 - getFullTag(tag).length() - 4;
-
-        List<String> messagesList = new ArrayList<>();
-
-        while(!message.isEmpty()) {
-            if (message.length() > maxEntrySize) {
-                cutOffIndex = maxEntrySize;
-                nextNewlineIndex = message.lastIndexOf('\n', cutOffIndex);
-                if (nextNewlineIndex != -1) {
-                    cutOffIndex = nextNewlineIndex + 1;
+        int maxEntrySize = LOGGER_ENTRY_MAX_PAYLOAD - 8 - fullTag.length() - 4;
+
+        int length = message.length();
+        if (length == 0)
+            return Collections.emptyList();
+        if (length <= maxEntrySize)
+            return Collections.singletonList(message);
+
+        List<Integer> cutOffIndexes = new ArrayList<>();
+        int startIndex = 0;
+        while (length - startIndex > maxEntrySize) {
+            int cutOffIndex = startIndex + maxEntrySize;
+            // Only search the current entry instead of the whole message before it
+            for (int i = cutOffIndex; i > startIndex; i--) {
+                if (message.charAt(i) == '\n') {
+                    cutOffIndex = i + 1;
+                    break;
                 }
-                messagesList.add(message.substring(0, cutOffIndex));
-                message = message.substring(cutOffIndex);
-            } else {
-                messagesList.add(message);
-                break;
             }
+            cutOffIndexes.add(cutOffIndex);
+            startIndex = cutOffIndex;
         }
-
-        for(int i=0; i<messagesList.size(); i++) {
-            if (messagesList.size() > 1)
-                prefix = "(" + (i + 1) + "/" + messagesList.size() + ")\n";
-            logMessage(logLevel, tag, prefix + messagesList.get(i));
+        cutOffIndexes.add(length);
+
+        int count = cutOffIndexes.size();
+        List<String> entries = new ArrayList<>(count);
+        startIndex = 0;
+        for (int i = 0; i < count; i++) {
+            int cutOffIndex = cutOffIndexes.get(i);
+            entries.add("(" + (i + 1) + "/" + count + ")\n" + message.substring(startIndex, cutOffIndex));
+            startIndex = cutOffIndex;
+        }
+        return entries;
+    }
+
+    /** Check if messages of a {@link Log} priority are logged for the {@link #CURRENT_LOG_LEVEL}. */
+    public static boolean isLoggable(int logPriority) {
+        switch (logPriority) {
+            case Log.ERROR:
+            case Log.WARN:
+            case Log.INFO:
+                return CURRENT_LOG_LEVEL >= LOG_LEVEL_NORMAL;
+            case Log.DEBUG:
+                return CURRENT_LOG_LEVEL >= LOG_LEVEL_DEBUG;
+            case Log.VERBOSE:
+                return CURRENT_LOG_LEVEL >= LOG_LEVEL_VERBOSE;
+            default:
+                return false;
         }
     }
 
+    /** Log a message built by {@code messageSupplier} only if the priority is enabled. */
+    public static void logMessage(int logPriority, String tag, @NonNull MessageSupplier messageSupplier) {
+        if (isLoggable(logPriority))
+            logMessage(logPriority, tag, messageSupplier.get());
+    }
+
+    /** Log a message built by {@code messageSupplier} only if the priority is enabled. */
+    public static void logExtendedMessage(int logLevel, String tag, @NonNull MessageSupplier messageSupplier) {
+        if (isLoggable(logLevel))
+            logExtendedMessage(logLevel, tag, messageSupplier.get());
+    }
+
+    /** Log a message formatted with {@link String#format(Locale, String, Object...)} with {@link Locale#ENGLISH} only if the priority is enabled. */
+    public static void logMessageFormat(int logPriority, String tag, @NonNull String format, Object... args) {
+        if (isLoggable(logPriority))
+            logMessage(logPriority, tag, String.format(Locale.ENGLISH, format, args));
+    }
+
+    /** Log a message formatted with {@link String#format(Locale, String, Object...)} with {@link Locale#ENGLISH} only if the priority is enabled. */
+    public static void logExtendedMessageFormat(int logLevel, String tag, @NonNull String format, Object... args) {
+        if (isLoggable(logLevel))
+            logExtendedMessage(logLevel, tag, String.format(Locale.ENGLISH, format, args));
+    }
+
+    /**
+     * Wait until the messages logged before this call have been written, for at most
+     * {@link #FLUSH_TIMEOUT_MILLIS}, like before the app is killed after a crash.
+     *
+     * @return Returns {@code true} if the messages were written before the timeout.
+     */
+    public static boolean flush() {
+        return LogWriter.flush(FLUSH_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Set the file that logged messages are also written to, in the format of "logcat -v threadtime".
+     * Once the file grows over {@code maxLogFileSize}, it is renamed to "<file>.1", after the older
+     * files are renamed up to "<file>.<maxBackupLogFiles>", and a new file is started.
+     *
+     * @param logFile The log file, or {@code null} to stop writing to a file.
+     * @param maxLogFileSize The size in bytes after which the file is rotated, 0 for no limit.
+     * @param maxBackupLogFiles The number of rotated files to keep.
+     */
+    public static void setLogFile(@Nullable File logFile, long maxLogFileSize, int maxBackupLogFiles) {
+        LogWriter.setLogFile(logFile, maxLogFileSize, maxBackupLogFiles);
+    }
+
 
 
     public static void logError(String tag, String message) {
@@ -118,6 +212,22 @@ public class Logger {
         logExtendedMessage(Log.ERROR, DEFAULT_LOG_TAG, message);
     }
 
+    public static void logError(String tag, @NonNull MessageSupplier messageSupplier) {
+        logMessage(Log.ERROR, tag, messageSupplier);
+    }
+
+    public static void logErrorExtended(String tag, @NonNull MessageSupplier messageSupplier) {
+        logExtendedMessage(Log.ERROR, tag, messageSupplier);
+    }
+
+    public static void logErrorFormat(String tag, @NonNull String format, Object... args) {
+        logMessageFormat(Log.ERROR, tag, format, args);
+    }
+
+    public static void logErrorExtendedFormat(String tag, @NonNull String format, Object... args) {
+        logExtendedMessageFormat(Log.ERROR, tag, format, args);
+    }
+
 
 
     public static void logErrorPrivate(String tag, String message) {
@@ -158,6 +268,22 @@ public class Logger {
         logExtendedMessage(Log.WARN, DEFAULT_LOG_TAG, message);
     }
 
+    public static void logWarn(String tag, @NonNull MessageSupplier messageSupplier) {
+        logMessage(Log.WARN, tag, messageSupplier);
+    }
+
+    public static void logWarnExtended(String tag, @NonNull MessageSupplier messageSupplier) {
+        logExtendedMessage(Log.WARN, tag, messageSupplier);
+    }
+
+    public static void logWarnFormat(String tag, @NonNull String format, Object... args) {
+        logMessageFormat(Log.WARN, tag, format, args);
+    }
+
+    public static void logWarnExtendedFormat(String tag, @NonNull String format, Object... args) {
+        logExtendedMessageFormat(Log.WARN, tag, format, args);
+    }
+
 
 
     public static void logInfo(String tag, String message) {
@@ -176,6 +302,22 @@ public class Logger {
         logExtendedMessage(Log.INFO, DEFAULT_LOG_TAG, message);
     }
 
+    public static void logInfo(String tag, @NonNull MessageSupplier messageSupplier) {
+        logMessage(Log.INFO, tag, messageSupplier);
+    }
+
+    public static void logInfoExtended(String tag, @NonNull MessageSupplier messageSupplier) {
+        logExtendedMessage(Log.INFO, tag, messageSupplier);
+    }
+
+    public static void logInfoFormat(String tag, @NonNull String format, Object... args) {
+        logMessageFormat(Log.INFO, tag, format, args);
+    }
+
+    public static void logInfoExtendedFormat(String tag, @NonNull String format, Object... args) {
+        logExtendedMessageFormat(Log.INFO, tag, format, args);
+    }
+
 
 
     public static void logDebug(String tag, String message) {
@@ -194,6 +336,22 @@ public class Logger {
         logExtendedMessage(Log.DEBUG, DEFAULT_LOG_TAG, message);
     }
 
+    public static void logDebug(String tag, @NonNull MessageSupplier messageSupplier) {
+        logMessage(Log.DEBUG, tag, messageSupplier);
+    }
+
+    public static void logDebugExtended(String tag, @NonNull MessageSupplier messageSupplier) {
+        logExtendedMessage(Log.DEBUG, tag, messageSupplier);
+    }
+
+    public static void logDebugFormat(String tag, @NonNull String format, Object... args) {
+        logMessageFormat(Log.DEBUG, tag, format, args);
+    }
+
+    public static void logDebugExtendedFormat(String tag, @NonNull String format, Object... args) {
+        logExtendedMessageFormat(Log.DEBUG, tag, format, args);
+    }
+
 
 
     public static void logVerbose(String tag, String message) {
@@ -212,8 +370,25 @@ public class Logger {
         logExtendedMessage(Log.VERBOSE, DEFAULT_LOG_TAG, message);
     }
 
+    public static void logVerbose(String tag, @NonNull MessageSupplier messageSupplier) {
+        logMessage(Log.VERBOSE, tag, messageSupplier);
+    }
+
+    public static void logVerboseExtended(String tag, @NonNull MessageSupplier messageSupplier) {
+        logExtendedMessage(Log.VERBOSE, tag, messageSupplier);
+    }
+
+    public static void logVerboseFormat(String tag, @NonNull String format, Object... args) {
+        logMessageFormat(Log.VERBOSE, tag, format, args);
+    }
+
+    public static void logVerboseExtendedFormat(String tag, @NonNull String format, Object... args) {
+        logExtendedMessageFormat(Log.VERBOSE, tag, format, args);
+    }
+
     public static void logVerboseForce(String tag, String message) {
-        Log.v(tag, message);
+        if (message != null)
+            LogWriter.write(Log.VERBOSE, tag, message, false);
     }
 
 
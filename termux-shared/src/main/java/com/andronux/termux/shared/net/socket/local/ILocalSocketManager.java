@@ -69,4 +69,18 @@ public interface ILocalSocketManager {
     void onClientAccepted(@NonNull LocalSocketManager localSocketManager,
                           @NonNull LocalClientSocket clientSocket);
 
+    /**
+     * This is called instead of {@link #onClientAccepted(LocalSocketManager, LocalClientSocket)}
+     * if all the worker threads of the server are busy and the worker queue is full. It is called
+     * on the client socket listener thread, so it must only send a short error reply to the client,
+     * if needed. The server will automatically close the client socket with a call to
+     * {@link LocalClientSocket#closeClientSocket(boolean)} after it returns.
+     *
+     * @param localSocketManager The {@link LocalSocketManager} for the server.
+     * @param clientSocket The {@link LocalClientSocket} that connected.
+     * @param error The {@link Error} auto generated that can be used for logging purposes.
+     */
+    void onClientRejected(@NonNull LocalSocketManager localSocketManager,
+                          @NonNull LocalClientSocket clientSocket, @NonNull Error error);
+
 }
@@ -8,19 +8,23 @@ import com.andronux.termux.shared.jni.models.JniResult;
 import com.andronux.termux.shared.logger.Logger;
 import com.andronux.termux.shared.markdown.MarkdownUtils;
 
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /** The client socket for {@link LocalSocketManager}. */
 public class LocalClientSocket implements Closeable {
 
     public static final String LOG_TAG = "LocalClientSocket";
 
+    /** The initial size of {@link #mReadBuffer} in which data is read from the socket in bulk. */
+    public static final int READ_BUFFER_SIZE = 8192;
+
     /** The {@link LocalSocketManager} instance for the local socket. */
     @NonNull protected final LocalSocketManager mLocalSocketManager;
 
@@ -45,6 +49,20 @@ public class LocalClientSocket implements Closeable {
     /** The {@link InputStream} implementation for the {@link LocalClientSocket}. */
     @NonNull protected final SocketInputStream mInputStream;
 
+    /**
+     * The buffer reused by {@link #readDataOnInputStream(StringBuilder, boolean)} to read data in
+     * bulk from the socket, instead of a JNI call and syscall per byte.
+     */
+    protected byte[] mReadBuffer;
+
+    /**
+     * The offset and length in {@link #mReadBuffer} of the bytes that were read from the socket
+     * after the null `\0` character at which {@link #readDataOnInputStream(StringBuilder, boolean)}
+     * stopped. They are returned by the next reads before any more bytes are read from the socket.
+     */
+    protected int mReadBufferOffset;
+    protected int mReadBufferLength;
+
     /**
      * Create an new instance of {@link LocalClientSocket}.
      *
@@ -121,6 +139,23 @@ public class LocalClientSocket implements Closeable {
      * error {@link String}, otherwise {@code null}.
      */
     public Error read(@NonNull byte[] data, MutableInt bytesRead) {
+        return read(data, 0, data.length, bytesRead);
+    }
+
+    /**
+     * Attempts to read up to {@code length} bytes from file descriptor into the data buffer starting
+     * at {@code offset}.
+     *
+     * Check {@link #read(byte[], MutableInt)} for more info.
+     *
+     * @param data The data buffer to read bytes into.
+     * @param offset The offset in data buffer at which to start writing bytes read.
+     * @param length The max number of bytes to read.
+     * @param bytesRead The actual bytes read.
+     * @return Returns the {@code error} if reading was not successful containing {@link JniResult}
+     * error {@link String}, otherwise {@code null}.
+     */
+    public Error read(@NonNull byte[] data, int offset, int length, MutableInt bytesRead) {
         bytesRead.value = 0;
 
         if (mFD < 0) {
@@ -129,7 +164,7 @@ public class LocalClientSocket implements Closeable {
         }
 
         JniResult result = LocalSocketManager.read(mLocalSocketRunConfig.getLogTitle() + " (client)",
-            mFD, data,
+            mFD, data, offset, length,
             mLocalSocketRunConfig.getDeadline() > 0 ? mCreationTime + mLocalSocketRunConfig.getDeadline() : 0);
         if (result == null || result.retval != 0) {
             return LocalSocketErrno.ERRNO_READ_DATA_FROM_CLIENT_SOCKET_FAILED.getError(
@@ -156,13 +191,29 @@ public class LocalClientSocket implements Closeable {
      * error {@link String}, otherwise {@code null}.
      */
     public Error send(@NonNull byte[] data) {
+        return send(data, 0, data.length);
+    }
+
+    /**
+     * Attempts to send {@code length} bytes of the data buffer starting at {@code offset} to the
+     * file descriptor.
+     *
+     * Check {@link #send(byte[])} for more info.
+     *
+     * @param data The data buffer containing bytes to send.
+     * @param offset The offset in data buffer of the first byte to send.
+     * @param length The number of bytes to send.
+     * @return Returns the {@code error} if sending was not successful containing {@link JniResult}
+     * error {@link String}, otherwise {@code null}.
+     */
+    public Error send(@NonNull byte[] data, int offset, int length) {
         if (mFD < 0) {
             return LocalSocketErrno.ERRNO_USING_CLIENT_SOCKET_WITH_INVALID_FD.getError(mFD,
                 mLocalSocketRunConfig.getTitle());
         }
 
         JniResult result = LocalSocketManager.send(mLocalSocketRunConfig.getLogTitle() + " (client)",
-            mFD, data,
+            mFD, data, offset, length,
             mLocalSocketRunConfig.getDeadline() > 0 ? mCreationTime + mLocalSocketRunConfig.getDeadline() : 0);
         if (result == null || result.retval != 0) {
             return LocalSocketErrno.ERRNO_SEND_DATA_TO_CLIENT_SOCKET_FAILED.getError(
@@ -174,9 +225,14 @@ public class LocalClientSocket implements Closeable {
 
     /**
      * Attempts to read all the bytes available on {@link SocketInputStream} and appends them to
-     * {@code data} {@link StringBuilder}.
+     * {@code data} {@link StringBuilder}. Reading stops at end of file or at the first null `\0`
+     * character.
+     *
+     * The bytes are read in bulk into {@link #mReadBuffer}, which grows if needed, and are decoded
+     * as UTF-8 once all of them have been read. Bytes read after the null character are not lost,
+     * they are returned by the next read on the {@link SocketInputStream} or by the next call.
      *
-     * This is a wrapper for {@link #read(byte[], MutableInt)} called via {@link SocketInputStream#read()}.
+     * This is a wrapper for {@link #read(byte[], int, int, MutableInt)}.
      *
      * @param data The data {@link StringBuilder} to append the bytes read into.
      * @param closeStreamOnFinish If set to {@code true}, then underlying input stream will closed
@@ -185,12 +241,37 @@ public class LocalClientSocket implements Closeable {
      * error {@link String}, otherwise {@code null}.
      */
     public Error readDataOnInputStream(@NonNull StringBuilder data, boolean closeStreamOnFinish) {
-        int c;
-        InputStreamReader inputStreamReader = getInputStreamReader();
+        if (mReadBuffer == null)
+            mReadBuffer = new byte[READ_BUFFER_SIZE];
+
+        // Start with the bytes left over by the previous read, if any
+        System.arraycopy(mReadBuffer, mReadBufferOffset, mReadBuffer, 0, mReadBufferLength);
+        int length = mReadBufferLength;
+        mReadBufferOffset = 0;
+        mReadBufferLength = 0;
+
+        int scanned = 0;
         try {
-            while ((c = inputStreamReader.read()) > 0) {
-                data.append((char) c);
+            while (true) {
+                int nullIndex = indexOfNull(mReadBuffer, scanned, length);
+                if (nullIndex >= 0) {
+                    // Keep the bytes after the null character for the next read
+                    mReadBufferOffset = nullIndex + 1;
+                    mReadBufferLength = length - mReadBufferOffset;
+                    length = nullIndex;
+                    break;
+                }
+                scanned = length;
+
+                if (length == mReadBuffer.length)
+                    mReadBuffer = Arrays.copyOf(mReadBuffer, mReadBuffer.length * 2);
+
+                int bytesRead = readFromSocket(mReadBuffer, length, mReadBuffer.length - length);
+                if (bytesRead < 0) break;
+                length += bytesRead;
             }
+
+            data.append(new String(mReadBuffer, 0, length, StandardCharsets.UTF_8));
         } catch (IOException e) {
             // The SocketInputStream.read() throws the Error message in an IOException,
             // so just read the exception message and not the stack trace, otherwise it would result
@@ -202,7 +283,7 @@ public class LocalClientSocket implements Closeable {
                 e, mLocalSocketRunConfig.getTitle(), e.getMessage());
         } finally {
             if (closeStreamOnFinish) {
-                try { inputStreamReader.close();
+                try { mInputStream.close();
                 } catch (IOException e) {
                     // Ignore
                 }
@@ -213,9 +294,12 @@ public class LocalClientSocket implements Closeable {
     }
 
     /**
-     * Attempts to send all the bytes passed to {@link SocketOutputStream} .
+     * Attempts to send all the bytes passed to {@link SocketOutputStream}.
      *
-     * This is a wrapper for {@link #send(byte[])} called via {@link SocketOutputStream#write(int)}.
+     * The data is encoded as UTF-8 once and sent in bulk.
+     *
+     * This is a wrapper for {@link #send(byte[], int, int)} called via
+     * {@link SocketOutputStream#write(byte[], int, int)}.
      *
      * @param data The {@link String} bytes to send.
      * @param closeStreamOnFinish If set to {@code true}, then underlying output stream will closed
@@ -224,12 +308,8 @@ public class LocalClientSocket implements Closeable {
      * error {@link String}, otherwise {@code null}.
      */
     public Error sendDataToOutputStream(@NonNull String data, boolean closeStreamOnFinish) {
-
-        OutputStreamWriter outputStreamWriter = getOutputStreamWriter();
-
-        try (BufferedWriter byteStreamWriter = new BufferedWriter(outputStreamWriter)) {
-            byteStreamWriter.write(data);
-            byteStreamWriter.flush();
+        try {
+            mOutputStream.write(data.getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             // The SocketOutputStream.write() throws the Error message in an IOException,
             // so just read the exception message and not the stack trace, otherwise it would result
@@ -242,7 +322,7 @@ public class LocalClientSocket implements Closeable {
         } finally {
             if (closeStreamOnFinish) {
                 try {
-                    outputStreamWriter.close();
+                    mOutputStream.close();
                 } catch (IOException e) {
                     // Ignore
                 }
@@ -252,6 +332,31 @@ public class LocalClientSocket implements Closeable {
         return null;
     }
 
+    /**
+     * Read bytes from the socket, bypassing any bytes left over in {@link #mReadBuffer}.
+     *
+     * @return Returns the number of bytes read, or {@code -1} at end of file.
+     * @throws IOException With the {@link Error} message if reading failed.
+     */
+    private int readFromSocket(@NonNull byte[] data, int offset, int length) throws IOException {
+        MutableInt bytesRead = new MutableInt(0);
+        Error error = read(data, offset, length, bytesRead);
+        if (error != null) {
+            throw new IOException(error.getErrorMarkdownString());
+        }
+
+        return bytesRead.value == 0 ? -1 : bytesRead.value;
+    }
+
+    /** Get the index of the first null `\0` byte in data between start and end, otherwise {@code -1}. */
+    private static int indexOfNull(@NonNull byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == 0)
+                return i;
+        }
+        return -1;
+    }
+
     /** Wrapper for {@link #available(MutableInt, boolean)} that checks deadline. The
      * {@link SocketInputStream} calls this. */
     public Error available(MutableInt available) {
@@ -274,7 +379,7 @@ public class LocalClientSocket implements Closeable {
             return null;
         }
 
-        JniResult result = LocalSocketManager.available(mLocalSocketRunConfig.getLogTitle() + " (client)", mLocalSocketRunConfig.getFD());
+        JniResult result = LocalSocketManager.available(mLocalSocketRunConfig.getLogTitle() + " (client)", mFD);
         if (result == null || result.retval != 0) {
             return LocalSocketErrno.ERRNO_CHECK_AVAILABLE_DATA_ON_CLIENT_SOCKET_FAILED.getError(
                 mLocalSocketRunConfig.getTitle(), JniResult.getErrorString(result));
@@ -412,36 +517,40 @@ public class LocalClientSocket implements Closeable {
 
         @Override
         public int read() throws IOException {
-            MutableInt bytesRead = new MutableInt(0);
-            Error error = LocalClientSocket.this.read(mBytes, bytesRead);
-            if (error != null) {
-                throw new IOException(error.getErrorMarkdownString());
-            }
+            return read(mBytes, 0, 1) < 0 ? -1 : mBytes[0] & 0xFF;
+        }
 
-            if (bytesRead.value == 0) {
-                return -1;
+        @Override
+        public int read(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                throw new NullPointerException("Read buffer can't be null");
             }
 
-            return mBytes[0];
+            return read(bytes, 0, bytes.length);
         }
 
         @Override
-        public int read(byte[] bytes) throws IOException {
+        public int read(byte[] bytes, int offset, int length) throws IOException {
             if (bytes == null) {
                 throw new NullPointerException("Read buffer can't be null");
             }
-
-            MutableInt bytesRead = new MutableInt(0);
-            Error error = LocalClientSocket.this.read(bytes, bytesRead);
-            if (error != null) {
-                throw new IOException(error.getErrorMarkdownString());
+            if (offset < 0 || length < 0 || length > bytes.length - offset) {
+                throw new IndexOutOfBoundsException("Invalid offset " + offset + " and length " + length + " for read buffer of length " + bytes.length);
+            }
+            if (length == 0) {
+                return 0;
             }
 
-            if (bytesRead.value == 0) {
-                return -1;
+            // Return the bytes left over by readDataOnInputStream() first
+            if (mReadBufferLength > 0) {
+                int bytesRead = Math.min(length, mReadBufferLength);
+                System.arraycopy(mReadBuffer, mReadBufferOffset, bytes, offset, bytesRead);
+                mReadBufferOffset += bytesRead;
+                mReadBufferLength -= bytesRead;
+                return bytesRead;
             }
 
-            return bytesRead.value;
+            return readFromSocket(bytes, offset, length);
         }
 
         @Override
@@ -451,7 +560,7 @@ public class LocalClientSocket implements Closeable {
             if (error != null) {
                 throw new IOException(error.getErrorMarkdownString());
             }
-            return available.value;
+            return mReadBufferLength + available.value;
         }
     }
 
@@ -464,16 +573,21 @@ public class LocalClientSocket implements Closeable {
         @Override
         public void write(int b) throws IOException {
             mBytes[0] = (byte) b;
-
-            Error error = LocalClientSocket.this.send(mBytes);
-            if (error != null) {
-                throw new IOException(error.getErrorMarkdownString());
-            }
+            write(mBytes, 0, 1);
         }
 
         @Override
         public void write(byte[] bytes) throws IOException {
-            Error error = LocalClientSocket.this.send(bytes);
+            write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (offset < 0 || length < 0 || length > bytes.length - offset) {
+                throw new IndexOutOfBoundsException("Invalid offset " + offset + " and length " + length + " for write buffer of length " + bytes.length);
+            }
+
+            Error error = LocalClientSocket.this.send(bytes, offset, length);
             if (error != null) {
                 throw new IOException(error.getErrorMarkdownString());
             }
@@ -1,6 +1,9 @@
 package com.andronux.termux.shared.net.socket.local;
 
+import android.system.OsConstants;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.andronux.termux.shared.errors.Error;
 import com.andronux.termux.shared.file.FileUtils;
@@ -11,6 +14,11 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /** The server socket for {@link LocalSocketManager}. */
 public class LocalServerSocket implements Closeable {
@@ -29,6 +37,18 @@ public class LocalServerSocket implements Closeable {
     /** The {@link ClientSocketListener} {@link Thread} for the {@link LocalServerSocket}. */
     @NonNull protected final Thread mClientSocketListener;
 
+    /**
+     * The eventfd used to wake up the {@link ClientSocketListener} poller when server is stopped.
+     * This will be -1 if the poller has not been created yet or has been closed.
+     */
+    protected int mPollerWakeupFD = -1;
+
+    /**
+     * The clients passed to {@link #watchClient(LocalClientSocket, Runnable)} that the
+     * {@link ClientSocketListener} has not added to its poller yet.
+     */
+    protected final List<PendingClient> mWatchedClients = new ArrayList<>();
+
     /**
      * The required permissions for server socket file parent directory.
      * Creation of a new socket will fail if the server starter app process does not have
@@ -132,6 +152,10 @@ public class LocalServerSocket implements Closeable {
             mClientSocketListener.interrupt();
         } catch (Exception ignored) {}
 
+        // Closing the server socket does not wake up the poller, so wake it up to see the interrupt
+        if (mPollerWakeupFD >= 0)
+            LocalSocketManager.pollerWakeup(mLocalSocketRunConfig.getLogTitle() + " (server)", mPollerWakeupFD);
+
         Error error = closeServerSocket(false);
         if (error != null)
             return error;
@@ -172,6 +196,23 @@ public class LocalServerSocket implements Closeable {
         }
     }
 
+    /**
+     * Watch a client that was already passed to the {@link ILocalSocketManager} with the
+     * {@link ClientSocketListener} poller again.
+     * Check {@link LocalSocketManager#watchClient(LocalClientSocket, Runnable)}.
+     *
+     * @return Returns {@code true} if the client will be watched, otherwise {@code false} if the
+     * server is not running.
+     */
+    protected synchronized boolean watchClient(@NonNull LocalClientSocket clientSocket, @NonNull Runnable onClientReady) {
+        if (mPollerWakeupFD < 0)
+            return false;
+
+        mWatchedClients.add(new PendingClient(clientSocket, onClientReady));
+        LocalSocketManager.pollerWakeup(mLocalSocketRunConfig.getLogTitle() + " (server)", mPollerWakeupFD);
+        return true;
+    }
+
     /**
      * Delete server socket file if not an abstract namespace socket. This will cause any existing
      * running server to stop.
@@ -183,7 +224,13 @@ public class LocalServerSocket implements Closeable {
             return null;
     }
 
-    /** Listen and accept new {@link LocalClientSocket}. */
+    /**
+     * Listen and accept new {@link LocalClientSocket}.
+     *
+     * @return Returns the {@link LocalClientSocket}, or {@code null} if the server socket is closed
+     * or if it is non-blocking, like after {@link LocalSocketManager#createPoller(String, int, int[])},
+     * and there are no more pending clients.
+     */
     public LocalClientSocket accept() {
         Logger.logVerbose(LOG_TAG, "accept");
 
@@ -196,6 +243,9 @@ public class LocalServerSocket implements Closeable {
             }
 
             JniResult result = LocalSocketManager.accept(mLocalSocketRunConfig.getLogTitle() + " (client)", fd);
+            if (result != null && result.retval != 0 && result.errno == OsConstants.EAGAIN) {
+                return null;
+            }
             if (result == null || result.retval != 0) {
                 mLocalSocketManager.onError(
                     LocalSocketErrno.ERRNO_ACCEPT_CLIENT_SOCKET_FAILED.getError(mLocalSocketRunConfig.getTitle(), JniResult.getErrorString(result)));
@@ -227,7 +277,7 @@ public class LocalServerSocket implements Closeable {
             }
 
             LocalClientSocket clientSocket =  new LocalClientSocket(mLocalSocketManager, clientFD, peerCred);
-            Logger.logVerbose(LOG_TAG, "Client socket accept for \"" + mLocalSocketRunConfig.getTitle() + "\" server\n" + clientSocket.getLogString());
+            Logger.logVerbose(LOG_TAG, () -> "Client socket accept for \"" + mLocalSocketRunConfig.getTitle() + "\" server\n" + clientSocket.getLogString());
 
             // Only allow connection if the peer has the same uid as server app's user id or root user id
             if (peerUid != mLocalSocketManager.getContext().getApplicationInfo().uid && peerUid != 0) {
@@ -245,51 +295,112 @@ public class LocalServerSocket implements Closeable {
 
 
 
-    /** The {@link LocalClientSocket} listener {@link java.lang.Runnable} for {@link LocalServerSocket}. */
+    /** A client watched by the {@link ClientSocketListener} poller until it has sent data. */
+    protected static class PendingClient {
+
+        @NonNull protected final LocalClientSocket mClientSocket;
+
+        /**
+         * The {@link Runnable} to run once a client passed to {@link #watchClient(LocalClientSocket, Runnable)}
+         * is ready. This will be {@code null} for new clients.
+         */
+        @Nullable protected final Runnable mOnClientReady;
+
+        /** The milliseconds since epoch at which the client started being watched. */
+        protected final long mWatchTime;
+
+        protected PendingClient(@NonNull LocalClientSocket clientSocket, @Nullable Runnable onClientReady) {
+            mClientSocket = clientSocket;
+            mOnClientReady = onClientReady;
+            mWatchTime = System.currentTimeMillis();
+        }
+
+    }
+
+    /**
+     * The {@link LocalClientSocket} listener {@link java.lang.Runnable} for {@link LocalServerSocket}.
+     *
+     * New clients are accepted and then watched with epoll until they have sent data, and only
+     * then passed to a worker thread with {@link LocalSocketManager#onClientAccepted(LocalClientSocket)},
+     * so that clients that are slow to send their request do not hold a worker thread. Clients that
+     * do not send any data within {@link LocalSocketRunConfig#getReceiveTimeout()} are closed.
+     * Clients kept open by the {@link ILocalSocketManager} are watched the same way between their
+     * requests after a call to {@link #watchClient(LocalClientSocket, Runnable)}.
+     */
     protected class ClientSocketListener implements Runnable {
 
+        /** The max number of ready fds returned by one poller wait. */
+        private static final int MAX_READY_FDS = 32;
+
+        /** The clients that are watched until they have sent data, mapped by their fd. */
+        private final Map<Integer, PendingClient> mPendingClients = new HashMap<>();
+
+        private int mEpollFD = -1;
+
         @Override
         public void run() {
             try {
                 Logger.logVerbose(LOG_TAG, "ClientSocketListener start");
 
+                int serverFD = mLocalSocketRunConfig.getFD();
+                if (serverFD < 0)
+                    return;
+
+                int[] fds = new int[2];
+                JniResult result = LocalSocketManager.createPoller(mLocalSocketRunConfig.getLogTitle() + " (server)", serverFD, fds);
+                if (result == null || result.retval != 0) {
+                    mLocalSocketManager.onError(
+                        LocalSocketErrno.ERRNO_CREATE_CLIENT_SOCKET_POLLER_FAILED.getError(mLocalSocketRunConfig.getTitle(), JniResult.getErrorString(result)));
+                    return;
+                }
+
+                synchronized (LocalServerSocket.this) {
+                    mEpollFD = fds[0];
+                    mPollerWakeupFD = fds[1];
+                }
+
+                int[] readyFDs = new int[MAX_READY_FDS];
                 while (!Thread.currentThread().isInterrupted()) {
-                    LocalClientSocket clientSocket = null;
-                    try {
-                        // Listen for new client socket connections
-                        clientSocket = null;
-                        clientSocket = accept();
-                        // If server socket is closed, then stop listener thread.
-                        if (clientSocket == null)
-                            break;
-
-                        Error error;
-
-                        error = clientSocket.setReadTimeout();
-                        if (error != null) {
-                            mLocalSocketManager.onError(clientSocket, error);
-                            clientSocket.closeClientSocket(true);
-                            continue;
-                        }
+                    result = LocalSocketManager.pollerWait(mLocalSocketRunConfig.getLogTitle() + " (server)",
+                        mEpollFD, mPollerWakeupFD, readyFDs, getPollerTimeout());
+                    if (result == null || result.retval != 0) {
+                        mLocalSocketManager.onError(
+                            LocalSocketErrno.ERRNO_POLL_CLIENT_SOCKETS_FAILED.getError(mLocalSocketRunConfig.getTitle(), JniResult.getErrorString(result)));
+                        break;
+                    }
 
-                        error = clientSocket.setWriteTimeout();
-                        if (error != null) {
-                            mLocalSocketManager.onError(clientSocket, error);
-                            clientSocket.closeClientSocket(true);
-                            continue;
+                    for (int i = 0; i < result.intData; i++) {
+                        if (readyFDs[i] == serverFD) {
+                            // If server socket is closed, then stop listener thread.
+                            if (!acceptPendingClients())
+                                return;
+                        } else {
+                            onPendingClientReady(readyFDs[i]);
                         }
-
-                        // Start new thread for client logic and pass control to ILocalSocketManager implementation
-                        mLocalSocketManager.onClientAccepted(clientSocket);
-                    } catch (Throwable t) {
-                        mLocalSocketManager.onError(clientSocket,
-                            LocalSocketErrno.ERRNO_CLIENT_SOCKET_LISTENER_FAILED_WITH_EXCEPTION.getError(t, mLocalSocketRunConfig.getTitle(), t.getMessage()));
-                        if (clientSocket != null)
-                            clientSocket.closeClientSocket(true);
                     }
+
+                    addWatchedClients();
+                    closeTimedOutPendingClients();
                 }
             } catch (Exception ignored) {
             } finally {
+                for (PendingClient pendingClient : mPendingClients.values())
+                    pendingClient.mClientSocket.closeClientSocket(true);
+                mPendingClients.clear();
+
+                synchronized (LocalServerSocket.this) {
+                    for (PendingClient pendingClient : mWatchedClients)
+                        pendingClient.mClientSocket.closeClientSocket(true);
+                    mWatchedClients.clear();
+
+                    if (mPollerWakeupFD >= 0)
+                        LocalSocketManager.closeSocket(mLocalSocketRunConfig.getLogTitle() + " (server)", mPollerWakeupFD);
+                    if (mEpollFD >= 0)
+                        LocalSocketManager.closeSocket(mLocalSocketRunConfig.getLogTitle() + " (server)", mEpollFD);
+                    mPollerWakeupFD = -1;
+                    mEpollFD = -1;
+                }
+
                 try {
                     close();
                 } catch (Exception ignored) {}
@@ -298,6 +409,143 @@ public class LocalServerSocket implements Closeable {
             Logger.logVerbose(LOG_TAG, "ClientSocketListener end");
         }
 
+        /**
+         * Accept all pending clients of the server socket and add them to the poller.
+         *
+         * @return Returns {@code false} if the server socket is closed, otherwise {@code true}.
+         */
+        private boolean acceptPendingClients() {
+            while (true) {
+                LocalClientSocket clientSocket = null;
+                try {
+                    // Listen for new client socket connections
+                    clientSocket = accept();
+                    if (clientSocket == null)
+                        return mLocalSocketRunConfig.getFD() >= 0;
+
+                    Error error;
+
+                    error = clientSocket.setReadTimeout();
+                    if (error != null) {
+                        mLocalSocketManager.onError(clientSocket, error);
+                        clientSocket.closeClientSocket(true);
+                        continue;
+                    }
+
+                    error = clientSocket.setWriteTimeout();
+                    if (error != null) {
+                        mLocalSocketManager.onError(clientSocket, error);
+                        clientSocket.closeClientSocket(true);
+                        continue;
+                    }
+
+                    JniResult result = LocalSocketManager.pollerAddClient(mLocalSocketRunConfig.getLogTitle() + " (client)",
+                        mEpollFD, clientSocket.getFD());
+                    if (result == null || result.retval != 0) {
+                        // Pass control to ILocalSocketManager implementation without waiting for data
+                        mLocalSocketManager.onClientAccepted(clientSocket);
+                        continue;
+                    }
+
+                    mPendingClients.put(clientSocket.getFD(), new PendingClient(clientSocket, null));
+                } catch (Throwable t) {
+                    mLocalSocketManager.onError(clientSocket,
+                        LocalSocketErrno.ERRNO_CLIENT_SOCKET_LISTENER_FAILED_WITH_EXCEPTION.getError(t, mLocalSocketRunConfig.getTitle(), t.getMessage()));
+                    if (clientSocket != null)
+                        clientSocket.closeClientSocket(true);
+                }
+            }
+        }
+
+        /** Add the clients passed to {@link #watchClient(LocalClientSocket, Runnable)} to the poller. */
+        private void addWatchedClients() {
+            List<PendingClient> watchedClients;
+            synchronized (LocalServerSocket.this) {
+                if (mWatchedClients.isEmpty())
+                    return;
+                watchedClients = new ArrayList<>(mWatchedClients);
+                mWatchedClients.clear();
+            }
+
+            for (PendingClient pendingClient : watchedClients) {
+                JniResult result = LocalSocketManager.pollerAddClient(mLocalSocketRunConfig.getLogTitle() + " (client)",
+                    mEpollFD, pendingClient.mClientSocket.getFD());
+                if (result == null || result.retval != 0) {
+                    // Pass control back without waiting for data
+                    onPendingClientReady(pendingClient);
+                    continue;
+                }
+
+                mPendingClients.put(pendingClient.mClientSocket.getFD(), pendingClient);
+            }
+        }
+
+        /** Remove a pending client that has sent data or closed its writing end from the poller and pass it to a worker thread. */
+        private void onPendingClientReady(int clientFD) {
+            PendingClient pendingClient = mPendingClients.remove(clientFD);
+            if (pendingClient == null)
+                return;
+
+            LocalSocketManager.pollerRemoveClient(mLocalSocketRunConfig.getLogTitle() + " (client)", mEpollFD, clientFD);
+            onPendingClientReady(pendingClient);
+        }
+
+        /** Pass a pending client to a worker thread. */
+        private void onPendingClientReady(@NonNull PendingClient pendingClient) {
+            LocalClientSocket clientSocket = pendingClient.mClientSocket;
+            try {
+                // Start client logic on a worker thread and pass control to ILocalSocketManager implementation
+                if (pendingClient.mOnClientReady != null)
+                    mLocalSocketManager.onWatchedClientReady(clientSocket, pendingClient.mOnClientReady);
+                else
+                    mLocalSocketManager.onClientAccepted(clientSocket);
+            } catch (Throwable t) {
+                mLocalSocketManager.onError(clientSocket,
+                    LocalSocketErrno.ERRNO_CLIENT_SOCKET_LISTENER_FAILED_WITH_EXCEPTION.getError(t, mLocalSocketRunConfig.getTitle(), t.getMessage()));
+                clientSocket.closeClientSocket(true);
+            }
+        }
+
+        /**
+         * Close pending clients that have not sent any data within the receive timeout. Watched
+         * clients that were kept open are expected to go idle, so they are closed without an error.
+         */
+        private void closeTimedOutPendingClients() {
+            int receiveTimeout = mLocalSocketRunConfig.getReceiveTimeout();
+            if (receiveTimeout <= 0 || mPendingClients.isEmpty())
+                return;
+
+            long currentTime = System.currentTimeMillis();
+            Iterator<PendingClient> iterator = mPendingClients.values().iterator();
+            while (iterator.hasNext()) {
+                PendingClient pendingClient = iterator.next();
+                if (currentTime - pendingClient.mWatchTime < receiveTimeout)
+                    continue;
+
+                iterator.remove();
+                LocalClientSocket clientSocket = pendingClient.mClientSocket;
+                LocalSocketManager.pollerRemoveClient(mLocalSocketRunConfig.getLogTitle() + " (client)", mEpollFD, clientSocket.getFD());
+                if (pendingClient.mOnClientReady != null)
+                    Logger.logVerbose(LOG_TAG, () -> "Closing idle client for \"" + mLocalSocketRunConfig.getTitle() + "\" server: " + clientSocket.getPeerCred().getMinimalString());
+                else
+                    mLocalSocketManager.onError(clientSocket,
+                        LocalSocketErrno.ERRNO_CLIENT_SOCKET_TIMED_OUT_BEFORE_SENDING_DATA.getError(mLocalSocketRunConfig.getTitle(), receiveTimeout));
+                clientSocket.closeClientSocket(true);
+            }
+        }
+
+        /** Get the milliseconds until the first pending client times out, or -1 to wait without a timeout. */
+        private int getPollerTimeout() {
+            int receiveTimeout = mLocalSocketRunConfig.getReceiveTimeout();
+            if (receiveTimeout <= 0 || mPendingClients.isEmpty())
+                return -1;
+
+            long firstWatchTime = Long.MAX_VALUE;
+            for (PendingClient pendingClient : mPendingClients.values())
+                firstWatchTime = Math.min(firstWatchTime, pendingClient.mWatchTime);
+            return (int) Math.max(0, firstWatchTime + receiveTimeout - System.currentTimeMillis());
+        }
+
     }
 
 }
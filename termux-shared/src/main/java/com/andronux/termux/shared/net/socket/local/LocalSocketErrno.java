@@ -24,6 +24,10 @@ public class LocalSocketErrno extends Errno {
     public static final Errno ERRNO_CLIENT_SOCKET_PEER_UID_DISALLOWED = new Errno(TYPE, 160, "Disallowed peer %1$s tried to connect with \"%2$s\" server.");
     public static final Errno ERRNO_CLOSE_SERVER_SOCKET_FAILED_WITH_EXCEPTION = new Errno(TYPE, 161, "Close \"%1$s\" server socket failed.\nException: %2$s");
     public static final Errno ERRNO_CLIENT_SOCKET_LISTENER_FAILED_WITH_EXCEPTION = new Errno(TYPE, 162, "Exception in client socket listener for \"%1$s\" server.\nException: %2$s");
+    public static final Errno ERRNO_CLIENT_SOCKET_REJECTED_WORKER_POOL_FULL = new Errno(TYPE, 163, "Rejected client for \"%1$s\" server since all %2$s worker threads are busy and %3$s clients are already queued.");
+    public static final Errno ERRNO_CREATE_CLIENT_SOCKET_POLLER_FAILED = new Errno(TYPE, 164, "Create client socket poller for \"%1$s\" server failed.\n%2$s");
+    public static final Errno ERRNO_POLL_CLIENT_SOCKETS_FAILED = new Errno(TYPE, 165, "Polling client sockets for \"%1$s\" server failed.\n%2$s");
+    public static final Errno ERRNO_CLIENT_SOCKET_TIMED_OUT_BEFORE_SENDING_DATA = new Errno(TYPE, 166, "Client for \"%1$s\" server did not send any data within the receive timeout of %2$s ms.");
 
     /** Errors for {@link LocalClientSocket} (200-250) */
     public static final Errno ERRNO_SET_CLIENT_SOCKET_READ_TIMEOUT_FAILED = new Errno(TYPE, 200, "Set \"%1$s\" client socket read (SO_RCVTIMEO) timeout to \"%2$s\" failed.\n%3$s");
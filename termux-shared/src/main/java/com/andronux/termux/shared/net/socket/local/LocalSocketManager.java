@@ -9,6 +9,12 @@ import com.andronux.termux.shared.errors.Error;
 import com.andronux.termux.shared.jni.models.JniResult;
 import com.andronux.termux.shared.logger.Logger;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Manager for an AF_UNIX/SOCK_STREAM local server.
  *
@@ -19,6 +25,18 @@ import com.andronux.termux.shared.logger.Logger;
  * 2. Create a {@link LocalSocketRunConfig} instance with the run config of the server.
  * 3. Create a {@link LocalSocketManager} instance and call {@link #start()}.
  * 4. Stop server if needed with a call to {@link #stop()}.
+ *
+ * The {@link ILocalSocketManager} callbacks are run on a bounded pool of worker threads configured
+ * with {@link LocalSocketRunConfig#getMaxWorkerThreads()} and {@link LocalSocketRunConfig#getWorkerQueueSize()}.
+ * Up to max worker threads clients are served in parallel, and only once all of them are busy do
+ * further clients wait in the queue. Clients are only passed to a worker once
+ * they have sent data, so slow clients do not hold a worker while connecting. If all workers are
+ * busy and the queue is full, the client is passed to
+ * {@link ILocalSocketManager#onClientRejected(LocalSocketManager, LocalClientSocket, Error)} on
+ * the listener thread instead. The pool metrics can be got with {@link LocalSocketRunConfig#getMetrics()}.
+ * Clients that send many requests on one connection can be handed back to the listener between
+ * requests with {@link #watchClient(LocalClientSocket, Runnable)}, so that they only hold a worker
+ * while a request is being served.
  */
 public class LocalSocketManager {
 
@@ -48,6 +66,12 @@ public class LocalSocketManager {
     /** Whether the {@link LocalServerSocket} managed by {@link LocalSocketManager} in running or not. */
     protected boolean mIsRunning;
 
+    /** The worker pool that runs the {@link ILocalSocketManager} callbacks while the server is running. */
+    @Nullable protected volatile ThreadPoolExecutor mWorkerPool;
+
+    /** The idle time after which worker threads are stopped. */
+    public static final long WORKER_THREAD_KEEP_ALIVE_TIME = 30_000; // 30s
+
 
     /**
      * Create an new instance of {@link LocalSocketManager}.
@@ -83,6 +107,7 @@ public class LocalSocketManager {
         }
 
         mIsRunning = true;
+        mWorkerPool = createWorkerPool();
         return mServerSocket.start();
     }
 
@@ -93,7 +118,15 @@ public class LocalSocketManager {
         if (mIsRunning) {
             Logger.logDebugExtended(LOG_TAG, "stop\n" + mLocalSocketRunConfig);
             mIsRunning = false;
-            return mServerSocket.stop();
+            Error error = mServerSocket.stop();
+
+            // Let the clients already passed to workers finish, but do not start new ones
+            ThreadPoolExecutor workerPool = mWorkerPool;
+            mWorkerPool = null;
+            if (workerPool != null)
+                workerPool.shutdown();
+
+            return error;
         }
         return null;
     }
@@ -190,8 +223,29 @@ public class LocalSocketManager {
      */
     @Nullable
     public static JniResult read(@NonNull String serverTitle, int fd, @NonNull byte[] data, long deadline) {
+        return read(serverTitle, fd, data, 0, data.length, deadline);
+    }
+
+    /**
+     * Attempts to read up to {@code length} bytes from file descriptor fd into the data buffer
+     * starting at {@code offset}. Only the bytes actually read are copied into the data buffer, so
+     * callers should reuse a large buffer for all calls instead of reading a few bytes at a time.
+     *
+     * Check {@link #read(String, int, byte[], long)} for more info.
+     *
+     * @param serverTitle The server title used for logging and errors.
+     * @param fd The socket fd.
+     * @param data The data buffer to read bytes into.
+     * @param offset The offset in data buffer at which to start writing bytes read.
+     * @param length The max number of bytes to read.
+     * @param deadline The deadline milliseconds since epoch.
+     * @return Returns the {@link JniResult}. If reading was successful, then {@link JniResult#retval}
+     * will be 0 and {@link JniResult#intData} will contain the bytes read.
+     */
+    @Nullable
+    public static JniResult read(@NonNull String serverTitle, int fd, @NonNull byte[] data, int offset, int length, long deadline) {
         try {
-            return readNative(serverTitle, fd, data, deadline);
+            return readNative(serverTitle, fd, data, offset, length, deadline);
         } catch (Throwable t) {
             String message = "Exception in readNative()";
             Logger.logStackTraceWithMessage(LOG_TAG, message, t);
@@ -214,8 +268,29 @@ public class LocalSocketManager {
      */
     @Nullable
     public static JniResult send(@NonNull String serverTitle, int fd, @NonNull byte[] data, long deadline) {
+        return send(serverTitle, fd, data, 0, data.length, deadline);
+    }
+
+    /**
+     * Attempts to send {@code length} bytes of the data buffer starting at {@code offset} to the
+     * file descriptor. The bytes are sent with a single JNI call, so callers should pass all the
+     * data at once instead of sending a few bytes at a time.
+     *
+     * Check {@link #send(String, int, byte[], long)} for more info.
+     *
+     * @param serverTitle The server title used for logging and errors.
+     * @param fd The socket fd.
+     * @param data The data buffer containing bytes to send.
+     * @param offset The offset in data buffer of the first byte to send.
+     * @param length The number of bytes to send.
+     * @param deadline The deadline milliseconds since epoch.
+     * @return Returns the {@link JniResult}. If sending was successful, then {@link JniResult#retval}
+     * will be 0.
+     */
+    @Nullable
+    public static JniResult send(@NonNull String serverTitle, int fd, @NonNull byte[] data, int offset, int length, long deadline) {
         try {
-            return sendNative(serverTitle, fd, data, deadline);
+            return sendNative(serverTitle, fd, data, offset, length, deadline);
         } catch (Throwable t) {
             String message = "Exception in sendNative()";
             Logger.logStackTraceWithMessage(LOG_TAG, message, t);
@@ -223,6 +298,114 @@ public class LocalSocketManager {
         }
     }
 
+    /**
+     * Creates an epoll instance watching the server socket for new clients, and an eventfd to
+     * wake it up with {@link #pollerWakeup(String, int)}. The server socket is made non-blocking,
+     * so {@link #accept(String, int)} fails with {@link JniResult#errno} {@code EAGAIN} once
+     * there are no more pending clients.
+     *
+     * @param serverTitle The server title used for logging and errors.
+     * @param serverFd The server socket fd.
+     * @param fds The array of length 2 that will be filled with the epoll fd and eventfd.
+     * @return Returns the {@link JniResult}. If creating the poller was successful, then
+     * {@link JniResult#retval} will be 0 and {@link JniResult#intData} will contain the epoll fd.
+     */
+    @Nullable
+    public static JniResult createPoller(@NonNull String serverTitle, int serverFd, @NonNull int[] fds) {
+        try {
+            return createPollerNative(serverTitle, serverFd, fds);
+        } catch (Throwable t) {
+            String message = "Exception in createPollerNative()";
+            Logger.logStackTraceWithMessage(LOG_TAG, message, t);
+            return new JniResult(message, t);
+        }
+    }
+
+    /**
+     * Add a client socket to the epoll instance. The client is only reported once by
+     * {@link #pollerWait(String, int, int, int[], int)}, when it has data to read or has closed
+     * its writing end, after which it should be removed with {@link #pollerRemoveClient(String, int, int)}.
+     *
+     * @param serverTitle The server title used for logging and errors.
+     * @param epollFd The epoll fd.
+     * @param clientFd The client socket fd.
+     * @return Returns the {@link JniResult}. If adding the client was successful, then
+     * {@link JniResult#retval} will be 0.
+     */
+    @Nullable
+    public static JniResult pollerAddClient(@NonNull String serverTitle, int epollFd, int clientFd) {
+        try {
+            return pollerAddClientNative(serverTitle, epollFd, clientFd);
+        } catch (Throwable t) {
+            String message = "Exception in pollerAddClientNative()";
+            Logger.logStackTraceWithMessage(LOG_TAG, message, t);
+            return new JniResult(message, t);
+        }
+    }
+
+    /**
+     * Remove a client socket from the epoll instance.
+     *
+     * @param serverTitle The server title used for logging and errors.
+     * @param epollFd The epoll fd.
+     * @param clientFd The client socket fd.
+     * @return Returns the {@link JniResult}. If removing the client was successful, then
+     * {@link JniResult#retval} will be 0.
+     */
+    @Nullable
+    public static JniResult pollerRemoveClient(@NonNull String serverTitle, int epollFd, int clientFd) {
+        try {
+            return pollerRemoveClientNative(serverTitle, epollFd, clientFd);
+        } catch (Throwable t) {
+            String message = "Exception in pollerRemoveClientNative()";
+            Logger.logStackTraceWithMessage(LOG_TAG, message, t);
+            return new JniResult(message, t);
+        }
+    }
+
+    /**
+     * Wait for the server socket or client sockets added to the epoll instance to be ready, or for
+     * a call to {@link #pollerWakeup(String, int)}.
+     *
+     * @param serverTitle The server title used for logging and errors.
+     * @param epollFd The epoll fd.
+     * @param wakeupFd The eventfd.
+     * @param readyFds The array that will be filled with the ready fds. Its length must be 1-64.
+     * @param timeout The max milliseconds to wait, or -1 to wait until a fd is ready.
+     * @return Returns the {@link JniResult}. If waiting was successful, then {@link JniResult#retval}
+     * will be 0 and {@link JniResult#intData} will contain the number of ready fds, which will be
+     * 0 on timeout or wakeup.
+     */
+    @Nullable
+    public static JniResult pollerWait(@NonNull String serverTitle, int epollFd, int wakeupFd, @NonNull int[] readyFds, int timeout) {
+        try {
+            return pollerWaitNative(serverTitle, epollFd, wakeupFd, readyFds, timeout);
+        } catch (Throwable t) {
+            String message = "Exception in pollerWaitNative()";
+            Logger.logStackTraceWithMessage(LOG_TAG, message, t);
+            return new JniResult(message, t);
+        }
+    }
+
+    /**
+     * Wake up a call to {@link #pollerWait(String, int, int, int[], int)}.
+     *
+     * @param serverTitle The server title used for logging and errors.
+     * @param wakeupFd The eventfd.
+     * @return Returns the {@link JniResult}. If waking up was successful, then
+     * {@link JniResult#retval} will be 0.
+     */
+    @Nullable
+    public static JniResult pollerWakeup(@NonNull String serverTitle, int wakeupFd) {
+        try {
+            return pollerWakeupNative(serverTitle, wakeupFd);
+        } catch (Throwable t) {
+            String message = "Exception in pollerWakeupNative()";
+            Logger.logStackTraceWithMessage(LOG_TAG, message, t);
+            return new JniResult(message, t);
+        }
+    }
+
     /**
      * Gets the number of bytes available to read on the socket.
      *
@@ -309,35 +492,149 @@ public class LocalSocketManager {
         onError(null, error);
     }
 
-    /** Wrapper to call {@link ILocalSocketManager#onError(LocalSocketManager, LocalClientSocket, Error)} in a new thread. */
+    /** Wrapper to call {@link ILocalSocketManager#onError(LocalSocketManager, LocalClientSocket, Error)} in a worker thread. */
     public void onError(@Nullable LocalClientSocket clientSocket, @NonNull Error error) {
-        startLocalSocketManagerClientThread(() ->
-            mLocalSocketManagerClient.onError(this, clientSocket, error));
+        if (!startLocalSocketManagerClientThread(() ->
+            mLocalSocketManagerClient.onError(this, clientSocket, error))) {
+            Logger.logErrorExtended(LOG_TAG, getErrorLogString(error, mLocalSocketRunConfig, clientSocket));
+        }
     }
 
-    /** Wrapper to call {@link ILocalSocketManager#onDisallowedClientConnected(LocalSocketManager, LocalClientSocket, Error)} in a new thread. */
+    /** Wrapper to call {@link ILocalSocketManager#onDisallowedClientConnected(LocalSocketManager, LocalClientSocket, Error)} in a worker thread. */
     public void onDisallowedClientConnected(@NonNull LocalClientSocket clientSocket, @NonNull Error error) {
-        startLocalSocketManagerClientThread(() ->
-            mLocalSocketManagerClient.onDisallowedClientConnected(this, clientSocket, error));
+        if (!startLocalSocketManagerClientThread(() ->
+            mLocalSocketManagerClient.onDisallowedClientConnected(this, clientSocket, error))) {
+            Logger.logWarnExtended(LOG_TAG, getErrorLogString(error, mLocalSocketRunConfig, clientSocket));
+        }
     }
 
-    /** Wrapper to call {@link ILocalSocketManager#onClientAccepted(LocalSocketManager, LocalClientSocket)} in a new thread. */
+    /**
+     * Wrapper to call {@link ILocalSocketManager#onClientAccepted(LocalSocketManager, LocalClientSocket)}
+     * in a worker thread. If the worker pool is full, then
+     * {@link ILocalSocketManager#onClientRejected(LocalSocketManager, LocalClientSocket, Error)} is
+     * called in the current thread instead.
+     */
     public void onClientAccepted(@NonNull LocalClientSocket clientSocket) {
-        startLocalSocketManagerClientThread(() ->
-            mLocalSocketManagerClient.onClientAccepted(this, clientSocket));
+        LocalSocketMetrics metrics = mLocalSocketRunConfig.getMetrics();
+        if (startLocalSocketManagerClientThread(() ->
+            mLocalSocketManagerClient.onClientAccepted(this, clientSocket))) {
+            metrics.onClientAccepted();
+            return;
+        }
+
+        metrics.onClientRejected();
+        Error error = LocalSocketErrno.ERRNO_CLIENT_SOCKET_REJECTED_WORKER_POOL_FULL.getError(mLocalSocketRunConfig.getTitle(),
+            mLocalSocketRunConfig.getMaxWorkerThreads(), mLocalSocketRunConfig.getWorkerQueueSize());
+        try {
+            mLocalSocketManagerClient.onClientRejected(this, clientSocket, error);
+        } finally {
+            clientSocket.closeClientSocket(true);
+        }
+    }
+
+    /**
+     * Watch a client that the {@link ILocalSocketManager} keeps open with the poller of the
+     * {@link LocalServerSocket}, so that it does not hold a worker thread while it is idle between
+     * its requests. Once the client sends more data or closes its writing end, {@code onClientReady}
+     * is run in a worker thread. The client is closed instead if it does not send any data within
+     * {@link LocalSocketRunConfig#getReceiveTimeout()}, if the worker pool is full once it does,
+     * or if the server is stopped.
+     *
+     * The poller only sees data that has not been read from the socket yet, so any data already
+     * read and buffered must be processed before calling this. The client must not be used after
+     * this call until {@code onClientReady} is run.
+     *
+     * @param clientSocket The {@link LocalClientSocket} to watch.
+     * @param onClientReady The {@link Runnable} to run once the client is ready.
+     */
+    public void watchClient(@NonNull LocalClientSocket clientSocket, @NonNull Runnable onClientReady) {
+        if (!mServerSocket.watchClient(clientSocket, onClientReady))
+            clientSocket.closeClientSocket(true);
+    }
+
+    /**
+     * Run {@code onClientReady} of a client passed to {@link #watchClient(LocalClientSocket, Runnable)}
+     * in a worker thread. If the worker pool is full, then the client is closed.
+     */
+    void onWatchedClientReady(@NonNull LocalClientSocket clientSocket, @NonNull Runnable onClientReady) {
+        if (startLocalSocketManagerClientThread(onClientReady))
+            return;
+
+        Error error = LocalSocketErrno.ERRNO_CLIENT_SOCKET_REJECTED_WORKER_POOL_FULL.getError(mLocalSocketRunConfig.getTitle(),
+            mLocalSocketRunConfig.getMaxWorkerThreads(), mLocalSocketRunConfig.getWorkerQueueSize());
+        Logger.logWarnExtended(LOG_TAG, getErrorLogString(error, mLocalSocketRunConfig, clientSocket));
+        clientSocket.closeClientSocket(true);
     }
 
-    /** All client accept logic must be run on separate threads so that incoming client acceptance is not blocked. */
-    public void startLocalSocketManagerClientThread(@NonNull Runnable runnable) {
-        Thread thread = new Thread(runnable);
-        thread.setUncaughtExceptionHandler(getLocalSocketManagerClientThreadUEH());
+    /**
+     * All client accept logic must be run on worker threads so that incoming client acceptance is
+     * not blocked.
+     *
+     * @param runnable The {@link Runnable} to run.
+     * @return Returns {@code true} if the runnable was passed to a worker thread, otherwise {@code false}
+     * if the worker pool is full or a thread could not be started.
+     */
+    public boolean startLocalSocketManagerClientThread(@NonNull Runnable runnable) {
+        ThreadPoolExecutor workerPool = mWorkerPool;
+        if (workerPool == null) {
+            // The server is not running, like for errors while it is stopping
+            Thread thread = new Thread(runnable);
+            thread.setUncaughtExceptionHandler(getLocalSocketManagerClientThreadUEH());
+            try {
+                thread.start();
+                return true;
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "LocalSocketManagerClientThread start failed", e);
+                return false;
+            }
+        }
+
+        LocalSocketMetrics metrics = mLocalSocketRunConfig.getMetrics();
+        long queueTime = System.nanoTime();
+        metrics.onTaskQueued();
         try {
-            thread.start();
-        } catch (Exception e) {
-            Logger.logStackTraceWithMessage(LOG_TAG, "LocalSocketManagerClientThread start failed", e);
+            workerPool.execute(() -> {
+                long startTime = System.nanoTime();
+                metrics.onTaskStarted(startTime - queueTime);
+                try {
+                    runnable.run();
+                } finally {
+                    metrics.onTaskFinished(System.nanoTime() - startTime);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            metrics.onTaskRejected();
+            Logger.logWarn(LOG_TAG, "Worker pool of \"" + mLocalSocketRunConfig.getTitle() + "\" server is full or shut down");
+            return false;
         }
     }
 
+    /**
+     * Create the worker pool as per {@link #mLocalSocketRunConfig}.
+     *
+     * A {@link ThreadPoolExecutor} only starts threads above its core pool size once its queue is
+     * full, so the core pool size is the max worker threads, otherwise clients would be served one
+     * at a time while the queue fills up. Idle core threads are allowed to time out instead.
+     */
+    @NonNull
+    protected ThreadPoolExecutor createWorkerPool() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        int maxWorkerThreads = mLocalSocketRunConfig.getMaxWorkerThreads();
+        ThreadPoolExecutor workerPool = new ThreadPoolExecutor(
+            maxWorkerThreads, maxWorkerThreads,
+            WORKER_THREAD_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(mLocalSocketRunConfig.getWorkerQueueSize()),
+            runnable -> {
+                Thread thread = new Thread(runnable, mLocalSocketRunConfig.getTitle() + "-worker-" + threadNumber.incrementAndGet());
+                thread.setUncaughtExceptionHandler(getLocalSocketManagerClientThreadUEH());
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        workerPool.allowCoreThreadTimeOut(true);
+        return workerPool;
+    }
+
 
 
     /** Get {@link #mContext}. */
@@ -435,12 +732,22 @@ public class LocalSocketManager {
 
     @Nullable private static native JniResult acceptNative(@NonNull String serverTitle, int fd);
 
-    @Nullable private static native JniResult readNative(@NonNull String serverTitle, int fd, @NonNull byte[] data, long deadline);
+    @Nullable private static native JniResult readNative(@NonNull String serverTitle, int fd, @NonNull byte[] data, int offset, int length, long deadline);
 
-    @Nullable private static native JniResult sendNative(@NonNull String serverTitle, int fd, @NonNull byte[] data, long deadline);
+    @Nullable private static native JniResult sendNative(@NonNull String serverTitle, int fd, @NonNull byte[] data, int offset, int length, long deadline);
 
     @Nullable private static native JniResult availableNative(@NonNull String serverTitle, int fd);
 
+    @Nullable private static native JniResult createPollerNative(@NonNull String serverTitle, int serverFd, @NonNull int[] fds);
+
+    @Nullable private static native JniResult pollerAddClientNative(@NonNull String serverTitle, int epollFd, int clientFd);
+
+    @Nullable private static native JniResult pollerRemoveClientNative(@NonNull String serverTitle, int epollFd, int clientFd);
+
+    @Nullable private static native JniResult pollerWaitNative(@NonNull String serverTitle, int epollFd, int wakeupFd, @NonNull int[] readyFds, int timeout);
+
+    @Nullable private static native JniResult pollerWakeupNative(@NonNull String serverTitle, int wakeupFd);
+
     private static native JniResult setSocketReadTimeoutNative(@NonNull String serverTitle, int fd, int timeout);
 
     @Nullable private static native JniResult setSocketSendTimeoutNative(@NonNull String serverTitle, int fd, int timeout);
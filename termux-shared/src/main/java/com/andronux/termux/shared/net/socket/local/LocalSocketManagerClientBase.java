@@ -40,6 +40,14 @@ public abstract class LocalSocketManagerClientBase implements ILocalSocketManage
         clientSocket.closeClientSocket(true);
     }
 
+    @Override
+    public void onClientRejected(@NonNull LocalSocketManager localSocketManager,
+                                 @NonNull LocalClientSocket clientSocket, @NonNull Error error) {
+        Logger.logWarn(getLogTag(), "onClientRejected");
+        Logger.logWarnExtended(getLogTag(), LocalSocketManager.getErrorLogString(error,
+            localSocketManager.getLocalSocketRunConfig(), clientSocket));
+    }
+
 
 
     protected abstract String getLogTag();
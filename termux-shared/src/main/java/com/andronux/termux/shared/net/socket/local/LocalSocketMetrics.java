@@ -0,0 +1,190 @@
+package com.andronux.termux.shared.net.socket.local;
+
+import androidx.annotation.NonNull;
+
+import com.andronux.termux.shared.logger.Logger;
+import com.andronux.termux.shared.markdown.MarkdownUtils;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of the worker pool of a {@link LocalSocketManager}, which can be got with
+ * {@link LocalSocketRunConfig#getMetrics()}.
+ *
+ * The queue latency is the time from a task being submitted to the pool until it is started by a
+ * worker thread, and the run time is the time from it being started until it has finished.
+ */
+public class LocalSocketMetrics implements Serializable {
+
+    /** The number of tasks that have been submitted but not started yet. */
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+
+    /** The max value {@link #mQueueDepth} has reached. */
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    /** The number of {@link LocalClientSocket} that have been passed to a worker thread. */
+    private final AtomicLong mAcceptedClientCount = new AtomicLong();
+
+    /** The number of {@link LocalClientSocket} that were rejected since the pool was full. */
+    private final AtomicLong mRejectedClientCount = new AtomicLong();
+
+    /** The number of tasks that have been started. */
+    private final AtomicLong mStartedTaskCount = new AtomicLong();
+
+    /** The number of tasks that have finished. */
+    private final AtomicLong mFinishedTaskCount = new AtomicLong();
+
+    private final AtomicLong mTotalQueueLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxQueueLatencyNanos = new AtomicLong();
+    private final AtomicLong mTotalRunTimeNanos = new AtomicLong();
+    private final AtomicLong mMaxRunTimeNanos = new AtomicLong();
+
+
+    /** Called when a task is submitted to the pool. */
+    void onTaskQueued() {
+        int queueDepth = mQueueDepth.incrementAndGet();
+        int maxQueueDepth;
+        while (queueDepth > (maxQueueDepth = mMaxQueueDepth.get()) &&
+            !mMaxQueueDepth.compareAndSet(maxQueueDepth, queueDepth)) {
+            // Retry until the max has been updated by this or another thread.
+        }
+    }
+
+    /** Called when a task submitted to the pool is rejected. */
+    void onTaskRejected() {
+        mQueueDepth.decrementAndGet();
+    }
+
+    /** Called when a task is started by a worker thread after having been queued for queueLatencyNanos. */
+    void onTaskStarted(long queueLatencyNanos) {
+        mQueueDepth.decrementAndGet();
+        mStartedTaskCount.incrementAndGet();
+        mTotalQueueLatencyNanos.addAndGet(queueLatencyNanos);
+        updateMax(mMaxQueueLatencyNanos, queueLatencyNanos);
+    }
+
+    /** Called when a task has finished after having run for runTimeNanos. */
+    void onTaskFinished(long runTimeNanos) {
+        mFinishedTaskCount.incrementAndGet();
+        mTotalRunTimeNanos.addAndGet(runTimeNanos);
+        updateMax(mMaxRunTimeNanos, runTimeNanos);
+    }
+
+    /** Called when a {@link LocalClientSocket} is passed to a worker thread. */
+    void onClientAccepted() {
+        mAcceptedClientCount.incrementAndGet();
+    }
+
+    /** Called when a {@link LocalClientSocket} is rejected since the pool is full. */
+    void onClientRejected() {
+        mRejectedClientCount.incrementAndGet();
+    }
+
+    private static void updateMax(@NonNull AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the max has been updated by this or another thread.
+        }
+    }
+
+
+
+    /** Get {@link #mQueueDepth}. */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /** Get {@link #mMaxQueueDepth}. */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /** Get {@link #mAcceptedClientCount}. */
+    public long getAcceptedClientCount() {
+        return mAcceptedClientCount.get();
+    }
+
+    /** Get {@link #mRejectedClientCount}. */
+    public long getRejectedClientCount() {
+        return mRejectedClientCount.get();
+    }
+
+    /** Get {@link #mStartedTaskCount}. */
+    public long getStartedTaskCount() {
+        return mStartedTaskCount.get();
+    }
+
+    /** Get {@link #mFinishedTaskCount}. */
+    public long getFinishedTaskCount() {
+        return mFinishedTaskCount.get();
+    }
+
+    /** Get the average queue latency of started tasks. */
+    public long getAverageQueueLatencyNanos() {
+        long count = mStartedTaskCount.get();
+        return count == 0 ? 0 : mTotalQueueLatencyNanos.get() / count;
+    }
+
+    /** Get the max queue latency of started tasks. */
+    public long getMaxQueueLatencyNanos() {
+        return mMaxQueueLatencyNanos.get();
+    }
+
+    /** Get the average run time of finished tasks. */
+    public long getAverageRunTimeNanos() {
+        long count = mFinishedTaskCount.get();
+        return count == 0 ? 0 : mTotalRunTimeNanos.get() / count;
+    }
+
+    /** Get the max run time of finished tasks. */
+    public long getMaxRunTimeNanos() {
+        return mMaxRunTimeNanos.get();
+    }
+
+
+
+    /** Get a log {@link String} for the {@link LocalSocketMetrics}. */
+    @NonNull
+    public String getLogString() {
+        StringBuilder logString = new StringBuilder();
+
+        logString.append("Metrics:");
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("QueueDepth", getQueueDepth(), "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxQueueDepth", getMaxQueueDepth(), "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("AcceptedClients", getAcceptedClientCount(), "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("RejectedClients", getRejectedClientCount(), "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("AverageQueueLatencyMicros", getAverageQueueLatencyNanos() / 1000, "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxQueueLatencyMicros", getMaxQueueLatencyNanos() / 1000, "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("AverageRunTimeMicros", getAverageRunTimeNanos() / 1000, "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxRunTimeMicros", getMaxRunTimeNanos() / 1000, "-"));
+
+        return logString.toString();
+    }
+
+    /** Get a markdown {@link String} for the {@link LocalSocketMetrics}. */
+    @NonNull
+    public String getMarkdownString() {
+        StringBuilder markdownString = new StringBuilder();
+
+        markdownString.append("## ").append("Metrics");
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("QueueDepth", getQueueDepth(), "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxQueueDepth", getMaxQueueDepth(), "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("AcceptedClients", getAcceptedClientCount(), "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("RejectedClients", getRejectedClientCount(), "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("AverageQueueLatencyMicros", getAverageQueueLatencyNanos() / 1000, "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxQueueLatencyMicros", getMaxQueueLatencyNanos() / 1000, "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("AverageRunTimeMicros", getAverageRunTimeNanos() / 1000, "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxRunTimeMicros", getMaxRunTimeNanos() / 1000, "-"));
+
+        return markdownString.toString();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getLogString();
+    }
+
+}
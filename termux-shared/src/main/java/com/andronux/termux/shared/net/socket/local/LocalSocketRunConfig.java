@@ -94,6 +94,27 @@ public class LocalSocketRunConfig implements Serializable {
     protected Integer mBacklog;
     public static final int DEFAULT_BACKLOG = 50;
 
+    /**
+     * The max number of worker threads of the {@link LocalSocketManager}, which is the max number
+     * of clients that are served in parallel. The {@link ILocalSocketManager} callbacks are run on
+     * the worker threads, which are started as clients are accepted and stopped when idle.
+     * Defaults to {@link #DEFAULT_MAX_WORKER_THREADS}.
+     */
+    protected Integer mMaxWorkerThreads;
+    public static final int DEFAULT_MAX_WORKER_THREADS = 8;
+
+    /**
+     * The max number of tasks that may wait in the queue of the {@link LocalSocketManager} worker
+     * pool while all worker threads are busy. Once the queue is full, new clients are rejected
+     * with a call to {@link ILocalSocketManager#onClientRejected(LocalSocketManager, LocalClientSocket, Error)}.
+     * Defaults to {@link #DEFAULT_WORKER_QUEUE_SIZE}.
+     */
+    protected Integer mWorkerQueueSize;
+    public static final int DEFAULT_WORKER_QUEUE_SIZE = 32;
+
+    /** The {@link LocalSocketMetrics} of the {@link LocalSocketManager} worker pool. */
+    protected final LocalSocketMetrics mMetrics = new LocalSocketMetrics();
+
 
     /**
      * Create an new instance of {@link LocalSocketRunConfig}.
@@ -194,6 +215,34 @@ public class LocalSocketRunConfig implements Serializable {
             mBacklog = backlog;
     }
 
+    /** Get {@link #mMaxWorkerThreads} if set, otherwise {@link #DEFAULT_MAX_WORKER_THREADS}. */
+    public Integer getMaxWorkerThreads() {
+        return mMaxWorkerThreads != null ? mMaxWorkerThreads : DEFAULT_MAX_WORKER_THREADS;
+    }
+
+    /** Set {@link #mMaxWorkerThreads}. Value must be greater than 0. */
+    public void setMaxWorkerThreads(Integer maxWorkerThreads) {
+        if (maxWorkerThreads > 0)
+            mMaxWorkerThreads = maxWorkerThreads;
+    }
+
+    /** Get {@link #mWorkerQueueSize} if set, otherwise {@link #DEFAULT_WORKER_QUEUE_SIZE}. */
+    public Integer getWorkerQueueSize() {
+        return mWorkerQueueSize != null ? mWorkerQueueSize : DEFAULT_WORKER_QUEUE_SIZE;
+    }
+
+    /** Set {@link #mWorkerQueueSize}. Value must be greater than 0. */
+    public void setWorkerQueueSize(Integer workerQueueSize) {
+        if (workerQueueSize > 0)
+            mWorkerQueueSize = workerQueueSize;
+    }
+
+    /** Get {@link #mMetrics}. */
+    @NonNull
+    public LocalSocketMetrics getMetrics() {
+        return mMetrics;
+    }
+
 
     /**
      * Get a log {@link String} for {@link LocalSocketRunConfig}.
@@ -221,6 +270,11 @@ public class LocalSocketRunConfig implements Serializable {
         logString.append("\n").append(Logger.getSingleLineLogStringEntry("SendTimeout", getSendTimeout(), "-"));
         logString.append("\n").append(Logger.getSingleLineLogStringEntry("Deadline", getDeadline(), "-"));
         logString.append("\n").append(Logger.getSingleLineLogStringEntry("Backlog", getBacklog(), "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxWorkerThreads", getMaxWorkerThreads(), "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("WorkerQueueSize", getWorkerQueueSize(), "-"));
+        logString.append("\n\n\n");
+
+        logString.append(mMetrics.getLogString());
 
         return logString.toString();
     }
@@ -250,6 +304,11 @@ public class LocalSocketRunConfig implements Serializable {
         markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("SendTimeout", getSendTimeout(), "-"));
         markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Deadline", getDeadline(), "-"));
         markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Backlog", getBacklog(), "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxWorkerThreads", getMaxWorkerThreads(), "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("WorkerQueueSize", getWorkerQueueSize(), "-"));
+        markdownString.append("\n\n\n");
+
+        markdownString.append(mMetrics.getMarkdownString());
 
         return markdownString.toString();
     }
@@ -17,17 +17,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 
 /**
  * An implementation similar to android's {@link android.content.SharedPreferences} interface for
  * reading and writing to and from ".properties" files which also maintains an in-memory cache for
- * the key/value pairs when an instance object is used. Operations are done under
- * synchronization locks and should be thread safe.
+ * the key/value pairs when an instance object is used. The in-memory cache is an immutable
+ * {@link Snapshot} that is replaced as a whole when the file is loaded again, so reads do not take
+ * a lock and are thread safe, and loads are done under a synchronization lock.
  *
  * If {@link SharedProperties} instance object is used, then two types of in-memory cache maps are
  * maintained, one for the literal {@link String} values found in the file for the keys and an
@@ -45,26 +49,17 @@ import java.util.Set;
 public class SharedProperties {
 
     /**
-     * The {@link Properties} object that maintains an in-memory cache of values loaded from the
-     * {@link #mPropertiesFile} file. The key/value pairs are of any keys that are found in the file
-     * against their literal values in the file.
+     * The immutable in-memory cache of the values loaded from the {@link #mPropertiesFile} file,
+     * published by {@link #loadPropertiesFromDisk()} once fully built.
      */
-    private Properties mProperties;
-
-    /**
-     * The {@link HashMap<>} object that maintains an in-memory cache of internal values for the values
-     * loaded from the {@link #mPropertiesFile} file. The key/value pairs are of any keys defined by
-     * {@link #mPropertiesList} that are found in the file against their internal {@link Object} values
-     * returned by the call to
-     * {@link SharedPropertiesParser#getInternalPropertyValueFromValue(Context, String, String)} interface.
-     */
-    private Map<String, Object> mMap;
+    private volatile Snapshot mSnapshot;
 
     private final Context mContext;
     private final File mPropertiesFile;
     private final Set<String> mPropertiesList;
     private final SharedPropertiesParser mSharedPropertiesParser;
 
+    /** The lock for loads, readers do not take it. */
     private final Object mLock = new Object();
 
     /** Defines the bidirectional map for boolean values and their internal values  */
@@ -99,25 +94,49 @@ public class SharedProperties {
         mPropertiesList = propertiesList;
         mSharedPropertiesParser = sharedPropertiesParser;
 
-        mProperties = new Properties();
-        mMap = new HashMap<>();
+        mSnapshot = new Snapshot(new Properties(), new HashMap<>(), null);
     }
 
     /**
      * Load the properties defined by {@link #mPropertiesList} or all properties if its {@code null}
-     * from the {@link #mPropertiesFile} file to update the {@link #mProperties} and {@link #mMap}
-     * in-memory cache.
+     * from the {@link #mPropertiesFile} file to update the {@link #mSnapshot} in-memory cache, if
+     * the file has changed since it was last loaded.
      * Properties are not loading automatically when constructor is called and must be manually called.
+     *
+     * @return Returns the keys whose value or internal value changed. This will be empty if the
+     * file has not changed.
+     */
+    @NonNull
+    public Set<String> loadPropertiesFromDisk() {
+        return loadPropertiesFromDisk(false);
+    }
+
+    /**
+     * Load the properties defined by {@link #mPropertiesList} or all properties if its {@code null}
+     * from the {@link #mPropertiesFile} file to update the {@link #mSnapshot} in-memory cache.
+     *
+     * @param force If {@code false}, then the file is only read if its last modified time or size
+     *              has changed since it was last loaded. Otherwise it is always read.
+     * @return Returns the keys whose value or internal value changed.
      */
-    public void loadPropertiesFromDisk() {
+    @NonNull
+    public Set<String> loadPropertiesFromDisk(boolean force) {
         synchronized (mLock) {
+            Snapshot oldSnapshot = mSnapshot;
+            FileStamp fileStamp = FileStamp.of(mPropertiesFile);
+            if (!force && fileStamp.equals(oldSnapshot.fileStamp))
+                return Collections.emptySet();
+
             // Get properties from mPropertiesFile
-            Properties properties = getProperties(false);
+            Properties properties = getPropertiesFromFile(mContext, mPropertiesFile, mSharedPropertiesParser);
 
-            // We still need to load default values into mMap, so we assume no properties defined if
+            // We still need to load default values into the map, so we assume no properties defined if
             // reading from mPropertiesFile failed
-            if (properties == null)
+            if (properties == null) {
                 properties = new Properties();
+                // Read it again next time instead of keeping defaults for an unchanged broken file
+                fileStamp = null;
+            }
 
             HashMap<String, Object> map = new HashMap<>();
             Properties newProperties = new Properties();
@@ -133,7 +152,7 @@ public class SharedProperties {
                 // Logger.logVerbose(LOG_TAG, key + " : " + value);
 
                 // Call the {@link SharedPropertiesParser#getInternalPropertyValueFromValue(Context,String,String)}
-                // interface method to get the internal value to store in the {@link #mMap}.
+                // interface method to get the internal value to store in the map.
                 internalValue = mSharedPropertiesParser.getInternalPropertyValueFromValue(mContext, key, value);
 
                 // If the internal value was successfully added to map, then also add value to newProperties
@@ -143,8 +162,9 @@ public class SharedProperties {
                 }
             }
 
-            mMap = map;
-            mProperties = newProperties;
+            Snapshot snapshot = new Snapshot(newProperties, map, fileStamp);
+            mSnapshot = snapshot;
+            return getChangedKeys(oldSnapshot, snapshot);
         }
     }
 
@@ -153,18 +173,16 @@ public class SharedProperties {
      * object will also contain properties not defined by the {@link #mPropertiesList} if cache
      * value is {@code false}.
      *
-     * @param cached If {@code true}, then the {@link #mProperties} in-memory cache is returned. Otherwise
+     * @param cached If {@code true}, then the {@link #mSnapshot} in-memory cache is returned. Otherwise
      *               the {@link Properties} object is directly read from the {@link #mPropertiesFile}.
-     * @return Returns the {@link Properties} object if read from file, otherwise a copy of {@link #mProperties}.
+     * @return Returns the {@link Properties} object if read from file, otherwise a copy of the
+     * {@link #mSnapshot} properties.
      */
     public Properties getProperties(boolean cached) {
-        synchronized (mLock) {
-            if (cached) {
-                if (mProperties == null) mProperties = new Properties();
-                return getPropertiesCopy(mProperties);
-            } else {
-                return getPropertiesFromFile(mContext, mPropertiesFile, mSharedPropertiesParser);
-            }
+        if (cached) {
+            return getPropertiesCopy(mSnapshot.properties);
+        } else {
+            return getPropertiesFromFile(mContext, mPropertiesFile, mSharedPropertiesParser);
         }
     }
 
@@ -172,48 +190,133 @@ public class SharedProperties {
      * Get the {@link String} value for the key passed from the {@link #mPropertiesFile}.
      *
      * @param key The key to read from the {@link Properties} object.
-     * @param cached If {@code true}, then the value is returned from the {@link #mProperties} in-memory cache.
+     * @param cached If {@code true}, then the value is returned from the {@link #mSnapshot} in-memory cache.
      *               Otherwise the {@link Properties} object is read directly from the {@link #mPropertiesFile}
      *               and value is returned from it against the key.
      * @return Returns the {@link String} object. This will be {@code null} if key is not found.
      */
     public String getProperty(String key, boolean cached) {
-        synchronized (mLock) {
-            return (String) getProperties(cached).get(key);
+        if (cached) {
+            return key != null ? mSnapshot.properties.getProperty(key) : null;
+        } else {
+            Properties properties = getProperties(false);
+            return properties != null ? (String) properties.get(key) : null;
         }
     }
 
     /**
-     * Get the {@link #mMap} object for the {@link #mPropertiesFile}. A call to
+     * Get the internal values map for the {@link #mPropertiesFile}. A call to
      * {@link #loadPropertiesFromDisk()} must be made before this.
      *
-     * @return Returns a copy of {@link #mMap} object.
+     * @return Returns a copy of the {@link #mSnapshot} internal values map.
      */
     public Map<String, Object> getInternalProperties() {
-        synchronized (mLock) {
-            if (mMap == null) mMap = new HashMap<>();
-            return getMapCopy(mMap);
-        }
+        return getMapCopy(mSnapshot.map);
     }
 
     /**
      * Get the internal {@link Object} value for the key passed from the {@link #mPropertiesFile}.
-     * The value is returned from the {@link #mMap} in-memory cache, so a call to
+     * The value is returned from the {@link #mSnapshot} in-memory cache, so a call to
      * {@link #loadPropertiesFromDisk()} must be made before this.
      *
-     * @param key The key to read from the {@link #mMap} object.
+     * @param key The key to read from the internal values map.
      * @return Returns the {@link Object} object. This will be {@code null} if key is not found or
-     * if object was {@code null}. Use {@link HashMap#containsKey(Object)} to detect the later.
+     * if object was {@code null}. Use {@link #hasInternalProperty(String)} to detect the later
      * situation.
      */
     public Object getInternalProperty(String key) {
-        synchronized (mLock) {
-            // null keys are not allowed to be stored in mMap
-            if (key != null)
-                return getInternalProperties().get(key);
-            else
-                return null;
+        // null keys are not allowed to be stored in the map
+        if (key != null)
+            return mSnapshot.map.get(key);
+        else
+            return null;
+    }
+
+    /**
+     * Check if the internal value for the key passed has been loaded in the {@link #mSnapshot}
+     * in-memory cache, even if it is {@code null}.
+     */
+    public boolean hasInternalProperty(String key) {
+        return key != null && mSnapshot.map.containsKey(key);
+    }
+
+    /**
+     * Get the keys whose value or internal value differ between the in-memory caches of two
+     * {@link SharedProperties}, like for the same properties loaded from different files.
+     */
+    @NonNull
+    public static Set<String> getChangedKeys(@NonNull SharedProperties oldSharedProperties,
+                                             @NonNull SharedProperties newSharedProperties) {
+        return getChangedKeys(oldSharedProperties.mSnapshot, newSharedProperties.mSnapshot);
+    }
+
+    /** Get the keys whose value or internal value differ between two {@link Snapshot}. */
+    @NonNull
+    private static Set<String> getChangedKeys(@NonNull Snapshot oldSnapshot, @NonNull Snapshot newSnapshot) {
+        Set<String> changedKeys = new HashSet<>();
+        Set<String> keys = new HashSet<>(oldSnapshot.map.keySet());
+        keys.addAll(newSnapshot.map.keySet());
+        for (String key : keys) {
+            if (oldSnapshot.map.containsKey(key) != newSnapshot.map.containsKey(key) ||
+                !Objects.equals(oldSnapshot.map.get(key), newSnapshot.map.get(key)) ||
+                !Objects.equals(oldSnapshot.properties.getProperty(key), newSnapshot.properties.getProperty(key)))
+                changedKeys.add(key);
+        }
+        return Collections.unmodifiableSet(changedKeys);
+    }
+
+
+
+    /** An immutable in-memory cache of the values loaded from a properties file. */
+    private static final class Snapshot {
+
+        /** The literal values of the keys found in the file. */
+        final Properties properties;
+        /** The internal values of the keys, which must not be modified. */
+        final Map<String, Object> map;
+        /** The {@link FileStamp} of the file when it was read, {@code null} if it failed to be read. */
+        final FileStamp fileStamp;
+
+        Snapshot(@NonNull Properties properties, @NonNull Map<String, Object> map, @Nullable FileStamp fileStamp) {
+            this.properties = properties;
+            this.map = Collections.unmodifiableMap(map);
+            this.fileStamp = fileStamp;
         }
+
+    }
+
+    /** The last modified time and size of a file, used to detect if it changed since it was read. */
+    private static final class FileStamp {
+
+        final boolean exists;
+        final long lastModified;
+        final long length;
+
+        private FileStamp(boolean exists, long lastModified, long length) {
+            this.exists = exists;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        @NonNull
+        static FileStamp of(@Nullable File file) {
+            if (file == null || !file.isFile())
+                return new FileStamp(false, 0, 0);
+            return new FileStamp(true, file.lastModified(), file.length());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileStamp)) return false;
+            FileStamp other = (FileStamp) o;
+            return exists == other.exists && lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(exists, lastModified, length);
+        }
+
     }
 
 
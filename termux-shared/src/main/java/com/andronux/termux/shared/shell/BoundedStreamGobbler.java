@@ -0,0 +1,237 @@
+package com.andronux.termux.shared.shell;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.andronux.termux.shared.logger.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * {@link StreamMultiplexer.StreamConsumer} of raw bytes read from an {@link InputStream}, like the
+ * stdout or stderr of a process, that only keeps a bounded amount of the output in memory.
+ *
+ * Unlike {@link LineStreamGobbler}, the output is not decoded line by line. Up to half of the buffer
+ * size is kept from the start of the output and up to half from the end of it in a ring buffer.
+ * Once the output exceeds the buffer size, the whole output is written to the spill file, so that
+ * it is still available to callers that need all of it.
+ */
+public class BoundedStreamGobbler implements StreamMultiplexer.StreamConsumer {
+
+    @NonNull private final String mShell;
+    @Nullable private final File mSpillFile;
+    @Nullable private final Integer mLogLevel;
+    private final boolean mLoggingEnabled;
+    private final String mDefaultLogTag;
+
+    /** The bytes kept from the start of the output. */
+    private final byte[] mHead;
+    private int mHeadLength;
+
+    /** The ring buffer of the bytes kept from the end of the output. */
+    private final byte[] mTail;
+    /** The index in {@link #mTail} at which the next byte will be written. */
+    private int mTailPosition;
+    private int mTailLength;
+
+    /** The total number of bytes read. */
+    private long mTotalLength;
+
+    @Nullable private OutputStream mSpillOutputStream;
+    /** Whether the whole output was written to {@link #mSpillFile}. */
+    private boolean mSpilled;
+    private boolean mSpillFailed;
+
+    private static final String LOG_TAG = "BoundedStreamGobbler";
+
+    /**
+     * Create an new instance of {@link BoundedStreamGobbler}.
+     *
+     * @param shell Name of the shell.
+     * @param bufferSize The max number of bytes of the output to keep in memory.
+     * @param spillFile The file to write the whole output to if it exceeds {@code bufferSize}. If
+     *                  this is {@code null}, then the middle of the output is dropped.
+     * @param logLevel The custom log level to use for logging the command output. If set to
+     *                 {@code null}, then {@link Logger#LOG_LEVEL_VERBOSE} will be used.
+     */
+    public BoundedStreamGobbler(@NonNull String shell, int bufferSize,
+                                @Nullable File spillFile, @Nullable Integer logLevel) {
+        mShell = shell;
+        mSpillFile = spillFile;
+        mLogLevel = logLevel;
+
+        mDefaultLogTag = Logger.getDefaultLogTag();
+        mLoggingEnabled = Logger.shouldEnableLoggingForCustomLogLevel(mLogLevel);
+        if (mLoggingEnabled)
+            Logger.logVerbose(LOG_TAG, "Using custom log level: " + mLogLevel + ", current log level: " + Logger.getLogLevel());
+
+        int headSize = Math.max(1, bufferSize / 2);
+        mHead = new byte[headSize];
+        mTail = new byte[Math.max(1, bufferSize - headSize)];
+    }
+
+    @Override
+    public void onStreamData(@NonNull byte[] buffer, int length) {
+        if (mLoggingEnabled)
+            Logger.logVerboseForce(mDefaultLogTag + "Command", String.format(Locale.ENGLISH, "[%s] %s", mShell,
+                new String(buffer, 0, length, StandardCharsets.UTF_8))); // This will get truncated by LOGGER_ENTRY_MAX_LEN, likely 4KB
+
+        append(buffer, length);
+    }
+
+    @Override
+    public void onStreamClosed() {
+        closeSpillOutputStream();
+    }
+
+    private void append(@NonNull byte[] buffer, int length) {
+        if (!isSpillStartedOrDone() && mTotalLength + length > mHead.length + mTail.length)
+            startSpill();
+
+        if (mSpillOutputStream != null) {
+            try {
+                mSpillOutputStream.write(buffer, 0, length);
+            } catch (IOException e) {
+                onSpillFailed(e);
+            }
+        }
+
+        mTotalLength += length;
+
+        // Fill the head first, then keep the rest in the tail ring buffer
+        int offset = 0;
+        if (mHeadLength < mHead.length) {
+            int headBytes = Math.min(length, mHead.length - mHeadLength);
+            System.arraycopy(buffer, 0, mHead, mHeadLength, headBytes);
+            mHeadLength += headBytes;
+            offset = headBytes;
+        }
+
+        int tailBytes = length - offset;
+        if (tailBytes >= mTail.length) {
+            System.arraycopy(buffer, offset + tailBytes - mTail.length, mTail, 0, mTail.length);
+            mTailPosition = 0;
+            mTailLength = mTail.length;
+            return;
+        }
+
+        int firstPart = Math.min(tailBytes, mTail.length - mTailPosition);
+        System.arraycopy(buffer, offset, mTail, mTailPosition, firstPart);
+        System.arraycopy(buffer, offset + firstPart, mTail, 0, tailBytes - firstPart);
+        mTailPosition = (mTailPosition + tailBytes) % mTail.length;
+        mTailLength = Math.min(mTail.length, mTailLength + tailBytes);
+    }
+
+    /** Whether spilling has been started, has finished or has failed, so it must not be started again. */
+    private boolean isSpillStartedOrDone() {
+        return mSpillOutputStream != null || mSpilled || mSpillFailed;
+    }
+
+    /**
+     * Open the spill file and write the output read so far to it. This is called before any byte
+     * has been dropped, so the head and tail still contain the whole output.
+     */
+    private void startSpill() {
+        if (mSpillFile == null) {
+            mSpillFailed = true;
+            return;
+        }
+
+        try {
+            File parent = mSpillFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Failed to create directory \"" + parent.getAbsolutePath() + "\"");
+
+            mSpillOutputStream = new FileOutputStream(mSpillFile);
+            mSpillOutputStream.write(mHead, 0, mHeadLength);
+            writeTail(mSpillOutputStream);
+        } catch (IOException e) {
+            onSpillFailed(e);
+        }
+    }
+
+    private void onSpillFailed(@NonNull IOException e) {
+        Logger.logStackTraceWithMessage(LOG_TAG, "Failed to write \"" + mShell + "\" output to spill file", e);
+        mSpillFailed = true;
+        closeSpillOutputStream();
+        //noinspection ResultOfMethodCallIgnored
+        mSpillFile.delete();
+    }
+
+    private void closeSpillOutputStream() {
+        if (mSpillOutputStream == null) return;
+        try {
+            mSpillOutputStream.close();
+            mSpilled = !mSpillFailed;
+        } catch (IOException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to close \"" + mShell + "\" spill file", e);
+            mSpillFailed = true;
+        }
+        mSpillOutputStream = null;
+    }
+
+    /** Write the tail ring buffer in order. */
+    private void writeTail(@NonNull OutputStream outputStream) throws IOException {
+        int start = (mTailPosition - mTailLength + mTail.length) % mTail.length;
+        int firstPart = Math.min(mTailLength, mTail.length - start);
+        outputStream.write(mTail, start, firstPart);
+        outputStream.write(mTail, 0, mTailLength - firstPart);
+    }
+
+    /**
+     * Get the output kept in memory. If the output exceeded the buffer size, then the start and end
+     * of it are separated by a line with the number of bytes dropped and the spill file path.
+     * This must only be called after the stream has been closed.
+     */
+    @NonNull
+    public String getOutput() {
+        String head = new String(mHead, 0, mHeadLength, StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream tailOutputStream = new ByteArrayOutputStream(mTailLength);
+        try {
+            writeTail(tailOutputStream);
+        } catch (IOException ignored) {
+            // Cannot happen for a ByteArrayOutputStream
+        }
+        String tail = new String(tailOutputStream.toByteArray(), StandardCharsets.UTF_8);
+
+        if (!isTruncated())
+            return head + tail;
+
+        String truncated = "\n[... " + getTruncatedLength() + " bytes truncated" +
+            (mSpilled ? ", full output in \"" + mSpillFile.getAbsolutePath() + "\"" : "") + " ...]\n";
+        return head + truncated + tail;
+    }
+
+    /** Whether bytes were dropped from the middle of the output kept in memory. */
+    public boolean isTruncated() {
+        return getTruncatedLength() > 0;
+    }
+
+    /** Get the number of bytes dropped from the middle of the output kept in memory. */
+    public long getTruncatedLength() {
+        return mTotalLength - mHeadLength - mTailLength;
+    }
+
+    /** Get the total number of bytes read. */
+    public long getTotalLength() {
+        return mTotalLength;
+    }
+
+    /**
+     * Get the file containing the whole output. This will be {@code null} if the output did not
+     * exceed the buffer size or writing it failed.
+     */
+    @Nullable
+    public File getSpillFile() {
+        return mSpilled ? mSpillFile : null;
+    }
+
+}
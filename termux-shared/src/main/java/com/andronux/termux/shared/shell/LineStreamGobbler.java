@@ -0,0 +1,111 @@
+package com.andronux.termux.shared.shell;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.andronux.termux.shared.logger.Logger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * {@link StreamMultiplexer.StreamConsumer} that splits the bytes read from a stream into lines and
+ * appends each of them followed by a newline to a {@link StringBuilder}. Subclasses can also
+ * handle each line by overriding {@link #onLine(String)}.
+ *
+ * Lines are terminated by {@code "\n"}, {@code "\r"} or {@code "\r\n"} like for
+ * {@link BufferedReader#readLine()}. The stream is split before decoding, which is safe for UTF-8
+ * since the bytes of multi-byte characters never equal {@code '\n'} or {@code '\r'}.
+ */
+public class LineStreamGobbler implements StreamMultiplexer.StreamConsumer {
+
+    @NonNull private final String mShell;
+    @Nullable private final StringBuilder mOutputString;
+    @Nullable private final Integer mLogLevel;
+    private final boolean mLoggingEnabled;
+    private final String mDefaultLogTag;
+
+    /** The bytes of the current line that has not been terminated yet. */
+    private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+
+    /** Whether the last byte read was a {@code '\r'}, in which case a following {@code '\n'} is skipped. */
+    private boolean mSkipLineFeed;
+
+    private static final String LOG_TAG = "LineStreamGobbler";
+
+    /**
+     * Create an new instance of {@link LineStreamGobbler}.
+     *
+     * Do not use the same {@link StringBuilder} for the STDOUT and STDERR of a process since its
+     * not synchronized.
+     *
+     * @param shell Name of the shell.
+     * @param outputString The {@link StringBuilder} to append the lines to, or {@code null}.
+     * @param logLevel The custom log level to use for logging the command output. If set to
+     *                 {@code null}, then {@link Logger#LOG_LEVEL_VERBOSE} will be used.
+     */
+    public LineStreamGobbler(@NonNull String shell, @Nullable StringBuilder outputString, @Nullable Integer logLevel) {
+        mShell = shell;
+        mOutputString = outputString;
+        mLogLevel = logLevel;
+
+        mDefaultLogTag = Logger.getDefaultLogTag();
+        mLoggingEnabled = Logger.shouldEnableLoggingForCustomLogLevel(mLogLevel);
+        if (mLoggingEnabled)
+            Logger.logVerbose(LOG_TAG, "Using custom log level: " + mLogLevel + ", current log level: " + Logger.getLogLevel());
+    }
+
+    @Override
+    public void onStreamData(@NonNull byte[] buffer, int length) {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer[i];
+            if (b == '\n' && mSkipLineFeed) {
+                mSkipLineFeed = false;
+                lineStart = i + 1;
+                continue;
+            }
+
+            mSkipLineFeed = false;
+            if (b == '\n' || b == '\r') {
+                mLine.write(buffer, lineStart, i - lineStart);
+                processLine();
+                mSkipLineFeed = b == '\r';
+                lineStart = i + 1;
+            }
+        }
+
+        mLine.write(buffer, lineStart, length - lineStart);
+    }
+
+    @Override
+    public void onStreamClosed() {
+        // The last line may not be terminated
+        if (mLine.size() > 0)
+            processLine();
+    }
+
+    private void processLine() {
+        String line = new String(mLine.toByteArray(), StandardCharsets.UTF_8);
+        mLine.reset();
+
+        if (mLoggingEnabled)
+            Logger.logVerboseForce(mDefaultLogTag + "Command", String.format(Locale.ENGLISH, "[%s] %s", mShell, line)); // This will get truncated by LOGGER_ENTRY_MAX_LEN, likely 4KB
+
+        if (mOutputString != null)
+            mOutputString.append(line).append("\n");
+        onLine(line);
+    }
+
+    /**
+     * Called for each line after it has been logged and appended to the {@link StringBuilder}, on
+     * the thread reading the stream.
+     *
+     * @param line The line without its terminator.
+     */
+    protected void onLine(@NonNull String line) {
+    }
+
+}
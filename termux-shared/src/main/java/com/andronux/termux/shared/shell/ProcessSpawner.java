@@ -0,0 +1,280 @@
+package com.andronux.termux.shared.shell;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.andronux.termux.shared.jni.models.JniResult;
+import com.andronux.termux.shared.logger.Logger;
+import com.andronux.termux.terminal.ProcessReaper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Starts processes with the native "process-spawner" library instead of {@link Runtime#exec(String[], String[], File)}.
+ *
+ * {@link Runtime#exec(String[], String[], File)} forks the app process, whose page tables have to be
+ * copied, so the time taken and transient memory used grow with the app heap. The native spawner
+ * uses vfork(), which suspends the calling thread and shares the memory of the app process until the
+ * child has called execve(), with the argv and envp built before. The stdin, stdout and stderr of the
+ * child are pipes and all other fds are closed with close_range() where the seccomp filter allows it.
+ *
+ * The {@link SpawnedProcess} returned can be used like the {@link Process} returned by
+ * {@link Runtime#exec(String[], String[], File)}. It is reaped by the {@link ProcessReaper} of the
+ * terminal-emulator once {@link SpawnedProcess#waitFor()} or {@link SpawnedProcess#watch(ProcessReaper.Callback)}
+ * is called, or by calling {@link SpawnedProcess#onExited(int)} after reaping it elsewhere.
+ */
+public final class ProcessSpawner {
+
+    /** The native JNI process spawner library. */
+    static final String PROCESS_SPAWNER_LIBRARY = "process-spawner";
+
+    /** Whether {@link #PROCESS_SPAWNER_LIBRARY} has been loaded, {@code null} if not tried yet. */
+    private static Boolean processSpawnerLibraryLoaded;
+
+    /** The first api level whose seccomp filter allows close_range(2). */
+    private static final int CLOSE_RANGE_MIN_API_LEVEL = Build.VERSION_CODES.UPSIDE_DOWN_CAKE;
+
+    private static final String LOG_TAG = "ProcessSpawner";
+
+    private ProcessSpawner() {}
+
+    /** Load {@link #PROCESS_SPAWNER_LIBRARY} if not tried already and get whether it is loaded. */
+    public static synchronized boolean isAvailable() {
+        if (processSpawnerLibraryLoaded == null) {
+            try {
+                Logger.logDebug(LOG_TAG, "Loading \"" + PROCESS_SPAWNER_LIBRARY + "\" library");
+                System.loadLibrary(PROCESS_SPAWNER_LIBRARY);
+                processSpawnerLibraryLoaded = true;
+            } catch (Throwable t) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to load \"" + PROCESS_SPAWNER_LIBRARY + "\" library", t);
+                processSpawnerLibraryLoaded = false;
+            }
+        }
+
+        return processSpawnerLibraryLoaded;
+    }
+
+    /**
+     * Start a process with {@link #spawn(String, String, String[], String[], String, int[])}, or with
+     * {@link Runtime#exec(String[], String[], File)} if {@link #PROCESS_SPAWNER_LIBRARY} could not
+     * be loaded.
+     *
+     * @param commandArray The executable and its arguments. The executable is searched for in the
+     *                     {@code PATH} of {@code environmentArray} if it does not contain a {@code /}.
+     * @param environmentArray The environment of the process in {@code name=value} format.
+     * @param workingDirectory The working directory of the process.
+     * @return Returns the {@link Process} started.
+     * @throws IOException If starting the process failed.
+     */
+    @NonNull
+    public static Process exec(@NonNull String[] commandArray, @Nullable String[] environmentArray,
+                               @Nullable File workingDirectory) throws IOException {
+        if (!isAvailable())
+            return Runtime.getRuntime().exec(commandArray, environmentArray, workingDirectory);
+
+        if (commandArray.length == 0)
+            throw new IndexOutOfBoundsException("Empty command array");
+
+        int[] fds = new int[3];
+        JniResult result = spawn(LOG_TAG, commandArray[0], commandArray,
+            environmentArray != null ? environmentArray : new String[0],
+            workingDirectory != null ? workingDirectory.getAbsolutePath() : null, fds);
+        if (result == null || result.retval != 0)
+            throw new IOException(JniResult.getErrorString(result));
+
+        return new SpawnedProcess(result.intData, fds);
+    }
+
+    /**
+     * Start a process with vfork() and execve() with pipes for its stdin, stdout and stderr.
+     *
+     * @param logTitle The title used for logging and errors.
+     * @param executable The executable, which is searched for in the {@code PATH} of {@code envVars}
+     *                   if it does not contain a {@code /}.
+     * @param args The arguments of the process including the zeroth argument.
+     * @param envVars The environment of the process in {@code name=value} format.
+     * @param cwd The working directory of the process, or {@code null} to keep the current one.
+     * @param fds The array of length 3 that will be filled with the write end of the stdin pipe and
+     *            the read ends of the stdout and stderr pipes, which have {@code FD_CLOEXEC} set.
+     * @return Returns the {@link JniResult}. If starting the process was successful, then
+     * {@link JniResult#retval} will be 0 and {@link JniResult#intData} will contain its pid.
+     */
+    @Nullable
+    public static JniResult spawn(@NonNull String logTitle, @NonNull String executable, @NonNull String[] args,
+                                  @NonNull String[] envVars, @Nullable String cwd, @NonNull int[] fds) {
+        try {
+            return spawnNative(logTitle, executable, args, envVars, cwd,
+                Build.VERSION.SDK_INT >= CLOSE_RANGE_MIN_API_LEVEL, fds);
+        } catch (Throwable t) {
+            String message = "Exception in spawnNative()";
+            Logger.logStackTraceWithMessage(LOG_TAG, message, t);
+            return new JniResult(message, t);
+        }
+    }
+
+
+
+    /** A {@link Process} started by {@link #exec(String[], String[], File)}. */
+    public static final class SpawnedProcess extends Process {
+
+        private final int mPid;
+        private final OutputStream mOutputStream;
+        private final InputStream mInputStream;
+        private final InputStream mErrorStream;
+
+        /**
+         * The exit code returned by {@link #waitFor()} if the process was reaped by someone else than
+         * the {@link ProcessReaper} before it was watched, so that its exit status is not known.
+         */
+        public static final int EXIT_CODE_UNKNOWN = -1;
+
+        /** The exit code of the process in the format of {@link Process#exitValue()} once it has been reaped. */
+        private Integer mExitCode;
+
+        /** Whether the process is watched by the {@link ProcessReaper}. */
+        private boolean mWatched;
+
+        private SpawnedProcess(int pid, @NonNull int[] fds) {
+            mPid = pid;
+            mOutputStream = new ParcelFileDescriptor.AutoCloseOutputStream(ParcelFileDescriptor.adoptFd(fds[0]));
+            mInputStream = new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.adoptFd(fds[1]));
+            mErrorStream = new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.adoptFd(fds[2]));
+        }
+
+        /** Get the pid of the process. */
+        public int getPid() {
+            return mPid;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return mErrorStream;
+        }
+
+        /**
+         * Watch the process with the {@link ProcessReaper}, which reaps it once it exits and then
+         * calls {@link #onExited(int)} and the {@code callback}. This can only be called once, and
+         * {@link #waitFor()} then waits for the reaper.
+         *
+         * @param callback The {@link ProcessReaper.Callback} to call after the exit code is known,
+         *                 or {@code null}.
+         */
+        public synchronized void watch(@Nullable ProcessReaper.Callback callback) {
+            if (mWatched)
+                throw new IllegalStateException("Process with pid " + mPid + " is already watched");
+            mWatched = true;
+
+            ProcessReaper.getInstance().watch(mPid, true, (pid, exitStatus) -> {
+                onExited(exitStatus);
+                if (callback != null)
+                    callback.onProcessExited(pid, exitStatus);
+            });
+        }
+
+        /**
+         * Wait for the process to exit and get its exit code, watching it with the
+         * {@link ProcessReaper} if not already. Like {@link Process#waitFor()}, this throws an
+         * {@link InterruptedException} if the current thread is interrupted while waiting.
+         *
+         * @return Returns the exit code, or {@link #EXIT_CODE_UNKNOWN} if the process had already
+         * been reaped by someone else.
+         */
+        @Override
+        public int waitFor() throws InterruptedException {
+            synchronized (this) {
+                if (mExitCode == null && !mWatched)
+                    watch(null);
+                while (mExitCode == null)
+                    wait();
+                return mExitCode;
+            }
+        }
+
+        /**
+         * Called when the process has been reaped.
+         *
+         * @param exitStatus If >= 0, the exit status of the process. If < 0, the signal that killed
+         *                   the process negated. If {@link ProcessReaper#EXIT_STATUS_UNKNOWN}, the
+         *                   process was reaped by someone else, and {@link #EXIT_CODE_UNKNOWN} is
+         *                   used as its exit code.
+         */
+        public synchronized void onExited(int exitStatus) {
+            if (mExitCode == null) {
+                if (exitStatus == ProcessReaper.EXIT_STATUS_UNKNOWN)
+                    mExitCode = EXIT_CODE_UNKNOWN;
+                else
+                    mExitCode = exitStatus >= 0 ? exitStatus : 0x80 - exitStatus;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int exitValue() {
+            if (mExitCode == null)
+                throw new IllegalThreadStateException("Process has not exited");
+            return mExitCode;
+        }
+
+        /** Send {@link OsConstants#SIGKILL} to the process if it has not been reaped yet and close its streams. */
+        @Override
+        public void destroy() {
+            synchronized (this) {
+                // Once reaped, the pid may have been reused by another process
+                if (mExitCode == null) {
+                    try {
+                        Os.kill(mPid, OsConstants.SIGKILL);
+                    } catch (ErrnoException e) {
+                        Logger.logWarn(LOG_TAG, "Failed to send SIGKILL to process with pid " + mPid + ": " + e.getMessage());
+                    }
+                }
+            }
+
+            closeQuietly(mOutputStream);
+            closeQuietly(mInputStream);
+            closeQuietly(mErrorStream);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "SpawnedProcess[pid=" + mPid + ", exitCode=" + mExitCode + "]";
+        }
+
+    }
+
+    private static void closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+
+
+    @Nullable private static native JniResult spawnNative(@NonNull String logTitle, @NonNull String executable,
+                                                          @NonNull String[] args, @NonNull String[] envVars,
+                                                          @Nullable String cwd, boolean useCloseRange,
+                                                          @NonNull int[] fds);
+
+}
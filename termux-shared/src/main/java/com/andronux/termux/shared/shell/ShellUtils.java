@@ -18,6 +18,9 @@ public class ShellUtils {
 
     /** Get process id of {@link Process}. */
     public static int getPid(Process p) {
+        if (p instanceof ProcessSpawner.SpawnedProcess)
+            return ((ProcessSpawner.SpawnedProcess) p).getPid();
+
         try {
             Field f = p.getClass().getDeclaredField("pid");
             f.setAccessible(true);
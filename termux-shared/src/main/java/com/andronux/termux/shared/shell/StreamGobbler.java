@@ -16,12 +16,9 @@
 
 package com.andronux.termux.shared.shell;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.List;
-import java.util.Locale;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
@@ -35,7 +32,12 @@ import com.andronux.termux.shared.logger.Logger;
  *
  * https://github.com/Chainfire/libsuperuser/blob/1.1.0.201907261845/libsuperuser/src/eu/chainfire/libsuperuser/Shell.java#L141
  * https://github.com/Chainfire/libsuperuser/blob/1.1.0.201907261845/libsuperuser/src/eu/chainfire/libsuperuser/StreamGobbler.java
+ *
+ * @deprecated Termux no longer uses a thread per stream. Read streams with a {@link LineStreamGobbler}
+ * registered with the {@link StreamMultiplexer} instead. This class is kept for plugin apps and
+ * splits the stream into lines with a {@link LineStreamGobbler} on its own thread.
  */
+@Deprecated
 @SuppressWarnings({"WeakerAccess"})
 public class StreamGobbler extends Thread {
     private static int threadCounter = 0;
@@ -77,8 +79,6 @@ public class StreamGobbler extends Thread {
     private final String shell;
     @NonNull
     private final InputStream inputStream;
-    @NonNull
-    private final BufferedReader reader;
     @Nullable
     private final List<String> listWriter;
     @Nullable
@@ -92,8 +92,6 @@ public class StreamGobbler extends Thread {
     private volatile boolean active = true;
     private volatile boolean calledOnClose = false;
 
-    private static final String LOG_TAG = "StreamGobbler";
-
     /**
      * <p>StreamGobbler constructor</p>
      *
@@ -114,7 +112,6 @@ public class StreamGobbler extends Thread {
         super("Gobbler#" + incThreadCounter());
         this.shell = shell;
         this.inputStream = inputStream;
-        reader = new BufferedReader(new InputStreamReader(inputStream));
         streamClosedListener = null;
 
         listWriter = outputList;
@@ -146,7 +143,6 @@ public class StreamGobbler extends Thread {
         super("Gobbler#" + incThreadCounter());
         this.shell = shell;
         this.inputStream = inputStream;
-        reader = new BufferedReader(new InputStreamReader(inputStream));
         streamClosedListener = null;
 
         listWriter = null;
@@ -178,7 +174,6 @@ public class StreamGobbler extends Thread {
         super("Gobbler#" + incThreadCounter());
         this.shell = shell;
         this.inputStream = inputStream;
-        reader = new BufferedReader(new InputStreamReader(inputStream));
         streamClosedListener = onStreamClosedListener;
 
         listWriter = null;
@@ -190,52 +185,45 @@ public class StreamGobbler extends Thread {
 
     @Override
     public void run() {
-        String defaultLogTag = Logger.getDefaultLogTag();
-        boolean loggingEnabled = Logger.shouldEnableLoggingForCustomLogLevel(mLogLevel);
-        if (loggingEnabled)
-            Logger.logVerbose(LOG_TAG, "Using custom log level: " + mLogLevel + ", current log level: " + Logger.getLogLevel());
-
-        // keep reading the InputStream until it ends (or an error occurs)
-        // optionally pausing when a command is executed that consumes the InputStream itself
-        try {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (loggingEnabled)
-                    Logger.logVerboseForce(defaultLogTag + "Command", String.format(Locale.ENGLISH, "[%s] %s", shell, line)); // This will get truncated by LOGGER_ENTRY_MAX_LEN, likely 4KB
-
-                if (stringWriter != null) stringWriter.append(line).append("\n");
+        LineStreamGobbler lineStreamGobbler = new LineStreamGobbler(shell, stringWriter, mLogLevel) {
+            @Override
+            protected void onLine(@NonNull String line) {
                 if (listWriter != null) listWriter.add(line);
                 if (lineListener != null) lineListener.onLine(line);
+                // optionally pausing when a command is executed that consumes the InputStream itself
                 while (!active) {
-                    synchronized (this) {
+                    synchronized (StreamGobbler.this) {
                         try {
-                            this.wait(128);
+                            StreamGobbler.this.wait(128);
                         } catch (InterruptedException e) {
                             // no action
                         }
                     }
                 }
             }
+        };
+
+        // keep reading the InputStream until it ends (or an error occurs)
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1)
+                lineStreamGobbler.onStreamData(buffer, bytesRead);
         } catch (IOException e) {
-            // reader probably closed, expected exit condition
-            if (streamClosedListener != null) {
-                calledOnClose = true;
-                streamClosedListener.onStreamClosed();
-            }
+            // stream probably closed, expected exit condition
         }
+        lineStreamGobbler.onStreamClosed();
 
         // make sure our stream is closed and resources will be freed
         try {
-            reader.close();
+            inputStream.close();
         } catch (IOException e) {
-            // read already closed
+            // stream already closed
         }
 
-        if (!calledOnClose) {
-            if (streamClosedListener != null) {
-                calledOnClose = true;
-                streamClosedListener.onStreamClosed();
-            }
+        if (streamClosedListener != null) {
+            calledOnClose = true;
+            streamClosedListener.onStreamClosed();
         }
     }
 
@@ -0,0 +1,326 @@
+package com.andronux.termux.shared.shell;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.andronux.termux.shared.logger.Logger;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Reads multiple {@link InputStream}, like the stdout and stderr of processes, on a single shared
+ * thread instead of a thread per stream. The file descriptor of each stream is polled with
+ * {@link Os#poll(StructPollfd[], int)} and the stream is only read once it is readable, so that
+ * reading never blocks the thread.
+ *
+ * The file descriptors are found by unwrapping the {@link FilterInputStream} of the stream down to
+ * a {@link FileInputStream}, like the ones returned by {@link Process#getInputStream()} and
+ * {@link Process#getErrorStream()}. A duplicate of the file descriptor is polled, since the
+ * original may be closed by the {@link Process} once it exits, after it has drained any remaining
+ * data into the stream. Streams whose file descriptor cannot be found are read by a thread of their
+ * own instead.
+ */
+public final class StreamMultiplexer {
+
+    /** The consumer of the data read from a stream. Its methods are called on the thread reading the stream. */
+    public interface StreamConsumer {
+
+        /**
+         * Called when data has been read from the stream. This should process the data as quickly
+         * as possible since it delays the reading of all other streams.
+         *
+         * @param buffer The buffer containing the data, which is reused once this returns.
+         * @param length The number of bytes read into the buffer.
+         */
+        void onStreamData(@NonNull byte[] buffer, int length);
+
+        /** Called once the end of the stream has been reached or reading it failed. */
+        void onStreamClosed();
+
+    }
+
+    /** A stream that is being read, which can be waited for until it has been closed. */
+    public static final class Stream {
+
+        @NonNull private final String mName;
+        @NonNull private final InputStream mInputStream;
+        @NonNull private final StreamConsumer mConsumer;
+        /** The duplicate of the file descriptor of {@link #mInputStream} polled, if found. */
+        @Nullable private final FileDescriptor mFD;
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+        /**
+         * Whether {@link #mInputStream} still had data available after the last read, like the data
+         * drained into it by its {@link Process}, which would not make {@link #mFD} readable.
+         */
+        private boolean mHasAvailableData;
+
+        private Stream(@NonNull String name, @NonNull InputStream inputStream,
+                       @NonNull StreamConsumer consumer, @Nullable FileDescriptor fd) {
+            mName = name;
+            mInputStream = inputStream;
+            mConsumer = consumer;
+            mFD = fd;
+        }
+
+        /** Wait until the end of the stream has been reached and {@link StreamConsumer#onStreamClosed()} has returned. */
+        public void join() throws InterruptedException {
+            mClosed.await();
+        }
+
+        /** Read the stream into {@code buffer} once and get whether it has not been closed yet. */
+        private boolean read(@NonNull byte[] buffer) {
+            int bytesRead;
+            try {
+                bytesRead = mInputStream.read(buffer);
+            } catch (IOException e) {
+                // stream probably closed, expected exit condition
+                bytesRead = -1;
+            }
+
+            if (bytesRead > 0) {
+                mConsumer.onStreamData(buffer, bytesRead);
+                try {
+                    mHasAvailableData = mInputStream.available() > 0;
+                } catch (IOException e) {
+                    mHasAvailableData = true; // Read again to reach the end of the stream
+                }
+                return true;
+            }
+
+            close();
+            return false;
+        }
+
+        private void close() {
+            // make sure our streams are closed and resources will be freed
+            try {
+                mInputStream.close();
+            } catch (IOException e) {
+                // stream already closed
+            }
+
+            if (mFD != null) {
+                try {
+                    Os.close(mFD);
+                } catch (ErrnoException e) {
+                    Logger.logWarn(LOG_TAG, "Failed to close fd of \"" + mName + "\" stream: " + e.getMessage());
+                }
+            }
+
+            try {
+                mConsumer.onStreamClosed();
+            } finally {
+                mClosed.countDown();
+            }
+        }
+
+    }
+
+    private static StreamMultiplexer streamMultiplexer;
+
+    private static int threadCounter = 0;
+    private static int incThreadCounter() {
+        synchronized (StreamMultiplexer.class) {
+            int ret = threadCounter;
+            threadCounter++;
+            return ret;
+        }
+    }
+
+    /** The number of bytes read from a stream at once. */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /** The {@link FilterInputStream#in} field used to unwrap streams to find their file descriptor. */
+    private static Field filterInputStreamInField;
+
+    /** The streams added by {@link #read(String, InputStream, StreamConsumer)} that have not been polled yet. */
+    private final ConcurrentLinkedQueue<Stream> mNewStreams = new ConcurrentLinkedQueue<>();
+
+    /** The pipe written to wake up the {@link #mThread} from polling when a new stream is added. */
+    private FileDescriptor mWakeupReadFD;
+    private FileDescriptor mWakeupWriteFD;
+
+    /** The thread polling and reading the streams, started when the first stream is added. */
+    private Thread mThread;
+
+    private static final String LOG_TAG = "StreamMultiplexer";
+
+    private StreamMultiplexer() {
+    }
+
+    /** Get the {@link StreamMultiplexer} shared by the app process. */
+    @NonNull
+    public static synchronized StreamMultiplexer getInstance() {
+        if (streamMultiplexer == null)
+            streamMultiplexer = new StreamMultiplexer();
+        return streamMultiplexer;
+    }
+
+    /**
+     * Start reading a stream until its end and pass the data read to a consumer.
+     *
+     * @param name The name of the stream for logging.
+     * @param inputStream The {@link InputStream} to read, which will be closed at its end.
+     * @param consumer The {@link StreamConsumer} to pass the data to.
+     * @return Returns the {@link Stream} that can be waited for until the stream has been closed.
+     */
+    @NonNull
+    public Stream read(@NonNull String name, @NonNull InputStream inputStream, @NonNull StreamConsumer consumer) {
+        FileDescriptor fd = startThreadIfNeeded() ? getDuplicateFD(inputStream) : null;
+        Stream stream = new Stream(name, inputStream, consumer, fd);
+        if (fd == null) {
+            Logger.logVerbose(LOG_TAG, "Reading \"" + name + "\" stream with a thread of its own since its fd was not found");
+            readOnNewThread(stream);
+            return stream;
+        }
+
+        mNewStreams.add(stream);
+        try {
+            Os.write(mWakeupWriteFD, new byte[] {1}, 0, 1);
+        } catch (ErrnoException | IOException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to wake up " + LOG_TAG + " thread", e);
+        }
+        return stream;
+    }
+
+    /** Start the {@link #mThread} if it has not been started yet and get whether it is running. */
+    private synchronized boolean startThreadIfNeeded() {
+        if (mThread != null) return true;
+
+        try {
+            FileDescriptor[] fds = Os.pipe();
+            mWakeupReadFD = fds[0];
+            mWakeupWriteFD = fds[1];
+        } catch (ErrnoException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to create wakeup pipe", e);
+            return false;
+        }
+
+        mThread = new Thread(this::pollStreams, LOG_TAG + "#" + incThreadCounter());
+        mThread.setDaemon(true);
+        mThread.start();
+        return true;
+    }
+
+    /** Poll the streams and read the readable ones until the app process exits. */
+    private void pollStreams() {
+        List<Stream> streams = new ArrayList<>();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Stream newStream;
+            while ((newStream = mNewStreams.poll()) != null)
+                streams.add(newStream);
+
+            // Do not wait for streams that already have data available
+            int timeout = -1;
+            StructPollfd[] pollFDs = new StructPollfd[streams.size() + 1];
+            pollFDs[0] = newPollFD(mWakeupReadFD);
+            for (int i = 0; i < streams.size(); i++) {
+                pollFDs[i + 1] = newPollFD(streams.get(i).mFD);
+                if (streams.get(i).mHasAvailableData) timeout = 0;
+            }
+
+            try {
+                Os.poll(pollFDs, timeout);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) continue;
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to poll streams", e);
+                // Do not spin if polling keeps failing, the streams will still be read once it succeeds
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {}
+                continue;
+            }
+
+            if (pollFDs[0].revents != 0) {
+                try {
+                    Os.read(mWakeupReadFD, buffer, 0, buffer.length);
+                } catch (ErrnoException | IOException e) {
+                    Logger.logStackTraceWithMessage(LOG_TAG, "Failed to read wakeup pipe", e);
+                }
+            }
+
+            // Iterate backwards so that closed streams can be removed
+            for (int i = streams.size() - 1; i >= 0; i--) {
+                Stream stream = streams.get(i);
+                if ((pollFDs[i + 1].revents != 0 || stream.mHasAvailableData) && !stream.read(buffer))
+                    streams.remove(i);
+            }
+        }
+    }
+
+    @NonNull
+    private static StructPollfd newPollFD(@NonNull FileDescriptor fd) {
+        StructPollfd pollFD = new StructPollfd();
+        pollFD.fd = fd;
+        pollFD.events = (short) OsConstants.POLLIN;
+        return pollFD;
+    }
+
+    /** Read a stream whose file descriptor was not found on a new thread. */
+    private static void readOnNewThread(@NonNull Stream stream) {
+        new Thread(() -> {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (stream.read(buffer)) {
+            }
+        }, "Gobbler-" + stream.mName).start();
+    }
+
+    /**
+     * Get a duplicate of the file descriptor of {@code inputStream}, which must be closed once the
+     * stream has been closed.
+     *
+     * The stream is locked while getting it, since a {@link Process} replaces the {@link FileInputStream}
+     * of its streams with the data drained from them when it exits while holding the lock, after
+     * which the original file descriptor is closed and its number may be reused.
+     *
+     * @param inputStream The {@link InputStream} to get the file descriptor of.
+     * @return Returns the {@link FileDescriptor} if found, otherwise {@code null}.
+     */
+    @Nullable
+    private static FileDescriptor getDuplicateFD(@NonNull InputStream inputStream) {
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (inputStream) {
+            try {
+                InputStream in = inputStream;
+                while (in instanceof FilterInputStream)
+                    in = (InputStream) getFilterInputStreamInField().get(in);
+
+                if (!(in instanceof FileInputStream)) return null;
+                FileDescriptor fd = ((FileInputStream) in).getFD();
+                if (!fd.valid()) return null;
+                return Os.dup(fd);
+            } catch (Throwable t) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to get fd of stream", t);
+                return null;
+            }
+        }
+    }
+
+    @NonNull
+    private static synchronized Field getFilterInputStreamInField() throws NoSuchFieldException {
+        if (filterInputStreamInField == null) {
+            filterInputStreamInField = FilterInputStream.class.getDeclaredField("in");
+            filterInputStreamInField.setAccessible(true);
+        }
+        return filterInputStreamInField;
+    }
+
+}
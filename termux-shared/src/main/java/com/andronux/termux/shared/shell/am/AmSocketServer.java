@@ -11,6 +11,7 @@ import com.termux.am.Am;
 import com.andronux.termux.shared.R;
 import com.andronux.termux.shared.android.PackageUtils;
 import com.andronux.termux.shared.android.PermissionUtils;
+import com.andronux.termux.shared.data.DataUtils;
 import com.andronux.termux.shared.errors.Error;
 import com.andronux.termux.shared.logger.Logger;
 import com.andronux.termux.shared.net.socket.local.ILocalSocketManager;
@@ -22,8 +23,12 @@ import com.andronux.termux.shared.net.socket.local.LocalSocketRunConfig;
 import com.andronux.termux.shared.shell.ArgumentTokenizer;
 import com.andronux.termux.shared.shell.command.ExecutionCommand;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,6 +45,30 @@ import java.util.List;
  * back in the format `exit_code\0stdout\0stderr\0` where `\0` represents a null character.
  * Check termux/termux-am-socket for implementation of a native c client.
  *
+ * Clients that run many commands can instead keep one connection open with the framed protocol,
+ * so that connecting, accepting and checking the peer credentials is only done once. The client
+ * sends {@link #FRAMED_PROTOCOL_HANDSHAKE} followed by a null character instead of an am command,
+ * and the server replies with the same. Servers that do not support the framed protocol will
+ * instead reply with the failed result of running it as an am command and close the connection,
+ * in which case the client should fall back to the default protocol. After the handshake, the
+ * client may send any number of commands without waiting for their results. All integers are
+ * 32-bit big-endian and all strings are UTF-8 encoded.
+ * - Command frame: `length`, `request_id`, `am_command`, where `length` is the number of bytes
+ *   after it, which must be at most 4 + {@link #FRAMED_PROTOCOL_MAX_COMMAND_LENGTH}.
+ * - Result frame: `length`, `request_id`, `exit_code`, `stdout_length`, `stdout`, `stderr`,
+ *   where `length` is the number of bytes after it.
+ * Commands are run one at a time in the order they were received, and the result of each is sent
+ * with the request id of its command as soon as it finishes. The client must read results while
+ * sending commands, otherwise the connection may block once the socket buffers are full. The
+ * client closes the connection by shutting down its writing end after its last command. The
+ * server closes connections that have been idle for longer than
+ * {@link LocalSocketRunConfig#getReceiveTimeout()}. Idle connections do not hold a worker thread,
+ * they are handed back to the {@link LocalSocketManager} with
+ * {@link LocalSocketManager#watchClient(LocalClientSocket, Runnable)} whenever all commands
+ * received have been run. If all worker threads are busy and the queue is full once more commands
+ * are received, the connection is closed, and the client should resend the commands whose results
+ * it did not receive.
+ *
  * Usage:
  * 1. Optionally extend {@link AmSocketServerClient}, the implementation for
  *    {@link ILocalSocketManager} that will receive call backs from the server including
@@ -61,6 +90,12 @@ public class AmSocketServer {
 
     public static final String LOG_TAG = "AmSocketServer";
 
+    /** The handshake a client sends to switch the connection to the framed protocol. */
+    public static final String FRAMED_PROTOCOL_HANDSHAKE = "--termux-am-socket-framed-protocol=1";
+
+    /** The max length in bytes of an am command sent with the framed protocol. */
+    public static final int FRAMED_PROTOCOL_MAX_COMMAND_LENGTH = 1024 * 1024;
+
     /**
      * Create the {@link AmSocketServer} {@link LocalServerSocket} and start listening for new {@link LocalClientSocket}.
      *
@@ -79,49 +114,208 @@ public class AmSocketServer {
         return localSocketManager;
     }
 
-    public static void processAmClient(@NonNull LocalSocketManager localSocketManager,
-                                       @NonNull LocalClientSocket clientSocket) {
+    /**
+     * Process the am command sent by a {@link LocalClientSocket}, or start the framed protocol if
+     * it sent the {@link #FRAMED_PROTOCOL_HANDSHAKE}.
+     *
+     * @param localSocketManager The {@link LocalSocketManager} instance for the local socket.
+     * @param clientSocket The {@link LocalClientSocket} that connected.
+     * @return Returns {@code true} if the client was kept open for the framed protocol, in which
+     * case it will be closed once the client is done and must not be closed by the caller,
+     * otherwise {@code false}.
+     */
+    public static boolean processAmClient(@NonNull LocalSocketManager localSocketManager,
+                                          @NonNull LocalClientSocket clientSocket) {
         Error error;
 
-        // Read amCommandString client sent and close input stream
+        // Read amCommandString client sent, any bytes after it are kept for the framed protocol
         StringBuilder data = new StringBuilder();
-        error = clientSocket.readDataOnInputStream(data, true);
+        error = clientSocket.readDataOnInputStream(data, false);
+        String amCommandString = data.toString();
+        if (error == null && FRAMED_PROTOCOL_HANDSHAKE.equals(amCommandString)) {
+            processFramedAmClient(localSocketManager, clientSocket);
+            return true;
+        }
+
+        // Close input stream since only one am command is sent with the default protocol
+        try {
+            clientSocket.getInputStream().close();
+        } catch (IOException ignored) {}
+
         if (error != null) {
             sendResultToClient(localSocketManager, clientSocket, 1, null, error.toString());
+            return false;
+        }
+
+        // Run am command and send its result to the client
+        StringBuilder stdout = new StringBuilder();
+        StringBuilder stderr = new StringBuilder();
+        int exitCode = runAmCommandForClient(localSocketManager, clientSocket, amCommandString, stdout, stderr);
+        sendResultToClient(localSocketManager, clientSocket, exitCode, stdout.toString(), stderr.toString());
+        return false;
+    }
+
+    /**
+     * Start processing am commands sent by a {@link LocalClientSocket} with the framed protocol,
+     * after it has sent the {@link #FRAMED_PROTOCOL_HANDSHAKE}. The client is closed once it
+     * closes its writing end or is idle for too long.
+     *
+     * @param localSocketManager The {@link LocalSocketManager} instance for the local socket.
+     * @param clientSocket The {@link LocalClientSocket} that sent the handshake.
+     */
+    public static void processFramedAmClient(@NonNull LocalSocketManager localSocketManager,
+                                             @NonNull LocalClientSocket clientSocket) {
+        Error error = clientSocket.sendDataToOutputStream(FRAMED_PROTOCOL_HANDSHAKE + "\0", false);
+        if (error != null) {
+            localSocketManager.onError(clientSocket, error);
+            clientSocket.closeClientSocket(true);
             return;
         }
 
-        String amCommandString = data.toString();
+        Logger.logVerbose(LOG_TAG, () -> "Framed protocol started for peer " + clientSocket.getPeerCred().getMinimalString());
+
+        new FramedAmClient(localSocketManager, clientSocket).processCommands();
+    }
 
-        Logger.logVerbose(LOG_TAG, "am command received from peer " + clientSocket.getPeerCred().getMinimalString() +
+    /** The state of a {@link LocalClientSocket} that uses the framed protocol, kept between its commands. */
+    private static class FramedAmClient {
+
+        @NonNull private final LocalSocketManager mLocalSocketManager;
+        @NonNull private final LocalClientSocket mClientSocket;
+
+        /**
+         * The buffered input of the client, so that commands sent together are read with a single
+         * read on the socket. It is kept while the client is watched by the {@link LocalSocketManager},
+         * but it is always empty then.
+         */
+        @NonNull private final DataInputStream mInputStream;
+
+        private byte[] mAmCommandBytes = new byte[LocalClientSocket.READ_BUFFER_SIZE];
+        private int mCommandCount;
+
+        FramedAmClient(@NonNull LocalSocketManager localSocketManager, @NonNull LocalClientSocket clientSocket) {
+            mLocalSocketManager = localSocketManager;
+            mClientSocket = clientSocket;
+            mInputStream = new DataInputStream(new BufferedInputStream(
+                clientSocket.getInputStream(), LocalClientSocket.READ_BUFFER_SIZE));
+        }
+
+        /**
+         * Run the commands that have been received, and then hand the client back to the
+         * {@link LocalSocketManager} until it sends more, or close it if it is done.
+         */
+        void processCommands() {
+            try {
+                do {
+                    if (!processCommand()) {
+                        close();
+                        return;
+                    }
+                } while (mInputStream.available() > 0);
+            } catch (IOException e) {
+                // The SocketInputStream and SocketOutputStream throw the Error message in an IOException,
+                // so just read the exception message and not the stack trace
+                mLocalSocketManager.onError(mClientSocket,
+                    AmSocketServerErrno.ERRNO_FRAMED_PROTOCOL_CONNECTION_FAILED_WITH_EXCEPTION.getError(
+                        DataUtils.getSpaceIndentedString(e.getMessage(), 1)));
+                close();
+                return;
+            }
+
+            mLocalSocketManager.watchClient(mClientSocket, this::processCommands);
+        }
+
+        /**
+         * Read a command frame, run the am command and send its result frame.
+         *
+         * @return Returns {@code false} if the client has closed the connection or sent an invalid
+         * frame, otherwise {@code true}.
+         */
+        private boolean processCommand() throws IOException {
+            int frameLength;
+            try {
+                frameLength = mInputStream.readInt();
+            } catch (IOException e) {
+                // The client has closed the connection, or did not send the frame within the
+                // receive timeout
+                return false;
+            }
+
+            int amCommandLength = frameLength - 4;
+            if (amCommandLength < 0 || amCommandLength > FRAMED_PROTOCOL_MAX_COMMAND_LENGTH) {
+                mLocalSocketManager.onError(mClientSocket,
+                    AmSocketServerErrno.ERRNO_INVALID_FRAMED_AM_COMMAND_LENGTH.getError(amCommandLength, FRAMED_PROTOCOL_MAX_COMMAND_LENGTH));
+                return false;
+            }
+
+            int requestId = mInputStream.readInt();
+            if (mAmCommandBytes.length < amCommandLength)
+                mAmCommandBytes = new byte[amCommandLength];
+            mInputStream.readFully(mAmCommandBytes, 0, amCommandLength);
+            String amCommandString = new String(mAmCommandBytes, 0, amCommandLength, StandardCharsets.UTF_8);
+
+            StringBuilder stdout = new StringBuilder();
+            StringBuilder stderr = new StringBuilder();
+            int exitCode = runAmCommandForClient(mLocalSocketManager, mClientSocket, amCommandString, stdout, stderr);
+            sendFramedResultToClient(mClientSocket, requestId, exitCode, stdout.toString(), stderr.toString());
+            mCommandCount++;
+            return true;
+        }
+
+        private void close() {
+            Logger.logVerbose(LOG_TAG, "Framed protocol ended for peer " + mClientSocket.getPeerCred().getMinimalString() +
+                " after " + mCommandCount + " am commands");
+            mClientSocket.closeClientSocket(true);
+        }
+
+    }
+
+    /**
+     * Parse and run an am command received from a {@link LocalClientSocket}.
+     *
+     * @param localSocketManager The {@link LocalSocketManager} instance for the local socket.
+     * @param clientSocket The {@link LocalClientSocket} that sent the am command.
+     * @param amCommandString The am command {@link String}.
+     * @param stdout The {@link StringBuilder} to set stdout in that is returned by the am command.
+     * @param stderr The {@link StringBuilder} to set stderr in that is returned by the am command
+     *               and any error.
+     * @return Returns the exit code to send to the client.
+     */
+    private static int runAmCommandForClient(@NonNull LocalSocketManager localSocketManager,
+                                             @NonNull LocalClientSocket clientSocket,
+                                             @NonNull String amCommandString,
+                                             @NonNull StringBuilder stdout, @NonNull StringBuilder stderr) {
+        Error error;
+
+        Logger.logVerbose(LOG_TAG, () -> "am command received from peer " + clientSocket.getPeerCred().getMinimalString() +
             "\nam command: `" + amCommandString + "`");
 
         // Parse am command string and convert it to a list of arguments
         List<String> amCommandList = new ArrayList<>();
         error = parseAmCommand(amCommandString, amCommandList);
         if (error != null) {
-            sendResultToClient(localSocketManager, clientSocket, 1, null, error.toString());
-            return;
+            stderr.append(error);
+            return 1;
         }
 
         String[] amCommandArray = amCommandList.toArray(new String[0]);
 
-        Logger.logDebug(LOG_TAG, "am command received from peer " + clientSocket.getPeerCred().getMinimalString() +
+        Logger.logDebug(LOG_TAG, () -> "am command received from peer " + clientSocket.getPeerCred().getMinimalString() +
             "\n" + ExecutionCommand.getArgumentsLogString("am command", amCommandArray));
 
         AmSocketServerRunConfig amSocketServerRunConfig = (AmSocketServerRunConfig) localSocketManager.getLocalSocketRunConfig();
 
-        // Run am command and send its result to the client
-        StringBuilder stdout = new StringBuilder();
-        StringBuilder stderr = new StringBuilder();
+        // Run am command
         error = runAmCommand(localSocketManager.getContext(), amCommandArray, stdout, stderr,
             amSocketServerRunConfig.shouldCheckDisplayOverAppsPermission());
         if (error != null) {
-            sendResultToClient(localSocketManager, clientSocket, 1, stdout.toString(),
-                !stderr.toString().isEmpty() ? stderr + "\n\n" + error : error.toString());
+            if (stderr.length() > 0)
+                stderr.append("\n\n");
+            stderr.append(error);
+            return 1;
         }
 
-        sendResultToClient(localSocketManager, clientSocket, 0, stdout.toString(), stderr.toString());
+        return 0;
     }
 
     /**
@@ -151,6 +345,32 @@ public class AmSocketServer {
         }
     }
 
+    /**
+     * Send result frame of the framed protocol to {@link LocalClientSocket} that requested the am
+     * command to be run. The whole frame is sent at once.
+     *
+     * @param clientSocket The {@link LocalClientSocket} to which the result is to be sent.
+     * @param requestId The request id of the am command.
+     * @param exitCode The exit code value to send.
+     * @param stdout The stdout value to send.
+     * @param stderr The stderr value to send.
+     */
+    public static void sendFramedResultToClient(@NonNull LocalClientSocket clientSocket, int requestId,
+                                                int exitCode, @NonNull String stdout, @NonNull String stderr) throws IOException {
+        byte[] stdoutBytes = stdout.getBytes(StandardCharsets.UTF_8);
+        byte[] stderrBytes = stderr.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer frame = ByteBuffer.allocate(16 + stdoutBytes.length + stderrBytes.length);
+        frame.putInt(12 + stdoutBytes.length + stderrBytes.length);
+        frame.putInt(requestId);
+        frame.putInt(sanitizeExitCode(clientSocket, exitCode));
+        frame.putInt(stdoutBytes.length);
+        frame.put(stdoutBytes);
+        frame.put(stderrBytes);
+
+        clientSocket.getOutputStream().write(frame.array());
+    }
+
     /**
      * Sanitize exitCode to between 0-255, otherwise it may be considered invalid.
      * Out of bound exit codes would return with exit code `44` `Channel number out of range` in shell.
@@ -249,10 +469,20 @@ public class AmSocketServer {
         @Override
         public void onClientAccepted(@NonNull LocalSocketManager localSocketManager,
                                      @NonNull LocalClientSocket clientSocket) {
-            AmSocketServer.processAmClient(localSocketManager, clientSocket);
+            // Framed protocol clients are closed by AmSocketServer once they are done
+            if (AmSocketServer.processAmClient(localSocketManager, clientSocket))
+                return;
             super.onClientAccepted(localSocketManager, clientSocket);
         }
 
+        @Override
+        public void onClientRejected(@NonNull LocalSocketManager localSocketManager,
+                                     @NonNull LocalClientSocket clientSocket, @NonNull Error error) {
+            super.onClientRejected(localSocketManager, clientSocket, error);
+            // Reply with an error so that the client does not wait until its read timeout
+            AmSocketServer.sendResultToClient(localSocketManager, clientSocket, 1, null, error.getMessage());
+        }
+
     }
 
 }
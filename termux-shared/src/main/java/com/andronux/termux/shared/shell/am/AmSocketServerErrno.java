@@ -10,6 +10,8 @@ public class AmSocketServerErrno extends Errno {
     /** Errors for {@link AmSocketServer} (100-150) */
     public static final Errno ERRNO_PARSE_AM_COMMAND_FAILED_WITH_EXCEPTION = new Errno(TYPE, 100, "Parse am command `%1$s` failed.\nException: %2$s");
     public static final Errno ERRNO_RUN_AM_COMMAND_FAILED_WITH_EXCEPTION = new Errno(TYPE, 101, "Run am command `%1$s` failed.\nException: %2$s");
+    public static final Errno ERRNO_INVALID_FRAMED_AM_COMMAND_LENGTH = new Errno(TYPE, 102, "The framed am command length %1$s is invalid, it must be between 0 and %2$s.");
+    public static final Errno ERRNO_FRAMED_PROTOCOL_CONNECTION_FAILED_WITH_EXCEPTION = new Errno(TYPE, 103, "The framed protocol connection failed.\nException: %1$s");
 
     AmSocketServerErrno(final String type, final int code, final String message) {
         super(type, code, message);
@@ -14,6 +14,7 @@ import com.andronux.termux.shared.logger.Logger;
 import com.andronux.termux.shared.markdown.MarkdownUtils;
 import com.andronux.termux.shared.data.DataUtils;
 import com.andronux.termux.shared.shell.command.runner.app.AppShell;
+import com.andronux.termux.shared.shell.command.runner.app.AppShellScheduler;
 import com.andronux.termux.terminal.TerminalSession;
 
 import java.util.Collections;
@@ -140,6 +141,57 @@ public class ExecutionCommand {
 
     }
 
+    public enum OutputCaptureMode {
+
+        /** Capture the whole stdout and stderr of {@link AppShell} commands in {@link ResultData}. */
+        UNBOUNDED("unbounded"),
+
+        /**
+         * Capture only the head and tail of the stdout and stderr of {@link AppShell} commands in
+         * {@link ResultData}, limited by {@link #outputCaptureBufferSize}, and write the whole
+         * output to a file in the app cache directory if it exceeds the limit.
+         *
+         * The file is in the private storage of the app running the command, so other apps cannot
+         * read the path sent back in {@link ResultData#stdoutFilePath} and
+         * {@link ResultData#stderrFilePath}. They should set a result directory with
+         * {@link ResultConfig#resultDirectoryPath} instead, to which the whole output is copied.
+         */
+        BOUNDED("bounded");
+
+        private final String mode;
+
+        OutputCaptureMode(final String mode) {
+            this.mode = mode;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public boolean equalsMode(String outputCaptureMode) {
+            return outputCaptureMode != null && outputCaptureMode.equals(this.mode);
+        }
+
+        /** Get {@link OutputCaptureMode} for {@code mode} if found, otherwise {@code null}. */
+        @Nullable
+        public static OutputCaptureMode modeOf(String mode) {
+            for (OutputCaptureMode v : OutputCaptureMode.values()) {
+                if (v.mode.equals(mode)) {
+                    return v;
+                }
+            }
+            return null;
+        }
+
+        /** Get {@link OutputCaptureMode} for {@code mode} if found, otherwise {@code def}. */
+        @NonNull
+        public static OutputCaptureMode modeOf(@Nullable String mode, @NonNull OutputCaptureMode def) {
+            OutputCaptureMode outputCaptureMode = modeOf(mode);
+            return outputCaptureMode != null ? outputCaptureMode : def;
+        }
+
+    }
+
     /** The optional unique id for the {@link ExecutionCommand}. This should equal -1 if execution
      * command is not going to be managed by a shell manager. */
     public Integer id;
@@ -167,6 +219,11 @@ public class ExecutionCommand {
 
     /** The terminal transcript rows for the {@link ExecutionCommand}. */
     public Integer terminalTranscriptRows;
+    /**
+     * The handle of the terminal session for the {@link ExecutionCommand}, like of a session
+     * restored from its snapshot. A random one is used if this is {@code null}.
+     */
+    public String terminalSessionHandle;
 
 
     /** The {@link Runner} for the {@link ExecutionCommand}. */
@@ -177,13 +234,35 @@ public class ExecutionCommand {
 
     /**
      * The {@link ExecutionCommand} custom log level for background {@link AppShell}
-     * commands. By default, @link com.andronux.termux.shared.shell.shared.StreamGobbler} only logs stdout and
+     * commands. By default, {@link com.andronux.termux.shared.shell.LineStreamGobbler} only logs stdout and
      * stderr if {@link Logger} `CURRENT_LOG_LEVEL` is >= {@link Logger#LOG_LEVEL_VERBOSE} and
      * {@link AppShell} only logs stdin if `CURRENT_LOG_LEVEL` is >=
      * {@link Logger#LOG_LEVEL_DEBUG}.
      */
     public Integer backgroundCustomLogLevel;
 
+    /**
+     * The {@link OutputCaptureMode} of {@link AppShell} commands. Defaults to
+     * {@link OutputCaptureMode#UNBOUNDED} if not set, including for plugin commands that do not
+     * send the output capture mode extra.
+     */
+    public String outputCaptureMode;
+
+    /**
+     * The max number of bytes of each of stdout and stderr kept in {@link ResultData} for
+     * {@link OutputCaptureMode#BOUNDED} commands, half of which is taken from the start of the
+     * output and half from the end. Defaults to {@link #DEFAULT_OUTPUT_CAPTURE_BUFFER_SIZE}.
+     */
+    public Integer outputCaptureBufferSize;
+    public static final int DEFAULT_OUTPUT_CAPTURE_BUFFER_SIZE = 256 * 1024; // 256KB
+
+    /**
+     * The priority of {@link AppShell} commands queued by an {@link AppShellScheduler}. Commands
+     * with a higher priority are started first and commands with the same priority in the order
+     * they were queued. Defaults to {@link AppShellScheduler#DEFAULT_PRIORITY}.
+     */
+    public Integer priority;
+
 
     /** The session action of {@link Runner#TERMINAL_SESSION} commands. */
     public String sessionAction;
@@ -260,6 +339,11 @@ public class ExecutionCommand {
         return isPluginExecutionCommand && resultConfig.isCommandWithPendingResult();
     }
 
+    /** Get {@link #outputCaptureBufferSize} if set to a value greater than 0, otherwise {@link #DEFAULT_OUTPUT_CAPTURE_BUFFER_SIZE}. */
+    public int getOutputCaptureBufferSize() {
+        return outputCaptureBufferSize != null && outputCaptureBufferSize > 0 ? outputCaptureBufferSize : DEFAULT_OUTPUT_CAPTURE_BUFFER_SIZE;
+    }
+
 
     public synchronized boolean setState(ExecutionState newState) {
         // The state transition cannot go back or change if already at {@link ExecutionState#SUCCESS}
@@ -387,6 +471,12 @@ public class ExecutionCommand {
 
             if (!ignoreNull || executionCommand.backgroundCustomLogLevel != null)
                 logString.append("\n").append(executionCommand.getBackgroundCustomLogLevelLogString());
+
+            if (!ignoreNull || executionCommand.outputCaptureMode != null)
+                logString.append("\n").append(executionCommand.getOutputCaptureModeLogString());
+
+            if (!ignoreNull || executionCommand.priority != null)
+                logString.append("\n").append(executionCommand.getPriorityLogString());
         }
 
         if (!ignoreNull || executionCommand.sessionAction != null)
@@ -490,6 +580,10 @@ public class ExecutionCommand {
                 markdownString.append("\n").append(MarkdownUtils.getMultiLineMarkdownStringEntry("Stdin", executionCommand.stdin, "-"));
             if (executionCommand.backgroundCustomLogLevel != null)
                 markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Background Custom Log Level", executionCommand.backgroundCustomLogLevel, "-"));
+            if (executionCommand.outputCaptureMode != null)
+                markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Output Capture Mode", executionCommand.outputCaptureMode, "-"));
+            if (executionCommand.priority != null)
+                markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Priority", executionCommand.priority, "-"));
         }
 
         markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Session Action", executionCommand.sessionAction, "-"));
@@ -582,6 +676,16 @@ public class ExecutionCommand {
         return "Background Custom Log Level: `" + backgroundCustomLogLevel + "`";
     }
 
+    public String getOutputCaptureModeLogString() {
+        if (OutputCaptureMode.BOUNDED.equalsMode(outputCaptureMode))
+            return "Output Capture Mode: `" + outputCaptureMode + "` (`" + getOutputCaptureBufferSize() + "` bytes)";
+        return Logger.getSingleLineLogStringEntry("Output Capture Mode", outputCaptureMode, "-");
+    }
+
+    public String getPriorityLogString() {
+        return Logger.getSingleLineLogStringEntry("Priority", priority, "-");
+    }
+
     public String getSessionActionLogString() {
         return Logger.getSingleLineLogStringEntry("Session Action", sessionAction, "-");
     }
@@ -3,11 +3,13 @@ package com.andronux.termux.shared.shell.command.environment;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.andronux.termux.shared.shell.command.ExecutionCommand;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Environment for Android.
@@ -64,6 +66,17 @@ public class AndroidShellEnvironment extends UnixShellEnvironment {
         return environment;
     }
 
+    /**
+     * Get the {@link ShellEnvironmentSnapshot} of {@link #getEnvironment(Context, boolean)}, which
+     * is used by {@link #setupShellCommandEnvironment(Context, ExecutionCommand)} and
+     * {@link #setupShellCommandEnviron(Context, ExecutionCommand, Map)}. It is built again on every
+     * call, subclasses may cache it if their environment only changes on known events.
+     */
+    @NonNull
+    public ShellEnvironmentSnapshot getEnvironmentSnapshot(@NonNull Context currentPackageContext, boolean isFailSafe) {
+        return new ShellEnvironmentSnapshot(getEnvironment(currentPackageContext, isFailSafe));
+    }
+
 
 
     @NonNull
@@ -83,13 +96,38 @@ public class AndroidShellEnvironment extends UnixShellEnvironment {
     @Override
     public HashMap<String, String> setupShellCommandEnvironment(@NonNull Context currentPackageContext,
                                                                 @NonNull ExecutionCommand executionCommand) {
-        HashMap<String, String> environment = getEnvironment(currentPackageContext, executionCommand.isFailsafe);
+        HashMap<String, String> environment = new HashMap<>(getEnvironmentSnapshot(currentPackageContext,
+            executionCommand.isFailsafe).getEnvironment());
+        ShellEnvironmentUtils.createHomeDir(environment);
+        environment.putAll(getShellCommandEnvironment(currentPackageContext, executionCommand));
+        return environment;
+    }
+
+    @NonNull
+    @Override
+    public String[] setupShellCommandEnviron(@NonNull Context currentPackageContext,
+                                             @NonNull ExecutionCommand executionCommand,
+                                             @Nullable Map<String, String> additionalEnvironment) {
+        ShellEnvironmentSnapshot environmentSnapshot = getEnvironmentSnapshot(currentPackageContext,
+            executionCommand.isFailsafe);
+        ShellEnvironmentUtils.createHomeDir(environmentSnapshot.getEnvironment());
+
+        HashMap<String, String> commandEnvironment = getShellCommandEnvironment(currentPackageContext, executionCommand);
+        if (additionalEnvironment != null)
+            commandEnvironment.putAll(additionalEnvironment);
+        return environmentSnapshot.getEnviron(commandEnvironment);
+    }
+
+    /** Get the environment variables specific to the {@link ExecutionCommand}, which override the shell environment. */
+    @NonNull
+    protected HashMap<String, String> getShellCommandEnvironment(@NonNull Context currentPackageContext,
+                                                                 @NonNull ExecutionCommand executionCommand) {
+        HashMap<String, String> environment = new HashMap<>();
 
         String workingDirectory = executionCommand.workingDirectory;
         environment.put(ENV_PWD,
             workingDirectory != null && !workingDirectory.isEmpty() ? new File(workingDirectory).getAbsolutePath() : // PWD must be absolute path
             getDefaultWorkingDirectoryPath());
-        ShellEnvironmentUtils.createHomeDir(environment);
 
         if (executionCommand.setShellCommandShellEnvironment && shellCommandShellEnvironment != null)
             environment.putAll(shellCommandShellEnvironment.getEnvironment(currentPackageContext, executionCommand));
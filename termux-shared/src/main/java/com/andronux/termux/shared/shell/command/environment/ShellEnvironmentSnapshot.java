@@ -0,0 +1,104 @@
+package com.andronux.termux.shared.shell.command.environment;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable shell environment, pre-encoded as the sorted `environ` array in `name=value` format
+ * that is passed to new processes, so that it only has to be built once and can be shared between
+ * commands and threads.
+ *
+ * Per command variables, like the working directory, are layered on top with
+ * {@link #getEnviron(Map)}, which merges them into the sorted array without rebuilding it.
+ */
+public final class ShellEnvironmentSnapshot {
+
+    /** The environment variables, including ones that are not valid for the {@link #mEnviron}. */
+    private final Map<String, String> mEnvironment;
+    /** The valid environment variables in `name=value` format sorted like a {@link String}. */
+    private final String[] mEnviron;
+    /** The names of the variables in {@link #mEnviron} at the same indexes. */
+    private final String[] mNames;
+
+    /** The `.env` file content, built on first use. */
+    private volatile String mDotEnvFile;
+
+    /**
+     * Create a new instance of {@link ShellEnvironmentSnapshot}.
+     *
+     * @param environment The environment variables. A copy is kept, so it may be modified afterwards.
+     */
+    public ShellEnvironmentSnapshot(@NonNull HashMap<String, String> environment) {
+        mEnvironment = Collections.unmodifiableMap(new HashMap<>(environment));
+
+        List<String> environmentList = ShellEnvironmentUtils.convertEnvironmentToEnviron(environment);
+        Collections.sort(environmentList);
+        mEnviron = environmentList.toArray(new String[0]);
+        mNames = new String[mEnviron.length];
+        for (int i = 0; i < mEnviron.length; i++)
+            mNames[i] = mEnviron[i].substring(0, mEnviron[i].indexOf('='));
+    }
+
+    /** Get the unmodifiable environment variables. */
+    @NonNull
+    public Map<String, String> getEnvironment() {
+        return mEnvironment;
+    }
+
+    /** Get the `environ` array of the environment. */
+    @NonNull
+    public String[] getEnviron() {
+        return mEnviron.clone();
+    }
+
+    /**
+     * Get the `environ` array of the environment with variables overridden or added. This gives the
+     * same array as converting the environment with the {@code overrides} put into it with
+     * {@link ShellEnvironmentUtils#convertEnvironmentToEnviron(HashMap)} and sorting it, but only the
+     * {@code overrides} are validated and sorted.
+     *
+     * @param overrides The variables to override or add. A {@code null} or invalid value removes
+     *                  the variable.
+     * @return Returns the `environ` array.
+     */
+    @NonNull
+    public String[] getEnviron(@Nullable Map<String, String> overrides) {
+        if (overrides == null || overrides.isEmpty())
+            return getEnviron();
+
+        List<String> overridesList = ShellEnvironmentUtils.convertEnvironmentToEnviron(new HashMap<>(overrides));
+        Collections.sort(overridesList);
+
+        // Merge the two sorted lists, skipping the overridden variables
+        List<String> environ = new ArrayList<>(mEnviron.length + overridesList.size());
+        int j = 0;
+        for (int i = 0; i < mEnviron.length; i++) {
+            if (overrides.containsKey(mNames[i])) continue;
+            while (j < overridesList.size() && overridesList.get(j).compareTo(mEnviron[i]) < 0)
+                environ.add(overridesList.get(j++));
+            environ.add(mEnviron[i]);
+        }
+        while (j < overridesList.size())
+            environ.add(overridesList.get(j++));
+
+        return environ.toArray(new String[0]);
+    }
+
+    /** Get the `.env` file content of the environment built with {@link ShellEnvironmentUtils#convertEnvironmentToDotEnvFile(HashMap)}. */
+    @NonNull
+    public String getDotEnvFile() {
+        String dotEnvFile = mDotEnvFile;
+        if (dotEnvFile == null) {
+            dotEnvFile = ShellEnvironmentUtils.convertEnvironmentToDotEnvFile(new HashMap<>(mEnvironment));
+            mDotEnvFile = dotEnvFile;
+        }
+        return dotEnvFile;
+    }
+
+}
@@ -30,6 +30,10 @@ public class ResultConfig {
     public String resultStdoutOriginalLengthKey;
     /** The key with which to send original length of {@link ResultData#stderr} in {@link #resultPendingIntent}. */
     public String resultStderrOriginalLengthKey;
+    /** The key with which to send {@link ResultData#stdoutFilePath} in {@link #resultPendingIntent}. */
+    public String resultStdoutFileKey;
+    /** The key with which to send {@link ResultData#stderrFilePath} in {@link #resultPendingIntent}. */
+    public String resultStderrFileKey;
 
 
     /** Defines the directory path in which to write the result of the command. */
@@ -115,6 +119,10 @@ public class ResultConfig {
             resultPendingIntentVariablesString.append("\n").append(Logger.getSingleLineLogStringEntry("Result Stdout Original Length Key", resultStdoutOriginalLengthKey, "-"));
         if (!ignoreNull || resultStderrOriginalLengthKey != null)
             resultPendingIntentVariablesString.append("\n").append(Logger.getSingleLineLogStringEntry("Result Stderr Original Length Key", resultStderrOriginalLengthKey, "-"));
+        if (!ignoreNull || resultStdoutFileKey != null)
+            resultPendingIntentVariablesString.append("\n").append(Logger.getSingleLineLogStringEntry("Result Stdout File Key", resultStdoutFileKey, "-"));
+        if (!ignoreNull || resultStderrFileKey != null)
+            resultPendingIntentVariablesString.append("\n").append(Logger.getSingleLineLogStringEntry("Result Stderr File Key", resultStderrFileKey, "-"));
 
         return resultPendingIntentVariablesString.toString();
     }
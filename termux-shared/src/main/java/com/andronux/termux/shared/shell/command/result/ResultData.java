@@ -22,6 +22,15 @@ public class ResultData implements Serializable {
     /** The exit code of command. */
     public Integer exitCode;
 
+    /**
+     * The path to the file containing the whole stdout of command, if it was captured with
+     * {@link com.andronux.termux.shared.shell.command.ExecutionCommand.OutputCaptureMode#BOUNDED}
+     * and exceeded the capture buffer size. The {@link #stdout} then only contains its start and end.
+     */
+    public String stdoutFilePath;
+    /** The path to the file containing the whole stderr of command, check {@link #stdoutFilePath}. */
+    public String stderrFilePath;
+
     /** The internal errors list of command. */
     public List<Error> errorsList =  new ArrayList<>();
 
@@ -145,6 +154,10 @@ public class ResultData implements Serializable {
             logString.append("\n").append(resultData.getStdoutLogString());
             logString.append("\n").append(resultData.getStderrLogString());
         }
+        if (resultData.stdoutFilePath != null)
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("Stdout File", resultData.stdoutFilePath, "-"));
+        if (resultData.stderrFilePath != null)
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("Stderr File", resultData.stderrFilePath, "-"));
         logString.append("\n").append(resultData.getExitCodeLogString());
 
         logString.append("\n\n").append(getErrorsListLogString(resultData));
@@ -211,6 +224,11 @@ public class ResultData implements Serializable {
         else
             markdownString.append("\n").append(MarkdownUtils.getMultiLineMarkdownStringEntry("Stderr", resultData.stderr.toString(), "-"));
 
+        if (resultData.stdoutFilePath != null)
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Stdout File", resultData.stdoutFilePath, "-"));
+        if (resultData.stderrFilePath != null)
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Stderr File", resultData.stderrFilePath, "-"));
+
         markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("Exit Code", resultData.exitCode, "-"));
 
         markdownString.append("\n\n").append(getErrorsListMarkdownString(resultData));
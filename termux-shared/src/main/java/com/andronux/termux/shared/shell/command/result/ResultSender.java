@@ -72,7 +72,7 @@ public class ResultSender {
 
         logTag = DataUtils.getDefaultIfNull(logTag, LOG_TAG);
 
-        Logger.logDebugExtended(logTag, "Sending result for command \"" + label + "\":\n" + resultConfig.toString() + "\n" + ResultData.getResultDataLogString(resultData, logStdoutAndStderr));
+        Logger.logDebugExtended(logTag, () -> "Sending result for command \"" + label + "\":\n" + resultConfig.toString() + "\n" + ResultData.getResultDataLogString(resultData, logStdoutAndStderr));
 
         String resultDataStdout = resultData.stdout.toString();
         String resultDataStderr = resultData.stderr.toString();
@@ -125,6 +125,11 @@ public class ResultSender {
         resultBundle.putString(resultConfig.resultStdoutOriginalLengthKey, stdoutOriginalLength);
         resultBundle.putString(resultConfig.resultStderrKey, resultDataStderr);
         resultBundle.putString(resultConfig.resultStderrOriginalLengthKey, stderrOriginalLength);
+        // The whole output of commands with truncated output, which the caller may read instead
+        if (resultConfig.resultStdoutFileKey != null && resultData.stdoutFilePath != null)
+            resultBundle.putString(resultConfig.resultStdoutFileKey, resultData.stdoutFilePath);
+        if (resultConfig.resultStderrFileKey != null && resultData.stderrFilePath != null)
+            resultBundle.putString(resultConfig.resultStderrFileKey, resultData.stderrFilePath);
         if (resultData.exitCode != null)
             resultBundle.putInt(resultConfig.resultExitCodeKey, resultData.exitCode);
         resultBundle.putInt(resultConfig.resultErrCodeKey, resultData.getErrCode());
@@ -180,7 +185,7 @@ public class ResultSender {
 
         resultConfig.resultDirectoryPath = FileUtils.getCanonicalPath(resultConfig.resultDirectoryPath, null);
 
-        Logger.logDebugExtended(logTag, "Writing result for command \"" + label + "\":\n" + resultConfig.toString() + "\n" + ResultData.getResultDataLogString(resultData, logStdoutAndStderr));
+        Logger.logDebugExtended(logTag, () -> "Writing result for command \"" + label + "\":\n" + resultConfig.toString() + "\n" + ResultData.getResultDataLogString(resultData, logStdoutAndStderr));
 
         // If resultDirectoryPath is not a directory, or is not readable or writable, then just return
         // Creation of missing directory and setting of read, write and execute permissions are
@@ -277,9 +282,15 @@ public class ResultSender {
 
             // Write result to result files under resultDirectoryPath
 
-            // Write stdout to file
-            if (!resultDataStdout.isEmpty()) {
-                filename = RESULT_SENDER.RESULT_FILE_STDOUT_PREFIX + resultConfig.resultFilesSuffix;
+            // Write stdout to file, copying the whole stdout if it was truncated
+            filename = RESULT_SENDER.RESULT_FILE_STDOUT_PREFIX + resultConfig.resultFilesSuffix;
+            if (resultData.stdoutFilePath != null) {
+                error = FileUtils.copyRegularFile(filename, resultData.stdoutFilePath,
+                    resultConfig.resultDirectoryPath + "/" + filename, false);
+                if (error != null) {
+                    return error;
+                }
+            } else if (!resultDataStdout.isEmpty()) {
                 error = FileUtils.writeTextToFile(filename, resultConfig.resultDirectoryPath + "/" + filename,
                     null, resultDataStdout, false);
                 if (error != null) {
@@ -287,9 +298,15 @@ public class ResultSender {
                 }
             }
 
-            // Write stderr to file
-            if (!resultDataStderr.isEmpty()) {
-                filename = RESULT_SENDER.RESULT_FILE_STDERR_PREFIX + resultConfig.resultFilesSuffix;
+            // Write stderr to file, copying the whole stderr if it was truncated
+            filename = RESULT_SENDER.RESULT_FILE_STDERR_PREFIX + resultConfig.resultFilesSuffix;
+            if (resultData.stderrFilePath != null) {
+                error = FileUtils.copyRegularFile(filename, resultData.stderrFilePath,
+                    resultConfig.resultDirectoryPath + "/" + filename, false);
+                if (error != null) {
+                    return error;
+                }
+            } else if (!resultDataStderr.isEmpty()) {
                 error = FileUtils.writeTextToFile(filename, resultConfig.resultDirectoryPath + "/" + filename,
                     null, resultDataStderr, false);
                 if (error != null) {
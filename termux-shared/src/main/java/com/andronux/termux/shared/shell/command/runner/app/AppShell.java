@@ -9,30 +9,50 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.common.base.Joiner;
+import com.andronux.termux.terminal.ProcessReaper;
 import com.andronux.termux.shared.R;
 import com.andronux.termux.shared.data.DataUtils;
 import com.andronux.termux.shared.shell.command.ExecutionCommand;
-import com.andronux.termux.shared.shell.command.environment.ShellEnvironmentUtils;
 import com.andronux.termux.shared.shell.command.result.ResultData;
 import com.andronux.termux.shared.errors.Errno;
 import com.andronux.termux.shared.logger.Logger;
 import com.andronux.termux.shared.shell.command.ExecutionCommand.ExecutionState;
 import com.andronux.termux.shared.shell.command.environment.IShellEnvironment;
+import com.andronux.termux.shared.shell.BoundedStreamGobbler;
+import com.andronux.termux.shared.shell.LineStreamGobbler;
+import com.andronux.termux.shared.shell.ProcessSpawner;
 import com.andronux.termux.shared.shell.ShellUtils;
-import com.andronux.termux.shared.shell.StreamGobbler;
+import com.andronux.termux.shared.shell.StreamMultiplexer;
 
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A class that maintains info for background app shells run with {@link Runtime#exec(String[], String[], File)}.
+ * A class that maintains info for background app shells run with {@link ProcessSpawner#exec(String[], String[], File)}.
  * It also provides a way to link each {@link Process} with the {@link ExecutionCommand}
  * that started it. The shell is run in the app user context.
+ *
+ * The exit of asynchronous app shells is waited for by the {@link ProcessReaper} shared with the
+ * terminal sessions instead of by a thread per app shell, and the stdin writing and result
+ * processing is done on the threads of {@link #EXECUTOR}, so that the number of threads does not
+ * grow with many short lived commands. The stdout and stderr of all app shells are read on the
+ * single thread of the {@link StreamMultiplexer} instead of by two threads per app shell.
+ *
+ * The processes are started with vfork() by the {@link ProcessSpawner} instead of being forked by
+ * {@link Runtime#exec(String[], String[], File)}, whose cost grows with the size of the app process.
+ * A {@link ProcessSpawner.SpawnedProcess} is reaped by the {@link ProcessReaper} itself, while other
+ * processes reap themselves.
+ *
+ * The stdout and stderr of commands with {@link ExecutionCommand.OutputCaptureMode#BOUNDED} are
+ * consumed by a {@link BoundedStreamGobbler} instead of a {@link LineStreamGobbler}, which only keeps
+ * the start and end of the output in memory and writes the whole output to a file in {@link #OUTPUT_SPILL_DIRECTORY_NAME}
+ * under the app cache directory if it exceeds {@link ExecutionCommand#getOutputCaptureBufferSize()}.
  */
 public final class AppShell {
 
@@ -40,6 +60,40 @@ public final class AppShell {
     private final ExecutionCommand mExecutionCommand;
     private final AppShellClient mAppShellClient;
 
+    private DataOutputStream mStdin;
+    private StreamMultiplexer.StreamConsumer mStdoutGobbler;
+    private StreamMultiplexer.StreamConsumer mStderrGobbler;
+    private StreamMultiplexer.Stream mStdoutStream;
+    private StreamMultiplexer.Stream mStderrStream;
+
+    /**
+     * The max number of {@link #EXECUTOR} threads. This matches the default limit of the
+     * {@link AppShellScheduler}, since the threads are only used while starting an app shell and
+     * after it has exited, and not while it runs, so that commands whose slot has expired in the
+     * scheduler do not hold threads.
+     */
+    private static final int EXECUTOR_MAX_THREADS = AppShellScheduler.DEFAULT_MAX_RUNNING_COMMANDS;
+
+    /** The time after which idle {@link #EXECUTOR} threads are stopped. */
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The threads writing stdin and processing results of asynchronous app shells, which are reused
+     * when idle. Tasks are queued once all {@link #EXECUTOR_MAX_THREADS} threads are busy.
+     */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(EXECUTOR_MAX_THREADS, EXECUTOR_MAX_THREADS,
+        EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, "AppShell"));
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /** The name of the directory under the app cache directory for the whole output of {@link ExecutionCommand.OutputCaptureMode#BOUNDED} commands. */
+    public static final String OUTPUT_SPILL_DIRECTORY_NAME = "app-shell-output";
+
+    /** The age after which output spill files are deleted when a new command is started. */
+    private static final long OUTPUT_SPILL_FILE_MAX_AGE = 24 * 60 * 60 * 1000; // 1 day
+
     private static final String LOG_TAG = "AppShell";
 
     private AppShell(@NonNull final Process process, @NonNull final ExecutionCommand executionCommand,
@@ -50,7 +104,9 @@ public final class AppShell {
     }
 
     /**
-     * Start execution of an {@link ExecutionCommand} with {@link Runtime#exec(String[], String[], File)}.
+     * Start execution of an {@link ExecutionCommand} with {@link ProcessSpawner#exec(String[], String[], File)},
+     * which falls back to {@link Runtime#exec(String[], String[], File)} if the native spawner is
+     * not available. The stdout and stderr of the process are read by the {@link StreamMultiplexer}.
      *
      * The {@link ExecutionCommand#executable}, must be set.
      * The  {@link ExecutionCommand#commandLabel}, {@link ExecutionCommand#arguments} and
@@ -71,8 +127,9 @@ public final class AppShell {
      * @param isSynchronous If set to {@code true}, then the command will be executed in the
      *                      caller thread and results returned synchronously in the {@link ExecutionCommand}
      *                      sub object of the {@link AppShell} returned.
-     *                      If set to {@code false}, then a new thread is started run the commands
-     *                      asynchronously in the background and control is returned to the caller thread.
+     *                      If set to {@code false}, then the stdin is written and the exit is waited
+     *                      for asynchronously on a thread of {@link #EXECUTOR} and control is returned
+     *                      to the caller thread.
      * @return Returns the {@link AppShell}. This will be {@code null} if failed to start the execution command.
      */
     public static AppShell execute(@NonNull final Context currentPackageContext, @NonNull ExecutionCommand executionCommand,
@@ -105,13 +162,8 @@ public final class AppShell {
         final String[] commandArray = shellEnvironmentClient.setupShellCommandArguments(executionCommand.executable, executionCommand.arguments);
 
         // Setup command environment
-        HashMap<String, String> environment = shellEnvironmentClient.setupShellCommandEnvironment(currentPackageContext,
-            executionCommand);
-        if (additionalEnvironment != null)
-            environment.putAll(additionalEnvironment);
-        List<String> environmentList = ShellEnvironmentUtils.convertEnvironmentToEnviron(environment);
-        Collections.sort(environmentList);
-        String[] environmentArray = environmentList.toArray(new String[0]);
+        String[] environmentArray = shellEnvironmentClient.setupShellCommandEnviron(currentPackageContext,
+            executionCommand, additionalEnvironment);
 
         if (!executionCommand.setState(ExecutionState.EXECUTING)) {
             executionCommand.setStateFailed(Errno.ERRNO_FAILED.getCode(), currentPackageContext.getString(R.string.error_failed_to_execute_app_shell_command, executionCommand.getCommandIdAndLabelLogString()));
@@ -120,15 +172,15 @@ public final class AppShell {
         }
 
         // No need to log stdin if logging is disabled, like for app internal scripts
-        Logger.logDebugExtended(LOG_TAG, ExecutionCommand.getExecutionInputLogString(executionCommand,
+        Logger.logDebugExtended(LOG_TAG, () -> ExecutionCommand.getExecutionInputLogString(executionCommand,
             true, Logger.shouldEnableLoggingForCustomLogLevel(executionCommand.backgroundCustomLogLevel)));
-        Logger.logVerboseExtended(LOG_TAG, "\"" + executionCommand.getCommandIdAndLabelLogString() + "\" AppShell Environment:\n" +
+        Logger.logVerboseExtended(LOG_TAG, () -> "\"" + executionCommand.getCommandIdAndLabelLogString() + "\" AppShell Environment:\n" +
             Joiner.on("\n").join(environmentArray));
 
         // Exec the process
         final Process process;
         try {
-            process = Runtime.getRuntime().exec(commandArray, environmentArray, new File(executionCommand.workingDirectory));
+            process = ProcessSpawner.exec(commandArray, environmentArray, new File(executionCommand.workingDirectory));
         } catch (IOException e) {
             executionCommand.setStateFailed(Errno.ERRNO_FAILED.getCode(), currentPackageContext.getString(R.string.error_failed_to_execute_app_shell_command, executionCommand.getCommandIdAndLabelLogString()), e);
             AppShell.processAppShellResult(null, executionCommand);
@@ -138,36 +190,29 @@ public final class AppShell {
         final AppShell appShell = new AppShell(process, executionCommand, appShellClient);
         if (isSynchronous) {
             try {
-                appShell.executeInner(currentPackageContext);
+                if (appShell.startInner(currentPackageContext))
+                    appShell.finishInner(currentPackageContext, process.waitFor());
             } catch (IllegalThreadStateException | InterruptedException e) {
                 // TODO: Should either of these be handled or returned?
             }
         } else {
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        appShell.executeInner(currentPackageContext);
-                    } catch (IllegalThreadStateException | InterruptedException e) {
-                        // TODO: Should either of these be handled or returned?
-                    }
-                }
-            }.start();
+            EXECUTOR.execute(() -> {
+                if (appShell.startInner(currentPackageContext))
+                    appShell.waitForExit(currentPackageContext);
+            });
         }
 
         return appShell;
     }
 
     /**
-     * Sets up stdout and stderr readers for the {@link #mProcess} and waits for the process to end.
-     *
-     * If the processes finishes, then sets {@link ResultData#stdout}, {@link ResultData#stderr}
-     * and {@link ResultData#exitCode} for the {@link #mExecutionCommand} of the {@code appShell}
-     * and then calls {@link #processAppShellResult(AppShell, ExecutionCommand) to process the result}.
+     * Sets up stdout and stderr readers for the {@link #mProcess} and writes the stdin.
      *
      * @param context The {@link Context} for operations.
+     * @return Returns {@code true} if the process should be waited for, otherwise {@code false}
+     * if writing the stdin failed and the result has already been processed.
      */
-    private void executeInner(@NonNull final Context context) throws IllegalThreadStateException, InterruptedException {
+    private boolean startInner(@NonNull final Context context) {
         mExecutionCommand.mPid = ShellUtils.getPid(mProcess);
 
         Logger.logDebug(LOG_TAG, "Running \"" + mExecutionCommand.getCommandIdAndLabelLogString() + "\" AppShell with pid " + mExecutionCommand.mPid);
@@ -175,21 +220,31 @@ public final class AppShell {
         mExecutionCommand.resultData.exitCode = null;
 
         // setup stdin, and stdout and stderr gobblers
-        DataOutputStream STDIN = new DataOutputStream(mProcess.getOutputStream());
-        StreamGobbler STDOUT = new StreamGobbler(mExecutionCommand.mPid + "-stdout", mProcess.getInputStream(), mExecutionCommand.resultData.stdout, mExecutionCommand.backgroundCustomLogLevel);
-        StreamGobbler STDERR = new StreamGobbler(mExecutionCommand.mPid + "-stderr", mProcess.getErrorStream(), mExecutionCommand.resultData.stderr, mExecutionCommand.backgroundCustomLogLevel);
+        mStdin = new DataOutputStream(mProcess.getOutputStream());
+        if (ExecutionCommand.OutputCaptureMode.BOUNDED.equalsMode(mExecutionCommand.outputCaptureMode)) {
+            File spillDirectory = new File(context.getCacheDir(), OUTPUT_SPILL_DIRECTORY_NAME);
+            deleteStaleOutputSpillFiles(spillDirectory);
+            String spillFilePrefix = mExecutionCommand.mPid + "-" + System.currentTimeMillis();
+            int bufferSize = mExecutionCommand.getOutputCaptureBufferSize();
+            mStdoutGobbler = new BoundedStreamGobbler(mExecutionCommand.mPid + "-stdout", bufferSize, new File(spillDirectory, spillFilePrefix + "-stdout"), mExecutionCommand.backgroundCustomLogLevel);
+            mStderrGobbler = new BoundedStreamGobbler(mExecutionCommand.mPid + "-stderr", bufferSize, new File(spillDirectory, spillFilePrefix + "-stderr"), mExecutionCommand.backgroundCustomLogLevel);
+        } else {
+            mStdoutGobbler = new LineStreamGobbler(mExecutionCommand.mPid + "-stdout", mExecutionCommand.resultData.stdout, mExecutionCommand.backgroundCustomLogLevel);
+            mStderrGobbler = new LineStreamGobbler(mExecutionCommand.mPid + "-stderr", mExecutionCommand.resultData.stderr, mExecutionCommand.backgroundCustomLogLevel);
+        }
 
         // start gobbling
-        STDOUT.start();
-        STDERR.start();
+        StreamMultiplexer streamMultiplexer = StreamMultiplexer.getInstance();
+        mStdoutStream = streamMultiplexer.read(mExecutionCommand.mPid + "-stdout", mProcess.getInputStream(), mStdoutGobbler);
+        mStderrStream = streamMultiplexer.read(mExecutionCommand.mPid + "-stderr", mProcess.getErrorStream(), mStderrGobbler);
 
         if (!DataUtils.isNullOrEmpty(mExecutionCommand.stdin)) {
             try {
-                STDIN.write((mExecutionCommand.stdin + "\n").getBytes(StandardCharsets.UTF_8));
-                STDIN.flush();
-                STDIN.close();
-                //STDIN.write("exit\n".getBytes(StandardCharsets.UTF_8));
-                //STDIN.flush();
+                mStdin.write((mExecutionCommand.stdin + "\n").getBytes(StandardCharsets.UTF_8));
+                mStdin.flush();
+                mStdin.close();
+                //mStdin.write("exit\n".getBytes(StandardCharsets.UTF_8));
+                //mStdin.flush();
             } catch(IOException e) {
                 if (e.getMessage() != null && (e.getMessage().contains("EPIPE") || e.getMessage().contains("Stream closed"))) {
                     // Method most horrid to catch broken pipe, in which case we
@@ -203,28 +258,98 @@ public final class AppShell {
                     mExecutionCommand.resultData.exitCode = 1;
                     AppShell.processAppShellResult(this, null);
                     kill();
-                    return;
+                    return false;
                 }
             }
         }
 
-        // wait for our process to finish, while we gobble away in the background
-        int exitCode = mProcess.waitFor();
+        return true;
+    }
+
+    /**
+     * Wait for the exit of {@link #mProcess} through the {@link ProcessReaper} and then call
+     * {@link #finishInner(Context, int)} on a thread of {@link #EXECUTOR}. If the pid of the process
+     * is not known, then a thread of its own waits instead, so that it does not hold one of the
+     * bounded {@link #EXECUTOR} threads while the process runs.
+     *
+     * @param context The {@link Context} for operations.
+     */
+    private void waitForExit(@NonNull final Context context) {
+        if (mExecutionCommand.mPid <= 0) {
+            new Thread(() -> {
+                try {
+                    finishInner(context, mProcess.waitFor());
+                } catch (IllegalThreadStateException | InterruptedException e) {
+                    // TODO: Should either of these be handled or returned?
+                }
+            }, "AppShell").start();
+            return;
+        }
+
+        // The exit code is known once the callback is called, so waitFor() returns right away
+        ProcessReaper.Callback callback = (pid, exitStatus) -> EXECUTOR.execute(() -> {
+            try {
+                finishInner(context, mProcess.waitFor());
+            } catch (IllegalThreadStateException | InterruptedException e) {
+                // TODO: Should either of these be handled or returned?
+            }
+        });
 
-        // make sure our threads are done gobbling
+        // A SpawnedProcess is reaped by the reaper, other processes are reaped by the Process itself
+        if (mProcess instanceof ProcessSpawner.SpawnedProcess)
+            ((ProcessSpawner.SpawnedProcess) mProcess).watch(callback);
+        else
+            ProcessReaper.getInstance().watch(mExecutionCommand.mPid, false, callback);
+    }
+
+    /**
+     * Waits for the stdout and stderr readers of the exited {@link #mProcess} to finish.
+     *
+     * Then sets {@link ResultData#stdout}, {@link ResultData#stderr}
+     * and {@link ResultData#exitCode} for the {@link #mExecutionCommand} of the {@code appShell}
+     * and then calls {@link #processAppShellResult(AppShell, ExecutionCommand) to process the result}.
+     * If the exit code of a {@link ProcessSpawner.SpawnedProcess} is not known, since it was reaped
+     * by someone else, then the {@link #mExecutionCommand} fails instead.
+     *
+     * @param context The {@link Context} for operations.
+     * @param exitCode The exit code of the process.
+     */
+    private void finishInner(@NonNull final Context context, int exitCode) throws IllegalThreadStateException, InterruptedException {
+        // make sure our streams are done gobbling
         // and the process is destroyed - while the latter shouldn't be
         // needed in theory, and may even produce warnings, in "normal" Java
         // they are required for guaranteed cleanup of resources, so lets be
         // safe and do this on Android as well
         try {
-            STDIN.close();
+            mStdin.close();
         } catch (IOException e) {
             // might be closed already
         }
-        STDOUT.join();
-        STDERR.join();
+        mStdoutStream.join();
+        mStderrStream.join();
         mProcess.destroy();
 
+        if (mStdoutGobbler instanceof BoundedStreamGobbler) {
+            BoundedStreamGobbler stdoutGobbler = (BoundedStreamGobbler) mStdoutGobbler;
+            BoundedStreamGobbler stderrGobbler = (BoundedStreamGobbler) mStderrGobbler;
+            mExecutionCommand.resultData.stdout.append(stdoutGobbler.getOutput());
+            mExecutionCommand.resultData.stderr.append(stderrGobbler.getOutput());
+            if (stdoutGobbler.getSpillFile() != null)
+                mExecutionCommand.resultData.stdoutFilePath = stdoutGobbler.getSpillFile().getAbsolutePath();
+            if (stderrGobbler.getSpillFile() != null)
+                mExecutionCommand.resultData.stderrFilePath = stderrGobbler.getSpillFile().getAbsolutePath();
+            if (stdoutGobbler.isTruncated() || stderrGobbler.isTruncated())
+                Logger.logDebug(LOG_TAG, "The \"" + mExecutionCommand.getCommandIdAndLabelLogString() + "\" AppShell output was truncated from " +
+                    stdoutGobbler.getTotalLength() + " stdout and " + stderrGobbler.getTotalLength() + " stderr bytes");
+        }
+
+        if (mProcess instanceof ProcessSpawner.SpawnedProcess && exitCode == ProcessSpawner.SpawnedProcess.EXIT_CODE_UNKNOWN) {
+            Logger.logWarn(LOG_TAG, "The \"" + mExecutionCommand.getCommandIdAndLabelLogString() + "\" AppShell with pid " + mExecutionCommand.mPid + " was reaped by someone else, so its exit code is not known");
+            if (mExecutionCommand.setStateFailed(Errno.ERRNO_FAILED.getCode(), context.getString(R.string.error_app_shell_exit_code_unknown, mExecutionCommand.getCommandIdAndLabelLogString())))
+                AppShell.processAppShellResult(this, null);
+            return;
+        }
+
         // Process result
         if (exitCode == 0)
             Logger.logDebug(LOG_TAG, "The \"" + mExecutionCommand.getCommandIdAndLabelLogString() + "\" AppShell with pid " + mExecutionCommand.mPid + " exited normally");
@@ -245,6 +370,18 @@ public final class AppShell {
         AppShell.processAppShellResult(this, null);
     }
 
+    /** Delete the output spill files in {@code spillDirectory} older than {@link #OUTPUT_SPILL_FILE_MAX_AGE}. */
+    private static void deleteStaleOutputSpillFiles(@NonNull File spillDirectory) {
+        File[] files = spillDirectory.listFiles();
+        if (files == null) return;
+
+        long minLastModified = System.currentTimeMillis() - OUTPUT_SPILL_FILE_MAX_AGE;
+        for (File file : files) {
+            if (file.lastModified() < minLastModified && !file.delete())
+                Logger.logWarn(LOG_TAG, "Failed to delete stale output spill file \"" + file.getAbsolutePath() + "\"");
+        }
+    }
+
     /**
      * Kill this {@link AppShell} by sending a {@link OsConstants#SIGILL} to its {@link #mProcess}
      * if its still executing.
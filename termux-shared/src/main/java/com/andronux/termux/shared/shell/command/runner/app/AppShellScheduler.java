@@ -0,0 +1,516 @@
+package com.andronux.termux.shared.shell.command.runner.app;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.andronux.termux.shared.logger.Logger;
+import com.andronux.termux.shared.markdown.MarkdownUtils;
+import com.andronux.termux.shared.shell.command.ExecutionCommand;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that limits the number of {@link AppShell} commands running at the same time, so that
+ * bursts of commands, like sent by plugins, do not start dozens of processes at once.
+ *
+ * Commands are queued and started by their {@link ExecutionCommandStarter} once the number of
+ * running commands is below {@link #mMaxRunningCommands}, and the number of running commands of
+ * the same package is below {@link #mMaxRunningCommandsPerPackage}. Commands with a higher
+ * {@link ExecutionCommand#priority} are started first and commands with the same priority in the
+ * order they were queued. A command whose package has reached its limit does not block the
+ * commands of other packages queued after it.
+ *
+ * A command that has been running for longer than {@link #mMaxSlotHoldTime} no longer counts
+ * towards the limits, so that long running commands, like servers, do not block the queue forever.
+ *
+ * Commands are started on the main thread. The {@link #getMetrics()} are added to the Termux debug
+ * info of reports.
+ */
+public class AppShellScheduler {
+
+    /** The callback that starts a queued command. */
+    public interface ExecutionCommandStarter {
+
+        /**
+         * Start the {@link ExecutionCommand}. This is called on the main thread.
+         *
+         * @param executionCommand The {@link ExecutionCommand} to start.
+         * @return Returns {@code true} if the command was started, in which case
+         * {@link #onExecutionCommandFinished(ExecutionCommand)} must be called once it finishes,
+         * otherwise {@code false}.
+         */
+        boolean startExecutionCommand(@NonNull ExecutionCommand executionCommand);
+
+    }
+
+    /** The default {@link ExecutionCommand#priority}. */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    /** The default max number of commands running at the same time, based on the number of cpus. */
+    public static final int DEFAULT_MAX_RUNNING_COMMANDS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private static class QueuedCommand implements Comparable<QueuedCommand> {
+
+        @NonNull final ExecutionCommand executionCommand;
+        @Nullable final String packageName;
+        @NonNull final ExecutionCommandStarter starter;
+        final int priority;
+        final long sequence;
+        final long queueTime;
+
+        QueuedCommand(@NonNull ExecutionCommand executionCommand, @Nullable String packageName,
+                      @NonNull ExecutionCommandStarter starter, long sequence, long queueTime) {
+            this.executionCommand = executionCommand;
+            this.packageName = packageName;
+            this.starter = starter;
+            this.priority = executionCommand.priority != null ? executionCommand.priority : DEFAULT_PRIORITY;
+            this.sequence = sequence;
+            this.queueTime = queueTime;
+        }
+
+        @Override
+        public int compareTo(QueuedCommand other) {
+            if (priority != other.priority) return Integer.compare(other.priority, priority);
+            return Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+    private static class RunningCommand {
+
+        @Nullable final String packageName;
+        final long startTime;
+        /** Whether the command still counts towards the limits. */
+        boolean holdsSlot = true;
+
+        RunningCommand(@Nullable String packageName, long startTime) {
+            this.packageName = packageName;
+            this.startTime = startTime;
+        }
+
+    }
+
+    /** The max number of commands running at the same time. */
+    private final int mMaxRunningCommands;
+
+    /** The max number of commands of the same package running at the same time. */
+    private final int mMaxRunningCommandsPerPackage;
+
+    /** The time in milliseconds after which a running command no longer counts towards the limits. */
+    private final long mMaxSlotHoldTime;
+
+    /** The queued commands in the order they will be started in. */
+    private final TreeSet<QueuedCommand> mQueue = new TreeSet<>();
+
+    /** The commands started that have not finished yet. */
+    private final IdentityHashMap<ExecutionCommand, RunningCommand> mRunningCommands = new IdentityHashMap<>();
+
+    /** The number of commands holding a slot. */
+    private int mSlotCount;
+
+    /** The number of commands holding a slot for each package. */
+    private final HashMap<String, Integer> mPackageSlotCounts = new HashMap<>();
+
+    private long mSequence;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mDispatchRunnable = this::dispatch;
+
+    private final Metrics mMetrics = new Metrics();
+
+    private static final String LOG_TAG = "AppShellScheduler";
+
+    /**
+     * Create an new instance of {@link AppShellScheduler}.
+     *
+     * @param maxRunningCommands The value for {@link #mMaxRunningCommands}.
+     * @param maxRunningCommandsPerPackage The value for {@link #mMaxRunningCommandsPerPackage}.
+     * @param maxSlotHoldTime The value for {@link #mMaxSlotHoldTime}.
+     */
+    public AppShellScheduler(int maxRunningCommands, int maxRunningCommandsPerPackage, long maxSlotHoldTime) {
+        mMaxRunningCommands = Math.max(1, maxRunningCommands);
+        mMaxRunningCommandsPerPackage = Math.max(1, maxRunningCommandsPerPackage);
+        mMaxSlotHoldTime = maxSlotHoldTime;
+    }
+
+    /**
+     * Queue a command to be started once the limits allow it. If called on the main thread and the
+     * limits already allow it, then the command is started before this returns.
+     *
+     * @param executionCommand The {@link ExecutionCommand} to queue.
+     * @param packageName The name of the package that sent the command, or any other key
+     *                    identifying its sender. The per package limit is not applied if this is
+     *                    {@code null}.
+     * @param starter The {@link ExecutionCommandStarter} to start the command with.
+     */
+    public void submit(@NonNull ExecutionCommand executionCommand, @Nullable String packageName,
+                       @NonNull ExecutionCommandStarter starter) {
+        synchronized (this) {
+            mQueue.add(new QueuedCommand(executionCommand, packageName, starter, mSequence++, getElapsedRealtime()));
+            mMetrics.onCommandQueued(mQueue.size());
+        }
+
+        dispatchOnMainThread();
+    }
+
+    /**
+     * Called when a command started by the scheduler has finished, so that the next queued commands
+     * can be started. Calling this for a command not started by the scheduler is ignored.
+     *
+     * @param executionCommand The {@link ExecutionCommand} that finished.
+     */
+    public void onExecutionCommandFinished(@NonNull ExecutionCommand executionCommand) {
+        synchronized (this) {
+            if (!release(executionCommand)) return;
+        }
+
+        dispatchOnMainThread();
+    }
+
+    /**
+     * Remove all the queued commands, like when the service starting them is destroyed.
+     *
+     * @return Returns the list of {@link ExecutionCommand} removed.
+     */
+    @NonNull
+    public synchronized List<ExecutionCommand> cancelQueuedExecutionCommands() {
+        List<ExecutionCommand> executionCommands = new ArrayList<>();
+        for (QueuedCommand queuedCommand : mQueue)
+            executionCommands.add(queuedCommand.executionCommand);
+        mQueue.clear();
+        mHandler.removeCallbacks(mDispatchRunnable);
+
+        if (!executionCommands.isEmpty())
+            Logger.logDebug(LOG_TAG, "Cancelled " + executionCommands.size() + " queued commands");
+        return executionCommands;
+    }
+
+    /**
+     * Get the first queued command with a shell name, like to not queue another command for a
+     * {@link ExecutionCommand.ShellCreateMode#NO_SHELL_WITH_NAME} shell that is already queued.
+     *
+     * @param shellName The {@link ExecutionCommand#shellName} to find.
+     * @return Returns the queued {@link ExecutionCommand}, otherwise {@code null}.
+     */
+    @Nullable
+    public synchronized ExecutionCommand getQueuedExecutionCommandForShellName(@Nullable String shellName) {
+        if (shellName == null) return null;
+        for (QueuedCommand queuedCommand : mQueue) {
+            if (shellName.equals(queuedCommand.executionCommand.shellName))
+                return queuedCommand.executionCommand;
+        }
+        return null;
+    }
+
+    /** Get the number of queued commands. */
+    public synchronized int getQueuedExecutionCommandsCount() {
+        return mQueue.size();
+    }
+
+    /** Get the number of commands started that have not finished yet. */
+    public synchronized int getRunningExecutionCommandsCount() {
+        return mRunningCommands.size();
+    }
+
+    /** Get {@link #mMetrics}. */
+    @NonNull
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+
+
+    /** Get the time used for the queue latency, run time and slot expiry. */
+    protected long getElapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /** Call {@link #dispatch()} now if on the main thread, otherwise post it to the main thread. */
+    private void dispatchOnMainThread() {
+        if (Looper.myLooper() == Looper.getMainLooper())
+            dispatch();
+        else
+            mHandler.post(mDispatchRunnable);
+    }
+
+    /** Start the queued commands that the limits allow. This must be called on the main thread. */
+    void dispatch() {
+        while (true) {
+            QueuedCommand queuedCommand;
+            synchronized (this) {
+                releaseExpiredSlots();
+                queuedCommand = pollNextStartableCommand();
+                if (queuedCommand == null) {
+                    scheduleNextSlotExpiry();
+                    return;
+                }
+
+                mRunningCommands.put(queuedCommand.executionCommand, new RunningCommand(queuedCommand.packageName, getElapsedRealtime()));
+                mSlotCount++;
+                if (queuedCommand.packageName != null)
+                    mPackageSlotCounts.put(queuedCommand.packageName, getPackageSlotCount(queuedCommand.packageName) + 1);
+            }
+
+            long queueLatency = getElapsedRealtime() - queuedCommand.queueTime;
+            mMetrics.onCommandStarted(queueLatency);
+            if (queueLatency > 0)
+                Logger.logDebug(LOG_TAG, "Starting \"" + queuedCommand.executionCommand.getCommandIdAndLabelLogString() + "\" command after being queued for " + queueLatency + "ms");
+
+            boolean started;
+            try {
+                started = queuedCommand.starter.startExecutionCommand(queuedCommand.executionCommand);
+            } catch (Exception e) {
+                Logger.logStackTraceWithMessage(LOG_TAG, "Failed to start \"" + queuedCommand.executionCommand.getCommandIdAndLabelLogString() + "\" command", e);
+                started = false;
+            }
+
+            if (!started) {
+                synchronized (this) {
+                    release(queuedCommand.executionCommand);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove and get the first queued command that the limits allow to start. Commands that have
+     * already failed, like if they were cancelled while queued, are dropped.
+     */
+    @Nullable
+    private QueuedCommand pollNextStartableCommand() {
+        if (mSlotCount >= mMaxRunningCommands) return null;
+
+        for (QueuedCommand queuedCommand : mQueue) {
+            if (queuedCommand.executionCommand.isStateFailed()) {
+                Logger.logDebug(LOG_TAG, "Dropping queued \"" + queuedCommand.executionCommand.getCommandIdAndLabelLogString() + "\" command since it has already failed");
+                mQueue.remove(queuedCommand);
+                return pollNextStartableCommand();
+            }
+
+            if (queuedCommand.packageName == null || getPackageSlotCount(queuedCommand.packageName) < mMaxRunningCommandsPerPackage) {
+                mQueue.remove(queuedCommand);
+                return queuedCommand;
+            }
+        }
+
+        return null;
+    }
+
+    /** Release the slot of a running command and get whether it was running. */
+    private boolean release(@NonNull ExecutionCommand executionCommand) {
+        RunningCommand runningCommand = mRunningCommands.remove(executionCommand);
+        if (runningCommand == null) return false;
+        releaseSlot(runningCommand);
+        mMetrics.onCommandFinished(getElapsedRealtime() - runningCommand.startTime);
+        return true;
+    }
+
+    private void releaseSlot(@NonNull RunningCommand runningCommand) {
+        if (!runningCommand.holdsSlot) return;
+        runningCommand.holdsSlot = false;
+        mSlotCount--;
+
+        if (runningCommand.packageName != null) {
+            int packageSlotCount = getPackageSlotCount(runningCommand.packageName) - 1;
+            if (packageSlotCount > 0)
+                mPackageSlotCounts.put(runningCommand.packageName, packageSlotCount);
+            else
+                mPackageSlotCounts.remove(runningCommand.packageName);
+        }
+    }
+
+    /** Release the slots of commands that have been running for longer than {@link #mMaxSlotHoldTime}. */
+    private void releaseExpiredSlots() {
+        if (mMaxSlotHoldTime <= 0) return;
+
+        long now = getElapsedRealtime();
+        for (RunningCommand runningCommand : mRunningCommands.values()) {
+            if (runningCommand.holdsSlot && now - runningCommand.startTime >= mMaxSlotHoldTime)
+                releaseSlot(runningCommand);
+        }
+    }
+
+    /** Dispatch again once the first slot expires if commands are still queued. */
+    private void scheduleNextSlotExpiry() {
+        mHandler.removeCallbacks(mDispatchRunnable);
+        if (mQueue.isEmpty() || mMaxSlotHoldTime <= 0) return;
+
+        long firstStartTime = Long.MAX_VALUE;
+        for (RunningCommand runningCommand : mRunningCommands.values()) {
+            if (runningCommand.holdsSlot)
+                firstStartTime = Math.min(firstStartTime, runningCommand.startTime);
+        }
+        if (firstStartTime == Long.MAX_VALUE) return;
+
+        mHandler.postDelayed(mDispatchRunnable, Math.max(0, firstStartTime + mMaxSlotHoldTime - getElapsedRealtime()));
+    }
+
+    private int getPackageSlotCount(@NonNull String packageName) {
+        Integer packageSlotCount = mPackageSlotCounts.get(packageName);
+        return packageSlotCount != null ? packageSlotCount : 0;
+    }
+
+
+
+    /** Get a log {@link String} for the {@link AppShellScheduler}. */
+    @NonNull
+    public synchronized String getLogString() {
+        StringBuilder logString = new StringBuilder();
+
+        logString.append("App Shell Scheduler:");
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxRunningCommands", mMaxRunningCommands, "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxRunningCommandsPerPackage", mMaxRunningCommandsPerPackage, "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxSlotHoldTimeMillis", mMaxSlotHoldTime, "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("QueuedCommands", mQueue.size(), "-"));
+        logString.append("\n").append(Logger.getSingleLineLogStringEntry("RunningCommands", mRunningCommands.size(), "-"));
+        logString.append("\n\n").append(mMetrics.getLogString());
+
+        return logString.toString();
+    }
+
+    /** Get a markdown {@link String} for the {@link AppShellScheduler}. */
+    @NonNull
+    public synchronized String getMarkdownString() {
+        StringBuilder markdownString = new StringBuilder();
+
+        markdownString.append("## ").append("App Shell Scheduler");
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxRunningCommands", mMaxRunningCommands, "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxRunningCommandsPerPackage", mMaxRunningCommandsPerPackage, "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxSlotHoldTimeMillis", mMaxSlotHoldTime, "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("QueuedCommands", mQueue.size(), "-"));
+        markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("RunningCommands", mRunningCommands.size(), "-"));
+        markdownString.append("\n\n").append(mMetrics.getMarkdownString());
+        markdownString.append("\n##\n");
+
+        return markdownString.toString();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return getLogString();
+    }
+
+
+
+    /**
+     * The metrics of an {@link AppShellScheduler}.
+     *
+     * The queue latency is the time from a command being queued until it is started, and the run
+     * time is the time from it being started until it has finished.
+     */
+    public static class Metrics {
+
+        /** The max number of commands that were queued at the same time. */
+        private int mMaxQueueDepth;
+
+        private long mQueuedCommandCount;
+        private long mStartedCommandCount;
+        private long mFinishedCommandCount;
+
+        private long mTotalQueueLatency;
+        private long mMaxQueueLatency;
+        private long mTotalRunTime;
+        private long mMaxRunTime;
+
+        private synchronized void onCommandQueued(int queueDepth) {
+            mQueuedCommandCount++;
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, queueDepth);
+        }
+
+        private synchronized void onCommandStarted(long queueLatency) {
+            mStartedCommandCount++;
+            mTotalQueueLatency += queueLatency;
+            mMaxQueueLatency = Math.max(mMaxQueueLatency, queueLatency);
+        }
+
+        private synchronized void onCommandFinished(long runTime) {
+            mFinishedCommandCount++;
+            mTotalRunTime += runTime;
+            mMaxRunTime = Math.max(mMaxRunTime, runTime);
+        }
+
+        public synchronized int getMaxQueueDepth() {
+            return mMaxQueueDepth;
+        }
+
+        public synchronized long getQueuedCommandCount() {
+            return mQueuedCommandCount;
+        }
+
+        public synchronized long getStartedCommandCount() {
+            return mStartedCommandCount;
+        }
+
+        public synchronized long getFinishedCommandCount() {
+            return mFinishedCommandCount;
+        }
+
+        /** Get the average queue latency in milliseconds of started commands. */
+        public synchronized long getAverageQueueLatency() {
+            return mStartedCommandCount == 0 ? 0 : mTotalQueueLatency / mStartedCommandCount;
+        }
+
+        /** Get the max queue latency in milliseconds of started commands. */
+        public synchronized long getMaxQueueLatency() {
+            return mMaxQueueLatency;
+        }
+
+        /** Get the average run time in milliseconds of finished commands. */
+        public synchronized long getAverageRunTime() {
+            return mFinishedCommandCount == 0 ? 0 : mTotalRunTime / mFinishedCommandCount;
+        }
+
+        /** Get the max run time in milliseconds of finished commands. */
+        public synchronized long getMaxRunTime() {
+            return mMaxRunTime;
+        }
+
+        /** Get a log {@link String} for the {@link Metrics}. */
+        @NonNull
+        public synchronized String getLogString() {
+            StringBuilder logString = new StringBuilder();
+
+            logString.append("Metrics:");
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxQueueDepth", mMaxQueueDepth, "-"));
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("QueuedCommands", mQueuedCommandCount, "-"));
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("StartedCommands", mStartedCommandCount, "-"));
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("FinishedCommands", mFinishedCommandCount, "-"));
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("AverageQueueLatencyMillis", getAverageQueueLatency(), "-"));
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxQueueLatencyMillis", mMaxQueueLatency, "-"));
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("AverageRunTimeMillis", getAverageRunTime(), "-"));
+            logString.append("\n").append(Logger.getSingleLineLogStringEntry("MaxRunTimeMillis", mMaxRunTime, "-"));
+
+            return logString.toString();
+        }
+
+        /** Get a markdown {@link String} for the {@link Metrics}. */
+        @NonNull
+        public synchronized String getMarkdownString() {
+            StringBuilder markdownString = new StringBuilder();
+
+            markdownString.append("### ").append("Metrics");
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxQueueDepth", mMaxQueueDepth, "-"));
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("QueuedCommands", mQueuedCommandCount, "-"));
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("StartedCommands", mStartedCommandCount, "-"));
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("FinishedCommands", mFinishedCommandCount, "-"));
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("AverageQueueLatencyMillis", getAverageQueueLatency(), "-"));
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxQueueLatencyMillis", mMaxQueueLatency, "-"));
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("AverageRunTimeMillis", getAverageRunTime(), "-"));
+            markdownString.append("\n").append(MarkdownUtils.getSingleLineMarkdownStringEntry("MaxRunTimeMillis", mMaxRunTime, "-"));
+
+            return markdownString.toString();
+        }
+
+    }
+
+}
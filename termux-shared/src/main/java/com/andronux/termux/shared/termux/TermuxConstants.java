@@ -13,7 +13,7 @@ import java.util.Formatter;
 import java.util.List;
 
 /*
- * Version: v0.53.0
+ * Version: v0.54.0
  * SPDX-License-Identifier: MIT
  *
  * Changelog
@@ -283,6 +283,16 @@ import java.util.List;
  * - 0.53.0 (2025-01-12)
  *      - Renamed `TERMUX_API`, `TERMUX_STYLING`, `TERMUX_TASKER`, `TERMUX_WIDGET` classes with `_APP` suffix added.
  *      - Added `TERMUX_*_MAIN_ACTIVITY_NAME` and `TERMUX_*_LAUNCHER_ACTIVITY_NAME` constants to each app class.
+ *
+ * - 0.54.0 (2026-10-19)
+ *      - Added `TERMUX_SESSION_RECORDINGS_DIR_PATH` and `TERMUX_SESSION_RECORDINGS_DIR`.
+ *      - Added `TERMUX_APP.TERMINAL_SESSION_SNAPSHOTS_DIR_PATH`.
+ *      - Added following to `TERMUX_SERVICE`:
+ *          `EXTRA_PLUGIN_RESULT_BUNDLE_STDOUT_FILE`, `EXTRA_PLUGIN_RESULT_BUNDLE_STDERR_FILE`,
+ *          `EXTRA_OUTPUT_CAPTURE_MODE`, `EXTRA_OUTPUT_CAPTURE_BUFFER_SIZE`.
+ *      - Added following to `RUN_COMMAND_SERVICE`:
+ *          `EXTRA_OUTPUT_CAPTURE_MODE`, `EXTRA_OUTPUT_CAPTURE_BUFFER_SIZE`.
+ *      - Added `EXTRA_PRIORITY` to `TERMUX_SERVICE` and `RUN_COMMAND_SERVICE`.
  */
 
 /**
@@ -774,6 +784,12 @@ public final class TermuxConstants {
     public static final File TERMUX_FONT_FILE = new File(TERMUX_FONT_FILE_PATH);
 
 
+    /** Termux app directory path to store terminal session recordings */
+    public static final String TERMUX_SESSION_RECORDINGS_DIR_PATH = TERMUX_DATA_HOME_DIR_PATH + "/recordings"; // Default: "/data/data/com.andronux.termux/files/home/.termux/recordings"
+    /** Termux app directory to store terminal session recordings */
+    public static final File TERMUX_SESSION_RECORDINGS_DIR = new File(TERMUX_SESSION_RECORDINGS_DIR_PATH);
+
+
     /** Termux app and plugins crash log file path */
     public static final String TERMUX_CRASH_LOG_FILE_PATH = TERMUX_HOME_DIR_PATH + "/crash_log.md"; // Default: "/data/data/com.andronux.termux/files/home/crash_log.md"
 
@@ -923,6 +939,9 @@ public final class TermuxConstants {
         /** termux-am socket file path */
         public static final String TERMUX_AM_SOCKET_FILE_PATH = APPS_DIR_PATH + "/termux-am/am.sock"; // Default: "/data/data/com.andronux.termux/files/apps/com.andronux.termux/termux-am/am.sock"
 
+        /** Terminal session snapshots directory path */
+        public static final String TERMINAL_SESSION_SNAPSHOTS_DIR_PATH = APPS_DIR_PATH + "/session-snapshots"; // Default: "/data/data/com.andronux.termux/files/apps/com.andronux.termux/session-snapshots"
+
 
         /** Termux app BuildConfig class name */
         public static final String BUILD_CONFIG_CLASS_NAME = TERMUX_PACKAGE_NAME + ".BuildConfig"; // Default: "com.andronux.termux.BuildConfig"
@@ -1013,6 +1032,12 @@ public final class TermuxConstants {
             public static final String EXTRA_RUNNER = TERMUX_PACKAGE_NAME + ".execute.runner"; // Default: "com.andronux.termux.execute.runner"
             /** Intent {@code String} extra for custom log level for background commands defined by {@link Logger} for the TERMUX_SERVICE.ACTION_SERVICE_EXECUTE intent */
             public static final String EXTRA_BACKGROUND_CUSTOM_LOG_LEVEL = TERMUX_PACKAGE_NAME + ".execute.background_custom_log_level"; // Default: "com.andronux.termux.execute.background_custom_log_level"
+            /** Intent {@code String} extra for the {@link ExecutionCommand.OutputCaptureMode} of background commands for the TERMUX_SERVICE.ACTION_SERVICE_EXECUTE intent, defaults to `unbounded` */
+            public static final String EXTRA_OUTPUT_CAPTURE_MODE = TERMUX_PACKAGE_NAME + ".execute.output_capture_mode"; // Default: "com.andronux.termux.execute.output_capture_mode"
+            /** Intent {@code int} extra for the output capture buffer size in bytes of background commands for the TERMUX_SERVICE.ACTION_SERVICE_EXECUTE intent */
+            public static final String EXTRA_OUTPUT_CAPTURE_BUFFER_SIZE = TERMUX_PACKAGE_NAME + ".execute.output_capture_buffer_size"; // Default: "com.andronux.termux.execute.output_capture_buffer_size"
+            /** Intent {@code int} extra for the priority with which queued background commands are started for the TERMUX_SERVICE.ACTION_SERVICE_EXECUTE intent */
+            public static final String EXTRA_PRIORITY = TERMUX_PACKAGE_NAME + ".execute.priority"; // Default: "com.andronux.termux.execute.priority"
             /** Intent {@code String} extra for session action for {@link Runner#TERMINAL_SESSION} commands for the TERMUX_SERVICE.ACTION_SERVICE_EXECUTE intent */
             public static final String EXTRA_SESSION_ACTION = TERMUX_PACKAGE_NAME + ".execute.session_action"; // Default: "com.andronux.termux.execute.session_action"
             /** Intent {@code String} extra for shell name for commands for the TERMUX_SERVICE.ACTION_SERVICE_EXECUTE intent */
@@ -1106,6 +1131,14 @@ public final class TermuxConstants {
             public static final String EXTRA_PLUGIN_RESULT_BUNDLE_STDERR = "stderr"; // Default: "stderr"
             /** Intent {@code String} extra for original length of stderr value of execute command of the {@link #EXTRA_PLUGIN_RESULT_BUNDLE} */
             public static final String EXTRA_PLUGIN_RESULT_BUNDLE_STDERR_ORIGINAL_LENGTH = "stderr_original_length"; // Default: "stderr_original_length"
+            /**
+             * Intent {@code String} extra for the path to the file containing the whole stdout of execute command of the {@link #EXTRA_PLUGIN_RESULT_BUNDLE}, if it was truncated.
+             * The file is in the Termux app cache directory and can only be read by the Termux app and the commands it runs, other apps should set
+             * {@link #EXTRA_RESULT_DIRECTORY} to get the whole output.
+             */
+            public static final String EXTRA_PLUGIN_RESULT_BUNDLE_STDOUT_FILE = "stdout_file"; // Default: "stdout_file"
+            /** Intent {@code String} extra for the path to the file containing the whole stderr of execute command of the {@link #EXTRA_PLUGIN_RESULT_BUNDLE}, if it was truncated, check {@link #EXTRA_PLUGIN_RESULT_BUNDLE_STDOUT_FILE} */
+            public static final String EXTRA_PLUGIN_RESULT_BUNDLE_STDERR_FILE = "stderr_file"; // Default: "stderr_file"
             /** Intent {@code int} extra for exit code value of execute command of the {@link #EXTRA_PLUGIN_RESULT_BUNDLE} */
             public static final String EXTRA_PLUGIN_RESULT_BUNDLE_EXIT_CODE = "exitCode"; // Default: "exitCode"
             /** Intent {@code int} extra for err value of execute command of the {@link #EXTRA_PLUGIN_RESULT_BUNDLE} */
@@ -1154,6 +1187,12 @@ public final class TermuxConstants {
             public static final String EXTRA_RUNNER = TERMUX_PACKAGE_NAME + ".RUN_COMMAND_RUNNER"; // Default: "com.andronux.termux.RUN_COMMAND_RUNNER"
             /** Intent {@code String} extra for custom log level for background commands defined by {@link Logger} for the RUN_COMMAND_SERVICE.ACTION_RUN_COMMAND intent */
             public static final String EXTRA_BACKGROUND_CUSTOM_LOG_LEVEL = TERMUX_PACKAGE_NAME + ".RUN_COMMAND_BACKGROUND_CUSTOM_LOG_LEVEL"; // Default: "com.andronux.termux.RUN_COMMAND_BACKGROUND_CUSTOM_LOG_LEVEL"
+            /** Intent {@code String} extra for the {@link ExecutionCommand.OutputCaptureMode} of background commands for the RUN_COMMAND_SERVICE.ACTION_RUN_COMMAND intent, defaults to `unbounded` */
+            public static final String EXTRA_OUTPUT_CAPTURE_MODE = TERMUX_PACKAGE_NAME + ".RUN_COMMAND_OUTPUT_CAPTURE_MODE"; // Default: "com.andronux.termux.RUN_COMMAND_OUTPUT_CAPTURE_MODE"
+            /** Intent {@code int} extra for the output capture buffer size in bytes of background commands for the RUN_COMMAND_SERVICE.ACTION_RUN_COMMAND intent */
+            public static final String EXTRA_OUTPUT_CAPTURE_BUFFER_SIZE = TERMUX_PACKAGE_NAME + ".RUN_COMMAND_OUTPUT_CAPTURE_BUFFER_SIZE"; // Default: "com.andronux.termux.RUN_COMMAND_OUTPUT_CAPTURE_BUFFER_SIZE"
+            /** Intent {@code int} extra for the priority with which queued background commands are started for the RUN_COMMAND_SERVICE.ACTION_RUN_COMMAND intent */
+            public static final String EXTRA_PRIORITY = TERMUX_PACKAGE_NAME + ".RUN_COMMAND_PRIORITY"; // Default: "com.andronux.termux.RUN_COMMAND_PRIORITY"
             /** Intent {@code String} extra for session action of {@link Runner#TERMINAL_SESSION} commands for the RUN_COMMAND_SERVICE.ACTION_RUN_COMMAND intent */
             public static final String EXTRA_SESSION_ACTION = TERMUX_PACKAGE_NAME + ".RUN_COMMAND_SESSION_ACTION"; // Default: "com.andronux.termux.RUN_COMMAND_SESSION_ACTION"
             /** Intent {@code String} extra for shell name of commands for the RUN_COMMAND_SERVICE.ACTION_RUN_COMMAND intent */
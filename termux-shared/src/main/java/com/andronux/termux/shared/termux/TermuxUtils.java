@@ -25,6 +25,7 @@ import com.andronux.termux.shared.errors.Error;
 import com.andronux.termux.shared.android.PackageUtils;
 import com.andronux.termux.shared.termux.TermuxConstants.TERMUX_APP;
 import com.andronux.termux.shared.termux.shell.command.environment.TermuxShellEnvironment;
+import com.andronux.termux.shared.termux.shell.TermuxShellManager;
 
 import org.apache.commons.io.IOUtils;
 
@@ -635,15 +636,19 @@ public class TermuxUtils {
      */
     public static String getTermuxDebugMarkdownString(@NonNull final Context context) {
         String statInfo = TermuxFileUtils.getTermuxFilesStatMarkdownString(context);
+        TermuxShellManager shellManager = TermuxShellManager.getShellManager();
+        String schedulerInfo = shellManager != null ? shellManager.mAppShellScheduler.getMarkdownString() : null;
         String logcatInfo = getLogcatDumpMarkdownString(context);
 
-        if (statInfo != null && logcatInfo != null)
-            return statInfo + "\n\n" + logcatInfo;
-        else if (statInfo != null)
-            return statInfo;
-        else
-            return logcatInfo;
+        StringBuilder markdownString = new StringBuilder();
+        for (String info : new String[]{statInfo, schedulerInfo, logcatInfo}) {
+            if (info == null) continue;
+            if (markdownString.length() > 0)
+                markdownString.append("\n\n");
+            markdownString.append(info);
+        }
 
+        return markdownString.length() > 0 ? markdownString.toString() : null;
     }
 
     /**
@@ -654,7 +659,7 @@ public class TermuxUtils {
      */
     public static String getLogcatDumpMarkdownString(@NonNull final Context context) {
         // Build script
-        // We need to prevent OutOfMemoryError since StreamGobbler StringBuilder + StringBuilder.toString()
+        // We need to prevent OutOfMemoryError since the output StringBuilder + StringBuilder.toString()
         // may require lot of memory if dump is too large.
         // Putting a limit at 3000 lines. Assuming average 160 chars/line will result in 500KB usage
         // per object.
@@ -663,7 +668,7 @@ public class TermuxUtils {
         String logcatScript = "/system/bin/logcat -d -t 3000 2>&1";
 
         // Run script
-        // Logging must be disabled for output of logcat command itself in StreamGobbler
+        // Logging must be disabled for output of logcat command itself in LineStreamGobbler
         ExecutionCommand executionCommand = new ExecutionCommand(-1, "/system/bin/sh",
             null, logcatScript + "\n", "/", ExecutionCommand.Runner.APP_SHELL.getName(), true);
         executionCommand.commandLabel = "Logcat dump command";
@@ -5,6 +5,7 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 
 import com.andronux.termux.shared.termux.TermuxConstants;
+import com.andronux.termux.shared.termux.shell.command.environment.TermuxShellEnvironment;
 
 public class TermuxAppSharedProperties extends TermuxSharedProperties {
 
@@ -15,6 +16,9 @@ public class TermuxAppSharedProperties extends TermuxSharedProperties {
         super(context, TermuxConstants.TERMUX_APP_NAME,
             TermuxConstants.TERMUX_PROPERTIES_FILE_PATHS_LIST, TermuxPropertyConstants.TERMUX_APP_PROPERTIES_LIST,
             new TermuxSharedProperties.SharedPropertiesParserClient());
+
+        // The shell environment snapshot is built with the termux properties
+        addOnPropertiesChangedListener(changedKeys -> TermuxShellEnvironment.invalidateEnvironmentSnapshot());
     }
 
     /**
@@ -13,7 +13,7 @@ import java.util.HashSet;
 import java.util.Set;
 
 /*
- * Version: v0.18.0
+ * Version: v0.19.0
  * SPDX-License-Identifier: MIT
  *
  * Changelog
@@ -75,6 +75,12 @@ import java.util.Set;
  *
  * - 0.18.0 (2022-06-13)
  *      - Add `KEY_DISABLE_FILE_SHARE_RECEIVER` and `KEY_DISABLE_FILE_VIEW_RECEIVER`.
+ *
+ * - 0.19.0 (2026-10-19)
+ *      - Add `KEY_TERMINAL_SESSION_RECORDING` and `KEY_TERMINAL_SESSION_RECORDING_MAX_SIZE`.
+ *      - Add `KEY_TERMINAL_SESSION_SNAPSHOTS`.
+ *      - Add `KEY_TERMINAL_TRANSCRIPT_MEMORY_BUDGET`.
+ *      - Add `KEY_TERMINAL_SESSION_POOL_SIZE`.
  */
 
 /**
@@ -132,6 +138,19 @@ public final class TermuxPropertyConstants {
 
 
 
+    /** Defines the key for whether the output of all terminal sessions should be recorded to
+     * {@link TermuxConstants#TERMUX_SESSION_RECORDINGS_DIR_PATH} */
+    public static final String KEY_TERMINAL_SESSION_RECORDING =  "terminal-session-recording"; // Default: "terminal-session-recording"
+
+
+
+    /** Defines the key for whether the screen and transcript of terminal sessions should be saved to
+     * {@link TermuxConstants.TERMUX_APP#TERMINAL_SESSION_SNAPSHOTS_DIR_PATH} so that they can be restored
+     * after the app is killed */
+    public static final String KEY_TERMINAL_SESSION_SNAPSHOTS =  "terminal-session-snapshots"; // Default: "terminal-session-snapshots"
+
+
+
     /** Defines the key for whether url links in terminal transcript will automatically open on click or on tap */
     public static final String KEY_TERMINAL_ONCLICK_URL_OPEN =  "terminal-onclick-url-open"; // Default: "terminal-onclick-url-open"
 
@@ -242,6 +261,32 @@ public final class TermuxPropertyConstants {
 
 
 
+    /** Defines the key for the number of login shells kept started in the background, so that new
+     * terminal sessions can adopt them instead of waiting for a shell to start. If 0, then disabled. */
+    public static final String KEY_TERMINAL_SESSION_POOL_SIZE =  "terminal-session-pool-size"; // Default: "terminal-session-pool-size"
+    public static final int IVALUE_TERMINAL_SESSION_POOL_SIZE_MIN = 0;
+    public static final int IVALUE_TERMINAL_SESSION_POOL_SIZE_MAX = 4;
+    public static final int DEFAULT_IVALUE_TERMINAL_SESSION_POOL_SIZE = 0;
+
+
+
+    /** Defines the key for the size in MiB after which a terminal session recording file is rotated */
+    public static final String KEY_TERMINAL_SESSION_RECORDING_MAX_SIZE =  "terminal-session-recording-max-size"; // Default: "terminal-session-recording-max-size"
+    public static final int IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE_MIN = 1;
+    public static final int IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE_MAX = 1024;
+    public static final int DEFAULT_IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE = 10;
+
+
+
+    /** Defines the key for the size in MiB that the transcripts of all terminal sessions may use together.
+     * If 0, then a quarter of the max heap size of the app is used. */
+    public static final String KEY_TERMINAL_TRANSCRIPT_MEMORY_BUDGET =  "terminal-transcript-memory-budget"; // Default: "terminal-transcript-memory-budget"
+    public static final int IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET_MIN = 0;
+    public static final int IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET_MAX = 4096;
+    public static final int DEFAULT_IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET = 0;
+
+
+
     /** Defines the key for the terminal transcript rows */
     public static final String KEY_TERMINAL_TRANSCRIPT_ROWS =  "terminal-transcript-rows"; // Default: "terminal-transcript-rows"
     public static final int IVALUE_TERMINAL_TRANSCRIPT_ROWS_MIN = TerminalEmulator.TERMINAL_TRANSCRIPT_ROWS_MIN;
@@ -395,6 +440,8 @@ public final class TermuxPropertyConstants {
         KEY_HIDE_SOFT_KEYBOARD_ON_STARTUP,
         KEY_RUN_TERMUX_AM_SOCKET_SERVER,
         KEY_TERMINAL_ONCLICK_URL_OPEN,
+        KEY_TERMINAL_SESSION_RECORDING,
+        KEY_TERMINAL_SESSION_SNAPSHOTS,
         KEY_USE_CTRL_SPACE_WORKAROUND,
         KEY_USE_FULLSCREEN,
         KEY_USE_FULLSCREEN_WORKAROUND,
@@ -407,6 +454,9 @@ public final class TermuxPropertyConstants {
         KEY_TERMINAL_CURSOR_STYLE,
         KEY_TERMINAL_MARGIN_HORIZONTAL,
         KEY_TERMINAL_MARGIN_VERTICAL,
+        KEY_TERMINAL_SESSION_POOL_SIZE,
+        KEY_TERMINAL_SESSION_RECORDING_MAX_SIZE,
+        KEY_TERMINAL_TRANSCRIPT_MEMORY_BUDGET,
         KEY_TERMINAL_TRANSCRIPT_ROWS,
 
         /* float */
@@ -441,6 +491,8 @@ public final class TermuxPropertyConstants {
         KEY_ENFORCE_CHAR_BASED_INPUT,
         KEY_HIDE_SOFT_KEYBOARD_ON_STARTUP,
         KEY_TERMINAL_ONCLICK_URL_OPEN,
+        KEY_TERMINAL_SESSION_RECORDING,
+        KEY_TERMINAL_SESSION_SNAPSHOTS,
         KEY_USE_CTRL_SPACE_WORKAROUND,
         KEY_USE_FULLSCREEN,
         KEY_USE_FULLSCREEN_WORKAROUND,
@@ -14,8 +14,10 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class TermuxSharedProperties {
 
@@ -24,11 +26,26 @@ public abstract class TermuxSharedProperties {
     protected final List<String> mPropertiesFilePaths;
     protected final Set<String> mPropertiesList;
     protected final SharedPropertiesParser mSharedPropertiesParser;
-    protected File mPropertiesFile;
-    protected SharedProperties mSharedProperties;
+    protected volatile File mPropertiesFile;
+    protected volatile SharedProperties mSharedProperties;
+
+    /** The listeners notified by {@link #loadTermuxPropertiesFromDisk()} when values change. */
+    protected final List<OnPropertiesChangedListener> mOnPropertiesChangedListeners = new CopyOnWriteArrayList<>();
 
     public static final String LOG_TAG = "TermuxSharedProperties";
 
+    /** The interface for listeners of changes of the properties values. */
+    public interface OnPropertiesChangedListener {
+
+        /**
+         * Called on the thread that reloaded the properties after the new values have been published.
+         *
+         * @param changedKeys The keys whose value or internal value changed.
+         */
+        void onPropertiesChanged(@NonNull Set<String> changedKeys);
+
+    }
+
     public TermuxSharedProperties(@NonNull Context context, @NonNull String label, List<String> propertiesFilePaths,
                                   @NonNull Set<String> propertiesList, @NonNull SharedPropertiesParser sharedPropertiesParser) {
         mContext = context.getApplicationContext();
@@ -40,19 +57,66 @@ public abstract class TermuxSharedProperties {
     }
 
     /**
-     * Reload the termux properties from disk into an in-memory cache.
+     * Wrapper for {@link #loadTermuxPropertiesFromDisk(boolean)} that only reads the properties file
+     * if it has changed since it was last loaded.
+     */
+    @NonNull
+    public Set<String> loadTermuxPropertiesFromDisk() {
+        return loadTermuxPropertiesFromDisk(false);
+    }
+
+    /**
+     * Reload the termux properties from disk into an in-memory cache, and notify the
+     * {@link OnPropertiesChangedListener}s if any values changed. Readers keep using the previous
+     * values until the new ones are published.
+     *
+     * @param force If {@code false}, then the properties file is only read if its last modified
+     *              time or size has changed since it was last loaded. Otherwise it is always read,
+     *              like when the user explicitly requested a reload, since an edit within the
+     *              timestamp granularity of the filesystem that keeps the size is not detected.
+     * @return Returns the keys whose value or internal value changed.
      */
-    public synchronized void loadTermuxPropertiesFromDisk() {
+    @NonNull
+    public synchronized Set<String> loadTermuxPropertiesFromDisk(boolean force) {
         // Properties files must be searched everytime since no file may exist when constructor is
         // called or a higher priority file may have been created afterward. Otherwise, if no file
         // was found, then default props would keep loading, since mSharedProperties would be null. #2836
-        mPropertiesFile = SharedProperties.getPropertiesFileFromList(mPropertiesFilePaths, LOG_TAG);
-        mSharedProperties = null;
-        mSharedProperties = new SharedProperties(mContext, mPropertiesFile, mPropertiesList, mSharedPropertiesParser);
+        File propertiesFile = SharedProperties.getPropertiesFileFromList(mPropertiesFilePaths, LOG_TAG);
+
+        Set<String> changedKeys;
+        SharedProperties oldSharedProperties = mSharedProperties;
+        if (oldSharedProperties != null && Objects.equals(propertiesFile, mPropertiesFile)) {
+            changedKeys = oldSharedProperties.loadPropertiesFromDisk(force);
+        } else {
+            SharedProperties sharedProperties = new SharedProperties(mContext, propertiesFile, mPropertiesList, mSharedPropertiesParser);
+            sharedProperties.loadPropertiesFromDisk();
+            changedKeys = oldSharedProperties != null ?
+                SharedProperties.getChangedKeys(oldSharedProperties, sharedProperties) :
+                sharedProperties.getInternalProperties().keySet();
+            mPropertiesFile = propertiesFile;
+            mSharedProperties = sharedProperties;
+        }
+
+        if (changedKeys.isEmpty()) return changedKeys;
 
-        mSharedProperties.loadPropertiesFromDisk();
+        Logger.logDebugFormat(LOG_TAG, "%s Termux Properties changed: %s", mLabel, changedKeys);
         dumpPropertiesToLog();
         dumpInternalPropertiesToLog();
+
+        for (OnPropertiesChangedListener listener : mOnPropertiesChangedListeners)
+            listener.onPropertiesChanged(changedKeys);
+
+        return changedKeys;
+    }
+
+    /** Add a {@link OnPropertiesChangedListener} to be notified when values change. */
+    public void addOnPropertiesChangedListener(@NonNull OnPropertiesChangedListener listener) {
+        mOnPropertiesChangedListeners.add(listener);
+    }
+
+    /** Remove a {@link OnPropertiesChangedListener} added with {@link #addOnPropertiesChangedListener(OnPropertiesChangedListener)}. */
+    public void removeOnPropertiesChangedListener(@NonNull OnPropertiesChangedListener listener) {
+        mOnPropertiesChangedListeners.remove(listener);
     }
 
 
@@ -153,15 +217,16 @@ public abstract class TermuxSharedProperties {
     public Object getInternalPropertyValue(String key, boolean cached) {
         Object value;
         if (cached) {
-            value = mSharedProperties.getInternalProperty(key);
+            SharedProperties sharedProperties = mSharedProperties;
+            value = sharedProperties.getInternalProperty(key);
             // If the value is not null since key was found or if the value was null since the
             // object stored for the key was itself null, we detect the later by checking if the key
             // exists in the map.
-            if (value != null || mSharedProperties.getInternalProperties().containsKey(key)) {
+            if (value != null || sharedProperties.hasInternalProperty(key)) {
                 return value;
             } else {
-                // This should not happen normally unless mMap was modified after the
-                // {@link #loadTermuxPropertiesFromDisk()} call
+                // This should not happen normally unless the key is not in the properties list
+                // loaded by the {@link #loadTermuxPropertiesFromDisk()} call
                 // A null value can still be returned by
                 // {@link #getInternalPropertyValueFromValue(Context,String,String)} for some keys
                 value = getInternalTermuxPropertyValueFromValue(mContext, key, null);
@@ -271,6 +336,12 @@ public abstract class TermuxSharedProperties {
                 return (int) getTerminalMarginHorizontalInternalPropertyValueFromValue(value);
             case TermuxPropertyConstants.KEY_TERMINAL_MARGIN_VERTICAL:
                 return (int) getTerminalMarginVerticalInternalPropertyValueFromValue(value);
+            case TermuxPropertyConstants.KEY_TERMINAL_SESSION_POOL_SIZE:
+                return (int) getTerminalSessionPoolSizeInternalPropertyValueFromValue(value);
+            case TermuxPropertyConstants.KEY_TERMINAL_SESSION_RECORDING_MAX_SIZE:
+                return (int) getTerminalSessionRecordingMaxSizeInternalPropertyValueFromValue(value);
+            case TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_MEMORY_BUDGET:
+                return (int) getTerminalTranscriptMemoryBudgetInternalPropertyValueFromValue(value);
             case TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_ROWS:
                 return (int) getTerminalTranscriptRowsInternalPropertyValueFromValue(value);
 
@@ -420,6 +491,60 @@ public abstract class TermuxSharedProperties {
             true, true, LOG_TAG);
     }
 
+    /**
+     * Returns the int for the value if its not null and is between
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_SESSION_POOL_SIZE_MIN} and
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_SESSION_POOL_SIZE_MAX},
+     * otherwise returns {@link TermuxPropertyConstants#DEFAULT_IVALUE_TERMINAL_SESSION_POOL_SIZE}.
+     *
+     * @param value The {@link String} value to convert.
+     * @return Returns the internal value for value.
+     */
+    public static int getTerminalSessionPoolSizeInternalPropertyValueFromValue(String value) {
+        return SharedProperties.getDefaultIfNotInRange(TermuxPropertyConstants.KEY_TERMINAL_SESSION_POOL_SIZE,
+            DataUtils.getIntFromString(value, TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_SESSION_POOL_SIZE),
+            TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_SESSION_POOL_SIZE,
+            TermuxPropertyConstants.IVALUE_TERMINAL_SESSION_POOL_SIZE_MIN,
+            TermuxPropertyConstants.IVALUE_TERMINAL_SESSION_POOL_SIZE_MAX,
+            true, true, LOG_TAG);
+    }
+
+    /**
+     * Returns the int for the value if its not null and is between
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE_MIN} and
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE_MAX},
+     * otherwise returns {@link TermuxPropertyConstants#DEFAULT_IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE}.
+     *
+     * @param value The {@link String} value to convert.
+     * @return Returns the internal value for value.
+     */
+    public static int getTerminalSessionRecordingMaxSizeInternalPropertyValueFromValue(String value) {
+        return SharedProperties.getDefaultIfNotInRange(TermuxPropertyConstants.KEY_TERMINAL_SESSION_RECORDING_MAX_SIZE,
+            DataUtils.getIntFromString(value, TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE),
+            TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE,
+            TermuxPropertyConstants.IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE_MIN,
+            TermuxPropertyConstants.IVALUE_TERMINAL_SESSION_RECORDING_MAX_SIZE_MAX,
+            true, true, LOG_TAG);
+    }
+
+    /**
+     * Returns the int for the value if its not null and is between
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET_MIN} and
+     * {@link TermuxPropertyConstants#IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET_MAX},
+     * otherwise returns {@link TermuxPropertyConstants#DEFAULT_IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET}.
+     *
+     * @param value The {@link String} value to convert.
+     * @return Returns the internal value for value.
+     */
+    public static int getTerminalTranscriptMemoryBudgetInternalPropertyValueFromValue(String value) {
+        return SharedProperties.getDefaultIfNotInRange(TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_MEMORY_BUDGET,
+            DataUtils.getIntFromString(value, TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET),
+            TermuxPropertyConstants.DEFAULT_IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET,
+            TermuxPropertyConstants.IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET_MIN,
+            TermuxPropertyConstants.IVALUE_TERMINAL_TRANSCRIPT_MEMORY_BUDGET_MAX,
+            true, true, LOG_TAG);
+    }
+
     /**
      * Returns the int for the value if its not null and is between
      * {@link TermuxPropertyConstants#IVALUE_TERMINAL_TRANSCRIPT_ROWS_MIN} and
@@ -614,6 +739,14 @@ public abstract class TermuxSharedProperties {
         return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_ONCLICK_URL_OPEN, true);
     }
 
+    public boolean shouldRecordTerminalSessions() {
+        return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_SESSION_RECORDING, true);
+    }
+
+    public boolean shouldSnapshotTerminalSessions() {
+        return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_SESSION_SNAPSHOTS, true);
+    }
+
     public boolean isUsingCtrlSpaceWorkaround() {
         return (boolean) getInternalPropertyValue(TermuxPropertyConstants.KEY_USE_CTRL_SPACE_WORKAROUND, true);
     }
@@ -650,6 +783,18 @@ public abstract class TermuxSharedProperties {
         return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_MARGIN_VERTICAL, true);
     }
 
+    public int getTerminalSessionPoolSize() {
+        return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_SESSION_POOL_SIZE, true);
+    }
+
+    public int getTerminalSessionRecordingMaxSize() {
+        return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_SESSION_RECORDING_MAX_SIZE, true);
+    }
+
+    public int getTerminalTranscriptMemoryBudget() {
+        return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_MEMORY_BUDGET, true);
+    }
+
     public int getTerminalTranscriptRows() {
         return (int) getInternalPropertyValue(TermuxPropertyConstants.KEY_TERMINAL_TRANSCRIPT_ROWS, true);
     }
@@ -689,6 +834,8 @@ public abstract class TermuxSharedProperties {
 
 
     public void dumpPropertiesToLog() {
+        if (Logger.getLogLevel() < Logger.LOG_LEVEL_VERBOSE) return;
+
         Properties properties = getProperties(true);
         StringBuilder propertiesDump = new StringBuilder();
 
@@ -705,6 +852,8 @@ public abstract class TermuxSharedProperties {
     }
 
     public void dumpInternalPropertiesToLog() {
+        if (Logger.getLogLevel() < Logger.LOG_LEVEL_VERBOSE) return;
+
         HashMap<String, Object> internalProperties = (HashMap<String, Object>) getInternalProperties();
         StringBuilder internalPropertiesDump = new StringBuilder();
 
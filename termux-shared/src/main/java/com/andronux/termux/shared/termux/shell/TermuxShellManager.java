@@ -5,13 +5,19 @@ import android.content.Intent;
 import android.widget.ArrayAdapter;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.andronux.termux.shared.logger.Logger;
 import com.andronux.termux.shared.shell.command.ExecutionCommand;
 import com.andronux.termux.shared.shell.command.runner.app.AppShell;
+import com.andronux.termux.shared.shell.command.runner.app.AppShellScheduler;
 import com.andronux.termux.shared.termux.settings.preferences.TermuxAppSharedPreferences;
 import com.andronux.termux.shared.termux.shell.command.runner.terminal.TermuxSession;
+import com.andronux.termux.terminal.TerminalEmulator;
+import com.andronux.termux.terminal.TerminalSession;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class TermuxShellManager {
@@ -20,6 +26,8 @@ public class TermuxShellManager {
 
     private static int SHELL_ID = 0;
 
+    private static final String LOG_TAG = "TermuxShellManager";
+
     protected final Context mContext;
 
     /**
@@ -36,10 +44,26 @@ public class TermuxShellManager {
     public final List<AppShell> mTermuxTasks = new ArrayList<>();
 
     /**
-     * The pending plugin ExecutionCommands that have yet to be processed by this service.
+     * The pending plugin ExecutionCommands that have yet to be processed by this service. This
+     * includes the {@link ExecutionCommand.Runner#APP_SHELL} commands queued by {@link #mAppShellScheduler}.
      */
     public final List<ExecutionCommand> mPendingPluginExecutionCommands = new ArrayList<>();
 
+    /** The max number of background TermuxTasks running at the same time, based on the number of cpus. */
+    public static final int MAX_RUNNING_TERMUX_TASKS = AppShellScheduler.DEFAULT_MAX_RUNNING_COMMANDS;
+
+    /** The max number of background TermuxTasks of the same package running at the same time. */
+    public static final int MAX_RUNNING_TERMUX_TASKS_PER_PACKAGE = Math.max(1, MAX_RUNNING_TERMUX_TASKS / 2);
+
+    /** The time after which a running background TermuxTask no longer counts towards the limits. */
+    public static final long TERMUX_TASK_MAX_SLOT_HOLD_TIME = 60 * 1000; // 1 min
+
+    /**
+     * The scheduler limiting the number of background TermuxTasks running at the same time.
+     */
+    public final AppShellScheduler mAppShellScheduler = new AppShellScheduler(MAX_RUNNING_TERMUX_TASKS,
+        MAX_RUNNING_TERMUX_TASKS_PER_PACKAGE, TERMUX_TASK_MAX_SLOT_HOLD_TIME);
+
     /**
      * The {@link ExecutionCommand.Runner#APP_SHELL} number after app process was started/restarted.
      */
@@ -79,6 +103,57 @@ public class TermuxShellManager {
     }
 
 
+    /**
+     * Enforce a memory budget for the transcripts of all {@link #mTermuxSessions}, by trimming the
+     * transcripts of the least recently viewed sessions first until the estimated usage is within
+     * the budget. The session currently shown to the user is only trimmed if trimming all the other
+     * sessions was not enough.
+     *
+     * This must be called on the main thread, since the terminal emulators are only modified on it.
+     *
+     * @param budgetBytes The number of bytes that the transcripts of all sessions may use together.
+     * @param currentSession The {@link TerminalSession} currently shown to the user, if any.
+     * @return Returns the estimated number of bytes used by the transcripts after trimming.
+     */
+    public synchronized long enforceTranscriptMemoryBudget(long budgetBytes, @Nullable TerminalSession currentSession) {
+        long usedBytes = 0;
+        for (TermuxSession termuxSession : mTermuxSessions)
+            usedBytes += getTranscriptMemoryBytes(termuxSession);
+        if (usedBytes <= budgetBytes) return usedBytes;
+
+        List<TermuxSession> termuxSessions = new ArrayList<>(mTermuxSessions);
+        Collections.sort(termuxSessions, (session1, session2) -> {
+            boolean current1 = session1.getTerminalSession() == currentSession;
+            boolean current2 = session2.getTerminalSession() == currentSession;
+            if (current1 != current2) return current1 ? 1 : -1;
+            return Long.compare(session1.getLastViewedTime(), session2.getLastViewedTime());
+        });
+
+        for (TermuxSession termuxSession : termuxSessions) {
+            if (usedBytes <= budgetBytes) break;
+            TerminalEmulator emulator = termuxSession.getTerminalSession().getEmulator();
+            if (emulator == null) continue;
+
+            long freedBytes = emulator.trimTranscript(usedBytes - budgetBytes);
+            if (freedBytes > 0) {
+                Logger.logDebug(LOG_TAG, "Trimmed the transcript of the " + termuxSession.getExecutionCommand().getCommandIdAndLabelLogString() +
+                    " TermuxSession to " + emulator.getTranscriptRows() + " rows to free " + freedBytes + " bytes");
+                usedBytes -= freedBytes;
+            }
+        }
+
+        if (usedBytes > budgetBytes)
+            Logger.logWarn(LOG_TAG, "The transcripts of all TermuxSessions use " + usedBytes + " bytes even after trimming, which exceeds the budget of " + budgetBytes + " bytes");
+        return usedBytes;
+    }
+
+    /** Get the estimated number of bytes used by the transcript of a {@link TermuxSession}. */
+    public static long getTranscriptMemoryBytes(@NonNull TermuxSession termuxSession) {
+        TerminalEmulator emulator = termuxSession.getTerminalSession().getEmulator();
+        return emulator == null ? 0 : emulator.estimateMemoryBytes();
+    }
+
+
     public synchronized static void onActionBootCompleted(@NonNull Context context, @NonNull Intent intent) {
         TermuxAppSharedPreferences preferences = TermuxAppSharedPreferences.build(context);
         if (preferences == null) return;
@@ -8,11 +8,12 @@ import com.andronux.termux.shared.errors.Error;
 import com.andronux.termux.shared.file.FileUtils;
 import com.andronux.termux.shared.logger.Logger;
 import com.andronux.termux.shared.shell.command.environment.AndroidShellEnvironment;
-import com.andronux.termux.shared.shell.command.environment.ShellEnvironmentUtils;
+import com.andronux.termux.shared.shell.command.environment.ShellEnvironmentSnapshot;
 import com.andronux.termux.shared.termux.TermuxBootstrap;
 import com.andronux.termux.shared.termux.TermuxConstants;
 import com.andronux.termux.shared.termux.shell.TermuxShellUtils;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 
@@ -26,6 +27,15 @@ public class TermuxShellEnvironment extends AndroidShellEnvironment {
     /** Environment variable for the termux {@link TermuxConstants#TERMUX_PREFIX_DIR_PATH}. */
     public static final String ENV_PREFIX = "PREFIX";
 
+    /**
+     * The cached {@link ShellEnvironmentSnapshot} of the Termux app for the normal and failsafe
+     * environments, which are only built again after {@link #invalidateEnvironmentSnapshot()}.
+     */
+    private static ShellEnvironmentSnapshot environmentSnapshot;
+    private static ShellEnvironmentSnapshot failSafeEnvironmentSnapshot;
+    /** The {@link ShellEnvironmentSnapshot} last written by {@link #writeEnvironmentToFile(Context)}. */
+    private static ShellEnvironmentSnapshot writtenEnvironmentSnapshot;
+
     public TermuxShellEnvironment() {
         super();
         shellCommandShellEnvironment = new TermuxShellCommandShellEnvironment();
@@ -37,10 +47,26 @@ public class TermuxShellEnvironment extends AndroidShellEnvironment {
         TermuxAppShellEnvironment.setTermuxAppEnvironment(currentPackageContext);
     }
 
-    /** Init {@link TermuxShellEnvironment} constants and caches. */
+    /**
+     * Invalidate the cached {@link ShellEnvironmentSnapshot}, so that it is built again for the next
+     * command. This must be called when a package whose info is exported is installed, updated or
+     * removed, when the termux properties are reloaded or when any other exported value changes.
+     */
+    public synchronized static void invalidateEnvironmentSnapshot() {
+        environmentSnapshot = null;
+        failSafeEnvironmentSnapshot = null;
+    }
+
+    /**
+     * Write the {@link ShellEnvironmentSnapshot} of the normal environment to
+     * {@link TermuxConstants#TERMUX_ENV_FILE_PATH}, unless it has already been written.
+     */
     public synchronized static void writeEnvironmentToFile(@NonNull Context currentPackageContext) {
-        HashMap<String, String> environmentMap = new TermuxShellEnvironment().getEnvironment(currentPackageContext, false);
-        String environmentString = ShellEnvironmentUtils.convertEnvironmentToDotEnvFile(environmentMap);
+        ShellEnvironmentSnapshot snapshot = new TermuxShellEnvironment().getEnvironmentSnapshot(currentPackageContext, false);
+        if (snapshot == writtenEnvironmentSnapshot && new File(TermuxConstants.TERMUX_ENV_FILE_PATH).isFile())
+            return;
+
+        String environmentString = snapshot.getDotEnvFile();
 
         // Write environment string to temp file and then move to final location since otherwise
         // writing may happen while file is being sourced/read
@@ -54,7 +80,10 @@ public class TermuxShellEnvironment extends AndroidShellEnvironment {
         error = FileUtils.moveRegularFile("termux.env.tmp", TermuxConstants.TERMUX_ENV_TEMP_FILE_PATH, TermuxConstants.TERMUX_ENV_FILE_PATH, true);
         if (error != null) {
             Logger.logErrorExtended(LOG_TAG, error.toString());
+            return;
         }
+
+        writtenEnvironmentSnapshot = snapshot;
     }
 
     /** Get shell environment for Termux. */
@@ -93,6 +122,28 @@ public class TermuxShellEnvironment extends AndroidShellEnvironment {
         return environment;
     }
 
+    /** Get the cached {@link ShellEnvironmentSnapshot} for Termux. */
+    @NonNull
+    @Override
+    public ShellEnvironmentSnapshot getEnvironmentSnapshot(@NonNull Context currentPackageContext, boolean isFailSafe) {
+        // Other apps should always build the environment again since termux app may be installed/updated/deleted in background
+        if (!TermuxConstants.TERMUX_PACKAGE_NAME.equals(currentPackageContext.getPackageName()))
+            return super.getEnvironmentSnapshot(currentPackageContext, isFailSafe);
+
+        // Build under the lock so that an invalidation while building is not lost
+        synchronized (TermuxShellEnvironment.class) {
+            if (isFailSafe) {
+                if (failSafeEnvironmentSnapshot == null)
+                    failSafeEnvironmentSnapshot = super.getEnvironmentSnapshot(currentPackageContext, true);
+                return failSafeEnvironmentSnapshot;
+            } else {
+                if (environmentSnapshot == null)
+                    environmentSnapshot = super.getEnvironmentSnapshot(currentPackageContext, false);
+                return environmentSnapshot;
+            }
+        }
+    }
+
 
     @NonNull
     @Override
@@ -1,6 +1,7 @@
 package com.andronux.termux.shared.termux.shell.command.runner.terminal;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.system.OsConstants;
 
 import androidx.annotation.NonNull;
@@ -9,7 +10,6 @@ import androidx.annotation.Nullable;
 import com.google.common.base.Joiner;
 import com.andronux.termux.shared.R;
 import com.andronux.termux.shared.shell.command.ExecutionCommand;
-import com.andronux.termux.shared.shell.command.environment.ShellEnvironmentUtils;
 import com.andronux.termux.shared.shell.command.environment.UnixShellEnvironment;
 import com.andronux.termux.shared.shell.command.result.ResultData;
 import com.andronux.termux.shared.errors.Errno;
@@ -20,9 +20,7 @@ import com.andronux.termux.terminal.TerminalSession;
 import com.andronux.termux.terminal.TerminalSessionClient;
 
 import java.io.File;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 
 /**
  * A class that maintains info for foreground Termux sessions.
@@ -36,6 +34,9 @@ public class TermuxSession {
     private final TermuxSessionClient mTermuxSessionClient;
     private final boolean mSetStdoutOnExit;
 
+    /** The {@link SystemClock#uptimeMillis()} at which this session was last shown to the user. */
+    private long mLastViewedTime = SystemClock.uptimeMillis();
+
     private static final String LOG_TAG = "TermuxSession";
 
     private TermuxSession(@NonNull final TerminalSession terminalSession, @NonNull final ExecutionCommand executionCommand,
@@ -134,13 +135,8 @@ public class TermuxSession {
             executionCommand.commandLabel = processName;
 
         // Setup command environment
-        HashMap<String, String> environment = shellEnvironmentClient.setupShellCommandEnvironment(currentPackageContext,
-            executionCommand);
-        if (additionalEnvironment != null)
-            environment.putAll(additionalEnvironment);
-        List<String> environmentList = ShellEnvironmentUtils.convertEnvironmentToEnviron(environment);
-        Collections.sort(environmentList);
-        String[] environmentArray = environmentList.toArray(new String[0]);
+        String[] environmentArray = shellEnvironmentClient.setupShellCommandEnviron(currentPackageContext,
+            executionCommand, additionalEnvironment);
 
         if (!executionCommand.setState(ExecutionCommand.ExecutionState.EXECUTING)) {
             executionCommand.setStateFailed(Errno.ERRNO_FAILED.getCode(), currentPackageContext.getString(R.string.error_failed_to_execute_termux_session_command, executionCommand.getCommandIdAndLabelLogString()));
@@ -148,14 +144,14 @@ public class TermuxSession {
             return null;
         }
 
-        Logger.logDebugExtended(LOG_TAG, executionCommand.toString());
-        Logger.logVerboseExtended(LOG_TAG, "\"" + executionCommand.getCommandIdAndLabelLogString() + "\" TermuxSession Environment:\n" +
+        Logger.logDebugExtended(LOG_TAG, executionCommand::toString);
+        Logger.logVerboseExtended(LOG_TAG, () -> "\"" + executionCommand.getCommandIdAndLabelLogString() + "\" TermuxSession Environment:\n" +
             Joiner.on("\n").join(environmentArray));
 
         Logger.logDebug(LOG_TAG, "Running \"" + executionCommand.getCommandIdAndLabelLogString() + "\" TermuxSession");
         TerminalSession terminalSession = new TerminalSession(executionCommand.executable,
             executionCommand.workingDirectory, executionCommand.arguments, environmentArray,
-            executionCommand.terminalTranscriptRows, terminalSessionClient);
+            executionCommand.terminalTranscriptRows, terminalSessionClient, executionCommand.terminalSessionHandle);
 
         if (executionCommand.shellName != null) {
             terminalSession.mSessionName = executionCommand.shellName;
@@ -280,6 +276,15 @@ public class TermuxSession {
         return mExecutionCommand;
     }
 
+    public long getLastViewedTime() {
+        return mLastViewedTime;
+    }
+
+    /** Mark this session as shown to the user now. */
+    public void setViewed() {
+        mLastViewedTime = SystemClock.uptimeMillis();
+    }
+
 
 
     public interface TermuxSessionClient {
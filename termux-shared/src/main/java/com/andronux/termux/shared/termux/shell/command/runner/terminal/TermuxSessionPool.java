@@ -0,0 +1,234 @@
+package com.andronux.termux.shared.termux.shell.command.runner.terminal;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.andronux.termux.shared.data.DataUtils;
+import com.andronux.termux.shared.logger.Logger;
+import com.andronux.termux.shared.shell.command.ExecutionCommand;
+import com.andronux.termux.shared.shell.command.ExecutionCommand.Runner;
+import com.andronux.termux.shared.termux.shell.TermuxShellManager;
+import com.andronux.termux.shared.termux.shell.command.environment.TermuxShellEnvironment;
+import com.andronux.termux.shared.termux.terminal.TermuxTerminalSessionClientBase;
+import com.andronux.termux.terminal.TerminalSession;
+import com.andronux.termux.terminal.TerminalSessionClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A pool of pre-started login shell {@link TermuxSession}s, so that a new session does not have to
+ * wait for the shell to start and run its login profile scripts before its prompt is shown.
+ *
+ * The pooled sessions are started with the terminal size of the last viewed session, run with a
+ * {@link TerminalSessionClient} that ignores their output, and are adopted by the next request for
+ * a plain login shell in the same working directory, which then gets resized to the real size of its
+ * view once attached. The pool is refilled in the background after {@link #REFILL_DELAY_MILLIS}, so that
+ * starting the pooled shells does not compete with the session just adopted, and must be drained
+ * with {@link #drain()} when the system is low on memory or the sessions are killed.
+ *
+ * All methods must be called on the main thread.
+ */
+public class TermuxSessionPool {
+
+    private final Context mContext;
+    private final TermuxSession.TermuxSessionClient mTermuxSessionClient;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** The pooled sessions that have not been adopted yet, oldest first. */
+    private final List<TermuxSession> mPooledSessions = new ArrayList<>();
+
+    /** The client of the pooled sessions until they are adopted. */
+    private final TerminalSessionClient mPooledTerminalSessionClient = new TermuxTerminalSessionClientBase() {
+        @Override
+        public void onSessionFinished(@NonNull TerminalSession finishedSession) {
+            onPooledSessionFinished(finishedSession);
+        }
+    };
+
+    /** The number of sessions to keep pooled, as requested by the last {@link #acquire(ExecutionCommand, TerminalSessionClient, int)}. */
+    private int mSize;
+    /** The working directory and transcript rows the pooled sessions are started with. */
+    private String mWorkingDirectory;
+    private Integer mTranscriptRows;
+    /** The terminal size the pooled sessions are started with. */
+    private int mColumns = DEFAULT_COLUMNS;
+    private int mRows = DEFAULT_ROWS;
+    /** Whether the pool has been drained, in which case it is not refilled until the next {@link #acquire(ExecutionCommand, TerminalSessionClient, int)}. */
+    private boolean mDrained;
+
+    private final Runnable mRefillRunnable = this::refill;
+
+    /** The delay before starting a pooled session after the pool has changed. */
+    public static final long REFILL_DELAY_MILLIS = 2000;
+
+    private static final int DEFAULT_COLUMNS = 80;
+    private static final int DEFAULT_ROWS = 24;
+
+    private static final String LOG_TAG = "TermuxSessionPool";
+
+    /**
+     * Create an new instance of {@link TermuxSessionPool}.
+     *
+     * @param context The {@link Context} for operations, which must be the context of the current package.
+     * @param termuxSessionClient The {@link TermuxSession.TermuxSessionClient} of the adopted sessions.
+     */
+    public TermuxSessionPool(@NonNull Context context, @NonNull TermuxSession.TermuxSessionClient termuxSessionClient) {
+        mContext = context;
+        mTermuxSessionClient = termuxSessionClient;
+    }
+
+    /**
+     * Adopt a pooled session for an {@link ExecutionCommand} if it requests a plain login shell
+     * like the pooled ones, and schedule the pool to be refilled to {@code size}.
+     *
+     * @param executionCommand The {@link ExecutionCommand} of the {@link Runner#TERMINAL_SESSION} requested.
+     * @param terminalSessionClient The {@link TerminalSessionClient} to set for the adopted session.
+     * @param size The number of sessions to keep pooled, 0 to disable the pool.
+     * @return Returns the adopted {@link TermuxSession}, or {@code null} if none could be adopted
+     * and a new session must be started instead.
+     */
+    @Nullable
+    public TermuxSession acquire(@NonNull ExecutionCommand executionCommand,
+                                 @NonNull TerminalSessionClient terminalSessionClient, int size) {
+        mSize = size;
+        mDrained = false;
+        if (!isPoolable(executionCommand)) {
+            trimAndScheduleRefill();
+            return null;
+        }
+
+        // Shells pooled for another working directory or transcript size are unlikely to be adopted
+        String workingDirectory = getWorkingDirectory(executionCommand);
+        if (!workingDirectory.equals(mWorkingDirectory) || !Objects.equals(executionCommand.terminalTranscriptRows, mTranscriptRows)) {
+            if (!mPooledSessions.isEmpty())
+                Logger.logVerbose(LOG_TAG, "Killing " + mPooledSessions.size() + " pooled sessions started in \"" + mWorkingDirectory + "\"");
+            killPooledSessions();
+            mWorkingDirectory = workingDirectory;
+            mTranscriptRows = executionCommand.terminalTranscriptRows;
+        }
+
+        TermuxSession termuxSession = null;
+        while (termuxSession == null && !mPooledSessions.isEmpty()) {
+            TermuxSession pooledSession = mPooledSessions.remove(0);
+            if (pooledSession.getTerminalSession().isRunning())
+                termuxSession = pooledSession;
+        }
+
+        if (termuxSession != null) {
+            Logger.logDebug(LOG_TAG, "Adopting pooled \"" + termuxSession.getExecutionCommand().getCommandIdAndLabelLogString() +
+                "\" TermuxSession for \"" + executionCommand.getCommandIdAndLabelLogString() + "\"");
+            termuxSession.getTerminalSession().updateTerminalSessionClient(terminalSessionClient);
+        }
+
+        trimAndScheduleRefill();
+        return termuxSession;
+    }
+
+    /** Set the terminal size to start pooled sessions with, like the size of the last viewed session. */
+    public void setTerminalSize(int columns, int rows) {
+        if (columns > 0 && rows > 0) {
+            mColumns = columns;
+            mRows = rows;
+        }
+    }
+
+    /** Kill the pooled sessions and do not refill the pool until the next {@link #acquire(ExecutionCommand, TerminalSessionClient, int)}. */
+    public void drain() {
+        mDrained = true;
+        mHandler.removeCallbacks(mRefillRunnable);
+        if (!mPooledSessions.isEmpty()) {
+            Logger.logDebug(LOG_TAG, "Draining " + mPooledSessions.size() + " pooled sessions");
+            killPooledSessions();
+        }
+    }
+
+    /** Get the number of pooled sessions. */
+    public int getPooledSessionsSize() {
+        return mPooledSessions.size();
+    }
+
+    /** Get whether an {@link ExecutionCommand} requests the same plain login shell that is pooled. */
+    private static boolean isPoolable(@NonNull ExecutionCommand executionCommand) {
+        return Runner.TERMINAL_SESSION.equalsRunner(executionCommand.runner) &&
+            DataUtils.isNullOrEmpty(executionCommand.executable) &&
+            (executionCommand.arguments == null || executionCommand.arguments.length == 0) &&
+            DataUtils.isNullOrEmpty(executionCommand.stdin) &&
+            // The shell name is exported to the environment of the shell
+            executionCommand.shellName == null &&
+            // The pooled sessions already have their own handles
+            executionCommand.terminalSessionHandle == null &&
+            !executionCommand.isFailsafe &&
+            !executionCommand.isPluginExecutionCommand;
+    }
+
+    @NonNull
+    private static String getWorkingDirectory(@NonNull ExecutionCommand executionCommand) {
+        return DataUtils.isNullOrEmpty(executionCommand.workingDirectory) ?
+            new TermuxShellEnvironment().getDefaultWorkingDirectoryPath() : executionCommand.workingDirectory;
+    }
+
+    /** Kill the pooled sessions over {@link #mSize} and schedule starting the missing ones. */
+    private void trimAndScheduleRefill() {
+        while (mPooledSessions.size() > mSize)
+            mPooledSessions.remove(mPooledSessions.size() - 1).getTerminalSession().finishIfRunning();
+
+        mHandler.removeCallbacks(mRefillRunnable);
+        if (mPooledSessions.size() < mSize && mWorkingDirectory != null)
+            mHandler.postDelayed(mRefillRunnable, REFILL_DELAY_MILLIS);
+    }
+
+    /** Start one pooled session and schedule starting the next one if still missing any. */
+    private void refill() {
+        if (mDrained || mPooledSessions.size() >= mSize || mWorkingDirectory == null) return;
+
+        ExecutionCommand executionCommand = new ExecutionCommand(TermuxShellManager.getNextShellId(),
+            null, null, null, mWorkingDirectory, Runner.TERMINAL_SESSION.getName(), false);
+        executionCommand.setShellCommandShellEnvironment = true;
+        executionCommand.terminalTranscriptRows = mTranscriptRows;
+
+        Logger.logVerbose(LOG_TAG, "Starting pooled \"" + executionCommand.getCommandIdAndLabelLogString() + "\" TermuxSession");
+        TermuxSession termuxSession = TermuxSession.execute(mContext, executionCommand, mPooledTerminalSessionClient,
+            mTermuxSessionClient, new TermuxShellEnvironment(), null, false);
+        if (termuxSession == null) {
+            // Do not retry starting a shell that fails until the pool is used again
+            Logger.logError(LOG_TAG, "Failed to start pooled TermuxSession");
+            return;
+        }
+
+        try {
+            // Start the shell now with the likely size instead of once it is attached to a view
+            termuxSession.getTerminalSession().initializeEmulator(mColumns, mRows, 0, 0);
+        } catch (RuntimeException e) {
+            Logger.logStackTraceWithMessage(LOG_TAG, "Failed to start pooled TermuxSession", e);
+            return;
+        }
+
+        mPooledSessions.add(termuxSession);
+        trimAndScheduleRefill();
+    }
+
+    /** Remove a pooled session whose shell exited before it was adopted, without refilling the pool for it. */
+    private void onPooledSessionFinished(@NonNull TerminalSession finishedSession) {
+        for (int i = 0; i < mPooledSessions.size(); i++) {
+            if (mPooledSessions.get(i).getTerminalSession() == finishedSession) {
+                Logger.logDebug(LOG_TAG, "The pooled \"" + mPooledSessions.get(i).getExecutionCommand().getCommandIdAndLabelLogString() +
+                    "\" TermuxSession exited with code " + finishedSession.getExitStatus() + " before it was adopted");
+                mPooledSessions.remove(i);
+                return;
+            }
+        }
+    }
+
+    private void killPooledSessions() {
+        for (TermuxSession termuxSession : mPooledSessions)
+            termuxSession.getTerminalSession().finishIfRunning();
+        mPooledSessions.clear();
+    }
+
+}
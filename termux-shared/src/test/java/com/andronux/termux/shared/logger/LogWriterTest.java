@@ -0,0 +1,122 @@
+package com.andronux.termux.shared.logger;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogWriterTest {
+
+    private static final String TAG = "Termux.LogWriterTest";
+
+    private static final long FLUSH_TIMEOUT_MILLIS = 10000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("LogWriterTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        LogWriter.setLogFile(null, 0, 0);
+        Assert.assertTrue(LogWriter.flush(FLUSH_TIMEOUT_MILLIS));
+        deleteRecursively(mDirectory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                deleteRecursively(child);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /** Get the messages of the entries in a log file in the "logcat -v threadtime" format. */
+    private static List<String> readMessages(File logFile) throws IOException {
+        List<String> messages = new ArrayList<>();
+        for (String line : Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8)) {
+            int index = line.indexOf(" " + TAG + ": ");
+            Assert.assertTrue(line, index >= 0);
+            messages.add(line.substring(index + TAG.length() + 3));
+        }
+        return messages;
+    }
+
+    @Test
+    public void testFlushWritesEntriesToLogFile() throws IOException {
+        File logFile = new File(mDirectory, "logs/termux.log");
+        LogWriter.setLogFile(logFile, 0, 0);
+        LogWriter.write(Log.INFO, TAG, "first", false);
+        LogWriter.write(Log.ERROR, TAG, "second", true);
+
+        Assert.assertTrue(LogWriter.flush(FLUSH_TIMEOUT_MILLIS));
+        List<String> lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.get(0), lines.get(0).endsWith(" I " + TAG + ": first"));
+        Assert.assertTrue(lines.get(1), lines.get(1).endsWith(" E " + TAG + ": second"));
+    }
+
+    @Test
+    public void testEntriesAreNotDroppedWhenRingBufferIsFull() throws Exception {
+        File logFile = new File(mDirectory, "termux.log");
+        LogWriter.setLogFile(logFile, 0, 0);
+
+        // Log several times the capacity from multiple threads, so that callers have to wait for the writer thread
+        final int threadCount = 4;
+        final int entriesPerThread = LogWriter.RING_BUFFER_CAPACITY * 2;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < entriesPerThread; i++)
+                    LogWriter.write(Log.DEBUG, TAG, thread + " " + i, false);
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        Assert.assertTrue(LogWriter.flush(FLUSH_TIMEOUT_MILLIS));
+        List<String> messages = readMessages(logFile);
+        Assert.assertEquals(threadCount * entriesPerThread, messages.size());
+
+        // The entries of each thread must be written in the order they were logged
+        int[] nextEntry = new int[threadCount];
+        for (String message : messages) {
+            String[] parts = message.split(" ");
+            int thread = Integer.parseInt(parts[0]);
+            Assert.assertEquals(message, nextEntry[thread]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    @Test
+    public void testLogFileIsRotated() throws IOException {
+        File logFile = new File(mDirectory, "termux.log");
+        LogWriter.setLogFile(logFile, 1024, 1);
+        for (int i = 0; i < 100; i++)
+            LogWriter.write(Log.INFO, TAG, "entry " + i, false);
+
+        Assert.assertTrue(LogWriter.flush(FLUSH_TIMEOUT_MILLIS));
+        File backupLogFile = new File(mDirectory, "termux.log.1");
+        Assert.assertTrue(backupLogFile.isFile());
+        Assert.assertFalse(new File(mDirectory, "termux.log.2").exists());
+        Assert.assertTrue(backupLogFile.length() >= 1024);
+        List<String> messages = readMessages(logFile);
+        Assert.assertEquals("entry 99", messages.get(messages.size() - 1));
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.andronux.termux.shared.logger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class LoggerTest {
+
+    private static final String TAG = "Termux.LoggerTest";
+
+    /** The max size of an entry without its "(n/count)\n" prefix, like in {@link Logger#getExtendedMessageEntries(String, String)}. */
+    private static final int MAX_ENTRY_SIZE = Logger.LOGGER_ENTRY_MAX_PAYLOAD - 8 - TAG.length() - 4;
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+            builder.append(c);
+        return builder.toString();
+    }
+
+    /** Assert that the entries have the "(n/count)\n" prefixes and get the message they were split from. */
+    private static String join(List<String> entries) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < entries.size(); i++) {
+            String prefix = "(" + (i + 1) + "/" + entries.size() + ")\n";
+            String entry = entries.get(i);
+            Assert.assertTrue(entry, entry.startsWith(prefix));
+            Assert.assertTrue(entry.length() - prefix.length() <= MAX_ENTRY_SIZE);
+            builder.append(entry, prefix.length(), entry.length());
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testEmptyMessageHasNoEntries() {
+        Assert.assertTrue(Logger.getExtendedMessageEntries(TAG, "").isEmpty());
+    }
+
+    @Test
+    public void testMessageThatFitsIsNotSplit() {
+        String message = repeat('a', MAX_ENTRY_SIZE);
+        List<String> entries = Logger.getExtendedMessageEntries(TAG, message);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(message, entries.get(0));
+    }
+
+    @Test
+    public void testMessageWithoutNewlinesIsSplitAtMaxEntrySize() {
+        String message = repeat('a', MAX_ENTRY_SIZE * 2) + "b";
+        List<String> entries = Logger.getExtendedMessageEntries(TAG, message);
+        Assert.assertEquals(3, entries.size());
+        Assert.assertEquals("(1/3)\n" + repeat('a', MAX_ENTRY_SIZE), entries.get(0));
+        Assert.assertEquals("(3/3)\nb", entries.get(2));
+        Assert.assertEquals(message, join(entries));
+    }
+
+    @Test
+    public void testMessageIsSplitAfterLastNewlineInEntry() {
+        String firstLine = repeat('a', 10) + "\n";
+        String secondLine = repeat('b', MAX_ENTRY_SIZE - 20) + "\n";
+        String thirdLine = repeat('c', 100);
+        String message = firstLine + secondLine + thirdLine;
+        List<String> entries = Logger.getExtendedMessageEntries(TAG, message);
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("(1/2)\n" + firstLine + secondLine, entries.get(0));
+        Assert.assertEquals("(2/2)\n" + thirdLine, entries.get(1));
+    }
+
+    @Test
+    public void testLargeMessageIsSplitWithoutLosingCharacters() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 256 * 1024; i++)
+            builder.append("line ").append(i).append(i % 7 == 0 ? repeat('x', 5000) : "").append('\n');
+        String message = builder.toString();
+        Assert.assertEquals(message, join(Logger.getExtendedMessageEntries(TAG, message)));
+    }
+
+}
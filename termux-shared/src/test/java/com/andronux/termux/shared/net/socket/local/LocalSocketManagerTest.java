@@ -0,0 +1,83 @@
+package com.andronux.termux.shared.net.socket.local;
+
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class LocalSocketManagerTest {
+
+    private LocalSocketRunConfig mRunConfig;
+    private LocalSocketManager mLocalSocketManager;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        mRunConfig = new LocalSocketRunConfig("test", "\0test", new LocalSocketManagerClientBase() {
+            @Override
+            protected String getLogTag() {
+                return "LocalSocketManagerTest";
+            }
+        });
+        mRunConfig.setMaxWorkerThreads(2);
+        mRunConfig.setWorkerQueueSize(32);
+
+        // Only the worker pool is needed, the server socket is not started
+        mLocalSocketManager = new LocalSocketManager(new ContextWrapper(null), mRunConfig);
+        mLocalSocketManager.mWorkerPool = mLocalSocketManager.createWorkerPool();
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mLocalSocketManager.mWorkerPool.shutdownNow();
+    }
+
+    /** Start a client task that blocks until the test is done and counts down started once running. */
+    private boolean startBlockingClient(CountDownLatch started) {
+        return mLocalSocketManager.startLocalSocketManagerClientThread(() -> {
+            started.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException ignored) {}
+        });
+    }
+
+    @Test
+    public void testClientsAreServedInParallel() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(2);
+        Assert.assertTrue(startBlockingClient(started));
+        Assert.assertTrue(startBlockingClient(started));
+
+        // The second client must not wait in the queue for the first one to finish
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, mRunConfig.getMetrics().getQueueDepth());
+    }
+
+    @Test
+    public void testClientIsRejectedOnceQueueIsFull() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(2);
+        Assert.assertTrue(startBlockingClient(started));
+        Assert.assertTrue(startBlockingClient(started));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch queuedStarted = new CountDownLatch(32);
+        for (int i = 0; i < 32; i++)
+            Assert.assertTrue("Queued client " + (i + 1), startBlockingClient(queuedStarted));
+        Assert.assertEquals(32, mRunConfig.getMetrics().getQueueDepth());
+
+        // The 33rd queued client is rejected without an exception and is not counted as queued
+        Assert.assertFalse(startBlockingClient(new CountDownLatch(1)));
+        Assert.assertEquals(32, mRunConfig.getMetrics().getQueueDepth());
+
+        // The queued clients are still served once the workers are free
+        mRelease.countDown();
+        Assert.assertTrue(queuedStarted.await(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.andronux.termux.shared.shell;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class BoundedStreamGobblerTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("BoundedStreamGobblerTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDirectory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                deleteRecursively(child);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /** Write {@code output} to the {@code gobbler} in chunks of {@code chunkSize} bytes and close it. */
+    private static void write(BoundedStreamGobbler gobbler, String output, int chunkSize) {
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            int length = Math.min(chunkSize, bytes.length - i);
+            byte[] buffer = new byte[chunkSize];
+            System.arraycopy(bytes, i, buffer, 0, length);
+            gobbler.onStreamData(buffer, length);
+        }
+        gobbler.onStreamClosed();
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testOutputWithinBufferIsKept() {
+        File spillFile = new File(mDirectory, "stdout");
+        BoundedStreamGobbler gobbler = new BoundedStreamGobbler("test", 8, spillFile, null);
+        write(gobbler, "01234567", 3);
+
+        Assert.assertEquals("01234567", gobbler.getOutput());
+        Assert.assertFalse(gobbler.isTruncated());
+        Assert.assertEquals(8, gobbler.getTotalLength());
+        Assert.assertNull(gobbler.getSpillFile());
+        Assert.assertFalse(spillFile.exists());
+    }
+
+    @Test
+    public void testHeadAndTailAreKeptAndWholeOutputIsSpilled() throws IOException {
+        File spillFile = new File(mDirectory, "output/stdout");
+        BoundedStreamGobbler gobbler = new BoundedStreamGobbler("test", 8, spillFile, null);
+        write(gobbler, "0123456789abcdef", 3);
+
+        Assert.assertTrue(gobbler.isTruncated());
+        Assert.assertEquals(8, gobbler.getTruncatedLength());
+        Assert.assertEquals(16, gobbler.getTotalLength());
+        Assert.assertEquals(spillFile, gobbler.getSpillFile());
+        Assert.assertEquals("0123\n[... 8 bytes truncated, full output in \"" + spillFile.getAbsolutePath() + "\" ...]\ncdef",
+            gobbler.getOutput());
+        Assert.assertEquals("0123456789abcdef", read(spillFile));
+    }
+
+    @Test
+    public void testChunkLargerThanTailWrapsRingBuffer() throws IOException {
+        File spillFile = new File(mDirectory, "stdout");
+        BoundedStreamGobbler gobbler = new BoundedStreamGobbler("test", 8, spillFile, null);
+        byte[] bytes = "012345".getBytes(StandardCharsets.UTF_8);
+        gobbler.onStreamData(bytes, bytes.length);
+        bytes = "6789abcdefghij".getBytes(StandardCharsets.UTF_8);
+        gobbler.onStreamData(bytes, bytes.length);
+        gobbler.onStreamClosed();
+
+        Assert.assertEquals(12, gobbler.getTruncatedLength());
+        Assert.assertTrue(gobbler.getOutput().startsWith("0123\n"));
+        Assert.assertTrue(gobbler.getOutput().endsWith("\nghij"));
+        Assert.assertEquals("0123456789abcdefghij", read(spillFile));
+    }
+
+    @Test
+    public void testMiddleIsDroppedWithoutSpillFile() {
+        BoundedStreamGobbler gobbler = new BoundedStreamGobbler("test", 8, null, null);
+        write(gobbler, "0123456789abcdef", 5);
+
+        Assert.assertEquals("0123\n[... 8 bytes truncated ...]\ncdef", gobbler.getOutput());
+        Assert.assertNull(gobbler.getSpillFile());
+    }
+
+    @Test
+    public void testSpillFailureKeepsBoundedOutput() throws IOException {
+        File file = new File(mDirectory, "file");
+        Assert.assertTrue(file.createNewFile());
+        File spillFile = new File(file, "stdout");
+        BoundedStreamGobbler gobbler = new BoundedStreamGobbler("test", 8, spillFile, null);
+        write(gobbler, "0123456789abcdef", 4);
+
+        Assert.assertEquals("0123\n[... 8 bytes truncated ...]\ncdef", gobbler.getOutput());
+        Assert.assertNull(gobbler.getSpillFile());
+        Assert.assertFalse(spillFile.exists());
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.andronux.termux.shared.shell.command.runner.app;
+
+import com.andronux.termux.shared.shell.command.ExecutionCommand;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class AppShellSchedulerTest {
+
+    /** An {@link AppShellScheduler} with a clock that is advanced by the test. */
+    private static class TestAppShellScheduler extends AppShellScheduler {
+
+        long mTime;
+
+        TestAppShellScheduler(int maxRunningCommands, int maxRunningCommandsPerPackage, long maxSlotHoldTime) {
+            super(maxRunningCommands, maxRunningCommandsPerPackage, maxSlotHoldTime);
+        }
+
+        @Override
+        protected long getElapsedRealtime() {
+            return mTime;
+        }
+
+    }
+
+    /** The labels of the commands in the order they were started. Commands are started synchronously in unit tests. */
+    private final List<String> mStarted = new ArrayList<>();
+
+    private ExecutionCommand submit(AppShellScheduler scheduler, String label, String packageName, Integer priority) {
+        ExecutionCommand executionCommand = new ExecutionCommand(mStarted.size());
+        executionCommand.commandLabel = label;
+        executionCommand.priority = priority;
+        scheduler.submit(executionCommand, packageName, command -> mStarted.add(command.commandLabel));
+        return executionCommand;
+    }
+
+    @Test
+    public void testHigherPriorityFirstThenFifo() {
+        AppShellScheduler scheduler = new TestAppShellScheduler(1, 1, 0);
+        ExecutionCommand running = submit(scheduler, "running", null, null);
+        ExecutionCommand low1 = submit(scheduler, "low1", null, null);
+        ExecutionCommand high1 = submit(scheduler, "high1", null, 5);
+        ExecutionCommand low2 = submit(scheduler, "low2", null, null);
+        ExecutionCommand high2 = submit(scheduler, "high2", null, 5);
+        Assert.assertEquals(Arrays.asList("running"), mStarted);
+        Assert.assertEquals(4, scheduler.getQueuedExecutionCommandsCount());
+
+        for (ExecutionCommand executionCommand : new ExecutionCommand[]{running, high1, high2, low1, low2})
+            scheduler.onExecutionCommandFinished(executionCommand);
+        Assert.assertEquals(Arrays.asList("running", "high1", "high2", "low1", "low2"), mStarted);
+        Assert.assertEquals(0, scheduler.getRunningExecutionCommandsCount());
+    }
+
+    @Test
+    public void testMaxRunningCommands() {
+        AppShellScheduler scheduler = new TestAppShellScheduler(2, 2, 0);
+        ExecutionCommand first = submit(scheduler, "first", null, null);
+        submit(scheduler, "second", null, null);
+        submit(scheduler, "third", null, null);
+        Assert.assertEquals(Arrays.asList("first", "second"), mStarted);
+        Assert.assertEquals(2, scheduler.getRunningExecutionCommandsCount());
+
+        scheduler.onExecutionCommandFinished(first);
+        Assert.assertEquals(Arrays.asList("first", "second", "third"), mStarted);
+
+        // Finishing a command twice or one that was never started must not free another slot
+        scheduler.onExecutionCommandFinished(first);
+        scheduler.onExecutionCommandFinished(new ExecutionCommand(-1));
+        submit(scheduler, "fourth", null, null);
+        Assert.assertEquals(1, scheduler.getQueuedExecutionCommandsCount());
+    }
+
+    @Test
+    public void testMaxRunningCommandsPerPackage() {
+        AppShellScheduler scheduler = new TestAppShellScheduler(3, 1, 0);
+        ExecutionCommand a1 = submit(scheduler, "a1", "a", null);
+        submit(scheduler, "a2", "a", null);
+        // A package at its limit does not block the commands of other packages queued after it
+        submit(scheduler, "b1", "b", null);
+        Assert.assertEquals(Arrays.asList("a1", "b1"), mStarted);
+        Assert.assertEquals(1, scheduler.getQueuedExecutionCommandsCount());
+
+        scheduler.onExecutionCommandFinished(a1);
+        Assert.assertEquals(Arrays.asList("a1", "b1", "a2"), mStarted);
+    }
+
+    @Test
+    public void testSlotExpiry() {
+        TestAppShellScheduler scheduler = new TestAppShellScheduler(1, 1, 1000);
+        ExecutionCommand server = submit(scheduler, "server", null, null);
+        submit(scheduler, "queued", null, null);
+        Assert.assertEquals(Arrays.asList("server"), mStarted);
+
+        scheduler.mTime = 999;
+        scheduler.dispatch();
+        Assert.assertEquals(Arrays.asList("server"), mStarted);
+
+        // The long running command no longer counts towards the limits
+        scheduler.mTime = 1000;
+        scheduler.dispatch();
+        Assert.assertEquals(Arrays.asList("server", "queued"), mStarted);
+        Assert.assertEquals(2, scheduler.getRunningExecutionCommandsCount());
+
+        // Finishing the expired command must not free the slot held by the other one
+        scheduler.onExecutionCommandFinished(server);
+        submit(scheduler, "next", null, null);
+        Assert.assertEquals(Arrays.asList("server", "queued"), mStarted);
+        Assert.assertEquals(1, scheduler.getMetrics().getFinishedCommandCount());
+        Assert.assertEquals(500, scheduler.getMetrics().getAverageQueueLatency());
+    }
+
+    @Test
+    public void testCommandNotStartedReleasesSlot() {
+        AppShellScheduler scheduler = new TestAppShellScheduler(1, 1, 0);
+        scheduler.submit(new ExecutionCommand(0), null, command -> false);
+        submit(scheduler, "next", null, null);
+        Assert.assertEquals(Arrays.asList("next"), mStarted);
+    }
+
+}